@@ -1,7 +1,6 @@
 package org.subnode;
 
-import java.io.ByteArrayInputStream;
-import java.net.URI;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -29,7 +28,6 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.subnode.actpub.ActPubFollower;
@@ -132,8 +130,10 @@ import org.subnode.service.NodeEditService;
 import org.subnode.service.NodeMoveService;
 import org.subnode.service.NodeRenderService;
 import org.subnode.service.NodeSearchService;
+import org.subnode.service.ProxyCacheService;
 import org.subnode.service.RSSFeedService;
 import org.subnode.service.SystemService;
+import org.subnode.service.TimelineService;
 import org.subnode.service.UserFeedService;
 import org.subnode.service.UserManagerService;
 import org.subnode.util.CaptchaMaker;
@@ -173,12 +173,6 @@ public class AppController implements ErrorController {
 	// maps classpath resource names to their md5 values
 	private static HashMap<String, String> thymeleafAttribs = null;
 
-	/*
-	 * RestTemplate is thread-safe and reusable, and has no state, so we need only one final static
-	 * instance ever
-	 */
-	private static final RestTemplate restTemplate = new RestTemplate(Util.getClientHttpRequestFactory());
-
 	@Autowired
 	private SessionContext sc;
 
@@ -224,6 +218,9 @@ public class AppController implements ErrorController {
 	@Autowired
 	private SystemService systemService;
 
+	@Autowired
+	private TimelineService timelineService;
+
 	@Autowired
 	private LuceneService luceneService;
 
@@ -239,6 +236,9 @@ public class AppController implements ErrorController {
 	@Autowired
 	private RSSFeedService rssFeedService;
 
+	@Autowired
+	private ProxyCacheService proxyCache;
+
 	@Autowired
 	private GraphNodesService graphNodesService;
 
@@ -501,39 +501,13 @@ public class AppController implements ErrorController {
 			HttpSession session, HttpServletResponse response//
 	) {
 		callProc.run("proxyGet", null, session, ms -> {
-			try {
-				// try to get proxy info from cache.
-				byte[] cacheBytes = null;
-				synchronized (RSSFeedService.proxyCache) {
-					cacheBytes = RSSFeedService.proxyCache.get(url);
-				}
+			// from the cache, or fetched (and cached) if it's not there
+			try (InputStream is = proxyCache.get(url)) {
+				response.setStatus(HttpStatus.OK.value());
 
-				if (cacheBytes != null) {
-					// limiting the stream just becasue for now this is only used in feed
-					// processing, and 5MB is plenty
-					IOUtils.copy(new LimitedInputStreamEx(new ByteArrayInputStream(cacheBytes), 50 * Const.ONE_MB),
-							response.getOutputStream());
-				}
-				// not in cache then read and update cache
-				else {
-					ResponseEntity<byte[]> resp = restTemplate.getForEntity(new URI(url), byte[].class);
-					response.setStatus(HttpStatus.OK.value());
-
-					byte[] body = resp.getBody();
-					synchronized (RSSFeedService.proxyCache) {
-						RSSFeedService.proxyCache.put(url, body);
-					}
-
-					IOUtils.copy(new ByteArrayInputStream(body), response.getOutputStream());
-
-					// DO NOT DELETE (good example)
-					// restTemplate.execute(url, HttpMethod.GET, (ClientHttpRequest requestCallback)
-					// -> {
-					// }, responseExtractor -> {
-					// IOUtils.copy(responseExtractor.getBody(), response.getOutputStream());
-					// return null;
-					// });
-				}
+				// limiting the stream just becasue for now this is only used in feed
+				// processing, and 5MB is plenty
+				IOUtils.copy(new LimitedInputStreamEx(is, 50 * Const.ONE_MB), response.getOutputStream());
 			} catch (Exception e) {
 				// throw new RuntimeException("internal server error");
 			}
@@ -948,7 +922,7 @@ public class AppController implements ErrorController {
 						log.debug("Node did not exist: " + _id);
 						throw new RuntimeException("Node not found.");
 					} else {
-						attachmentService.getBinary(mongoSession, "", node, null, download != null, response);
+						attachmentService.getBinary(mongoSession, "", node, null, download != null, req, response);
 					}
 					return null;
 				});
@@ -984,13 +958,13 @@ public class AppController implements ErrorController {
 			 */
 			@RequestParam(value = "token", required = false) String token, //
 			@RequestParam(value = "download", required = false) String download, //
-			HttpSession session, HttpServletResponse response) {
+			HttpSession session, HttpServletRequest request, HttpServletResponse response) {
 
 		if (token == null) {
 			// Check if this is an 'avatar' request and if so bypass security
 			if ("avatar".equals(binId)) {
 				arun.run(mongoSession -> {
-					attachmentService.getBinary(mongoSession, "", null, nodeId, download != null, response);
+					attachmentService.getBinary(mongoSession, "", null, nodeId, download != null, request, response);
 					return null;
 				});
 			}
@@ -1002,7 +976,7 @@ public class AppController implements ErrorController {
 					 * from normal 'bin' properties. This way we now to support multiple uploads onto any node, in this
 					 * very limites way.
 					 */
-					attachmentService.getBinary(ms, "Header", null, nodeId, download != null, response);
+					attachmentService.getBinary(ms, "Header", null, nodeId, download != null, request, response);
 					return null;
 				});
 			}
@@ -1012,7 +986,7 @@ public class AppController implements ErrorController {
 					if (ipfsCid != null) {
 						ipfsService.streamResponse(response, ms, ipfsCid, null);
 					} else {
-						attachmentService.getBinary(null, "", null, nodeId, download != null, response);
+						attachmentService.getBinary(null, "", null, nodeId, download != null, request, response);
 					}
 					return null;
 				});
@@ -1020,7 +994,7 @@ public class AppController implements ErrorController {
 		} else {
 			if (SessionContext.validToken(token, null)) {
 				arun.run(mongoSession -> {
-					attachmentService.getBinary(mongoSession, "", null, nodeId, download != null, response);
+					attachmentService.getBinary(mongoSession, "", null, nodeId, download != null, request, response);
 					return null;
 				});
 			}
@@ -1319,6 +1293,10 @@ public class AppController implements ErrorController {
 					res.getMessages().add(new InfoMessage(systemService.rebuildIndexes(), null));
 					break;
 
+				case "rebuildTimelines":
+					res.getMessages().add(new InfoMessage(timelineService.rebuild(), null));
+					break;
+
 				case "refreshRssCache":
 					res.getMessages().add(new InfoMessage(rssFeedService.refreshFeedCache(), null));
 					break;
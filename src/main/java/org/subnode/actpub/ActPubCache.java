@@ -1,41 +1,189 @@
 package org.subnode.actpub;
 
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.subnode.actpub.model.APObj;
+import org.subnode.config.AppProp;
+import org.subnode.mongo.model.ActPubCacheEntry;
 import org.subnode.mongo.model.SubNode;
+import org.subnode.util.BoundedCache;
+import org.subnode.util.DateUtil;
+import org.subnode.util.XString;
 
+/**
+ * In-memory caches of things we get from foreign servers (and the account nodes we make for them).
+ * Each cache is bounded in size and its entries expire, so we pick up changes the foreign users make,
+ * and so WebFinger failures are retried eventually.
+ *
+ * The actors and WebFinger results, which are the ones that cost a fetch from a foreign server to get,
+ * are optionally snapshotted to the DB and loaded back in at startup.
+ */
 @Component
 public class ActPubCache {
-    /*
-     * Holds users for which messages need refreshing (false value) but sets value to 'true' once
-     * completed
-     */
-    public final ConcurrentHashMap<String, Boolean> usersPendingRefresh = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(ActPubCache.class);
+
+    @Autowired
+    private MongoTemplate ops;
 
-    public final ConcurrentHashMap<String, Boolean> allUserNames = new ConcurrentHashMap<>();
+    @Autowired
+    private AppProp appProp;
 
-    /* Cache Actor objects by UserName in memory only for now */
-    public final ConcurrentHashMap<String, APObj> actorsByUserName = new ConcurrentHashMap<>();
+    /* Fediverse names waiting to be saved to the FediverseName collection */
+    public final Set<String> pendingUserNames = ConcurrentHashMap.newKeySet();
 
-    /* Cache Actor objects by URL in memory only for now */
-    public final ConcurrentHashMap<String, APObj> actorsByUrl = new ConcurrentHashMap<>();
+    /* Fediverse names known to be in the FediverseName collection already, so they're never sent to the DB again */
+    public final Set<String> knownUserNames = ConcurrentHashMap.newKeySet();
 
-    /* Cache of user account node Ids by actor url */
-    public final ConcurrentHashMap<String, String> acctIdByActorUrl = new ConcurrentHashMap<>();
+    /* Actor objects by UserName */
+    public BoundedCache<String, APObj> actorsByUserName;
+
+    /* Actor objects by URL */
+    public BoundedCache<String, APObj> actorsByUrl;
+
+    /* User account node Ids by actor url */
+    public BoundedCache<String, String> acctIdByActorUrl;
 
     /* Account Node by actor Url */
-    public final ConcurrentHashMap<String, SubNode> acctNodesByActorUrl = new ConcurrentHashMap<>();
+    public BoundedCache<String, SubNode> acctNodesByActorUrl;
 
     /* Account Node by User Name */
-    public final ConcurrentHashMap<String, SubNode> acctNodesByUserName = new ConcurrentHashMap<>();
+    public BoundedCache<String, SubNode> acctNodesByUserName;
 
     /* Account Node by node ID */
-    public final ConcurrentHashMap<String, SubNode> acctNodesById = new ConcurrentHashMap<>();
+    public BoundedCache<String, SubNode> acctNodesById;
+
+    /*
+     * Inbox to deliver to for each foreign UserName, which is the shared inbox of their server when it
+     * has one, otherwise their own inbox
+     */
+    public BoundedCache<String, String> deliveryInboxesByUserName;
+
+    /* WebFinger objects by UserName */
+    public BoundedCache<String, APObj> webFingerCacheByUserName;
+
+    /* WebFinger fails, so we don't try them again until the entry expires */
+    public BoundedCache<String, Boolean> webFingerFailsByUserName;
+
+    private List<BoundedCache<?, ?>> allCaches = new LinkedList<>();
+
+    @PostConstruct
+    public void postConstruct() {
+        int maxSize = appProp.getApCacheSize();
+        long ttl = (long) appProp.getApCacheTtlMinutes() * DateUtil.MINUTE_MILLIS;
+
+        actorsByUserName = add(new BoundedCache<>("Actors by UserName", maxSize, ttl));
+        actorsByUrl = add(new BoundedCache<>("Actors by URL", maxSize, ttl));
+        acctIdByActorUrl = add(new BoundedCache<>("Account IDs by Actor URL", maxSize, ttl));
+        acctNodesByActorUrl = add(new BoundedCache<>("Account Nodes by Actor URL", maxSize, ttl));
+        acctNodesByUserName = add(new BoundedCache<>("Account Nodes by UserName", maxSize, ttl));
+        acctNodesById = add(new BoundedCache<>("Account Nodes by ID", maxSize, ttl));
+        deliveryInboxesByUserName = add(new BoundedCache<>("Delivery Inboxes by UserName", maxSize, ttl));
+        webFingerCacheByUserName = add(new BoundedCache<>("WebFingers by UserName", maxSize, ttl));
+        webFingerFailsByUserName = add(new BoundedCache<>("WebFinger Fails by UserName", maxSize,
+                (long) appProp.getApCacheFailTtlMinutes() * DateUtil.MINUTE_MILLIS));
+    }
+
+    private <K, V> BoundedCache<K, V> add(BoundedCache<K, V> cache) {
+        allCaches.add(cache);
+        return cache;
+    }
+
+    /* Loads the snapshot saved by saveSnapshot, if snapshots are enabled */
+    public void loadSnapshot() {
+        if (!appProp.isApCacheSnapshot())
+            return;
+
+        int count = 0;
+        Query query = new Query(Criteria.where(ActPubCacheEntry.FIELD_EXPIRE_TIME).gt(new Date()));
+        for (ActPubCacheEntry entry : ops.find(query, ActPubCacheEntry.class)) {
+            BoundedCache<String, APObj> cache = getSnapshotCache(entry.getCache());
+            if (cache == null)
+                continue;
+
+            try {
+                APObj obj = XString.jsonMapper.readValue(entry.getJson(), APObj.class);
+                cache.put(entry.getKey(), obj, entry.getExpireTime().getTime());
+                count++;
+            } catch (Exception e) {
+                // ignore bad entries, they'll just get fetched again
+            }
+        }
+        log.debug("Loaded " + count + " ActivityPub cache entries from snapshot.");
+    }
+
+    /*
+     * Replaces the saved snapshot with the current contents of the snapshotted caches. The new entries
+     * are written over the old ones before the old ones left over are removed, so if we go down partway
+     * through there's still a whole snapshot (some of it older) to load.
+     */
+    @Scheduled(fixedDelay = 30 * DateUtil.MINUTE_MILLIS, initialDelay = 30 * DateUtil.MINUTE_MILLIS)
+    public void saveSnapshot() {
+        if (!appProp.isApCacheSnapshot())
+            return;
+
+        long generation = System.currentTimeMillis();
+        BulkOperations bops = ops.bulkOps(BulkOperations.BulkMode.UNORDERED, ActPubCacheEntry.class);
+        int[] count = new int[1];
+        for (String name : new String[] {"actorsByUrl", "actorsByUserName", "webFingerCacheByUserName"}) {
+            getSnapshotCache(name).forEach((key, val, expireTime) -> {
+                try {
+                    ActPubCacheEntry entry = new ActPubCacheEntry(name, key, XString.jsonMapper.writeValueAsString(val),
+                            new Date(expireTime), generation);
+                    Query query = new Query(Criteria.where(ActPubCacheEntry.FIELD_ID).is(entry.getId()));
+                    Update update = new Update() //
+                            .set(ActPubCacheEntry.FIELD_CACHE, entry.getCache()) //
+                            .set(ActPubCacheEntry.FIELD_KEY, entry.getKey()) //
+                            .set(ActPubCacheEntry.FIELD_JSON, entry.getJson()) //
+                            .set(ActPubCacheEntry.FIELD_EXPIRE_TIME, entry.getExpireTime()) //
+                            .set(ActPubCacheEntry.FIELD_GENERATION, generation);
+                    bops.upsert(query, update);
+                    count[0]++;
+                } catch (Exception e) {
+                    // skip any object we can't write as JSON
+                }
+            });
+        }
+
+        if (count[0] > 0) {
+            bops.execute();
+        }
+        ops.remove(new Query(Criteria.where(ActPubCacheEntry.FIELD_GENERATION).ne(generation)), ActPubCacheEntry.class);
+        log.debug("Saved " + count[0] + " ActivityPub cache entries to snapshot.");
+    }
 
-    /* Cache WebFinger objects by UserName in memory only for now */
-    public final ConcurrentHashMap<String, APObj> webFingerCacheByUserName = new ConcurrentHashMap<>();
+    private BoundedCache<String, APObj> getSnapshotCache(String name) {
+        switch (name) {
+            case "actorsByUrl":
+                return actorsByUrl;
+            case "actorsByUserName":
+                return actorsByUserName;
+            case "webFingerCacheByUserName":
+                return webFingerCacheByUserName;
+            default:
+                return null;
+        }
+    }
 
-    /* Cache WebFinger fails, so we don't try them again */
-    public final ConcurrentHashMap<String, Boolean> webFingerFailsByUserName = new ConcurrentHashMap<>();
+    public String getStatsReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nActivityPub Cache Stats:\n");
+        for (BoundedCache<?, ?> cache : allCaches) {
+            sb.append(cache.getStatsReport());
+        }
+        return sb.toString();
+    }
 }
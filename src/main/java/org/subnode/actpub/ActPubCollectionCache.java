@@ -0,0 +1,211 @@
+package org.subnode.actpub;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.ObjectId;
+import org.springframework.stereotype.Component;
+import org.subnode.model.client.NodeProp;
+import org.subnode.model.client.NodeType;
+import org.subnode.model.client.PrincipalName;
+import org.subnode.mongo.model.SubNode;
+import org.subnode.util.BoundedCache;
+import org.subnode.util.DateUtil;
+
+/**
+ * Caches the outbox and followers collections we serve for local users, which foreign servers poll
+ * over and over.
+ *
+ * The rendered pages (as JSON) are cached per user, and all of a user's pages are dropped whenever
+ * they save or delete a public node (or gain or lose a follower). The counts are kept up to date as
+ * nodes are created and deleted, and are only dropped (to be counted again from the DB) when a save
+ * changes something we can't account for, like the sharing of an existing node.
+ *
+ * Anyone rendering a page or counting gets the holder for the user first and fills it in after,
+ * so that if the user's entry is dropped in between, the (possibly stale) result goes into the
+ * dropped holder rather than back into the cache.
+ */
+@Component
+public class ActPubCollectionCache {
+    private static final int MAX_USERS = 1000;
+
+    /* Max pages cached per user, since foreign servers can ask for any page they like */
+    private static final int MAX_PAGES_PER_USER = 20;
+
+    /*
+     * Counts can still drift in ways we don't see (like a node changing owner) so they are counted again
+     * now and then regardless
+     */
+    private static final long TTL = DateUtil.HOUR_MILLIS;
+
+    /* Count holders have this value until they're counted */
+    private static final long UNKNOWN = -1;
+
+    /* Rendered outbox pages by owner ID, then by page */
+    private final BoundedCache<ObjectId, ConcurrentHashMap<String, String>> outboxPages =
+            new BoundedCache<>("Outbox Pages by Owner", MAX_USERS, TTL);
+
+    /* Count of public nodes by owner ID */
+    private final BoundedCache<ObjectId, AtomicLong> outboxCounts = new BoundedCache<>("Outbox Counts by Owner", MAX_USERS, TTL);
+
+    /* Rendered followers pages by userName, then by page */
+    private final BoundedCache<String, ConcurrentHashMap<String, String>> followersPages =
+            new BoundedCache<>("Followers Pages by UserName", MAX_USERS, TTL);
+
+    /* Count of followers by userName */
+    private final BoundedCache<String, AtomicLong> followersCounts =
+            new BoundedCache<>("Followers Counts by UserName", MAX_USERS, TTL);
+
+    private final AtomicLong pageHits = new AtomicLong();
+    private final AtomicLong pageMisses = new AtomicLong();
+
+    /* Returns the rendered outbox pages of 'ownerId', keyed by page */
+    public ConcurrentHashMap<String, String> getOutboxPages(ObjectId ownerId) {
+        return getHolder(outboxPages, ownerId, () -> new ConcurrentHashMap<>());
+    }
+
+    /* Returns the holder of the outbox count of 'ownerId', which is UNKNOWN (negative) until counted */
+    public AtomicLong getOutboxCount(ObjectId ownerId) {
+        return getHolder(outboxCounts, ownerId, () -> new AtomicLong(UNKNOWN));
+    }
+
+    public ConcurrentHashMap<String, String> getFollowersPages(String userName) {
+        return getHolder(followersPages, userName, () -> new ConcurrentHashMap<>());
+    }
+
+    public AtomicLong getFollowersCount(String userName) {
+        return getHolder(followersCounts, userName, () -> new AtomicLong(UNKNOWN));
+    }
+
+    /* Returns the page cached in 'pages' for 'key', counting the hit or miss */
+    public String getPage(ConcurrentHashMap<String, String> pages, String key) {
+        String page = pages.get(key);
+        if (page != null) {
+            pageHits.incrementAndGet();
+        } else {
+            pageMisses.incrementAndGet();
+        }
+        return page;
+    }
+
+    /* Caches 'json' in 'pages' as the page for 'key', unless there are already too many pages */
+    public void putPage(ConcurrentHashMap<String, String> pages, String key, String json) {
+        if (pages.size() < MAX_PAGES_PER_USER) {
+            pages.put(key, json);
+        }
+    }
+
+    private interface HolderFactory<V> {
+        V create();
+    }
+
+    private <K, V> V getHolder(BoundedCache<K, V> cache, K key, HolderFactory<V> factory) {
+        synchronized (cache) {
+            V holder = cache.get(key);
+            if (holder == null) {
+                holder = factory.create();
+                cache.put(key, holder);
+            }
+            return holder;
+        }
+    }
+
+    /* Called after every save of a node */
+    public void nodeSaved(SubNode node) {
+        if (node.getOwner() == null)
+            return;
+
+        // nodes not loaded from the DB are new ones
+        boolean isNew = node.getLoadedAuthHash() == null;
+        boolean authChanged = !isNew && node.getLoadedAuthHash().intValue() != node.authHash();
+
+        if (isPublic(node) || authChanged) {
+            outboxPages.remove(node.getOwner());
+
+            if (isNew) {
+                // nodes without a modify time aren't in the outbox yet (see ActPubOutbox)
+                if (node.getModifyTime() != null) {
+                    adjustCount(outboxCounts, node.getOwner(), 1);
+                }
+            } else {
+                // this save may have shared or unshared it, or given it its first modify time
+                outboxCounts.remove(node.getOwner());
+            }
+        }
+
+        String followedUserName = getFollowedUserName(node);
+        if (followedUserName != null) {
+            followersPages.remove(followedUserName);
+            if (isNew) {
+                adjustCount(followersCounts, followedUserName, 1);
+            } else {
+                followersCounts.remove(followedUserName);
+            }
+        }
+    }
+
+    /* Called before a node is deleted */
+    public void nodeDeleted(SubNode node) {
+        if (node.getOwner() == null)
+            return;
+
+        if (isPublic(node)) {
+            outboxPages.remove(node.getOwner());
+            if (node.getModifyTime() != null) {
+                adjustCount(outboxCounts, node.getOwner(), -1);
+            }
+        }
+
+        String followedUserName = getFollowedUserName(node);
+        if (followedUserName != null) {
+            followersPages.remove(followedUserName);
+            adjustCount(followersCounts, followedUserName, -1);
+        }
+    }
+
+    /* For deletes of entire subgraphs, where we don't see the nodes being deleted */
+    public void invalidateAll() {
+        outboxPages.clear();
+        outboxCounts.clear();
+        followersPages.clear();
+        followersCounts.clear();
+    }
+
+    /* Adjusts the count of 'key' by 'delta' if it's been counted, and if not then drops it */
+    private <K> void adjustCount(BoundedCache<K, AtomicLong> cache, K key, long delta) {
+        AtomicLong count = cache.get(key);
+        if (count == null)
+            return;
+
+        if (count.get() == UNKNOWN) {
+            cache.remove(key);
+        } else {
+            count.addAndGet(delta);
+        }
+    }
+
+    private boolean isPublic(SubNode node) {
+        return node.getAc() != null && node.getAc().containsKey(PrincipalName.PUBLIC.s());
+    }
+
+    /* Returns the userName a FRIEND node is following, or null if 'node' isn't a FRIEND node */
+    private String getFollowedUserName(SubNode node) {
+        if (!NodeType.FRIEND.s().equals(node.getType()))
+            return null;
+        return node.getStrProp(NodeProp.USER.s());
+    }
+
+    public String getStatsReport() {
+        long hits = pageHits.get();
+        long total = hits + pageMisses.get();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nActivityPub Served Collection Stats:\n");
+        sb.append("Page Hits: " + hits + " Misses: " + pageMisses.get() + " Hit Rate: "
+                + (total > 0 ? (100 * hits / total) : 0) + "%\n");
+        sb.append(outboxPages.getStatsReport());
+        sb.append(outboxCounts.getStatsReport());
+        sb.append(followersPages.getStatsReport());
+        sb.append(followersCounts.getStatsReport());
+        return sb.toString();
+    }
+}
@@ -8,6 +8,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -34,6 +35,9 @@ public class ActPubController {
 	@Autowired
 	private ActPubOutbox apOutbox;
 
+	@Autowired
+	private ActPubInbox apInbox;
+
 	@Autowired
 	private ActPubFollowing apFollowing;
 
@@ -46,6 +50,9 @@ public class ActPubController {
 	@Autowired
 	private AppProp appProp;
 
+	/* Seconds a foreign server is asked to wait before posting again, when our inbox queue is full */
+	private static final int INBOX_RETRY_AFTER_SECONDS = 30;
+
 	private static final ObjectMapper mapper = new ObjectMapper();
 
 	// NOTE: This didn't allow unknown properties as expected but putting the
@@ -109,7 +116,7 @@ public class ActPubController {
 	 * 
 	 * If no userName specified it's the system 'sharedInbox'
 	 */
-	@RequestMapping(value = APConst.PATH_INBOX + "/{userName}", method = RequestMethod.POST,
+	@RequestMapping(value = {APConst.PATH_INBOX, APConst.PATH_INBOX + "/{userName}"}, method = RequestMethod.POST,
 			produces = APConst.CONTENT_TYPE_JSON_LD)
 	public @ResponseBody Object inboxPost(//
 			@RequestBody String body, //
@@ -119,8 +126,16 @@ public class ActPubController {
 			APObj payload = mapper.readValue(body, new TypeReference<>() {});
 			// log.debug("INBOX incoming payload: " + XString.prettyPrint(payload));
 			ActPubService.inboxCount++;
-			apService.processInboxPost(httpReq, payload);
-			return new ResponseEntity<String>(HttpStatus.OK);
+
+			// the signature has to be checked now while we have the request, the rest is done in the background
+			apService.verifyInboxPost(httpReq, payload);
+
+			if (apInbox.queue(payload) == ActPubInbox.Result.FULL) {
+				HttpHeaders headers = new HttpHeaders();
+				headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(INBOX_RETRY_AFTER_SECONDS));
+				return new ResponseEntity<String>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+			}
+			return new ResponseEntity<String>(HttpStatus.ACCEPTED);
 		} catch (Exception e) {
 			return new ResponseEntity<String>(HttpStatus.BAD_REQUEST);
 		}
@@ -134,10 +149,12 @@ public class ActPubController {
 	public @ResponseBody Object outbox(//
 			@PathVariable(value = "userName", required = true) String userName,
 			@RequestParam(value = "min_id", required = false) String minId,
+			@RequestParam(value = "max_id", required = false) String maxId,
 			@RequestParam(value = "page", required = false) String page) {
-		APObj ret = null;
+		// pages come back as JSON strings, since that's how they're cached
+		Object ret = null;
 		if (APConst.TRUE.equals(page)) {
-			ret = apOutbox.generateOutboxPage(userName, minId);
+			ret = apOutbox.generateOutboxPage(userName, minId, maxId);
 		} else {
 			/*
 			 * Mastodon calls this method, but never calls back in (to generateOutboxPage above) for any pages.
@@ -167,7 +184,7 @@ public class ActPubController {
 			@PathVariable(value = "userName", required = false) String userName,
 			@RequestParam(value = "min_id", required = false) String minId,
 			@RequestParam(value = "page", required = false) String page) {
-		APObj ret = null;
+		Object ret = null;
 		if (APConst.TRUE.equals(page)) {
 			ret = apFollower.generateFollowersPage(userName, minId);
 		} else {
@@ -15,12 +15,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.subnode.actpub.model.AP;
+import org.subnode.actpub.model.APObj;
 import org.subnode.actpub.model.APProp;
 import org.subnode.model.client.NodeProp;
 import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.service.UserManagerService;
+import org.subnode.util.BoundedCache;
+import org.subnode.util.DateUtil;
 import org.subnode.util.XString;
 
 @Component
@@ -28,9 +31,57 @@ public class ActPubCrypto {
 
     private static final Logger log = LoggerFactory.getLogger(ActPubCrypto.class);
 
+    /* How long a foreign user's public key is used before we get it from their actor again */
+    private static final long PUBLIC_KEY_TTL = DateUtil.HOUR_MILLIS;
+
+    private static final int MAX_PUBLIC_KEYS = 10000;
+
+    /*
+     * After a signature fails to verify we get the actor again in case they changed their key, but no
+     * more than once in this long per actor, so a stream of bad signatures can't make us fetch the
+     * actor over and over
+     */
+    private static final long MIN_REFRESH_AGE = 5 * DateUtil.MINUTE_MILLIS;
+
     @Autowired
     private MongoRead read;
 
+    @Autowired
+    private ActPubUtil apUtil;
+
+    @Autowired
+    private ActPubCache apCache;
+
+    private static class CachedKey {
+        final String actorUrl;
+        final PublicKey key;
+
+        CachedKey(String actorUrl, PublicKey key) {
+            this.actorUrl = actorUrl;
+            this.key = key;
+        }
+    }
+
+    /* Parsed public keys by keyId (of the HTTP Signature), so we only parse each key once */
+    private final BoundedCache<String, CachedKey> publicKeysByKeyId =
+            new BoundedCache<>("Public Keys by KeyId", MAX_PUBLIC_KEYS, PUBLIC_KEY_TTL);
+
+    /* Actor URLs we got again (after a failed verify) within the last MIN_REFRESH_AGE */
+    private final BoundedCache<String, Boolean> refreshedActorUrls =
+            new BoundedCache<>("Refreshed Actor URLs", MAX_PUBLIC_KEYS, MIN_REFRESH_AGE);
+
+    /*
+     * Signature objects are not thread safe but are reusable (initVerify resets them), so each thread
+     * keeps one rather than getting a new one for every verify
+     */
+    private static final ThreadLocal<Signature> verifiers = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance("SHA256withRSA");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    });
+
     /* Gets private RSA key from current user session */
     public String getPrivateKey(MongoSession ms, String userName) {
         /* First try to return the key from the cache */
@@ -57,7 +108,11 @@ public class ActPubCrypto {
         return privateKey;
     }
 
-    public void verifySignature(HttpServletRequest httpReq, PublicKey pubKey) {
+    /*
+     * Verifies the HTTP Signature on 'httpReq' was made by the actor at 'actorUrl', and throws an
+     * exception if not.
+     */
+    public void verifySignature(HttpServletRequest httpReq, String actorUrl) {
         String reqHeaderSignature = httpReq.getHeader("Signature");
         if (reqHeaderSignature == null) {
             throw new RuntimeException("Signature missing from http header.");
@@ -123,18 +178,68 @@ public class ActPubCrypto {
         byte[] signableBytes = getHeaderSignatureBytes(httpReq, headers);
         byte[] sigBytes = Base64.getDecoder().decode(signature);
 
+        PublicKey pubKey = getPublicKey(keyID, actorUrl, false);
+        if (pubKey != null && verify(pubKey, signableBytes, sigBytes))
+            return;
+
+        /*
+         * The user may have changed their key since we cached it, so get it again from their actor, and
+         * only fail if it still doesn't verify. If we already did that recently there's nothing newer to
+         * get.
+         */
+        if (refreshedActorUrls.get(actorUrl) != null) {
+            throw new RuntimeException("Signature verify failed.");
+        }
+        refreshedActorUrls.put(actorUrl, Boolean.TRUE);
+
+        pubKey = getPublicKey(keyID, actorUrl, true);
+        if (pubKey == null) {
+            throw new RuntimeException("Unable to get public key of actor: " + actorUrl);
+        }
+        if (!verify(pubKey, signableBytes, sigBytes)) {
+            throw new RuntimeException("Signature verify failed.");
+        }
+    }
+
+    /* Returns true if 'sigBytes' is a valid signature of 'signableBytes' by 'pubKey' */
+    public boolean verify(PublicKey pubKey, byte[] signableBytes, byte[] sigBytes) {
         try {
-            Signature verifier = Signature.getInstance("SHA256withRSA");
+            Signature verifier = verifiers.get();
             verifier.initVerify(pubKey);
             verifier.update(signableBytes);
-            if (!verifier.verify(sigBytes)) {
-                throw new RuntimeException("Signature verify failed.");
-            }
+            return verifier.verify(sigBytes);
         } catch (Exception e) {
-            throw new RuntimeException("Signature check failed.");
+            return false;
         }
     }
 
+    /*
+     * Gets the public key 'keyId' of the actor at 'actorUrl' from the cache, or else from the actor
+     * (always from the actor, fetched again, if 'refresh' is true). The key is only cached if the actor
+     * says 'keyId' is its key, so a post signed with one actor's key can never get that key used for a
+     * different actor.
+     */
+    private PublicKey getPublicKey(String keyId, String actorUrl, boolean refresh) {
+        if (!refresh) {
+            CachedKey cached = publicKeysByKeyId.get(keyId);
+            if (cached != null && cached.actorUrl.equals(actorUrl)) {
+                return cached.key;
+            }
+        } else {
+            apCache.actorsByUrl.remove(actorUrl);
+        }
+
+        APObj actorObj = apUtil.getActorByUrl(actorUrl);
+        if (actorObj == null)
+            return null;
+
+        PublicKey pubKey = getPublicKeyFromActor(actorObj);
+        if (pubKey != null && keyId.equals(AP.str(AP.obj(actorObj, APProp.publicKey), APProp.id))) {
+            publicKeysByKeyId.put(keyId, new CachedKey(actorUrl, pubKey));
+        }
+        return pubKey;
+    }
+
     public PublicKey getPublicKeyFromActor(Object actorObj) {
         PublicKey pubKey = null;
         Object pubKeyObj = AP.obj(actorObj, APProp.publicKey);
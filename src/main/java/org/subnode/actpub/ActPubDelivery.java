@@ -0,0 +1,422 @@
+package org.subnode.actpub;
+
+import java.net.URL;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.subnode.AppServer;
+import org.subnode.actpub.model.APObj;
+import org.subnode.config.AppProp;
+import org.subnode.mongo.AdminRun;
+import org.subnode.mongo.model.OutboundActivity;
+import org.subnode.util.DateUtil;
+import org.subnode.util.XString;
+import reactor.core.publisher.Mono;
+
+/**
+ * Outbound ActivityPub delivery. Activities are saved to the DB (see OutboundActivity), one per
+ * destination inbox, and then prepared by a pool of worker threads and posted by the non-blocking HTTP
+ * client, so the user's request never waits on foreign servers, slow servers don't tie up threads,
+ * and deliveries aren't lost if a server is down or we restart.
+ *
+ * No more than a few deliveries to any one host run at once, failed deliveries are retried with
+ * exponential backoff, and once we give up on one (or the foreign server rejects it outright) it's
+ * left in the DB as dead, for the admin to see.
+ */
+@Component
+public class ActPubDelivery {
+    private static final Logger log = LoggerFactory.getLogger(ActPubDelivery.class);
+
+    private static final long FIRST_RETRY_DELAY = DateUtil.MINUTE_MILLIS;
+    private static final long MAX_RETRY_DELAY = 6 * DateUtil.HOUR_MILLIS;
+
+    /* How long dead deliveries are kept, for the admin to look at */
+    private static final long DEAD_RETENTION = 7 * 24 * DateUtil.HOUR_MILLIS;
+
+    @Autowired
+    private MongoTemplate ops;
+
+    @Autowired
+    private AppProp appProp;
+
+    @Autowired
+    private ActPubUtil apUtil;
+
+    @Autowired
+    private ActPubCrypto apCrypto;
+
+    @Autowired
+    private AdminRun arun;
+
+    @Autowired
+    @Qualifier("threadPoolTaskExecutor")
+    private Executor executor;
+
+    private static ExecutorService workers;
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicBoolean dispatching = new AtomicBoolean();
+    private static volatile boolean dispatchAgain = false;
+
+    private static class HostStats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+    }
+
+    private static final ConcurrentHashMap<String, HostStats> hostStats = new ConcurrentHashMap<>();
+
+    public void init() {
+        ops.indexOps(OutboundActivity.class).ensureIndex(new Index() //
+                .on(OutboundActivity.FIELD_STATE, Direction.ASC) //
+                .on(OutboundActivity.FIELD_DUE, Direction.ASC));
+
+        // Anything left in flight was cut off by the last shutdown, so it gets delivered again.
+        Query query = new Query(Criteria.where(OutboundActivity.FIELD_STATE).is(OutboundActivity.STATE_IN_FLIGHT));
+        long count = ops.updateMulti(query, new Update().set(OutboundActivity.FIELD_STATE, OutboundActivity.STATE_QUEUED),
+                OutboundActivity.class).getModifiedCount();
+        if (count > 0) {
+            log.debug("Requeued " + count + " interrupted deliveries.");
+        }
+
+        workers = Executors.newFixedThreadPool(appProp.getApDeliveryThreads());
+        kick();
+    }
+
+    /*
+     * Queues 'message' for delivery to 'inbox' signed by 'fromUser' (whose actor url is 'actor'), or if
+     * 'inbox' is null, to foreign users 'toUsers' who must all be on the same host, and whose inboxes
+     * are looked up at delivery time (see planInbox). 'delay' is the number of milliseconds to wait
+     * before sending.
+     */
+    public void queue(String fromUser, String actor, String inbox, List<String> toUsers, APObj message, long delay) {
+        String host = inbox != null ? getHostOfUrl(inbox) : apUtil.getHostFromUserName(toUsers.get(0));
+        if (host == null) {
+            log.debug("Unable to get host to deliver to: inbox=" + inbox + " toUsers=" + toUsers);
+            return;
+        }
+
+        ops.insert(new OutboundActivity(host, inbox, toUsers, fromUser, actor, XString.prettyPrint(message),
+                new Date(System.currentTimeMillis() + delay)));
+
+        if (delay <= 0) {
+            kick();
+        }
+    }
+
+    public void queue(String fromUser, String actor, String inbox, List<String> toUsers, APObj message) {
+        queue(fromUser, actor, inbox, toUsers, message, 0);
+    }
+
+    private String getHostOfUrl(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /* Starts any deliveries that are due, without blocking the caller */
+    public void kick() {
+        if (workers == null)
+            return;
+        executor.execute(() -> dispatch());
+    }
+
+    @Scheduled(fixedDelay = 5 * 1000)
+    public void scheduledDispatch() {
+        dispatch();
+    }
+
+    /*
+     * Claims due deliveries and hands them to the workers, until either all the workers are busy or
+     * there's nothing more that can be sent. Only one thread dispatches at a time, and any request to
+     * dispatch that comes in meanwhile makes it go around again.
+     */
+    private void dispatch() {
+        if (workers == null || AppServer.isShuttingDown())
+            return;
+
+        if (!dispatching.compareAndSet(false, true)) {
+            dispatchAgain = true;
+            return;
+        }
+
+        try {
+            do {
+                dispatchAgain = false;
+                dispatchDue();
+            } while (dispatchAgain);
+        } catch (Exception e) {
+            log.error("Delivery dispatch failed", e);
+        } finally {
+            dispatching.set(false);
+        }
+    }
+
+    private void dispatchDue() {
+        int maxInFlight = appProp.getApDeliveryMaxInFlight();
+        int maxPerHost = appProp.getApDeliveryThreadsPerHost();
+
+        while (inFlight.get() < maxInFlight) {
+            // hosts we can't send any more to until one of their deliveries finishes
+            HashSet<String> busyHosts = new HashSet<>();
+            hostStats.forEach((host, stats) -> {
+                if (stats.inFlight.get() >= maxPerHost) {
+                    busyHosts.add(host);
+                }
+            });
+
+            Criteria criteria = Criteria.where(OutboundActivity.FIELD_STATE).is(OutboundActivity.STATE_QUEUED) //
+                    .and(OutboundActivity.FIELD_DUE).lte(new Date());
+            if (busyHosts.size() > 0) {
+                criteria = criteria.and(OutboundActivity.FIELD_HOST).nin(busyHosts);
+            }
+
+            Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, OutboundActivity.FIELD_DUE));
+            Update update = new Update().set(OutboundActivity.FIELD_STATE, OutboundActivity.STATE_IN_FLIGHT);
+
+            OutboundActivity act = ops.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true),
+                    OutboundActivity.class);
+            if (act == null)
+                break;
+
+            HostStats stats = getHostStats(act.getHost());
+            stats.inFlight.incrementAndGet();
+            inFlight.incrementAndGet();
+
+            workers.execute(() -> deliver(act, stats));
+        }
+    }
+
+    /*
+     * Runs on a worker thread to look up the inbox and key and sign the activity, and then starts the
+     * post, which doesn't hold any thread while waiting on the foreign server. Once it's done the DB
+     * update goes back onto a worker thread, since the HTTP client's threads must never block.
+     */
+    private void deliver(OutboundActivity act, HostStats stats) {
+        Mono<Void> post;
+        try {
+            String inbox = act.getInbox();
+            if (inbox == null) {
+                inbox = planInbox(act);
+
+                // if it was split up into one delivery per inbox, those will do the sending
+                if (inbox == null) {
+                    finished(stats);
+                    return;
+                }
+            }
+
+            String privateKey = arun.run(session -> apCrypto.getPrivateKey(session, act.getFromUser()));
+            if (privateKey == null) {
+                throw new RuntimeException("Unable to get private key of user: " + act.getFromUser());
+            }
+
+            post = apUtil.securePost(act.getFromUser(), null, privateKey, inbox, act.getActor(), act.getBody(), null);
+        } catch (Exception e) {
+            try {
+                failed(act, stats, e);
+            } finally {
+                finished(stats);
+            }
+            return;
+        }
+
+        post.subscribe(null, //
+                e -> workers.execute(() -> {
+                    try {
+                        failed(act, stats, e);
+                    } finally {
+                        finished(stats);
+                    }
+                }), //
+                () -> workers.execute(() -> {
+                    try {
+                        ops.remove(new Query(Criteria.where(OutboundActivity.FIELD_ID).is(act.getId())), OutboundActivity.class);
+                        stats.sent.incrementAndGet();
+                    } finally {
+                        finished(stats);
+                    }
+                }));
+    }
+
+    private void finished(HostStats stats) {
+        stats.inFlight.decrementAndGet();
+        inFlight.decrementAndGet();
+        kick();
+    }
+
+    /*
+     * Looks up the inbox 'act' goes to, for its 'toUsers'. Servers that have a shared inbox need only
+     * one post to it for all their users, so normally this is a single inbox, which is saved on 'act' so
+     * any retry doesn't need to look it up again, and returned. If the users turn out to have
+     * different inboxes 'act' is replaced by one new delivery for each of them, and null is returned.
+     *
+     * Users whose inbox we can't get right now are split off into a delivery of their own, which gets
+     * retried like any failed delivery, and looks their inboxes up again when it's next due.
+     */
+    private String planInbox(OutboundActivity act) {
+        LinkedHashSet<String> inboxes = new LinkedHashSet<>();
+        List<String> unresolved = new LinkedList<>();
+        for (String toUser : act.getToUsers()) {
+            String inbox = apUtil.getDeliveryInbox(toUser);
+            if (inbox != null) {
+                inboxes.add(inbox);
+            } else {
+                unresolved.add(toUser);
+            }
+        }
+
+        if (inboxes.size() == 0) {
+            throw new RuntimeException("Unable to get inbox of any of " + act.getToUsers());
+        }
+
+        if (unresolved.size() > 0) {
+            log.debug("Unable to get inbox of " + unresolved + ", will retry.");
+            int tries = act.getTries() + 1;
+            OutboundActivity retry = new OutboundActivity(act.getHost(), null, unresolved, act.getFromUser(), act.getActor(),
+                    act.getBody(), new Date(System.currentTimeMillis() + getRetryDelay(tries)));
+            retry.setTries(tries);
+            retry.setError("Unable to get inbox");
+            if (tries >= appProp.getApDeliveryMaxTries()) {
+                retry.setState(OutboundActivity.STATE_DEAD);
+            }
+            ops.insert(retry);
+        }
+
+        Query query = new Query(Criteria.where(OutboundActivity.FIELD_ID).is(act.getId()));
+        if (inboxes.size() == 1) {
+            String inbox = inboxes.iterator().next();
+            ops.updateFirst(query, new Update().set(OutboundActivity.FIELD_INBOX, inbox), OutboundActivity.class);
+            return inbox;
+        }
+
+        Date now = new Date();
+        for (String inbox : inboxes) {
+            String host = getHostOfUrl(inbox);
+            ops.insert(new OutboundActivity(host != null ? host : act.getHost(), inbox, null, act.getFromUser(), act.getActor(),
+                    act.getBody(), now));
+        }
+        ops.remove(query, OutboundActivity.class);
+        kick();
+        return null;
+    }
+
+    private void failed(OutboundActivity act, HostStats stats, Throwable e) {
+        stats.failed.incrementAndGet();
+        int tries = act.getTries() + 1;
+
+        Update update = new Update() //
+                .set(OutboundActivity.FIELD_TRIES, tries) //
+                .set(OutboundActivity.FIELD_ERROR, ExceptionUtils.getRootCauseMessage(e));
+
+        if (isPermanentFailure(e) || tries >= appProp.getApDeliveryMaxTries()) {
+            log.debug("Giving up on delivery to " + act.getHost() + " after " + tries + " tries: " + e.getMessage());
+            update.set(OutboundActivity.FIELD_STATE, OutboundActivity.STATE_DEAD);
+        } else {
+            update.set(OutboundActivity.FIELD_STATE, OutboundActivity.STATE_QUEUED) //
+                    .set(OutboundActivity.FIELD_DUE, new Date(System.currentTimeMillis() + getRetryDelay(tries)));
+        }
+
+        ops.updateFirst(new Query(Criteria.where(OutboundActivity.FIELD_ID).is(act.getId())), update, OutboundActivity.class);
+    }
+
+    /* Milliseconds to wait before trying a delivery again, after it has failed 'tries' times */
+    private long getRetryDelay(int tries) {
+        return Math.min(FIRST_RETRY_DELAY << (tries - 1), MAX_RETRY_DELAY);
+    }
+
+    /*
+     * A 4xx response means the foreign server won't ever accept the activity, except for the ones that
+     * mean "try again later"
+     */
+    private boolean isPermanentFailure(Throwable e) {
+        int idx = ExceptionUtils.indexOfType(e, WebClientResponseException.class);
+        if (idx == -1)
+            return false;
+
+        WebClientResponseException httpEx = (WebClientResponseException) ExceptionUtils.getThrowableList(e).get(idx);
+
+        int status = httpEx.getRawStatusCode();
+        return status >= 400 && status < 500 && status != HttpStatus.TOO_MANY_REQUESTS.value()
+                && status != HttpStatus.REQUEST_TIMEOUT.value();
+    }
+
+    private HostStats getHostStats(String host) {
+        return hostStats.computeIfAbsent(host, k -> new HostStats());
+    }
+
+    @Scheduled(fixedDelay = DateUtil.HOUR_MILLIS)
+    public void removeOldDead() {
+        if (workers == null)
+            return;
+
+        Query query = new Query(Criteria.where(OutboundActivity.FIELD_STATE).is(OutboundActivity.STATE_DEAD) //
+                .and(OutboundActivity.FIELD_CREATE_TIME).lt(new Date(System.currentTimeMillis() - DEAD_RETENTION)));
+        ops.remove(query, OutboundActivity.class);
+    }
+
+    public String getStatsReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nActivityPub Delivery Stats:\n");
+        sb.append("In Flight: " + inFlight.get() + "\n");
+
+        // count of waiting and dead deliveries for each host, from the DB
+        TreeMap<String, int[]> counts = new TreeMap<>();
+        Aggregation agg = Aggregation.newAggregation(
+                Aggregation.group(OutboundActivity.FIELD_HOST, OutboundActivity.FIELD_STATE).count().as("count"));
+        List<Document> results = ops.aggregate(agg, OutboundActivity.class, Document.class).getMappedResults();
+        for (Document doc : results) {
+            Document id = (Document) doc.get("_id");
+            int[] hostCounts = counts.computeIfAbsent(id.getString(OutboundActivity.FIELD_HOST), k -> new int[2]);
+            String state = id.getString(OutboundActivity.FIELD_STATE);
+            if (OutboundActivity.STATE_DEAD.equals(state)) {
+                hostCounts[1] += doc.getInteger("count");
+            } else {
+                hostCounts[0] += doc.getInteger("count");
+            }
+        }
+
+        for (String host : hostStats.keySet()) {
+            counts.computeIfAbsent(host, k -> new int[2]);
+        }
+
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            HostStats stats = getHostStats(entry.getKey());
+            sb.append(entry.getKey() + ": queued=" + entry.getValue()[0] + " inFlight=" + stats.inFlight.get() + " sent="
+                    + stats.sent.get() + " failed=" + stats.failed.get() + " dead=" + entry.getValue()[1] + "\n");
+        }
+        return sb.toString();
+    }
+}
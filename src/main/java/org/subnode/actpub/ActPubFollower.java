@@ -2,7 +2,9 @@ package org.subnode.actpub;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,6 +34,7 @@ import org.subnode.request.GetFollowersRequest;
 import org.subnode.response.GetFollowersResponse;
 import org.subnode.util.Convert;
 import org.subnode.util.ThreadLocals;
+import org.subnode.util.XString;
 
 @Component
 public class ActPubFollower {
@@ -61,6 +64,9 @@ public class ActPubFollower {
     @Autowired
     private ActPubUtil apUtil;
 
+    @Autowired
+    private ActPubCollectionCache apCollections;
+
     @Autowired
     @Qualifier("threadPoolTaskExecutor")
     private Executor executor;
@@ -153,13 +159,25 @@ public class ActPubFollower {
     }
 
     public Long getFollowersCount(String userName) {
-        return (Long) arun.run(session -> {
-            Long count = countFollowersOfUser(session, userName, null);
-            return count;
-        });
+        AtomicLong count = apCollections.getFollowersCount(userName);
+        if (count.get() < 0) {
+            Long dbCount = (Long) arun.run(session -> {
+                return countFollowersOfUser(session, userName, null);
+            });
+            count.compareAndSet(-1, dbCount);
+        }
+        return count.get();
     }
 
-    public APOOrderedCollectionPage generateFollowersPage(String userName, String minId) {
+    /* Returns the page as JSON, which is cached until userName gains or loses a follower */
+    public String generateFollowersPage(String userName, String minId) {
+        ConcurrentHashMap<String, String> pages = apCollections.getFollowersPages(userName);
+        String key = minId != null ? minId : "first";
+        String json = apCollections.getPage(pages, key);
+        if (json != null) {
+            return json;
+        }
+
         List<String> followers = getFollowers(userName, minId);
 
         // this is a self-reference url (id)
@@ -172,7 +190,15 @@ public class ActPubFollower {
                 .put(APProp.orderedItems, followers) //
                 .put(APProp.partOf, appProp.getProtocolHostAndPort() + APConst.PATH_FOLLOWERS + "/" + userName)//
                 .put(APProp.totalItems, followers.size());
-        return ret;
+
+        try {
+            json = XString.jsonMapper.writeValueAsString(ret);
+        } catch (Exception e) {
+            log.error("failed generating followers page: ", e);
+            throw new RuntimeException(e);
+        }
+        apCollections.putPage(pages, key, json);
+        return json;
     }
 
     public Iterable<SubNode> findFollowersOfUser(MongoSession ms, String userName) {
@@ -244,7 +270,7 @@ public class ActPubFollower {
         Query query = new Query();
 
         Criteria criteria =
-                Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(NodeName.ROOT_OF_ALL_USERS)) //
+                util.subGraphCriteria(NodeName.ROOT_OF_ALL_USERS) //
                         .and(SubNode.FIELD_PROPERTIES + "." + NodeProp.USER.s() + ".value").is(userName) //
                         .and(SubNode.FIELD_TYPE).is(NodeType.FRIEND.s());
 
@@ -73,7 +73,7 @@ public class ActPubFollowing {
     private MongoUtil util;
 
     @Autowired
-    private ActPubCrypto apCrypto;
+    private ActPubDelivery apDelivery;
 
     @Autowired
     private Convert convert;
@@ -126,7 +126,7 @@ public class ActPubFollowing {
                 APObj toActor = apUtil.getActorByUrl(actorUrlOfUserBeingFollowed);
                 if (toActor != null) {
                     String toInbox = AP.str(toActor, APProp.inbox);
-                    apUtil.securePost(followerUserName, session, null, toInbox, sessionActorUrl, action, null);
+                    apDelivery.queue(followerUserName, sessionActorUrl, toInbox, null, action);
                 }
                 return null;
             });
@@ -202,13 +202,6 @@ public class ActPubFollowing {
                         }
                     }
 
-                    String privateKey = apCrypto.getPrivateKey(session, userToFollow);
-
-                    // todo-1: what's this sleep doing? I'm pretty sure I just wanted to give the caller (i.e. the
-                    // remote Fedi instance) a chance to get a return code back for this call before posting
-                    // back to it
-                    Thread.sleep(2000);
-
                     // Must send either Accept or Reject. Currently we auto-accept all.
                     APObj acceptPayload = unFollow ? new APOUndo() : new APOFollow();
                     acceptPayload.put(APProp.actor, followerActorUrl) //
@@ -222,8 +215,10 @@ public class ActPubFollowing {
                     String followerInbox = AP.str(followerActor, APProp.inbox);
 
                     // log.debug("Sending Accept of Follow Request to inbox " + followerInbox);
-                    String userDoingPost = ThreadLocals.getSessionContext().getUserName();
-                    apUtil.securePost(userDoingPost, session, privateKey, followerInbox, actorBeingFollowedUrl, accept, null);
+
+                    // The delay gives the caller (i.e. the remote Fedi instance) a chance to get a return code back
+                    // for this call before we post back to it
+                    apDelivery.queue(userToFollow, actorBeingFollowedUrl, followerInbox, null, accept, 2000);
                 } catch (Exception e) {
                 }
             };
@@ -422,8 +417,7 @@ public class ActPubFollowing {
             return null;
 
         // query all the friends under
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH) //
-                .regex(util.regexRecursiveChildrenOfPath(friendsListNode.getPath())) //
+        Criteria criteria = util.subGraphCriteria(friendsListNode.getPath()) //
                 .and(SubNode.FIELD_TYPE).is(NodeType.FRIEND.s());
 
         query.addCriteria(criteria);
@@ -0,0 +1,154 @@
+package org.subnode.actpub;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.subnode.AppServer;
+import org.subnode.actpub.model.AP;
+import org.subnode.actpub.model.APObj;
+import org.subnode.actpub.model.APProp;
+import org.subnode.config.AppProp;
+
+/**
+ * Inbound ActivityPub activities, once their signature is verified, are queued here and processed by
+ * a few worker threads, so the foreign server posting them gets its response right away rather than
+ * waiting on us to fetch actors and write to the DB (which can make it time out and post again).
+ *
+ * The queue is bounded, and when it's full the post is refused so the foreign server will retry it
+ * later. Activities we've already seen (by id) are dropped, since servers do retry the same post.
+ */
+@Component
+public class ActPubInbox {
+    private static final Logger log = LoggerFactory.getLogger(ActPubInbox.class);
+
+    /* Number of the most recent activity ids remembered, for detecting duplicates */
+    private static final int MAX_SEEN_IDS = 10000;
+
+    @Autowired
+    private AppProp appProp;
+
+    @Autowired
+    private ActPubService apService;
+
+    private ArrayBlockingQueue<APObj> queue;
+    private ExecutorService workers;
+
+    /* Ids of activities recently queued, in insertion order so the oldest can be forgotten */
+    private final LinkedHashMap<String, Boolean> seenIds = new LinkedHashMap<String, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SEEN_IDS;
+        }
+    };
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public enum Result {
+        QUEUED, DUPLICATE, FULL
+    }
+
+    @PostConstruct
+    public void postConstruct() {
+        queue = new ArrayBlockingQueue<>(appProp.getApInboxQueueSize());
+    }
+
+    /* Starts the workers, once the rest of the app is ready for them (see MongoRepository) */
+    public synchronized void init() {
+        if (workers != null)
+            return;
+
+        int threads = appProp.getApInboxThreads();
+        workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> processQueue());
+        }
+    }
+
+    /* Stops the workers, interrupting any waiting on the queue. Anything still queued is dropped. */
+    @PreDestroy
+    public synchronized void preDestroy() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    /* Queues an activity (already verified) to be processed, unless it's a duplicate or the queue is full */
+    public Result queue(APObj payload) {
+        String id = AP.str(payload, APProp.id);
+        if (id != null) {
+            synchronized (seenIds) {
+                if (seenIds.containsKey(id)) {
+                    duplicateCount.incrementAndGet();
+                    return Result.DUPLICATE;
+                }
+                seenIds.put(id, true);
+            }
+        }
+
+        if (!queue.offer(payload)) {
+            // forget we saw it, so the retry the foreign server will do can get in
+            if (id != null) {
+                synchronized (seenIds) {
+                    seenIds.remove(id);
+                }
+            }
+            rejectedCount.incrementAndGet();
+            return Result.FULL;
+        }
+
+        acceptedCount.incrementAndGet();
+        return Result.QUEUED;
+    }
+
+    private void processQueue() {
+        while (!AppServer.isShuttingDown()) {
+            APObj payload = null;
+            try {
+                payload = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                apService.processInboxPost(payload);
+                processedCount.incrementAndGet();
+            } catch (Exception e) {
+                failedCount.incrementAndGet();
+                String id = AP.str(payload, APProp.id);
+                log.error("Failed processing inbox activity: " + id, e);
+
+                // forget we saw it, so if the foreign server sends it again it isn't taken for a duplicate
+                if (id != null) {
+                    synchronized (seenIds) {
+                        seenIds.remove(id);
+                    }
+                }
+            }
+        }
+    }
+
+    public String getStatsReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nActivityPub Inbox Stats:\n");
+        sb.append("Queued: " + queue.size() + "\n");
+        sb.append("Accepted: " + acceptedCount.get() + "\n");
+        sb.append("Duplicates: " + duplicateCount.get() + "\n");
+        sb.append("Rejected (queue full): " + rejectedCount.get() + "\n");
+        sb.append("Processed: " + processedCount.get() + "\n");
+        sb.append("Failed: " + failedCount.get() + "\n");
+        return sb.toString();
+    }
+}
@@ -1,15 +1,23 @@
 package org.subnode.actpub;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
 import org.subnode.actpub.model.AP;
 import org.subnode.actpub.model.APList;
@@ -22,22 +30,31 @@ import org.subnode.actpub.model.APProp;
 import org.subnode.actpub.model.APType;
 import org.subnode.config.AppProp;
 import org.subnode.config.NodeName;
+import org.subnode.exception.base.RuntimeEx;
 import org.subnode.model.client.NodeProp;
 import org.subnode.model.client.NodeType;
 import org.subnode.model.client.PrincipalName;
 import org.subnode.model.client.PrivilegeType;
 import org.subnode.mongo.AdminRun;
-import org.subnode.mongo.MongoAuth;
 import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
+import org.subnode.mongo.MongoUpdate;
+import org.subnode.mongo.MongoUtil;
+import org.subnode.mongo.PageCursor;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.util.DateUtil;
-import org.subnode.util.ValContainer;
+import org.subnode.util.XString;
 
 @Component
 public class ActPubOutbox {
     private static final Logger log = LoggerFactory.getLogger(ActPubOutbox.class);
 
+    /* Max number of outbox items looked at per refresh, when none of them are ones we already have */
+    private static final int MAX_OUTBOX_SCAN = 50;
+
+    /* Max number of items on each page of the outbox we serve */
+    private static final int OUTBOX_PAGE_SIZE = 25;
+
     @Autowired
     private ActPubUtil apUtil;
 
@@ -54,7 +71,16 @@ public class ActPubOutbox {
     private MongoRead read;
 
     @Autowired
-    private MongoAuth auth;
+    private MongoUpdate update;
+
+    @Autowired
+    private MongoUtil util;
+
+    @Autowired
+    private MongoTemplate ops;
+
+    @Autowired
+    private ActPubCollectionCache apCollections;
 
     @Autowired
     @Qualifier("threadPoolTaskExecutor")
@@ -77,10 +103,6 @@ public class ActPubOutbox {
                 return;
             }
 
-            /*
-             * Query all existing known outbox items we have already saved for this foreign user
-             */
-            Iterable<SubNode> outboxItems = read.getSubGraph(ms, outboxNode, null, 0);
             String outboxUrl = AP.str(actor, APProp.outbox);
             APObj outbox = getOutbox(outboxUrl);
             if (outbox == null) {
@@ -89,68 +111,132 @@ public class ActPubOutbox {
             }
 
             /*
-             * Generate a list of known AP IDs so we can ignore them and load only the unknown ones from the
-             * foreign server
+             * Collect the items newer than the newest one we loaded last time. Outboxes are newest first, so
+             * we stop paging as soon as we get back to that one.
+             */
+            String lastId = outboxNode.getStrProp(NodeProp.ACT_PUB_OUTBOX_LAST_ID.s());
+            String lastTimeStr = outboxNode.getStrProp(NodeProp.ACT_PUB_OUTBOX_LAST_TIME.s());
+            Date lastTime = lastTimeStr != null ? DateUtil.parseISOTime(lastTimeStr) : null;
+
+            List<Object> newItems = new LinkedList<>();
+
+            // log.debug("scanning outbox orderedCollection");
+            apUtil.iterateOrderedCollection(outbox, MAX_OUTBOX_SCAN, obj -> {
+                if (!AP.hasProps(obj))
+                    return true;
+
+                String apId = AP.str(obj, APProp.id);
+                Date published = AP.date(obj, APProp.published);
+                if ((apId != null && apId.equals(lastId))
+                        || (published != null && lastTime != null && !published.after(lastTime))) {
+                    return false;
+                }
+                newItems.add(obj);
+                return true;
+            });
+
+            /*
+             * Posts we've saved are identified by the id of their Note (not the id of the Create activity
+             * wrapping it), so find which of those we already have, in one query.
              */
-            HashSet<String> apIdSet = new HashSet<>();
-            for (SubNode n : outboxItems) {
-                String apId = n.getStrProp(NodeProp.ACT_PUB_ID.s());
-                if (apId != null) {
-                    apIdSet.add(apId);
+            HashSet<String> noteIds = new HashSet<>();
+            for (Object obj : newItems) {
+                Object object = AP.obj(obj, APProp.object);
+                if (object != null && AP.isType(object, APType.Note)) {
+                    String noteId = AP.str(object, APProp.id);
+                    if (noteId != null) {
+                        noteIds.add(noteId);
+                    }
                 }
             }
+            HashSet<String> existingIds = read.findExistingPropVals(ms, outboxNode.getPath(), NodeProp.ACT_PUB_ID.s(), noteIds);
 
-            ValContainer<Integer> count = new ValContainer<>(0);
-            final SubNode _userNode = userNode;
+            // items we failed to save, which the next refresh has to page back to again
+            List<Object> failedItems = new LinkedList<>();
+
+            int count = 0;
+            for (Object obj : newItems) {
+                if (count >= ActPubService.MAX_MESSAGES)
+                    break;
 
-            // log.debug("scanning outbox orderedCollection");
-            apUtil.iterateOrderedCollection(outbox, Integer.MAX_VALUE, obj -> {
                 try {
-                    // if (obj != null) {
-                    //     log.debug("orderedCollection Item: OBJ=" + XString.prettyPrint(obj));
-                    // }
-
-                    String apId = AP.str(obj, APProp.id);
-                    if (!apIdSet.contains(apId)) {
-                        Object object = AP.obj(obj, APProp.object);
-
-                        if (object != null) {
-                            if (object instanceof String) {
-                                // todo-1: handle boosts.
-                                //
-                                // log.debug("Not Handled: Object was a string: " + object + " in outbox item: "
-                                // + XString.prettyPrint(obj));
-                                // Example of what needs to be handled here is when 'obj' contains a 'boost' (retweet)
-                                // {
-                                // "id" : "https://dobbs.town/users/onan/statuses/105613730170001141/activity",
-                                // AP.type : "Announce",
-                                // AP.actor : "https://dobbs.town/users/onan",
-                                // AP.published : "2021-01-25T01:20:30Z",
-                                // AP.to : [ "https://www.w3.org/ns/activitystreams#Public" ],
-                                // "cc" : [ "https://mastodon.sdf.org/users/stunder", "https://dobbs.town/users/onan/followers" ],
-                                // AP.object : "https://mastodon.sdf.org/users/stunder/statuses/105612925260202844"
-                                // }
-                            } //
-                            else if (AP.isType(object, APType.Note)) {
-                                try {
-                                    ActPubService.newPostsInCycle++;
-                                    apService.saveNote(ms, _userNode, outboxNode, object, true, true);
-                                    count.setVal(count.getVal() + 1);
-                                } catch (Exception e) {
-                                    // log and ignore.
-                                    log.error("error in saveNode()", e);
-                                }
-                            } else {
-                                // this captures videos? and other things (todo-1: add more support)
-                                // log.debug("Object type not supported: " + XString.prettyPrint(obj));
-                            }
+                    Object object = AP.obj(obj, APProp.object);
+                    if (object == null)
+                        continue;
+
+                    if (object instanceof String) {
+                        // todo-1: handle boosts.
+                        //
+                        // log.debug("Not Handled: Object was a string: " + object + " in outbox item: "
+                        // + XString.prettyPrint(obj));
+                        // Example of what needs to be handled here is when 'obj' contains a 'boost' (retweet)
+                        // {
+                        // "id" : "https://dobbs.town/users/onan/statuses/105613730170001141/activity",
+                        // AP.type : "Announce",
+                        // AP.actor : "https://dobbs.town/users/onan",
+                        // AP.published : "2021-01-25T01:20:30Z",
+                        // AP.to : [ "https://www.w3.org/ns/activitystreams#Public" ],
+                        // "cc" : [ "https://mastodon.sdf.org/users/stunder", "https://dobbs.town/users/onan/followers" ],
+                        // AP.object : "https://mastodon.sdf.org/users/stunder/statuses/105612925260202844"
+                        // }
+                    } //
+                    else if (AP.isType(object, APType.Note)) {
+                        if (existingIds.contains(AP.str(object, APProp.id)))
+                            continue;
+
+                        try {
+                            ActPubService.newPostsInCycle++;
+                            apService.saveNote(ms, userNode, outboxNode, object, true, true);
+                            count++;
+                        } catch (Exception e) {
+                            log.error("error in saveNode()", e);
+                            failedItems.add(obj);
                         }
+                    } else {
+                        // this captures videos? and other things (todo-1: add more support)
+                        // log.debug("Object type not supported: " + XString.prettyPrint(obj));
                     }
                 } catch (Exception e) {
                     log.error("Failes processing collection item.", e);
+                    failedItems.add(obj);
                 }
-                return (count.getVal() < ActPubService.MAX_MESSAGES);
-            });
+            }
+
+            /*
+             * Remember the newest item, so the next refresh only pages back to here, but never go past an
+             * item that failed, so it gets tried again. Only the newest MAX_MESSAGES posts are ever loaded,
+             * so anything older than that which we skipped is skipped for good, same as it was before.
+             */
+            Date failedTime = null;
+            for (Object obj : failedItems) {
+                Date published = AP.date(obj, APProp.published);
+                if (published == null) {
+                    // we can't tell where it is relative to the others, so we can't move past anything
+                    return;
+                }
+                if (failedTime == null || published.before(failedTime)) {
+                    failedTime = published;
+                }
+            }
+
+            String newestId = lastId;
+            Date newestTime = lastTime;
+            for (Object obj : newItems) {
+                Date published = AP.date(obj, APProp.published);
+                if (published == null || (failedTime != null && !published.before(failedTime)))
+                    continue;
+
+                if (newestTime == null || published.after(newestTime)) {
+                    newestTime = published;
+                    newestId = AP.str(obj, APProp.id);
+                }
+            }
+
+            if (newestTime != null && !newestTime.equals(lastTime)) {
+                outboxNode.setProp(NodeProp.ACT_PUB_OUTBOX_LAST_ID.s(), newestId);
+                outboxNode.setProp(NodeProp.ACT_PUB_OUTBOX_LAST_TIME.s(), DateUtil.isoStringFromDate(newestTime));
+                update.save(ms, outboxNode);
+            }
         } catch (Exception e) {
             log.error("Error reading outbox of: " + apUserName, e);
         }
@@ -170,7 +256,7 @@ public class ActPubOutbox {
     public APOOrderedCollection generateOutbox(String userName) {
         // log.debug("Generate outbox for userName: " + userName);
         String url = appProp.getProtocolHostAndPort() + APConst.PATH_OUTBOX + "/" + userName;
-        Long totalItems = getOutboxItemCount(userName, PrincipalName.PUBLIC.s());
+        Long totalItems = getOutboxItemCount(userName);
 
         APOOrderedCollection ret = new APOOrderedCollection() //
                 .put(APProp.id, url) //
@@ -187,105 +273,172 @@ public class ActPubOutbox {
      * todo-1: For now we just query the PUBLIC shares from the outbox, and verify that public query
      * works before we try to figure out how to do private auth comming from specific user(s)
      */
-    public Long getOutboxItemCount(final String userName, String sharedTo) {
-        Long totalItems = arun.run(mongoSession -> {
-            long count = 0;
-            SubNode userNode = read.getUserNodeByUserName(null, userName);
-            if (userNode != null) {
-                List<String> sharedToList = new LinkedList<>();
-                sharedToList.add(sharedTo);
-                count = auth.countSubGraphByAclUser(mongoSession, null, sharedToList, userNode.getOwner());
-            }
-            return Long.valueOf(count);
-        });
-        return totalItems;
+    public Long getOutboxItemCount(final String userName) {
+        SubNode userNode = read.getUserNodeByUserName(null, userName);
+        if (userNode == null) {
+            return 0L;
+        }
+
+        AtomicLong count = apCollections.getOutboxCount(userNode.getOwner());
+        if (count.get() < 0) {
+            long dbCount = arun.run(mongoSession -> {
+                Query query = new Query();
+                query.addCriteria(outboxCriteria(userNode.getOwner()));
+                query.addCriteria(Criteria.where(SubNode.FIELD_MODIFY_TIME).ne(null));
+                return ops.count(query, SubNode.class);
+            });
+            count.compareAndSet(-1, dbCount);
+        }
+        return count.get();
     }
 
     /*
-     * if minId=="0" that means "last page", and if minId==null it means first page
+     * Returns the outbox page (as JSON) that is older than 'maxId' if given, otherwise newer than 'minId'
+     * if given, otherwise the newest page. Both are cursors from the 'next' and 'prev' links of other
+     * pages, except that minId=="0" means the oldest page (the 'last' link of the outbox).
      */
-    public APOOrderedCollectionPage generateOutboxPage(String userName, String minId) {
-        APList items = getOutboxItems(userName, PrincipalName.PUBLIC.s(), minId);
+    public String generateOutboxPage(String userName, String minId, String maxId) {
+        SubNode userNode = read.getUserNodeByUserName(null, userName);
+        if (userNode == null) {
+            return null;
+        }
+
+        String key = maxId != null ? "max:" + maxId : (minId != null ? "min:" + minId : "first");
+        ConcurrentHashMap<String, String> pages = apCollections.getOutboxPages(userNode.getOwner());
+        String json = apCollections.getPage(pages, key);
+        if (json != null) {
+            return json;
+        }
+
+        String url = appProp.getProtocolHostAndPort() + APConst.PATH_OUTBOX + "/" + userName;
+        List<SubNode> nodes = getOutboxNodes(userNode.getOwner(), minId, maxId);
+
+        APList items = new APList();
+        for (SubNode node : nodes) {
+            items.add(makeOutboxItem(userName, node));
+        }
 
         // this is a self-reference url (id)
-        String url = appProp.getProtocolHostAndPort() + APConst.PATH_OUTBOX + "/" + userName + "?min_id=" + minId + "&page=true";
+        String id = url + "?page=true";
+        if (maxId != null) {
+            id += "&max_id=" + maxId;
+        } else if (minId != null) {
+            id += "&min_id=" + minId;
+        }
 
         APOOrderedCollectionPage ret = new APOOrderedCollectionPage() //
-                .put(APProp.partOf, appProp.getProtocolHostAndPort() + APConst.PATH_OUTBOX + "/" + userName) //
-                .put(APProp.id, url) //
+                .put(APProp.partOf, url) //
+                .put(APProp.id, id) //
                 .put(APProp.orderedItems, items) //
                 .put(APProp.totalItems, items.size());
-        return ret;
-    }
 
-    /*
-     * todo-1: Security isn't implemented on this call yet, but the only caller to this is passing
-     * "public" as 'sharedTo' so we are safe to implement this outbox currently as only able to send
-     * back public info.
-     */
-    public APList getOutboxItems(String userName, String sharedTo, String minId) {
-        String host = appProp.getProtocolHostAndPort();
-        APList retItems = null;
-        String nodeIdBase = host + "/app?id=";
+        if (nodes.size() > 0) {
+            // 'nodes' is newest first, so the page before this one is what's newer than the first node
+            List<SubNode> reversed = new LinkedList<>(nodes);
+            Collections.reverse(reversed);
+            ret.put(APProp.prev, url + "?page=true&min_id=" + PageCursor.create(null, reversed, SubNode.FIELD_MODIFY_TIME, true));
 
-        try {
-            SubNode userNode = read.getUserNodeByUserName(null, userName);
-            if (userNode == null) {
-                return null;
+            /*
+             * A short page from an older-than query is the end, but a short page from a newer-than query can
+             * still have older pages after it.
+             */
+            if (nodes.size() >= OUTBOX_PAGE_SIZE || (maxId == null && minId != null && !"0".equals(minId))) {
+                PageCursor cursor = maxId != null ? PageCursor.parse(maxId) : null;
+                String nextCursor = PageCursor.create(cursor, nodes, SubNode.FIELD_MODIFY_TIME, false);
+
+                // no cursor means too many posts share this modify time to page past it
+                if (nextCursor != null) {
+                    ret.put(APProp.next, url + "?page=true&max_id=" + nextCursor);
+                } else {
+                    log.debug("Outbox paging stopped at a run of posts with the same modify time: " + url);
+                }
             }
+        }
 
-            retItems = (APList) arun.run(mongoSession -> {
-                APList items = new APList();
-                int MAX_PER_PAGE = 25;
-                boolean collecting = false;
+        try {
+            json = XString.jsonMapper.writeValueAsString(ret);
+        } catch (Exception e) {
+            log.error("failed generating outbox page: ", e);
+            throw new RuntimeException(e);
+        }
+        apCollections.putPage(pages, key, json);
+        return json;
+    }
 
-                if (minId == null) {
-                    collecting = true;
-                }
+    /* Public nodes of 'ownerId', which is what the partial index on owner and modify time covers */
+    private Criteria outboxCriteria(ObjectId ownerId) {
+        return Criteria.where(SubNode.FIELD_OWNER).is(ownerId) //
+                .and(SubNode.FIELD_AC + "." + PrincipalName.PUBLIC.s()).exists(true);
+    }
 
-                List<String> sharedToList = new LinkedList<String>();
-                sharedToList.add(sharedTo);
+    /*
+     * Returns one page of the public nodes of 'ownerId', newest first, found by keyset on the modify time
+     * (see generateOutboxPage for 'minId' and 'maxId')
+     *
+     * todo-1: Security isn't implemented on this call yet, but we only ever query public nodes here, so
+     * we are safe to implement this outbox currently as only able to send back public info.
+     */
+    private List<SubNode> getOutboxNodes(ObjectId ownerId, String minId, String maxId) {
+        PageCursor cursor = null;
+        boolean asc = false;
+
+        if (maxId != null) {
+            cursor = PageCursor.parse(maxId);
+        } else if (minId != null) {
+            asc = true;
+            if (!"0".equals(minId)) {
+                cursor = PageCursor.parse(minId);
+            }
+        }
 
-                for (SubNode child : auth.searchSubGraphByAclUser(mongoSession, null, sharedToList,
-                        Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME), MAX_PER_PAGE, userNode.getOwner())) {
+        if (cursor != null && !cursor.matches(SubNode.FIELD_MODIFY_TIME, asc)) {
+            throw new RuntimeEx("Bad cursor.");
+        }
 
-                    if (items.size() >= MAX_PER_PAGE) {
-                        // ocPage.setPrev(outboxBase + "?page=" + String.valueOf(pgNo - 1));
-                        // ocPage.setNext(outboxBase + "?page=" + String.valueOf(pgNo + 1));
-                        break;
-                    }
+        Query query = new Query();
+        query.addCriteria(outboxCriteria(ownerId));
 
-                    if (collecting) {
-                        String hexId = child.getId().toHexString();
-                        String published = DateUtil.isoStringFromDate(child.getModifyTime());
-                        String actor = apUtil.makeActorUrlForUserName(userName);
-
-                        items.add(new APOCreate() //
-                                .put(APProp.id, nodeIdBase + hexId + "&create=t") //
-                                .put(APProp.actor, actor) //
-                                .put(APProp.published, published) //
-                                .put(APProp.to, new APList().val(APConst.CONTEXT_STREAMS_PUBLIC)) //
-                                .put(APProp.object, new APONote() //
-                                        .put(APProp.id, nodeIdBase + hexId) //
-                                        .put(APProp.summary, null) //
-                                        .put(APProp.replyTo, null) //
-                                        .put(APProp.published, published) //
-                                        .put(APProp.url, nodeIdBase + hexId) //
-                                        .put(APProp.attributedTo, actor) //
-                                        .put(APProp.to, new APList().val(APConst.CONTEXT_STREAMS_PUBLIC)) //
-                                        .put(APProp.sensitive, false) //
-                                        .put(APProp.content, child.getContent())//
-                        ));
-                    }
-                }
+        Criteria timeCriteria = Criteria.where(SubNode.FIELD_MODIFY_TIME).ne(null);
+        query.addCriteria(cursor != null ? cursor.criteria(timeCriteria) : timeCriteria);
 
-                return items;
-            });
+        query.with(Sort.by(asc ? Sort.Direction.ASC : Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME));
+        query.limit(OUTBOX_PAGE_SIZE);
 
-        } catch (Exception e) {
-            log.error("failed generating outbox page: ", e);
-            throw new RuntimeException(e);
+        List<SubNode> nodes = new LinkedList<>();
+        arun.run(mongoSession -> {
+            for (SubNode node : util.find(query)) {
+                nodes.add(node);
+            }
+            return null;
+        });
+
+        if (asc) {
+            Collections.reverse(nodes);
         }
-        return retItems;
+        return nodes;
+    }
+
+    private APObj makeOutboxItem(String userName, SubNode node) {
+        String nodeIdBase = appProp.getProtocolHostAndPort() + "/app?id=";
+        String hexId = node.getId().toHexString();
+        String published = DateUtil.isoStringFromDate(node.getModifyTime());
+        String actor = apUtil.makeActorUrlForUserName(userName);
+
+        return new APOCreate() //
+                .put(APProp.id, nodeIdBase + hexId + "&create=t") //
+                .put(APProp.actor, actor) //
+                .put(APProp.published, published) //
+                .put(APProp.to, new APList().val(APConst.CONTEXT_STREAMS_PUBLIC)) //
+                .put(APProp.object, new APONote() //
+                        .put(APProp.id, nodeIdBase + hexId) //
+                        .put(APProp.summary, null) //
+                        .put(APProp.replyTo, null) //
+                        .put(APProp.published, published) //
+                        .put(APProp.url, nodeIdBase + hexId) //
+                        .put(APProp.attributedTo, actor) //
+                        .put(APProp.to, new APList().val(APConst.CONTEXT_STREAMS_PUBLIC)) //
+                        .put(APProp.sensitive, false) //
+                        .put(APProp.content, node.getContent())//
+        );
     }
 }
@@ -0,0 +1,309 @@
+package org.subnode.actpub;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.subnode.AppServer;
+import org.subnode.config.AppProp;
+import org.subnode.util.DateUtil;
+
+/**
+ * Schedules the refreshing (loading the outbox, followers, and following) of foreign users.
+ *
+ * Users are refreshed by a dedicated pool of worker threads, highest priority first, where users
+ * followed by local users come before ones local users are viewing, which come before the periodic
+ * refresh of everyone, which comes before crawled users. Each host gets a token bucket so we never
+ * hit any one server faster than 'apRefreshPerHostPerMinute', and a host whose refreshes keep
+ * failing is left alone for a while (longer each time) rather than having its users tried one after
+ * another.
+ */
+@Component
+public class ActPubRefresher {
+    private static final Logger log = LoggerFactory.getLogger(ActPubRefresher.class);
+
+    /* Max refreshes of users on the same host at once */
+    private static final int MAX_PER_HOST = 2;
+
+    /* Number of refreshes a host can get in a burst, after being idle */
+    private static final int HOST_BURST = 3;
+
+    /* Consecutive failures after which a host is backed off from */
+    private static final int HOST_FAIL_LIMIT = 3;
+
+    private static final long FIRST_BACKOFF = DateUtil.MINUTE_MILLIS;
+    private static final long MAX_BACKOFF = DateUtil.HOUR_MILLIS;
+
+    @Autowired
+    private AppProp appProp;
+
+    @Autowired
+    private ActPubService apService;
+
+    @Autowired
+    private ActPubUtil apUtil;
+
+    @Autowired
+    @Qualifier("threadPoolTaskExecutor")
+    private Executor executor;
+
+    /* In order of increasing priority */
+    public enum Priority {
+        CRAWL, SCHEDULED, VIEWED, FOLLOWED
+    }
+
+    private static class Entry {
+        final String userName;
+        final String host;
+        final long seq;
+        final long queueTime;
+        Priority priority;
+
+        Entry(String userName, String host, Priority priority, long seq) {
+            this.userName = userName;
+            this.host = host;
+            this.priority = priority;
+            this.seq = seq;
+            this.queueTime = System.currentTimeMillis();
+        }
+    }
+
+    private static class HostState {
+        double tokens = HOST_BURST;
+        long lastRefill = System.currentTimeMillis();
+        int inFlight;
+        int failures;
+        long blockedUntil;
+
+        /* Refills the bucket for the time since it was last refilled, then takes a token if there is one */
+        boolean takeToken(long now, int perMinute) {
+            tokens = Math.min(HOST_BURST, tokens + (now - lastRefill) * perMinute / (double) DateUtil.MINUTE_MILLIS);
+            lastRefill = now;
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    /* Highest priority first, then first queued first */
+    private final TreeSet<Entry> queue = new TreeSet<>(Comparator.comparing((Entry e) -> e.priority).reversed() //
+            .thenComparingLong(e -> e.seq));
+
+    /* Queued entries by userName, so each user is only queued once */
+    private final HashMap<String, Entry> queuedUsers = new HashMap<>();
+
+    /* Users being refreshed right now */
+    private final HashSet<String> runningUsers = new HashSet<>();
+
+    private final HashMap<String, HostState> hosts = new HashMap<>();
+
+    private long seq = 0;
+    private int inFlight = 0;
+    /* Set by init, and back to null once shut down. Only changed while holding the 'queue' lock */
+    private volatile ExecutorService workers;
+
+    private final AtomicLong refreshedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    public void init() {
+        synchronized (queue) {
+            if (workers == null) {
+                workers = Executors.newFixedThreadPool(appProp.getApRefreshThreads());
+            }
+        }
+        kick();
+    }
+
+    /* Stops the workers, interrupting any refreshes in progress */
+    @PreDestroy
+    public void preDestroy() {
+        synchronized (queue) {
+            if (workers != null) {
+                workers.shutdownNow();
+                workers = null;
+            }
+        }
+    }
+
+    /*
+     * Queues 'userName' to be refreshed. If it's already queued it just gets the higher of the two
+     * priorities.
+     */
+    public void queue(String userName, Priority priority) {
+        String host = apUtil.getHostFromUserName(userName);
+        if (host == null)
+            return;
+
+        synchronized (queue) {
+            Entry entry = queuedUsers.get(userName);
+            if (entry == null) {
+                entry = new Entry(userName, host, priority, seq++);
+                queuedUsers.put(userName, entry);
+                queue.add(entry);
+            } else if (priority.compareTo(entry.priority) > 0) {
+                // has to come out and go back in for the TreeSet to re-sort it
+                queue.remove(entry);
+                entry.priority = priority;
+                queue.add(entry);
+            } else {
+                return;
+            }
+        }
+        kick();
+    }
+
+    /* Raises the priority of 'userName' if it's queued, without queueing it if it isn't */
+    public void promote(String userName, Priority priority) {
+        synchronized (queue) {
+            if (!queuedUsers.containsKey(userName))
+                return;
+        }
+        queue(userName, priority);
+    }
+
+    /* Starts any refreshes that can start, without blocking the caller */
+    public void kick() {
+        if (workers == null)
+            return;
+        executor.execute(() -> dispatch());
+    }
+
+    /* Tokens refill over time, so we check back regularly even when nothing else kicks a dispatch */
+    @Scheduled(fixedDelay = 1000)
+    public void scheduledDispatch() {
+        dispatch();
+    }
+
+    /*
+     * Starts the highest priority refreshes whose hosts have a token, aren't backed off from, and aren't
+     * already at their max concurrent refreshes, until all the workers are busy.
+     */
+    private void dispatch() {
+        if (workers == null || !appProp.isActPubEnabled() || AppServer.isShuttingDown())
+            return;
+
+        int maxThreads = appProp.getApRefreshThreads();
+        int perMinute = appProp.getApRefreshPerHostPerMinute();
+        long now = System.currentTimeMillis();
+
+        synchronized (queue) {
+            // shut down since we checked
+            if (workers == null)
+                return;
+
+            Iterator<Entry> iter = queue.iterator();
+            while (inFlight < maxThreads && iter.hasNext()) {
+                Entry entry = iter.next();
+                if (runningUsers.contains(entry.userName))
+                    continue;
+
+                HostState host = hosts.computeIfAbsent(entry.host, k -> new HostState());
+                if (host.blockedUntil > now || host.inFlight >= MAX_PER_HOST || !host.takeToken(now, perMinute))
+                    continue;
+
+                iter.remove();
+                queuedUsers.remove(entry.userName);
+                runningUsers.add(entry.userName);
+                host.inFlight++;
+                inFlight++;
+
+                long lag = now - entry.queueTime;
+                totalLag.addAndGet(lag);
+                if (lag > maxLag.get()) {
+                    maxLag.set(lag);
+                }
+
+                workers.execute(() -> refresh(entry, host));
+            }
+        }
+    }
+
+    private void refresh(Entry entry, HostState host) {
+        boolean success = false;
+        try {
+            success = apService.loadForeignUser(entry.userName);
+            if (!success) {
+                log.debug("Unable to load user: " + entry.userName);
+            }
+        } catch (Exception e) {
+            log.debug("Unable to load user: " + entry.userName);
+        }
+
+        synchronized (queue) {
+            runningUsers.remove(entry.userName);
+            host.inFlight--;
+            inFlight--;
+
+            if (success) {
+                refreshedCount.incrementAndGet();
+                host.failures = 0;
+            } else {
+                failedCount.incrementAndGet();
+                if (++host.failures >= HOST_FAIL_LIMIT) {
+                    long backoff = Math.min(MAX_BACKOFF, FIRST_BACKOFF << Math.min(host.failures - HOST_FAIL_LIMIT, 10));
+                    host.blockedUntil = System.currentTimeMillis() + backoff;
+                    log.debug("Backing off from host " + entry.host + " for " + (backoff / 1000) + "s");
+                }
+            }
+        }
+        kick();
+    }
+
+    public int getQueueSize() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public String getStatsReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nActivityPub User Refresh Stats:\n");
+
+        synchronized (queue) {
+            long now = System.currentTimeMillis();
+            int[] counts = new int[Priority.values().length];
+            long oldest = now;
+            for (Entry entry : queue) {
+                counts[entry.priority.ordinal()]++;
+                oldest = Math.min(oldest, entry.queueTime);
+            }
+
+            sb.append("Queued: " + queue.size() + "\n");
+            for (Priority priority : Priority.values()) {
+                sb.append("  " + priority + ": " + counts[priority.ordinal()] + "\n");
+            }
+            sb.append("Running: " + inFlight + "\n");
+            sb.append("Oldest Queued (secs): " + ((now - oldest) / 1000) + "\n");
+
+            long started = refreshedCount.get() + failedCount.get() + inFlight;
+            sb.append("Refreshed: " + refreshedCount.get() + "\n");
+            sb.append("Failed: " + failedCount.get() + "\n");
+            sb.append("Avg Lag (secs): " + (started > 0 ? totalLag.get() / started / 1000 : 0) + "\n");
+            sb.append("Max Lag (secs): " + (maxLag.get() / 1000) + "\n");
+
+            for (String hostName : hosts.keySet()) {
+                HostState host = hosts.get(hostName);
+                if (host.blockedUntil > now) {
+                    sb.append("Backed off: " + hostName + " failures=" + host.failures + " for "
+                            + ((host.blockedUntil - now) / 1000) + "s\n");
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
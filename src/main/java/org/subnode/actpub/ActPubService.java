@@ -1,20 +1,27 @@
 package org.subnode.actpub;
 
-import java.security.PublicKey;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import javax.servlet.http.HttpServletRequest;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.subnode.AppController;
@@ -43,7 +50,6 @@ import org.subnode.mongo.model.FediverseName;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.service.AclService;
 import org.subnode.service.AttachmentService;
-import org.subnode.service.NodeSearchService;
 import org.subnode.service.UserFeedService;
 import org.subnode.service.UserManagerService;
 import org.subnode.util.DateUtil;
@@ -66,6 +72,16 @@ public class ActPubService {
     public static int inboxCount = 0;
     public static boolean userRefresh = false;
     public static boolean bigRefresh = false;
+    public static int lastCycleNewUserNames = 0;
+    public static int lastCycleKnownUserNames = 0;
+    public static long totalNewUserNames = 0;
+    public static long totalKnownUserNames = 0;
+
+    /* Max FediverseNames saved in one bulk write */
+    private static final int USER_NAME_BATCH_SIZE = 500;
+
+    /* Max names held in ActPubCache.knownUserNames */
+    private static final int MAX_KNOWN_USER_NAMES = 1000000;
     private static final Logger log = LoggerFactory.getLogger(ActPubService.class);
 
     @Autowired
@@ -89,6 +105,9 @@ public class ActPubService {
     @Autowired
     private ActPubCache apCache;
 
+    @Autowired
+    private ActPubRefresher apRefresher;
+
     @Autowired
     private EnglishDictionary englishDictionary;
 
@@ -128,6 +147,9 @@ public class ActPubService {
     @Autowired
     private ActPubCrypto apCrypto;
 
+    @Autowired
+    private ActPubDelivery apDelivery;
+
     @Autowired
     private UserManagerService userManagerService;
 
@@ -205,16 +227,17 @@ public class ActPubService {
         return attachments;
     }
 
-    /* Sends note outbound to other servers */
+    /*
+     * Sends note outbound to other servers. This only queues the deliveries (see ActPubDelivery), and
+     * the foreign inboxes are looked up and posted to in the background. Recipients are grouped by
+     * host, so that a server with a shared inbox gets just one copy for all its users.
+     */
     public void sendNote(MongoSession ms, List<String> toUserNames, String fromUser, String inReplyTo, String content,
             APList attachments, String noteUrl, boolean privateMessage) {
 
         String host = appProp.getMetaHost();
-        String fromActor = null;
+        LinkedHashMap<String, List<String>> toUserNamesByHost = new LinkedHashMap<>();
 
-        /*
-         * Post the same message to all the inboxes that need to see it
-         */
         for (String toUserName : toUserNames) {
             // Ignore userNames that are not foreign server names
             if (!toUserName.contains("@")) {
@@ -227,28 +250,21 @@ public class ActPubService {
                 continue;
             }
 
-            APObj webFinger = apUtil.getWebFinger(toUserName);
-            if (webFinger == null) {
-                // log.debug("Unable to get webfinger for " + toUserName);
-                continue;
-            }
-
-            String toActorUrl = apUtil.getActorUrlFromWebFingerObj(webFinger);
-            APObj toActorObj = apUtil.getActorByUrl(toActorUrl);
-            if (toActorObj != null) {
-                String inbox = AP.str(toActorObj, APProp.inbox);
+            toUserNamesByHost.computeIfAbsent(userHost, k -> new LinkedList<>()).add(toUserName);
+        }
 
-                /* lazy create fromActor here */
-                if (fromActor == null) {
-                    fromActor = apUtil.makeActorUrlForUserName(fromUser);
-                }
+        if (toUserNamesByHost.size() == 0)
+            return;
 
-                APObj message = apFactory.newCreateMessageForNote(toUserNames, fromActor, inReplyTo, content, noteUrl,
-                        privateMessage, attachments);
+        /*
+         * Post the same message to all the hosts that need to see it
+         */
+        String fromActor = apUtil.makeActorUrlForUserName(fromUser);
+        APObj message = apFactory.newCreateMessageForNote(toUserNames, fromActor, inReplyTo, content, noteUrl, privateMessage,
+                attachments);
 
-                String userDoingPost = ThreadLocals.getSessionContext().getUserName();
-                apUtil.securePost(userDoingPost, ms, null, inbox, fromActor, message, null);
-            }
+        for (List<String> hostUserNames : toUserNamesByHost.values()) {
+            apDelivery.queue(fromUser, fromActor, null, hostUserNames, message);
         }
     }
 
@@ -417,7 +433,26 @@ public class ActPubService {
      * Processes incoming INBOX requests for (Follow, Undo Follow), to be called by foreign servers to
      * follow a user on this server
      */
-    public void processInboxPost(HttpServletRequest httpReq, Object payload) {
+    /*
+     * Checks the signature of an inbound activity. This has to be done while we still have the HTTP
+     * request, so it's done before the activity is queued (see ActPubInbox) and the rest of the
+     * processing is done later by processInboxPost. Throws an exception if the check fails.
+     */
+    public void verifyInboxPost(HttpServletRequest httpReq, Object payload) {
+        String type = AP.str(payload, APProp.type);
+        if (type == null || !APType.Create.equals(type.trim()))
+            return;
+
+        String actorUrl = AP.str(payload, APProp.actor);
+        if (actorUrl == null) {
+            throw new RuntimeException("no 'actor' found on create action request posted object");
+        }
+
+        apCrypto.verifySignature(httpReq, actorUrl);
+    }
+
+    /* Processes an inbound activity, already checked by verifyInboxPost */
+    public void processInboxPost(Object payload) {
         String type = AP.str(payload, APProp.type);
         if (type == null)
             return;
@@ -425,7 +460,7 @@ public class ActPubService {
 
         switch (type) {
             case APType.Create:
-                processCreateAction(httpReq, payload);
+                processCreateAction(payload);
                 break;
 
             case APType.Follow:
@@ -458,7 +493,7 @@ public class ActPubService {
         }
     }
 
-    public void processCreateAction(HttpServletRequest httpReq, Object payload) {
+    public void processCreateAction(Object payload) {
         arun.<Object>run(session -> {
 
             String actorUrl = AP.str(payload, APProp.actor);
@@ -467,15 +502,13 @@ public class ActPubService {
                 return null;
             }
 
+            // this will normally come from the cache
             APObj actorObj = apUtil.getActorByUrl(actorUrl);
             if (actorObj == null) {
                 log.debug("Unable to load actorUrl: " + actorUrl);
                 return null;
             }
 
-            PublicKey pubKey = apCrypto.getPublicKeyFromActor(actorObj);
-            apCrypto.verifySignature(httpReq, pubKey);
-
             Object object = AP.obj(payload, APProp.object);
 
             switch (AP.str(object, APProp.type)) {
@@ -911,7 +944,10 @@ public class ActPubService {
         saveFediverseName(apUserName);
 
         if (force) {
-            queueUserForRefresh(apUserName, force);
+            queueUserForRefresh(apUserName, ActPubRefresher.Priority.FOLLOWED);
+        } else {
+            // someone's looking at this user, so if they're waiting to be refreshed move them up the line
+            apRefresher.promote(apUserName, ActPubRefresher.Priority.VIEWED);
         }
     }
 
@@ -930,14 +966,12 @@ public class ActPubService {
         if (name.indexOf("\n") != -1 || name.indexOf("\r") != -1 || name.indexOf("\t") != -1)
             return false;
 
-        if (!apCache.allUserNames.contains(name)) {
-            apCache.allUserNames.put(name, false);
-            return true;
-        }
-        return false;
+        if (apCache.knownUserNames.contains(name))
+            return false;
+        return apCache.pendingUserNames.add(name);
     }
 
-    public void queueUserForRefresh(String apUserName, boolean force) {
+    public void queueUserForRefresh(String apUserName, ActPubRefresher.Priority priority) {
 
         // if not on production we don't run ActivityPub stuff. (todo-1: need to make it optional)
         if (!appProp.isActPubEnabled()) {
@@ -948,14 +982,7 @@ public class ActPubService {
             return;
 
         saveFediverseName(apUserName);
-
-        // unless force is true, don't add this apUserName to pending list
-        if (!force && apCache.usersPendingRefresh.contains(apUserName)) {
-            return;
-        }
-
-        // add as 'false' meaning the refresh is not yet done
-        apCache.usersPendingRefresh.put(apUserName, false);
+        apRefresher.queue(apUserName, priority);
     }
 
     /* every 90 minutes ping all the outboxes */
@@ -982,52 +1009,23 @@ public class ActPubService {
         try {
             userRefresh = true;
 
-            try {
-                saveUserNames();
-            } catch (Exception e) {
-                // log and ignore.
-                log.error("saveUserNames", e);
-            }
-
-            refreshUsers();
+            saveUserNames();
         } catch (Exception e) {
             // log and ignore.
-            log.error("refresh outboxes", e);
+            log.error("saveUserNames", e);
         } finally {
             userRefresh = false;
         }
     }
 
-    private void refreshUsers() {
-        for (final String userName : apCache.usersPendingRefresh.keySet()) {
-            try {
-                Boolean done = apCache.usersPendingRefresh.get(userName);
-                if (done)
-                    continue;
-
-                /*
-                 * This is killing performance of the app so let's throttle it way back. Not sure if it's Disk or
-                 * network I/O that's the problem but either way let's not read these so fast
-                 */
-                Thread.sleep(5000);
-
-                // flag as done (even if it fails we still want it flagged as done. no retries will be done).
-                apCache.usersPendingRefresh.put(userName, true);
-
-                loadForeignUser(userName);
-            } catch (Exception e) {
-                log.debug("Unable to load user: " + userName);
-            }
-        }
-    }
-
-    public void loadForeignUser(String userName) {
-        arun.run(session -> {
+    /* Returns false if the user's account or actor couldn't be loaded */
+    public boolean loadForeignUser(String userName) {
+        return arun.run(session -> {
             // log.debug("Reload user outbox: " + userName);
             SubNode userNode = getAcctNodeByUserName(session, userName);
             if (userNode == null) {
                 // log.debug("Unable to getAccount Node for userName: "+userName);
-                return null;
+                return false;
             }
 
             String actorUrl = userNode.getStrProp(NodeProp.ACT_PUB_ACTOR_ID.s());
@@ -1041,53 +1039,112 @@ public class ActPubService {
                  */
                 int followerCount = apFollower.loadRemoteFollowers(session, actor);
                 int followingCount = apFollowing.loadRemoteFollowing(session, actor);
+                return true;
             } else {
                 log.debug("Unable to get actor from url: " + actorUrl);
+                return false;
             }
-            return null;
         });
     }
 
-    private void saveUserNames() {
-        List<String> names = new LinkedList<>(apCache.allUserNames.keySet());
+    /*
+     * Saves the pending names to the FediverseName collection, as batches of unordered upserts that only
+     * insert names not already there, so duplicates cost neither an exception nor a write. Runs from
+     * userRefresh, and is public for MongoFediverseNamesTest.
+     */
+    public void saveUserNames() {
+        if (apCache.pendingUserNames.isEmpty())
+            return;
+
+        // the known set is only an optimization, so if it gets too big we just start it over
+        if (apCache.knownUserNames.size() > MAX_KNOWN_USER_NAMES) {
+            apCache.knownUserNames.clear();
+        }
 
-        for (final String name : names) {
-            Boolean done = apCache.allUserNames.get(name);
-            if (done)
-                continue;
+        // new and known name counts
+        int[] counts = new int[2];
+        Date now = new Date();
+        List<String> batch = new LinkedList<>();
 
-            apCache.allUserNames.put(name, true);
+        // names that failed to save, which we put back in the pending set once we're done iterating it
+        List<String> retry = new LinkedList<>();
+        Iterator<String> iter = apCache.pendingUserNames.iterator();
+        boolean ok = true;
 
-            FediverseName fName = new FediverseName();
-            fName.setName(name);
-            fName.setCreateTime(Calendar.getInstance().getTime());
+        while (iter.hasNext()) {
+            String name = iter.next();
+            iter.remove();
 
-            /*
-             * I'm not sure if it's faster to try to save and let the unique index block duplicates, or if it's
-             * faster to check for dups before calling save here.
-             */
-            try {
-                // log.debug("Saving Name: " + fName.getName());
-                ops.save(fName);
-                Thread.sleep(500);
-            } catch (Exception e) {
-                // this will happen for every duplicate. so A LOT!
+            if (apCache.knownUserNames.contains(name)) {
+                counts[1]++;
+                continue;
+            }
+            batch.add(name);
+
+            if (batch.size() >= USER_NAME_BATCH_SIZE) {
+                ok = writeUserNames(batch, now, retry, counts);
+                batch.clear();
+                if (!ok)
+                    break;
             }
         }
+
+        // the last batch, which can be followed by any number of known names
+        if (ok && batch.size() > 0) {
+            writeUserNames(batch, now, retry, counts);
+        }
+        apCache.pendingUserNames.addAll(retry);
+
+        lastCycleNewUserNames = counts[0];
+        lastCycleKnownUserNames = counts[1];
+        totalNewUserNames += counts[0];
+        totalKnownUserNames += counts[1];
     }
 
-    /**
-     * Returns number of userNamesPendingMessageRefresh that map to 'false' values
+    /*
+     * Upserts 'batch' into the FediverseName collection, adding the names saved to the known set and
+     * those that failed to 'retry', and the new and known counts to 'counts'. Returns false if the whole
+     * write failed, in which case the DB is likely to fail any more we try now too.
      */
-    public int queuedUserCount() {
-        int count = 0;
-        for (String apUserName : apCache.usersPendingRefresh.keySet()) {
-            Boolean done = apCache.usersPendingRefresh.get(apUserName);
-            if (!done) {
-                count++;
+    private boolean writeUserNames(List<String> batch, Date now, List<String> retry, int[] counts) {
+        BulkOperations bops = ops.bulkOps(BulkOperations.BulkMode.UNORDERED, FediverseName.class);
+        for (String batchName : batch) {
+            Query query = new Query(Criteria.where(FediverseName.FIELD_NAME).is(batchName));
+            Update insertOnly = new Update().setOnInsert(FediverseName.FIELD_NAME, batchName)
+                    .setOnInsert(FediverseName.FIELD_CREATE_TIME, now);
+            bops.upsert(query, insertOnly);
+        }
+
+        try {
+            BulkWriteResult result = bops.execute();
+            counts[0] += result.getUpserts().size();
+            counts[1] += result.getMatchedCount();
+            apCache.knownUserNames.addAll(batch);
+            return true;
+        } catch (BulkOperationException e) {
+            // the names that failed go back to be saved next cycle, and the rest were saved
+            log.error("Failed saving " + e.getErrors().size() + " FediverseNames", e);
+            HashSet<Integer> failedIdxs = new HashSet<>();
+            for (BulkWriteError error : e.getErrors()) {
+                failedIdxs.add(error.getIndex());
+            }
+            int idx = 0;
+            for (String batchName : batch) {
+                if (failedIdxs.contains(idx++)) {
+                    retry.add(batchName);
+                } else {
+                    apCache.knownUserNames.add(batchName);
+                }
             }
+            counts[0] += e.getResult().getUpserts().size();
+            counts[1] += e.getResult().getMatchedCount();
+            return true;
+        } catch (Exception e) {
+            // none of the batch is known to be saved, so it all goes back to be saved next cycle
+            log.error("Failed saving FediverseNames", e);
+            retry.addAll(batch);
+            return false;
         }
-        return count;
     }
 
     public void refreshForeignUsers() {
@@ -1101,6 +1158,17 @@ public class ActPubService {
         newPostsInCycle = 0;
 
         arun.run(session -> {
+            // foreign users that local users follow get refreshed first
+            HashSet<String> followedUsers = new HashSet<>();
+            Iterable<SubNode> friendNodes =
+                    read.findTypedNodesUnderPath(session, NodeName.ROOT_OF_ALL_USERS, NodeType.FRIEND.s());
+            for (SubNode node : friendNodes) {
+                String userName = node.getStrProp(NodeProp.USER.s());
+                if (userName != null && userName.contains("@")) {
+                    followedUsers.add(userName);
+                }
+            }
+
             Iterable<SubNode> accountNodes =
                     read.findTypedNodesUnderPath(session, NodeName.ROOT_OF_ALL_USERS, NodeType.ACCOUNT.s());
 
@@ -1110,12 +1178,8 @@ public class ActPubService {
                     continue;
 
                 refreshForeignUsersQueuedCount++;
-                queueUserForRefresh(userName, true);
-            }
-
-            /* Setting the trending data to null causes it to refresh itself the next time it needs to. */
-            synchronized (NodeSearchService.trendingFeedInfoLock) {
-                NodeSearchService.trendingFeedInfo = null;
+                queueUserForRefresh(userName, followedUsers.contains(userName) ? ActPubRefresher.Priority.FOLLOWED
+                        : ActPubRefresher.Priority.SCHEDULED);
             }
 
             return null;
@@ -1156,8 +1220,8 @@ public class ActPubService {
                     if (knownUsers.contains(userName))
                         continue;
 
-                    queueUserForRefresh(userName, true);
-                    apCache.allUserNames.remove(userName);
+                    queueUserForRefresh(userName, ActPubRefresher.Priority.CRAWL);
+                    apCache.knownUserNames.remove(userName);
 
                     if (++numLoaded > 250) {
                         break;
@@ -1201,9 +1265,11 @@ public class ActPubService {
     public String getStatsReport() {
         StringBuilder sb = new StringBuilder();
         sb.append("\nActivityPub Stats:\n");
-        sb.append("Refresh in progress: " + (userRefresh ? "true" : "false") + "\n");
-        sb.append("Cached Usernames: " + apCache.allUserNames.size() + "\n");
-        sb.append("Users Currently Queued (for refresh): " + queuedUserCount() + "\n");
+        sb.append("Known Usernames: " + apCache.knownUserNames.size() + "\n");
+        sb.append("Usernames Pending Save: " + apCache.pendingUserNames.size() + "\n");
+        sb.append("New Usernames Saved last cycle: " + lastCycleNewUserNames + " (total " + totalNewUserNames + ")\n");
+        sb.append("Already Known Usernames last cycle: " + lastCycleKnownUserNames + " (total " + totalKnownUserNames + ")\n");
+        sb.append("Users Currently Queued (for refresh): " + apRefresher.getQueueSize() + "\n");
         sb.append("Refresh Foreign Users Cycles: " + refreshForeignUsersCycles + "\n");
         sb.append("Last Foreign Users Refresh Time: " + lastRefreshForeignUsersCycleTime + "\n");
         sb.append("Number of Users Queued at last Cycle: " + refreshForeignUsersQueuedCount + "\n");
@@ -1,5 +1,6 @@
 package org.subnode.actpub;
 
+import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
@@ -22,16 +23,12 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.ResourceAccessException;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
 import org.subnode.actpub.model.AP;
 import org.subnode.actpub.model.APList;
 import org.subnode.actpub.model.APObj;
@@ -40,8 +37,9 @@ import org.subnode.config.AppProp;
 import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.model.SubNode;
-import org.subnode.util.Util;
+import org.subnode.service.HttpFetchService;
 import org.subnode.util.XString;
+import reactor.core.publisher.Mono;
 
 @Component
 public class ActPubUtil {
@@ -62,11 +60,13 @@ public class ActPubUtil {
     @Autowired
     private ActPubService apService;
 
-    /*
-     * RestTemplate is thread-safe and reusable, and has no state, so we need only one final static
-     * instance ever
-     */
-    private static final RestTemplate restTemplate = new RestTemplate(Util.getClientHttpRequestFactory());
+    @Autowired
+    private HttpFetchService httpFetch;
+
+    @Autowired
+    @Qualifier("fedWebClient")
+    private WebClient fedWebClient;
+
     private static final ObjectMapper mapper = new ObjectMapper();
 
     // NOTE: This didn't allow unknown properties as expected but putting the
@@ -186,10 +186,8 @@ public class ActPubUtil {
                         headers.setAccept(acceptableMediaTypes);
                     }
 
-                    MultiValueMap<String, Object> bodyMap = new LinkedMultiValueMap<>();
-                    HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(bodyMap, headers);
-                    ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, requestEntity, String.class);
-                    ret = mapper.readValue(response.getBody(), new TypeReference<>() {});
+                    // conditional GET, so an unchanged actor or outbox isn't downloaded and parsed again
+                    ret = httpFetch.get(url, headers, is -> mapper.readValue(is, new TypeReference<APObj>() {}));
                     // log.debug("REQ: " + url + "\nRES: " + XString.prettyPrint(ret));
                     break;
                 }
@@ -197,7 +195,7 @@ public class ActPubUtil {
                  * in case we are in a multi-peer setup some other peers may not be started so we tolerate that
                  * scenario by sleeping and looping for 10 retries.
                  */
-                catch (ResourceAccessException re) {
+                catch (WebClientRequestException re) {
                     if (waitSeconds-- > 0) {
                         log.debug("Waiting for url: " + url);
                         Thread.sleep(1000);
@@ -224,8 +222,17 @@ public class ActPubUtil {
      * 
      * WARNING: If privateKey is passed as 'null' you MUST be calling this from HTTP request thread.
      */
-    public void securePost(String userDoingPost, MongoSession ms, String privateKey, String toInbox, String actor,
+    public Mono<Void> securePost(String userDoingPost, MongoSession ms, String privateKey, String toInbox, String actor,
             APObj message, MediaType acceptType) {
+        return securePost(userDoingPost, ms, privateKey, toInbox, actor, XString.prettyPrint(message), acceptType);
+    }
+
+    /*
+     * Same as above but for a message already serialized to JSON in 'body'. The message is signed right
+     * away, but the post is only made once the returned Mono is subscribed to.
+     */
+    public Mono<Void> securePost(String userDoingPost, MongoSession ms, String privateKey, String toInbox, String actor,
+            String body, MediaType acceptType) {
         try {
             // log.debug("Secure post to " + toInbox);
             /* if private key not sent then get it using the session */
@@ -237,7 +244,6 @@ public class ActPubUtil {
                 throw new RuntimeException("Unable to get provate key for user sending message.");
             }
 
-            String body = XString.prettyPrint(message);
             byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
             // log.debug("Posting Object:\n" + body);
 
@@ -274,7 +280,7 @@ public class ActPubUtil {
             String headerSig = "keyId=\"" + actor + "#main-key" + "\",headers=\"(request-target) host date digest\",signature=\""
                     + Base64.getEncoder().encodeToString(signature) + "\"";
 
-            postJson(toInbox, url.getHost(), date, headerSig, digestHeader, body, acceptType);
+            return postJson(toInbox, url.getHost(), date, headerSig, digestHeader, bodyBytes, acceptType);
         } catch (Exception e) {
             log.error("secure http post failed", e);
             throw new RuntimeException(e);
@@ -313,6 +319,38 @@ public class ActPubUtil {
         return actor;
     }
 
+    /*
+     * Gets the inbox to deliver activities for foreign user 'userName' to. This is the 'sharedInbox' of
+     * their server if it has one, so that all the users on that server can get a message from a single
+     * post, or else their own inbox. Returns null if the user can't be found.
+     */
+    public String getDeliveryInbox(String userName) {
+        String inbox = apCache.deliveryInboxesByUserName.get(userName);
+        if (inbox != null) {
+            return inbox;
+        }
+
+        APObj webFinger = getWebFinger(userName);
+        if (webFinger == null) {
+            return null;
+        }
+
+        APObj actor = getActorByUrl(getActorUrlFromWebFingerObj(webFinger));
+        if (actor == null) {
+            return null;
+        }
+
+        inbox = AP.str(AP.obj(actor, APProp.endpoints), APProp.sharedInbox);
+        if (inbox == null) {
+            inbox = AP.str(actor, APProp.inbox);
+        }
+
+        if (inbox != null) {
+            apCache.deliveryInboxesByUserName.put(userName, inbox);
+        }
+        return inbox;
+    }
+
     /*
      * https://server.org/.well-known/webfinger?resource=acct:someuser@server.org
      * 
@@ -376,13 +414,13 @@ public class ActPubUtil {
         return finger;
     }
 
-    public APObj postJson(String url, String headerHost, String headerDate, String headerSig, String digestHeader, String body,
-            MediaType acceptType) {
-        APObj ret = null;
-        try {
-            // log.debug("postJson to: " + url);
+    /* Posts 'body' as ActivityPub JSON to 'url', once the returned Mono is subscribed to */
+    public Mono<Void> postJson(String url, String headerHost, String headerDate, String headerSig, String digestHeader,
+            byte[] body, MediaType acceptType) {
+        // log.debug("postJson to: " + url);
+        return fedWebClient.post().uri(URI.create(url)).headers(headers -> {
+            headers.setContentType(APConst.MT_APP_ACTJSON);
 
-            HttpHeaders headers = new HttpHeaders();
             if (acceptType != null) {
                 List<MediaType> acceptableMediaTypes = new LinkedList<MediaType>();
                 acceptableMediaTypes.add(acceptType);
@@ -404,16 +442,11 @@ public class ActPubUtil {
             if (digestHeader != null) {
                 headers.add("Digest", digestHeader);
             }
-
-            // HttpEntity<byte[]> requestEntity = new HttpEntity<>(bodyBytes, headers);
-            HttpEntity<String> requestEntity = new HttpEntity<>(body, headers);
-            ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.POST, requestEntity, String.class);
-            log.debug("POST TO: " + url + " RESULT: " + response.getStatusCode() + " response=" + response.getBody());
-        } catch (Exception e) {
-            log.error("postJson failed: " + url, e);
-            throw new RuntimeException(e);
-        }
-        return ret;
+        }).bodyValue(body).retrieve().toEntity(String.class) //
+                .doOnNext(response -> log.debug("POST TO: " + url + " RESULT: " + response.getStatusCode() + " response="
+                        + response.getBody())) //
+                .doOnError(e -> log.error("postJson failed: " + url + " -> " + e.getMessage())) //
+                .then();
     }
 
     /*
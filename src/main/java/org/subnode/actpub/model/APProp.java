@@ -25,6 +25,7 @@ public class APProp {
     public static final String totalItems = "totalItems";
     public static final String first = "first";
     public static final String next = "next";
+    public static final String prev = "prev";
     public static final String last = "last";
     public static final String href = "href";
     public static final String subject = "subject";
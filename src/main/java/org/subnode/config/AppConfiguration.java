@@ -1,5 +1,7 @@
 package org.subnode.config;
 
+import java.time.Duration;
+import io.netty.channel.ChannelOption;
 import org.apache.catalina.Context;
 import org.apache.catalina.connector.Connector;
 import org.apache.tomcat.util.descriptor.web.SecurityCollection;
@@ -13,16 +15,22 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.servlet.ViewResolver;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.thymeleaf.spring5.SpringTemplateEngine;
 import org.thymeleaf.spring5.view.ThymeleafViewResolver;
+import org.subnode.util.Const;
 import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 /**
  * Standard Spring WebMvcConfigurerAdapter-derived class.
@@ -166,6 +174,58 @@ public class AppConfiguration implements WebMvcConfigurer {
 		return new RestTemplate(httpRequestFactory);
 	}
 
+	/*
+	 * Shared non-blocking HTTP client for talking to foreign servers (ActivityPub, WebFinger, RSS). Each
+	 * host gets its own pool of kept-alive connections, limited to 'httpMaxConnectionsPerHost', with
+	 * requests beyond that waiting for a connection rather than opening more.
+	 */
+	@Bean(name = "fedWebClient")
+	public WebClient fedWebClient() {
+		ConnectionProvider provider = ConnectionProvider.builder("federation") //
+				.maxConnections(appProp.getHttpMaxConnectionsPerHost()) //
+				.pendingAcquireMaxCount(1000) //
+				.pendingAcquireTimeout(Duration.ofSeconds(appProp.getHttpReadTimeoutSecs())) //
+				.maxIdleTime(Duration.ofSeconds(60)) //
+				.build();
+
+		return makeWebClient(provider, appProp.getHttpConnectTimeoutSecs(), appProp.getHttpReadTimeoutSecs(),
+				appProp.getHttpMaxResponseMB());
+	}
+
+	/*
+	 * HTTP client for the API of our own IPFS daemon, which is slower to answer than most servers (pins,
+	 * DAG operations) and can return bigger responses.
+	 */
+	@Bean(name = "ipfsWebClient")
+	public WebClient ipfsWebClient() {
+		ConnectionProvider provider = ConnectionProvider.builder("ipfs") //
+				.maxConnections(appProp.getHttpMaxConnectionsPerHost()) //
+				.pendingAcquireMaxCount(1000) //
+				.maxIdleTime(Duration.ofSeconds(60)) //
+				.build();
+
+		return makeWebClient(provider, appProp.getHttpConnectTimeoutSecs(), 5 * 60, 100);
+	}
+
+	private WebClient makeWebClient(ConnectionProvider provider, int connectTimeoutSecs, int readTimeoutSecs,
+			int maxResponseMB) {
+		HttpClient httpClient = HttpClient.create(provider) //
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutSecs * 1000) //
+				.responseTimeout(Duration.ofSeconds(readTimeoutSecs)) //
+				.keepAlive(true) //
+				.followRedirect(true);
+
+		// responses are buffered in memory, so this is also the limit on response size
+		ExchangeStrategies strategies = ExchangeStrategies.builder() //
+				.codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxResponseMB * Const.ONE_MB)) //
+				.build();
+
+		return WebClient.builder() //
+				.clientConnector(new ReactorClientHttpConnector(httpClient)) //
+				.exchangeStrategies(strategies) //
+				.build();
+	}
+
 	@Bean
 	public ClassLoaderTemplateResolver templateResolver() {
 		ClassLoaderTemplateResolver templateResolver = new ClassLoaderTemplateResolver();
@@ -227,6 +227,151 @@ public class AppProp /* implements EnvironmentAware */ {
 		return APConst.TRUE.equals(env.getProperty("forceIndexRebuild"));
 	}
 
+	/*
+	 * Enables the index on the node path (used by subgraph queries). Requires MongoDB 4.2 or later,
+	 * because earlier versions cannot index paths longer than 1024 bytes.
+	 */
+	public boolean isMongoPathIndex() {
+		return getBooleanProp("mongoPathIndex");
+	}
+
+	/* Max number of nodes held in the process-wide node cache (MongoNodeCache). Zero disables it. */
+	public int getNodeCacheSize() {
+		return Integer.parseInt(env.getProperty("nodeCacheSize"));
+	}
+
+	/* Max number of results held in the ancestor authorization cache (MongoAuthCache). Zero disables it. */
+	public int getAuthCacheSize() {
+		return Integer.parseInt(env.getProperty("authCacheSize"));
+	}
+
+	/*
+	 * Max number of nodes per bulk write when MongoUpdate.saveSession flushes dirty nodes. Zero
+	 * disables bulk writes (saves each node separately)
+	 */
+	public int getSaveSessionBatchSize() {
+		return Integer.parseInt(env.getProperty("saveSessionBatchSize"));
+	}
+
+	/* Max number of entries kept on each feed timeline (TimelineService) by the hourly trim */
+	public int getTimelineMaxEntries() {
+		return Integer.parseInt(env.getProperty("timelineMaxEntries"));
+	}
+
+	/* Number of threads refreshing foreign users (see ActPubRefresher) */
+	public int getApRefreshThreads() {
+		return Integer.parseInt(env.getProperty("apRefreshThreads"));
+	}
+
+	/* Max number of foreign user refreshes per minute against any one host */
+	public int getApRefreshPerHostPerMinute() {
+		return Integer.parseInt(env.getProperty("apRefreshPerHostPerMinute"));
+	}
+
+	/* Max number of entries in each of the ActivityPub caches (see ActPubCache) */
+	public int getApCacheSize() {
+		return Integer.parseInt(env.getProperty("apCacheSize"));
+	}
+
+	/* Minutes an ActivityPub cache entry is used before it's fetched again */
+	public int getApCacheTtlMinutes() {
+		return Integer.parseInt(env.getProperty("apCacheTtlMinutes"));
+	}
+
+	/* Minutes a failed WebFinger lookup is remembered before it's tried again */
+	public int getApCacheFailTtlMinutes() {
+		return Integer.parseInt(env.getProperty("apCacheFailTtlMinutes"));
+	}
+
+	/* If true ActivityPub actors and WebFingers are periodically saved to the DB, and loaded at startup */
+	public boolean isApCacheSnapshot() {
+		return APConst.TRUE.equals(env.getProperty("apCacheSnapshot"));
+	}
+
+	/* Max open connections to any one host, for the shared HTTP clients (see AppConfiguration) */
+	public int getHttpMaxConnectionsPerHost() {
+		return Integer.parseInt(env.getProperty("httpMaxConnectionsPerHost"));
+	}
+
+	public int getHttpConnectTimeoutSecs() {
+		return Integer.parseInt(env.getProperty("httpConnectTimeoutSecs"));
+	}
+
+	/* Max seconds to wait for a foreign server to answer */
+	public int getHttpReadTimeoutSecs() {
+		return Integer.parseInt(env.getProperty("httpReadTimeoutSecs"));
+	}
+
+	/* Max size of a response from a foreign server */
+	public int getHttpMaxResponseMB() {
+		return Integer.parseInt(env.getProperty("httpMaxResponseMB"));
+	}
+
+	/* Max deliveries to foreign servers waiting on a response at once */
+	public int getApDeliveryMaxInFlight() {
+		return Integer.parseInt(env.getProperty("apDeliveryMaxInFlight"));
+	}
+
+	/* Number of threads delivering ActivityPub activities to foreign servers (see ActPubDelivery) */
+	public int getApDeliveryThreads() {
+		return Integer.parseInt(env.getProperty("apDeliveryThreads"));
+	}
+
+	/* Max number of deliveries to any one foreign host at the same time */
+	public int getApDeliveryThreadsPerHost() {
+		return Integer.parseInt(env.getProperty("apDeliveryThreadsPerHost"));
+	}
+
+	/* Number of failed attempts after which we give up on delivering an activity */
+	public int getApDeliveryMaxTries() {
+		return Integer.parseInt(env.getProperty("apDeliveryMaxTries"));
+	}
+
+	/* Number of threads processing inbound ActivityPub activities (see ActPubInbox) */
+	public int getApInboxThreads() {
+		return Integer.parseInt(env.getProperty("apInboxThreads"));
+	}
+
+	/* Max number of inbound ActivityPub activities waiting to be processed, before we refuse more */
+	public int getApInboxQueueSize() {
+		return Integer.parseInt(env.getProperty("apInboxQueueSize"));
+	}
+
+	/* Number of threads refreshing RSS feeds (see RSSFeedService) */
+	public int getRssRefreshThreads() {
+		return Integer.parseInt(env.getProperty("rssRefreshThreads"));
+	}
+
+	/* Max megabytes of response bodies held in memory by the proxy cache (see ProxyCacheService) */
+	public int getProxyCacheMaxMB() {
+		return Integer.parseInt(env.getProperty("proxyCacheMaxMB"));
+	}
+
+	/* Minutes a proxied response is served from the cache before it's fetched again */
+	public int getProxyCacheTtlMinutes() {
+		return Integer.parseInt(env.getProperty("proxyCacheTtlMinutes"));
+	}
+
+	/* Folder large proxied response bodies are kept in, rather than memory. Empty to keep them all in memory */
+	public String getProxyCacheSpillDir() {
+		return getPathProperty("proxyCacheSpillDir");
+	}
+
+	/* Size from which proxied response bodies are kept in the spill folder */
+	public int getProxyCacheSpillKB() {
+		return Integer.parseInt(env.getProperty("proxyCacheSpillKB"));
+	}
+
+	/* Max megabytes of response bodies kept in the spill folder */
+	public int getProxyCacheMaxDiskMB() {
+		return Integer.parseInt(env.getProperty("proxyCacheMaxDiskMB"));
+	}
+
+	/* Max number of server push messages waiting to be sent to any one browser, before the oldest are dropped */
+	public int getPushQueueSize() {
+		return Integer.parseInt(env.getProperty("pushQueueSize"));
+	}
+
 	public boolean getReSaveAll() {
 		return APConst.TRUE.equals(env.getProperty("reSaveAll"));
 	}
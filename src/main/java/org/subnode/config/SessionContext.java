@@ -3,9 +3,9 @@ package org.subnode.config;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
@@ -22,6 +22,7 @@ import org.subnode.mongo.MongoUtil;
 import org.subnode.response.SessionTimeoutPushInfo;
 import org.subnode.service.UserFeedService;
 import org.subnode.util.DateUtil;
+import org.subnode.util.PushQueue;
 import org.subnode.util.StopwatchEntry;
 import org.subnode.util.ThreadLocals;
 import org.subnode.util.Util;
@@ -77,11 +78,8 @@ public class SessionContext {
 	/* Emitter for sending push notifications to the client */
 	private SseEmitter pushEmitter = new SseEmitter();
 
-	// this one WILL work with multiple sessions per user
-	public static final HashSet<SessionContext> allSessions = new HashSet<>();
-
-	// Full list of active and inactive (dead) sessions.
-	public static final HashSet<SessionContext> historicalSessions = new HashSet<>();
+	/* Messages waiting to be sent to pushEmitter */
+	private final PushQueue pushQueue = new PushQueue();
 
 	/* keeps track of total calls to each URI */
 	public HashMap<String, Integer> actionCounters = new HashMap<>();
@@ -91,26 +89,11 @@ public class SessionContext {
 	private String captcha;
 	private int captchaFails = 0;
 
-	/*
-	 * If this time is non-null it represents the newest time on the first node of the first page of
-	 * results the last time query query for the first page (page=0) was done. We use this so that in
-	 * case the database is updated with new results, none of those results can alter the pagination and
-	 * the pagination will be consistent until the user clicks refresh feed again. The case we are
-	 * avoiding is for example when user clicks 'more' to go to page 2, if the database had updated then
-	 * even on page 2 they may be seeing some records they had already seen on page 1
-	 */
-	private Date feedMaxTime;
-
 	private String userToken;
 
 	public SessionContext() {
 		log.trace(String.format("Creating Session object hashCode[%d]", hashCode()));
-		synchronized (allSessions) {
-			allSessions.add(this);
-		}
-		synchronized (historicalSessions) {
-			historicalSessions.add(this);
-		}
+		SessionRegistry.add(this);
 	}
 
 	public List<StopwatchEntry> getStopwatchData() {
@@ -149,6 +132,7 @@ public class SessionContext {
 
 		if (userToken == null) {
 			userToken = Util.genStrongToken();
+			SessionRegistry.tokenChanged(this, null, userToken);
 		}
 		log.debug("sessionContext authenticated hashCode=" + String.valueOf(hashCode()) + " user: " + userName + " to userToken "
 				+ userToken);
@@ -164,22 +148,15 @@ public class SessionContext {
 	 * and perhaps use Spring Security
 	 */
 	public static boolean validToken(String token, String userName) {
-		if (token == null)
+		SessionContext sc = SessionRegistry.getSessionByToken(token);
+		if (sc == null)
 			return false;
 
-		synchronized (allSessions) {
-			for (SessionContext sc : allSessions) {
-				if (token.equals(sc.getUserToken())) {
-					if (userName != null) {
-						// need to add IP check here too, but IP can be spoofed?
-						return userName.equals(sc.getUserName());
-					} else {
-						return true;
-					}
-				}
-			}
+		if (userName != null) {
+			// need to add IP check here too, but IP can be spoofed?
+			return userName.equals(sc.getUserName());
 		}
-		return false;
+		return true;
 	}
 
 	public static boolean serverPushTest(UserFeedService svc) {
@@ -195,33 +172,17 @@ public class SessionContext {
 	}
 
 	public static List<SessionContext> getAllSessions() {
-		synchronized (allSessions) {
-			return new LinkedList<SessionContext>(allSessions);
-		}
+		return SessionRegistry.getAllSessions();
 	}
 
 	public static List<SessionContext> getHistoricalSessions() {
-		synchronized (historicalSessions) {
-			return new LinkedList<SessionContext>(historicalSessions);
-		}
+		return SessionRegistry.getHistoricalSessions();
 	}
 
+	/* Returns the sessions of 'userName' or null if there are none */
 	public static List<SessionContext> getSessionsByUserName(String userName) {
-		if (userName == null)
-			return null;
-
-		List<SessionContext> list = null;
-		synchronized (allSessions) {
-			for (SessionContext sc : allSessions) {
-				if (userName.equals(sc.getUserName())) {
-					if (list == null) {
-						list = new LinkedList<SessionContext>();
-					}
-					list.add(sc);
-				}
-			}
-		}
-		return list;
+		Set<SessionContext> sessions = SessionRegistry.getSessionsByUserName(userName);
+		return sessions.size() > 0 ? new LinkedList<SessionContext>(sessions) : null;
 	}
 
 	@PreDestroy
@@ -229,15 +190,13 @@ public class SessionContext {
 		log.trace(String.format("Destroying Session object hashCode[%d] of user %s", hashCode(), userName));
 		userFeedService.sendServerPushInfo(this, new SessionTimeoutPushInfo());
 
-		synchronized (allSessions) {
-			// This "lastActiveTime", should really be called "last message checked time", becaues that's the
-			// purpose
-			// it serves, so I think setting this here is undesirable, but we should only reset when the
-			// user is really checking their messages (like in UserFeedService), where this logic was moved to.
-			// userManagerService.updateLastActiveTime(this);
-			allSessions.remove(this);
-			setLive(false);
-		}
+		// This "lastActiveTime", should really be called "last message checked time", becaues that's the
+		// purpose
+		// it serves, so I think setting this here is undesirable, but we should only reset when the
+		// user is really checking their messages (like in UserFeedService), where this logic was moved to.
+		// userManagerService.updateLastActiveTime(this);
+		SessionRegistry.remove(this);
+		setLive(false);
 	}
 
 	public boolean isAdmin() {
@@ -290,7 +249,9 @@ public class SessionContext {
 		if (userName != null) {
 			pastUserName = userName;
 		}
+		String oldUserName = this.userName;
 		this.userName = userName;
+		SessionRegistry.userNameChanged(this, oldUserName, userName);
 	}
 
 	public String getPastUserName() {
@@ -366,12 +327,8 @@ public class SessionContext {
 		this.pushEmitter = pushEmitter;
 	}
 
-	public Date getFeedMaxTime() {
-		return feedMaxTime;
-	}
-
-	public void setFeedMaxTime(Date feedMaxTime) {
-		this.feedMaxTime = feedMaxTime;
+	public PushQueue getPushQueue() {
+		return pushQueue;
 	}
 
 	public String getCaptcha() {
@@ -395,7 +352,9 @@ public class SessionContext {
 	}
 
 	public void setTimelinePath(String timelinePath) {
+		String oldTimelinePath = this.timelinePath;
 		this.timelinePath = timelinePath;
+		SessionRegistry.timelinePathChanged(this, oldTimelinePath, timelinePath);
 	}
 
 	public MongoSession getMongoSession() {
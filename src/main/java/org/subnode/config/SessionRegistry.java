@@ -0,0 +1,138 @@
+package org.subnode.config;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.subnode.model.client.PrincipalName;
+
+/**
+ * Registry of all live sessions, indexed by user name, by token, and by timeline path, so that
+ * finding the sessions a push goes to (or the session a token belongs to) only costs as much as the
+ * number of sessions found, rather than a scan of every session, and without any global lock.
+ *
+ * SessionContext keeps this up to date by calling in here whenever one of the indexed values changes.
+ */
+public class SessionRegistry {
+	private static final Set<SessionContext> sessions = ConcurrentHashMap.newKeySet();
+
+	// Full list of active and inactive (dead) sessions.
+	private static final Set<SessionContext> historicalSessions = ConcurrentHashMap.newKeySet();
+
+	/* Sessions of each (non-anonymous) user, since one user can have multiple sessions */
+	private static final ConcurrentHashMap<String, Set<SessionContext>> sessionsByUserName = new ConcurrentHashMap<>();
+
+	private static final ConcurrentHashMap<String, SessionContext> sessionsByToken = new ConcurrentHashMap<>();
+
+	/* Sessions of each timeline path (see SessionContext.timelinePath) */
+	private static final ConcurrentHashMap<String, Set<SessionContext>> sessionsByTimelinePath = new ConcurrentHashMap<>();
+
+	public static void add(SessionContext sc) {
+		sessions.add(sc);
+		historicalSessions.add(sc);
+	}
+
+	public static void remove(SessionContext sc) {
+		sessions.remove(sc);
+		removeFromIndex(sessionsByUserName, sc.getUserName(), sc);
+		removeFromIndex(sessionsByTimelinePath, sc.getTimelinePath(), sc);
+		if (sc.getUserToken() != null) {
+			sessionsByToken.remove(sc.getUserToken(), sc);
+		}
+	}
+
+	public static void userNameChanged(SessionContext sc, String oldUserName, String newUserName) {
+		removeFromIndex(sessionsByUserName, oldUserName, sc);
+
+		// Anonymous sessions never get pushes, so we don't index them
+		if (newUserName != null && !PrincipalName.ANON.s().equalsIgnoreCase(newUserName) && sessions.contains(sc)) {
+			addToIndex(sessionsByUserName, newUserName, sc);
+		}
+	}
+
+	public static void tokenChanged(SessionContext sc, String oldToken, String newToken) {
+		if (oldToken != null) {
+			sessionsByToken.remove(oldToken, sc);
+		}
+		if (newToken != null && sessions.contains(sc)) {
+			sessionsByToken.put(newToken, sc);
+		}
+	}
+
+	public static void timelinePathChanged(SessionContext sc, String oldPath, String newPath) {
+		removeFromIndex(sessionsByTimelinePath, oldPath, sc);
+		if (newPath != null && sessions.contains(sc)) {
+			addToIndex(sessionsByTimelinePath, newPath, sc);
+		}
+	}
+
+	private static void addToIndex(ConcurrentHashMap<String, Set<SessionContext>> index, String key, SessionContext sc) {
+		index.compute(key, (k, set) -> {
+			if (set == null) {
+				set = ConcurrentHashMap.newKeySet();
+			}
+			set.add(sc);
+			return set;
+		});
+	}
+
+	private static void removeFromIndex(ConcurrentHashMap<String, Set<SessionContext>> index, String key, SessionContext sc) {
+		if (key == null)
+			return;
+
+		// returning null from compute removes the entry, so we don't leave empty sets behind
+		index.computeIfPresent(key, (k, set) -> {
+			set.remove(sc);
+			return set.isEmpty() ? null : set;
+		});
+	}
+
+	public static SessionContext getSessionByToken(String token) {
+		return token != null ? sessionsByToken.get(token) : null;
+	}
+
+	public static Set<SessionContext> getSessionsByUserName(String userName) {
+		if (userName == null)
+			return Collections.emptySet();
+		Set<SessionContext> set = sessionsByUserName.get(userName);
+		return set != null ? set : Collections.emptySet();
+	}
+
+	/*
+	 * Returns all sessions whose timeline path is 'path' or any ancestor of 'path', which are the ones
+	 * showing a timeline that the node at 'path' belongs on.
+	 */
+	public static List<SessionContext> getSessionsByTimelineOf(String path) {
+		List<SessionContext> ret = new LinkedList<>();
+		if (path == null || sessionsByTimelinePath.isEmpty())
+			return ret;
+
+		// check the path itself and then each parent path, up to the root
+		String prefix = path;
+		while (prefix.length() > 0) {
+			Set<SessionContext> set = sessionsByTimelinePath.get(prefix);
+			if (set != null) {
+				ret.addAll(set);
+			}
+
+			int lastSlashIdx = prefix.lastIndexOf("/");
+			if (lastSlashIdx <= 0)
+				break;
+			prefix = prefix.substring(0, lastSlashIdx);
+		}
+		return ret;
+	}
+
+	public static List<SessionContext> getAllSessions() {
+		return new LinkedList<>(sessions);
+	}
+
+	public static List<SessionContext> getHistoricalSessions() {
+		return new LinkedList<>(historicalSessions);
+	}
+
+	public static int getSessionCount() {
+		return sessions.size();
+	}
+}
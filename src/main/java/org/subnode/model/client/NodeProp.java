@@ -24,6 +24,10 @@ public enum NodeProp {
     ACT_PUB_ACTOR_INBOX("ap:actorInbox", "s"), //
     ACT_PUB_SENSITIVE("ap:nsfw", "s"), //
 
+    // id and published time of the newest outbox item we've loaded, on a foreign user's posts node
+    ACT_PUB_OUTBOX_LAST_ID("ap:outboxLastId", "s"), //
+    ACT_PUB_OUTBOX_LAST_TIME("ap:outboxLastTime", "s"), //
+
     UNPUBLISHED("unpublished", "s"), //
 
     /*
@@ -54,6 +54,9 @@ public class MongoAuth {
 	@Autowired
 	private ActPubService actPub;
 
+	@Autowired
+	private MongoAuthCache authCache;
+
 	private static final MongoSession adminSession = new MongoSession(PrincipalName.ADMIN.s());
 	private static final MongoSession anonSession = new MongoSession(PrincipalName.ANON.s());
 
@@ -344,6 +347,11 @@ public class MongoAuth {
 
 	/*
 	 * Returns true if the user in 'session' has 'priv' access to node.
+	 * 
+	 * The node itself is always checked directly (it may have unsaved changes), but the result for
+	 * each ancestor is memoized in authCache, so normally only the first lookup of any given
+	 * (user, ancestor) has to load any ancestors, and then all of the ones it needs are loaded in one
+	 * query.
 	 */
 	private boolean ancestorAuth(MongoSession session, SubNode node, List<PrivilegeType> privs) {
 		if (session.isAdmin())
@@ -355,27 +363,76 @@ public class MongoAuth {
 		String sessionUserNodeId = session.getUserNodeId() != null ? session.getUserNodeId().toHexString() : null;
 		ObjectId sessId = session.getUserNodeId() != null ? session.getUserNodeId() : null;
 
-		// scan up the tree until we find a node that allows access
-		while (node != null) {
-			// if this session user is the owner of this node, then they have full power
-			if (sessId != null && sessId.equals(node.getOwner())) {
-				if (verbose)
-					log.trace("auth success. node is owned.");
-				return true;
-			}
+		if (ownerOrNodeAuth(node, sessId, sessionUserNodeId, privs)) {
+			return true;
+		}
+
+		String userKey = authCache.userKey(sessId, privs);
+		long gen = authCache.getGeneration();
 
-			if (nodeAuth(node, sessionUserNodeId, privs)) {
-				if (verbose)
-					log.trace("nodeAuth success");
-				return true;
+		/*
+		 * Find the nearest ancestor we already have a result for. Only the ancestors below that one need to
+		 * be loaded and checked.
+		 */
+		List<String> ancestorPaths = read.getAncestorPaths(node);
+		List<String> uncachedPaths = new LinkedList<>();
+		Boolean cachedResult = null;
+		for (String path : ancestorPaths) {
+			cachedResult = authCache.get(userKey, path);
+			if (cachedResult != null)
+				break;
+			uncachedPaths.add(path);
+		}
+
+		// paths of all the ancestors we check, which all get the same result
+		List<String> paths = new LinkedList<>();
+		boolean cacheable = true;
+		Boolean ret = null;
+
+		List<SubNode> ancestors = read.getAncestors(session, uncachedPaths);
+		for (SubNode ancestor : ancestors) {
+			if (verbose)
+				log.trace("parent path=" + ancestor.getPath());
+			paths.add(ancestor.getPath());
+
+			// never cache a result based on changes that aren't saved yet
+			if (MongoThreadLocal.getDirtyNodes().containsKey(ancestor.getId())) {
+				cacheable = false;
 			}
 
-			node = read.getParent(session, node, false);
-			if (node != null) {
-				if (verbose)
-					log.trace("parent path=" + node.getPath());
+			if (ownerOrNodeAuth(ancestor, sessId, sessionUserNodeId, privs)) {
+				ret = true;
+				break;
 			}
 		}
+
+		if (ret == null) {
+			/*
+			 * If every uncached ancestor existed the answer is the one cached above them, otherwise we hit a
+			 * missing ancestor (orphan) and the walk up the tree ends there.
+			 */
+			ret = cachedResult != null && ancestors.size() == uncachedPaths.size() ? cachedResult : false;
+		}
+		if (cacheable) {
+			authCache.put(userKey, paths, ret, gen);
+		}
+		return ret;
+	}
+
+	/* Returns true if the session user owns 'node' or it's shared to them (or public) */
+	private boolean ownerOrNodeAuth(SubNode node, ObjectId sessId, String sessionUserNodeId, List<PrivilegeType> privs) {
+		// if this session user is the owner of this node, then they have full power
+		if (sessId != null && sessId.equals(node.getOwner())) {
+			if (verbose)
+				log.trace("auth success. node is owned.");
+			return true;
+		}
+
+		if (nodeAuth(node, sessionUserNodeId, privs)) {
+			if (verbose)
+				log.trace("nodeAuth success");
+			return true;
+		}
 		return false;
 	}
 
@@ -527,7 +584,7 @@ public class MongoAuth {
 		}
 
 		Query query = new Query();
-		Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(pathToSearch));
+		Criteria criteria = util.subGraphCriteria(pathToSearch);
 
 		if (sharedToAny != null && sharedToAny.size() > 0) {
 			List<Criteria> orCriteria = new LinkedList<>();
@@ -583,11 +640,10 @@ public class MongoAuth {
 		}
 
 		/*
-		 * This regex finds all that START WITH path, have some characters after path, before the end of the
-		 * string. Without the trailing (.+)$ we would be including the node itself in addition to all its
-		 * children.
+		 * This range finds all that START WITH "path/", and have some characters after that. Without the
+		 * trailing slash we would be including the node itself in addition to all its children.
 		 */
-		Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(pathToSearch)) //
+		Criteria criteria = util.subGraphCriteria(pathToSearch) //
 				.and(SubNode.FIELD_AC).ne(null);
 
 		if (ownerIdMatch != null) {
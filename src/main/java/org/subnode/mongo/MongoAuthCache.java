@@ -0,0 +1,166 @@
+package org.subnode.mongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.subnode.config.AppProp;
+import org.subnode.model.client.PrivilegeType;
+
+/**
+ * Memoizes the results of MongoAuth.ancestorAuth. Each entry answers the question "does this user
+ * have these privileges at this path, either because they own the node at the path, or because the
+ * node (or any ancestor of it) is shared to them or to public"
+ *
+ * Entries are keyed by (user, privileges, path), and since an entry depends on the owner and ACL of
+ * every node at or above its path, any change to the owner/ACL of a node (or a move of a node) must
+ * call invalidateSubGraph on the path of that node.
+ */
+@Component
+public class MongoAuthCache {
+	private static final Logger log = LoggerFactory.getLogger(MongoAuthCache.class);
+
+	@Autowired
+	private AppProp appProp;
+
+	private int maxSize = 0;
+
+	private LinkedHashMap<String, Boolean> results;
+
+	/* see MongoNodeCache.generation */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	@PostConstruct
+	public void postConstruct() {
+		maxSize = appProp.getAuthCacheSize();
+
+		results = new LinkedHashMap<String, Boolean>(maxSize + 1, .75F, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/*
+	 * Must be called BEFORE reading any of the nodes the result passed to put() will be computed from
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/*
+	 * Returns the part of the key identifying the user and privileges. The path is always the last part
+	 * of the key so that we can find keys by path prefix.
+	 */
+	public String userKey(ObjectId userNodeId, List<PrivilegeType> privs) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(userNodeId != null ? userNodeId.toHexString() : "anon");
+		sb.append(":");
+		for (PrivilegeType priv : privs) {
+			sb.append(priv.s());
+			sb.append(",");
+		}
+		sb.append(":");
+		return sb.toString();
+	}
+
+	/* Returns the cached result for 'userKey' at 'path' or null if unknown */
+	public Boolean get(String userKey, String path) {
+		if (!isEnabled())
+			return null;
+
+		Boolean ret = null;
+		synchronized (results) {
+			ret = results.get(userKey + path);
+		}
+		if (ret != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/*
+	 * Sets the result for 'userKey' at every one of 'paths', unless an invalidation has happened since
+	 * 'gen' was obtained from getGeneration()
+	 */
+	public void put(String userKey, List<String> paths, boolean result, long gen) {
+		if (!isEnabled() || paths.size() == 0)
+			return;
+
+		synchronized (results) {
+			if (gen != generation.get())
+				return;
+
+			for (String path : paths) {
+				results.put(userKey + path, result);
+			}
+		}
+	}
+
+	/* Invalidates all results for 'path' and every path under it, for all users */
+	public void invalidateSubGraph(String path) {
+		if (!isEnabled() || path == null)
+			return;
+
+		String subGraphPrefix = path + "/";
+		synchronized (results) {
+			generation.incrementAndGet();
+			Iterator<String> iter = results.keySet().iterator();
+			while (iter.hasNext()) {
+				String key = iter.next();
+				String keyPath = key.substring(key.indexOf(":", key.indexOf(":") + 1) + 1);
+				if (keyPath.equals(path) || keyPath.startsWith(subGraphPrefix)) {
+					iter.remove();
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		if (!isEnabled())
+			return;
+
+		synchronized (results) {
+			generation.incrementAndGet();
+			invalidations.addAndGet(results.size());
+			results.clear();
+		}
+	}
+
+	public String getStatsReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nAuth Cache Stats:\n");
+		if (!isEnabled()) {
+			sb.append("Disabled\n");
+			return sb.toString();
+		}
+
+		int size = 0;
+		synchronized (results) {
+			size = results.size();
+		}
+		sb.append("Cached Results: " + size + " (max " + maxSize + ")\n");
+		sb.append("Hits: " + hits.get() + "\n");
+		sb.append("Misses: " + misses.get() + "\n");
+		sb.append("Invalidations: " + invalidations.get() + "\n");
+		return sb.toString();
+	}
+}
@@ -13,6 +13,7 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
+import org.subnode.actpub.ActPubCollectionCache;
 import org.subnode.model.client.NodeProp;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.service.AttachmentService;
@@ -36,6 +37,12 @@ public class MongoDelete {
 	@Autowired
 	private MongoUtil util;
 
+	@Autowired
+	private MongoNodeCache nodeCache;
+
+	@Autowired
+	private ActPubCollectionCache apCollections;
+
 	public void deleteNode(MongoSession session, SubNode node, boolean childrenOnly) {
 		if (!childrenOnly) {
 			attachmentService.deleteBinary(session, "", node, null);
@@ -55,6 +62,7 @@ public class MongoDelete {
 
 		DeleteResult res = ops.remove(query, SubNode.class);
 		log.debug("Num abandoned nodes deleted: " + res.getDeletedCount());
+		nodeCache.invalidateAll();
 	}
 
 	/**
@@ -68,12 +76,13 @@ public class MongoDelete {
 		LocalDate ldt = LocalDate.now().minusDays(30);
 		Date date = Date.from(ldt.atStartOfDay(ZoneId.systemDefault()).toInstant());
 
-		Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(parent.getPath())) //
+		Criteria criteria = util.subGraphCriteria(parent.getPath()) //
 				.and(SubNode.FIELD_PROPERTIES + "." + NodeProp.ACT_PUB_ID + ".value").ne(null) //
 				.and(SubNode.FIELD_MODIFY_TIME).lt(date);
 
 		query.addCriteria(criteria);
 		DeleteResult res = ops.remove(query, SubNode.class);
+		nodeCache.invalidateSubGraph(parent.getPath());
 		return res.getDeletedCount();
 	}
 
@@ -84,7 +93,7 @@ public class MongoDelete {
 		LocalDate ldt = LocalDate.now().minusDays(5);
 		Date date = Date.from(ldt.atStartOfDay(ZoneId.systemDefault()).toInstant());
 
-		Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(userNode.getPath())) //
+		Criteria criteria = util.subGraphCriteria(userNode.getPath()) //
 				.and(SubNode.FIELD_MODIFY_TIME).lt(date); //
 
 		// once we've had the TEMP prop in place for 7 days, we can then process this
@@ -100,6 +109,7 @@ public class MongoDelete {
 		// query.addCriteria(Criteria.where("startDate").gte(startDate).lt(endDate));
 
 		DeleteResult res = ops.remove(query, SubNode.class);
+		nodeCache.invalidateSubGraph(userNode.getPath());
 		if (res.getDeletedCount() > 0) {
 			log.debug("Temp Records Deleted (Under User: " + userNode.getId().toHexString() + "): " + res.getDeletedCount());
 		}
@@ -114,15 +124,15 @@ public class MongoDelete {
 	 * 'regex' query to delete all the binaries (recursively under any node, using that path prefix as
 	 * the criteria) which is exacly like the one below for deleting the nodes themselves.
 	 * 
-	 * UPDATE: In here we call "regexRecursiveChildrenOfPath" which does the most aggressive possible
+	 * UPDATE: In here we call "subGraphCriteria" which does the most aggressive possible
 	 * delete of the entire subgraph, but it would be more performant to use a non-recursive delete ONLY
-	 * of the direct children under 'node' (using "regexDirectChildrenOfPath" instead) in this
+	 * of the direct children under 'node' (using "directChildrenCriteria" instead) in this
 	 * synchronous call and let the orphan delete do the rest of the cleanup later on asynchronously.
 	 * However we do NOT do that, only because our orphan cleanup algo is already memory intensive and
 	 * so we are decreasing the memory load of the orphan cleanup routing by doing the most aggressive
 	 * tree delete possible here, synchronously, at he cost of a little performance.
 	 * 
-	 * Said more simply: Replace 'regexRecursiveChildrenOfPath' with 'regexDirectChildrenOfPath' in this
+	 * Said more simply: Replace 'subGraphCriteria' with 'directChildrenCriteria' in this
 	 * method if you want to increase performance of deletes at the cost of some additional memory.
 	 */
 	public long delete(MongoSession session, SubNode node, boolean childrenOnly) {
@@ -137,15 +147,19 @@ public class MongoDelete {
 		 * single operation! Nice!
 		 */
 		Query query = new Query();
-		query.addCriteria(Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(node.getPath())));
+		query.addCriteria(util.subGraphCriteria(node.getPath()));
 
 		DeleteResult res = ops.remove(query, SubNode.class);
+		nodeCache.invalidateSubGraph(node.getPath());
+		if (res.getDeletedCount() > 0) {
+			apCollections.invalidateAll();
+		}
 		log.debug("Num of SubGraph deleted: " + res.getDeletedCount());
 		long totalDelCount = res.getDeletedCount();
 
 		/*
 		 * Yes we DO have to remove the node itself separate from the remove of all it's subgraph, because
-		 * in order to be perfectly safe the recursive subgraph regex MUST designate the slash AFTER the
+		 * in order to be perfectly safe the recursive subgraph range MUST designate the slash AFTER the
 		 * root path to be sure we get the correct node, other wise deleting /ab would also delete /abc for
 		 * example. so we must have our recursive delete identify deleting "/ab" as starting with "/ab/"
 		 */
@@ -11,15 +11,19 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
 import org.springframework.data.mongodb.core.mapping.event.AfterConvertEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
 import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
 import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
 import org.springframework.data.mongodb.core.mapping.event.BeforeDeleteEvent;
 import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.subnode.actpub.ActPubCollectionCache;
 import org.subnode.actpub.ActPubService;
 import org.subnode.config.NodeName;
 import org.subnode.model.client.NodeProp;
 import org.subnode.model.client.PrivilegeType;
 import org.subnode.mongo.model.SubNode;
+import org.subnode.service.TimelineService;
+import org.subnode.service.TrendingService;
 import org.subnode.util.XString;
 
 public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
@@ -39,6 +43,21 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 	@Autowired
 	private ActPubService actPub;
 
+	@Autowired
+	private MongoNodeCache nodeCache;
+
+	@Autowired
+	private MongoAuthCache authCache;
+
+	@Autowired
+	private TimelineService timelineService;
+
+	@Autowired
+	private ActPubCollectionCache apCollections;
+
+	@Autowired
+	private TrendingService trendingService;
+
 	/**
 	 * What we are doing in this method is assigning the ObjectId ourselves, because our path must
 	 * include this id at the very end, since the path itself must be unique. So we assign this prior to
@@ -64,6 +83,12 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 			node.setId(id);
 			isNew = true;
 			// log.debug("New Node ID generated: " + id);
+		} else {
+			/*
+			 * Invalidated here as well as after the save so other threads stop seeing the old version as early
+			 * as possible
+			 */
+			nodeCache.invalidate(id);
 		}
 		dbObj.put(SubNode.FIELD_ID, id);
 
@@ -152,6 +177,12 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 			// log.debug("RESET PathHash=" + pathHash);
 		}
 
+		String parentPathHash = DigestUtils.sha256Hex(node.getParentPath());
+		if (!parentPathHash.equals(node.getParentPathHash())) {
+			dbObj.put(SubNode.FIELD_PARENT_PATH_HASH, parentPathHash);
+			node.setParentPathHash(parentPathHash);
+		}
+
 		/* Node name not allowed to contain : or ~ */
 		String nodeName = node.getName();
 		if (nodeName != null) {
@@ -187,6 +218,22 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 				dbObj.put(SubNode.FIELD_AC, node.getAc());
 			}
 		}
+
+		// checked again in onAfterSave, this is just so other threads stop using the old auth early
+		if (!isNew) {
+			checkAuthChange(node);
+		}
+	}
+
+	/*
+	 * If the owner or ACL of 'node' is different from what was loaded, then the cached authorization of
+	 * every node in its subgraph is invalid.
+	 */
+	private void checkAuthChange(SubNode node) {
+		Integer loadedAuthHash = node.getLoadedAuthHash();
+		if (loadedAuthHash == null || loadedAuthHash.intValue() != node.authHash()) {
+			authCache.invalidateSubGraph(node.getPath());
+		}
 	}
 
 	/*
@@ -214,7 +261,14 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 	public void onAfterSave(AfterSaveEvent<SubNode> event) {
 		SubNode node = event.getSource();
 		if (node != null) {
+			nodeCache.invalidate(node.getId());
+			checkAuthChange(node);
+			apCollections.nodeSaved(node);
+			// before we update loadedAuthHash, because this uses it to tell if the node is new
+			timelineService.fanOut(node);
+			node.setLoadedAuthHash(node.authHash());
 			MongoThreadLocal.cacheNode(node);
+			trendingService.nodeSaved(node);
 		}
 	}
 
@@ -236,6 +290,8 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 			}
 		}
 
+		node.setLoadedAuthHash(node.authHash());
+		node.setLoadedTimelineState(timelineService.getTimelineState(node));
 		MongoThreadLocal.cacheNode(node);
 	}
 
@@ -250,10 +306,29 @@ public class MongoEventListener extends AbstractMongoEventListener<SubNode> {
 				if (node != null) {
 					log.trace("MDB del: " + node.getPath());
 					auth.ownerAuthByThread(node);
+					authCache.invalidateSubGraph(node.getPath());
+					apCollections.nodeDeleted(node);
 				}
 				// because nodes can be orphaned, we clear the entire cache any time any nodes are deleted
 				MongoThreadLocal.clearCachedNodes();
+				nodeCache.invalidate((ObjectId) id);
 				actPub.deleteNodeNotify((ObjectId) id);
+				timelineService.removeNode((ObjectId) id);
+			}
+		}
+	}
+
+	/*
+	 * Deletes by query (rather than by ID) don't come thru here with an ID, so those are invalidated by
+	 * the caller (see MongoDelete)
+	 */
+	@Override
+	public void onAfterDelete(AfterDeleteEvent<SubNode> event) {
+		Document doc = event.getDocument();
+		if (doc != null) {
+			Object id = doc.get("_id");
+			if (id instanceof ObjectId) {
+				nodeCache.invalidate((ObjectId) id);
 			}
 		}
 	}
@@ -0,0 +1,234 @@
+package org.subnode.mongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+import org.subnode.config.AppProp;
+import org.subnode.mongo.model.SubNode;
+import org.subnode.service.TimelineService;
+
+/**
+ * Process-wide node cache shared by all threads, sitting underneath the per-thread cache in
+ * MongoThreadLocal.
+ *
+ * We never hand out a shared SubNode instance, because SubNodes are mutable and get tracked as
+ * 'dirty' per thread. Instead we hold the raw Document of each node and convert a fresh SubNode
+ * for each thread that asks for it (which is much cheaper than a DB round trip).
+ *
+ * Nodes are keyed by ID, and we also hold 'keys' (paths, or other lookup keys like the user name
+ * keys used by MongoRead) that map to an ID. Keys are allowed to go stale, because a key is only a
+ * hit if the ID it points to is still cached (and for paths, if the node still has that path).
+ *
+ * Every write or delete invalidates the affected nodes, and bumps 'generation' so that a reader who
+ * started its DB query before the invalidation is not able to put the (possibly old) node it read
+ * into the cache afterwards.
+ */
+@Component
+public class MongoNodeCache {
+	private static final Logger log = LoggerFactory.getLogger(MongoNodeCache.class);
+
+	@Autowired
+	private MongoTemplate ops;
+
+	@Autowired
+	private AppProp appProp;
+
+	@Autowired
+	private TimelineService timelineService;
+
+	private int maxSize = 0;
+
+	private LinkedHashMap<ObjectId, Document> docs;
+	private LinkedHashMap<String, ObjectId> keys;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	@PostConstruct
+	public void postConstruct() {
+		maxSize = appProp.getNodeCacheSize();
+
+		docs = new LinkedHashMap<ObjectId, Document>(maxSize + 1, .75F, true) {
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, Document> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+
+		// keys are cheap, so we allow twice as many of them as nodes, to leave room for the extra keys
+		keys = new LinkedHashMap<String, ObjectId>(2 * maxSize + 1, .75F, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, ObjectId> eldest) {
+				return size() > 2 * maxSize;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/*
+	 * Must be called BEFORE querying the DB for a node that will then be passed to put()
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/* Returns a new SubNode instance for the node with 'id' or null if not cached */
+	public SubNode getById(ObjectId id) {
+		if (!isEnabled() || id == null)
+			return null;
+
+		Document doc = null;
+		synchronized (docs) {
+			doc = docs.get(id);
+		}
+		return toNode(doc);
+	}
+
+	/* Returns a new SubNode instance for the node 'key' (usually a path) maps to, or null if not cached */
+	public SubNode getByKey(String key) {
+		if (!isEnabled() || StringUtils.isEmpty(key))
+			return null;
+
+		Document doc = null;
+		synchronized (docs) {
+			ObjectId id = keys.get(key);
+			if (id != null) {
+				doc = docs.get(id);
+
+				// if the node was moved this key is no longer a path of the node.
+				if (doc != null && key.startsWith("/") && !key.equals(doc.getString(SubNode.FIELD_PATH))) {
+					doc = null;
+				}
+
+				if (doc == null) {
+					keys.remove(key);
+				}
+			}
+		}
+		return toNode(doc);
+	}
+
+	/*
+	 * Caches 'node' (as read from the DB) unless something has been invalidated since 'gen' was
+	 * obtained by calling getGeneration(), in which case 'node' may already be stale.
+	 */
+	public void put(SubNode node, long gen, String key) {
+		if (!isEnabled() || node == null || node.getId() == null)
+			return;
+
+		Document doc = new Document();
+		ops.getConverter().write(node, doc);
+
+		synchronized (docs) {
+			if (gen != generation.get())
+				return;
+
+			docs.put(node.getId(), doc);
+			if (node.getPath() != null) {
+				keys.put(node.getPath(), node.getId());
+			}
+			if (key != null) {
+				keys.put(key, node.getId());
+			}
+		}
+	}
+
+	public void invalidate(ObjectId id) {
+		if (!isEnabled() || id == null)
+			return;
+
+		synchronized (docs) {
+			generation.incrementAndGet();
+			if (docs.remove(id) != null) {
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/* Invalidates the node at 'path' and every node under it */
+	public void invalidateSubGraph(String path) {
+		if (!isEnabled())
+			return;
+
+		String prefix = path + "/";
+		synchronized (docs) {
+			generation.incrementAndGet();
+			Iterator<Document> iter = docs.values().iterator();
+			while (iter.hasNext()) {
+				String docPath = iter.next().getString(SubNode.FIELD_PATH);
+				if (docPath == null || docPath.equals(path) || docPath.startsWith(prefix)) {
+					iter.remove();
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		if (!isEnabled())
+			return;
+
+		synchronized (docs) {
+			generation.incrementAndGet();
+			invalidations.addAndGet(docs.size());
+			docs.clear();
+			keys.clear();
+		}
+	}
+
+	private SubNode toNode(Document doc) {
+		if (doc == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		SubNode node = ops.getConverter().read(SubNode.class, doc);
+		node.setLoadedAuthHash(node.authHash());
+		node.setLoadedTimelineState(timelineService.getTimelineState(node));
+		MongoThreadLocal.cacheNode(node);
+		return node;
+	}
+
+	public String getStatsReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nNode Cache Stats:\n");
+		if (!isEnabled()) {
+			sb.append("Disabled\n");
+			return sb.toString();
+		}
+
+		int size = 0;
+		synchronized (docs) {
+			size = docs.size();
+		}
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+
+		sb.append("Cached Nodes: " + size + " (max " + maxSize + ")\n");
+		sb.append("Hits: " + hitCount + "\n");
+		sb.append("Misses: " + misses.get() + "\n");
+		sb.append("Hit Ratio: " + (total > 0 ? (100 * hitCount / total) : 0) + "%\n");
+		sb.append("Evictions: " + evictions.get() + "\n");
+		sb.append("Invalidations: " + invalidations.get() + "\n");
+		return sb.toString();
+	}
+}
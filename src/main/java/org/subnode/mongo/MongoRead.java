@@ -1,11 +1,16 @@
 package org.subnode.mongo;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import javax.annotation.PostConstruct;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +56,9 @@ public class MongoRead {
     @Autowired
     private MongoUtil util;
 
+    @Autowired
+    private MongoNodeCache nodeCache;
+
     @Autowired
     private AppProp appProp;
 
@@ -85,14 +93,14 @@ public class MongoRead {
 
     public long getChildCount(MongoSession session, SubNode node) {
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getPath()));
+        Criteria criteria = util.directChildrenCriteria(node.getPath());
         query.addCriteria(criteria);
         return ops.count(query, SubNode.class);
     }
 
     public boolean hasChildren(MongoSession session, SubNode node) {
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getPath()));
+        Criteria criteria = util.directChildrenCriteria(node.getPath());
         query.addCriteria(criteria);
         return ops.exists(query, SubNode.class);
     }
@@ -108,8 +116,7 @@ public class MongoRead {
     public SubNode getChildAt(MongoSession session, SubNode node, long idx) {
         auth.auth(session, node, PrivilegeType.READ);
         Query query = new Query();
-        Criteria criteria = Criteria.where(//
-                SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getPath()))//
+        Criteria criteria = util.directChildrenCriteria(node.getPath())//
                 .and(SubNode.FIELD_ORDINAL).is(idx);
         query.addCriteria(criteria);
 
@@ -272,9 +279,18 @@ public class MongoRead {
         path = XString.stripIfEndsWith(path, "/");
         SubNode ret = MongoThreadLocal.getCachedNode(path);
         if (ret == null) {
+            ret = nodeCache.getByKey(path);
+            if (ret != null) {
+                ret = util.nodeOrDirtyNode(ret);
+            }
+        }
+        if (ret == null) {
+            long gen = nodeCache.getGeneration();
             Query query = new Query();
             query.addCriteria(Criteria.where(SubNode.FIELD_PATH).is(path));
-            ret = util.findOne(query);
+            ret = ops.findOne(query, SubNode.class);
+            nodeCache.put(ret, gen, null);
+            ret = util.nodeOrDirtyNode(ret);
         }
         return ret;
     }
@@ -329,6 +345,84 @@ public class MongoRead {
         return ret;
     }
 
+    /*
+     * Returns the paths of all the ancestors of 'node', ordered from the parent up to the top level
+     * node. Follows the same rule as getParent for nodes in the pending area.
+     */
+    public List<String> getAncestorPaths(SubNode node) {
+        List<String> paths = new LinkedList<>();
+        String path = node.getPath();
+        if (path == null || "/".equals(path)) {
+            return paths;
+        }
+
+        String parentPath = XString.truncateAfterLast(path, "/");
+        String pendingPath = NodeName.PENDING_PATH + "/";
+        String rootPath = "/" + NodeName.ROOT + "/";
+        path = parentPath.replace(pendingPath, rootPath);
+
+        while (!StringUtils.isEmpty(path) && !"/".equals(path)) {
+            paths.add(path);
+            String nextPath = XString.truncateAfterLast(path, "/");
+            if (nextPath.equals(path))
+                break;
+            path = nextPath;
+        }
+        return paths;
+    }
+
+    /*
+     * Gets all the ancestors of 'node' ordered from the parent up to the top level node, loading all
+     * the ones not already cached in a single query. No auth is done. The list ends at the first
+     * ancestor that doesn't exist, the same as walking up with getParent() would.
+     */
+    public List<SubNode> getAncestors(MongoSession session, SubNode node) {
+        return getAncestors(session, getAncestorPaths(node));
+    }
+
+    /* Gets the nodes at 'paths', in the same order, stopping at the first one that doesn't exist */
+    public List<SubNode> getAncestors(MongoSession session, List<String> paths) {
+        List<SubNode> ret = new LinkedList<>();
+        if (paths.size() == 0) {
+            return ret;
+        }
+
+        HashMap<String, SubNode> nodesByPath = new HashMap<>();
+        List<String> pathHashes = new LinkedList<>();
+
+        for (String path : paths) {
+            SubNode node = MongoThreadLocal.getCachedNode(path);
+            if (node == null) {
+                node = nodeCache.getByKey(path);
+            }
+            node = util.nodeOrDirtyNode(node);
+            if (node != null) {
+                nodesByPath.put(path, node);
+            } else {
+                pathHashes.add(DigestUtils.sha256Hex(path));
+            }
+        }
+
+        if (pathHashes.size() > 0) {
+            long gen = nodeCache.getGeneration();
+            Query query = new Query();
+            query.addCriteria(Criteria.where(SubNode.FIELD_PATH_HASH).in(pathHashes));
+
+            for (SubNode node : ops.find(query, SubNode.class)) {
+                nodeCache.put(node, gen, null);
+                nodesByPath.put(node.getPath(), util.nodeOrDirtyNode(node));
+            }
+        }
+
+        for (String path : paths) {
+            SubNode node = nodesByPath.get(path);
+            if (node == null)
+                break;
+            ret.add(node);
+        }
+        return ret;
+    }
+
     public List<SubNode> getChildrenAsList(MongoSession session, SubNode node, boolean ordered, Integer limit) {
         Iterable<SubNode> iter =
                 getChildren(session, node, ordered ? Sort.by(Sort.Direction.ASC, SubNode.FIELD_ORDINAL) : null, limit, 0);
@@ -353,18 +447,10 @@ public class MongoRead {
         }
 
         /*
-         * This regex finds all that START WITH "path/" and then end with some other string that does NOT
-         * contain "/", so that we know it's not at a deeper level of the tree, but is immediate children of
-         * 'node'
-         * 
-         * ^:aa:bb:([^:])*$
-         * 
-         * example: To find all DIRECT children (non-recursive) under path /aa/bb regex is
-         * ^\/aa\/bb\/([^\/])*$ (Note that in the java string the \ becomes \\ below...)
-         * 
+         * Finds all nodes whose parent path is exactly the path of 'node', so that we know it's not at a
+         * deeper level of the tree, but is immediate children of 'node'. (see MongoUtil)
          */
-        Criteria criteria =
-                Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node == null ? "" : node.getPath()));
+        Criteria criteria = util.directChildrenCriteria(node == null ? "" : node.getPath());
         if (ordered) {
             query.with(Sort.by(Sort.Direction.ASC, SubNode.FIELD_ORDINAL));
         }
@@ -395,17 +481,10 @@ public class MongoRead {
         }
 
         /*
-         * This regex finds all that START WITH "path/" and then end with some other string that does NOT
-         * contain "/", so that we know it's not at a deeper level of the tree, but is immediate children of
-         * 'node'
-         * 
-         * ^:aa:bb:([^:])*$
-         * 
-         * example: To find all DIRECT children (non-recursive) under path /aa/bb regex is
-         * ^\/aa\/bb\/([^\/])*$ (Note that in the java string the \ becomes \\ below...)
-         * 
+         * Finds all nodes whose parent path is exactly the path of 'node', so that we know it's not at a
+         * deeper level of the tree, but is immediate children of 'node'. (see MongoUtil)
          */
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(path));
+        Criteria criteria = util.directChildrenCriteria(path);
 
         if (textCriteria != null) {
             query.addCriteria(textCriteria);
@@ -432,6 +511,12 @@ public class MongoRead {
         return getChildrenUnderParentPath(session, node.getPath(), sort, limit, skip, null, null);
     }
 
+    public Iterable<SubNode> getChildren(MongoSession session, SubNode node, Sort sort, Integer limit, int skip,
+            Criteria moreCriteria) {
+        auth.auth(session, node, PrivilegeType.READ);
+        return getChildrenUnderParentPath(session, node.getPath(), sort, limit, skip, null, moreCriteria);
+    }
+
     public Iterable<SubNode> getChildren(MongoSession session, SubNode node) {
         auth.auth(session, node, PrivilegeType.READ);
         return getChildrenUnderParentPath(session, node.getPath(), null, null, 0, null, null);
@@ -468,7 +553,7 @@ public class MongoRead {
         // todo-2: research if there's a way to query for just one, rather than simply
         // callingfindOne at the end? What's best practice here?
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getPath()));
+        Criteria criteria = util.directChildrenCriteria(node.getPath());
         query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_ORDINAL));
         query.addCriteria(criteria);
 
@@ -485,7 +570,7 @@ public class MongoRead {
         auth.auth(session, node, PrivilegeType.READ);
 
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getPath()));
+        Criteria criteria = util.directChildrenCriteria(node.getPath());
         query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME));
         query.addCriteria(criteria);
 
@@ -503,7 +588,7 @@ public class MongoRead {
         // todo-2: research if there's a way to query for just one, rather than simply
         // calling findOne at the end? What's best practice here?
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getParentPath()));
+        Criteria criteria = util.directChildrenCriteria(node.getParentPath());
         query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_ORDINAL));
         query.addCriteria(criteria);
 
@@ -524,7 +609,7 @@ public class MongoRead {
         // todo-2: research if there's a way to query for just one, rather than simply
         // calling findOne at the end? What's best practice here?
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getParentPath()));
+        Criteria criteria = util.directChildrenCriteria(node.getParentPath());
         query.with(Sort.by(Sort.Direction.ASC, SubNode.FIELD_ORDINAL));
         query.addCriteria(criteria);
 
@@ -544,14 +629,10 @@ public class MongoRead {
 
         Query query = new Query();
         /*
-         * This regex finds all that START WITH path, have some characters after path, before the end of the
-         * string. Without the trailing (.+)$ we would be including the node itself in addition to all its
-         * children.
-         * 
-         * todo-1: Look for places we could be passing COMPILED regex object into all calls like this, and
-         * not the string!
+         * This range finds all that START WITH "path/", and have some characters after that. Without the
+         * trailing slash we would be including the node itself in addition to all its children.
          */
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(node.getPath()));
+        Criteria criteria = util.subGraphCriteria(node.getPath());
         query.addCriteria(criteria);
 
         if (sort != null) {
@@ -572,8 +653,21 @@ public class MongoRead {
      * 
      * timeRangeType: futureOnly, pastOnly, all
      */
+    /*
+     * Returns true if searchSubGraph results with this sortField and timeRangeType are in ascending
+     * order. For "future" queries we have to sort in order (not rev-chron), because we want to show the
+     * soonest items on top.
+     */
+    public boolean isSearchSortAsc(String sortField, String timeRangeType) {
+        return "prp.date.value".equals(sortField) && "futureOnly".equals(timeRangeType);
+    }
+
+    /*
+     * If 'cursor' is non-null (and was made for the same sort) it's used to find the page rather than
+     * 'skip'
+     */
     public Iterable<SubNode> searchSubGraph(MongoSession session, SubNode node, String prop, String text, String sortField,
-            int limit, int skip, boolean fuzzy, boolean caseSensitive, String timeRangeType) {
+            int limit, int skip, PageCursor cursor, boolean fuzzy, boolean caseSensitive, String timeRangeType) {
         auth.auth(session, node, PrivilegeType.READ);
 
         Query query = new Query();
@@ -582,16 +676,20 @@ public class MongoRead {
             query.limit(limit);
         }
 
-        if (skip > 0) {
+        boolean revChron = !isSearchSortAsc(sortField, timeRangeType);
+        if (cursor != null && (StringUtils.isEmpty(sortField) || !cursor.matches(sortField, !revChron))) {
+            cursor = null;
+        }
+
+        if (skip > 0 && cursor == null) {
             query.skip(skip);
         }
 
         /*
-         * This regex finds all that START WITH path, have some characters after path, before the end of the
-         * string. Without the trailing (.+)$ we would be including the node itself in addition to all its
-         * children.
+         * This range finds all that START WITH "path/", and have some characters after that. Without the
+         * trailing slash we would be including the node itself in addition to all its children.
          */
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(node.getPath()));
+        Criteria criteria = util.subGraphCriteria(node.getPath());
         query.addCriteria(criteria);
 
         if (!StringUtils.isEmpty(text)) {
@@ -625,8 +723,8 @@ public class MongoRead {
             }
         }
 
-        boolean revChron = true;
         if (!StringUtils.isEmpty(sortField)) {
+            Criteria sortFieldCriteria = null;
             if ("prp.date.value".equals(sortField) && timeRangeType != null) {
                 // example date RANGE condition:
                 // query.addCriteria(Criteria.where("startDate").gte(startDate).lt(endDate));
@@ -635,20 +733,25 @@ public class MongoRead {
                 // Query(Criteria.where("ip").is(ip).andOperator(Criteria.where("createdDate").lt(endDate),
                 // Criteria.where("createdDate").gte(startDate)));
                 if ("futureOnly".equals(timeRangeType)) {
-                    // because we want to show the soonest items on top, for "future" query, we have
-                    // to sort in order (not rev-chron)
-                    revChron = false;
-                    query.addCriteria(Criteria.where(sortField).gt(new Date().getTime()));
+                    sortFieldCriteria = Criteria.where(sortField).gt(new Date().getTime());
                 } //
                 else if ("pastOnly".equals(timeRangeType)) {
-                    query.addCriteria(Criteria.where(sortField).lt(new Date().getTime()));
+                    sortFieldCriteria = Criteria.where(sortField).lt(new Date().getTime());
                 }
                 // if showing all dates the condition here is that there at least IS a 'date'
                 // prop on the node
                 else if ("all".equals(timeRangeType)) {
-                    query.addCriteria(Criteria.where(sortField).ne(null));
+                    sortFieldCriteria = Criteria.where(sortField).ne(null);
                 }
             }
+
+            if (cursor != null) {
+                sortFieldCriteria = cursor.criteria(sortFieldCriteria);
+            }
+
+            if (sortFieldCriteria != null) {
+                query.addCriteria(sortFieldCriteria);
+            }
             query.with(Sort.by(revChron ? Sort.Direction.DESC : Sort.Direction.ASC, sortField));
         }
         return util.find(query);
@@ -661,7 +764,7 @@ public class MongoRead {
         auth.auth(session, node, PrivilegeType.READ);
 
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(node.getPath()));
+        Criteria criteria = util.subGraphCriteria(node.getPath());
 
         // this mod time condition is simply to be sure the user has 'saved' the node
         // and not pick up new
@@ -681,7 +784,7 @@ public class MongoRead {
         auth.auth(session, node, PrivilegeType.READ);
 
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(node.getPath()));
+        Criteria criteria = util.subGraphCriteria(node.getPath());
         criteria = criteria.and(SubNode.FIELD_NAME).ne(null);
         query.addCriteria(criteria);
 
@@ -808,17 +911,29 @@ public class MongoRead {
             return getDbRoot();
         }
 
+        // the shared cache is keyed on the lower case name, since this lookup is case-insensitive
+        String sharedCacheKey = "USRNODE-" + user.toLowerCase();
+        ret = nodeCache.getByKey(sharedCacheKey);
+        if (ret != null) {
+            ret = util.nodeOrDirtyNode(ret);
+            auth.auth(session, ret, PrivilegeType.READ);
+            MongoThreadLocal.cacheNode(cacheKey, ret);
+            return ret;
+        }
+        long gen = nodeCache.getGeneration();
+
         // Other wise for ordinary users root is based off their username
         Query query = new Query();
-        Criteria criteria = Criteria.where(//
-                SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(NodeName.ROOT_OF_ALL_USERS)) //
+        Criteria criteria = util.directChildrenCriteria(NodeName.ROOT_OF_ALL_USERS) //
                 // .and(SubNode.FIELD_PROPERTIES + "." + NodeProp.USER + ".value").is(user);
                 // case-insensitive lookup of username:
                 .and(SubNode.FIELD_PROPERTIES + "." + NodeProp.USER + ".value").regex("^" + user + "$", "i");
 
         query.addCriteria(criteria);
 
-        ret = util.findOne(query);
+        ret = ops.findOne(query, SubNode.class);
+        nodeCache.put(ret, gen, sharedCacheKey);
+        ret = util.nodeOrDirtyNode(ret);
         auth.auth(session, ret, PrivilegeType.READ);
         if (ret != null) {
             MongoThreadLocal.cacheNode(cacheKey, ret);
@@ -834,8 +949,7 @@ public class MongoRead {
 
         // Other wise for ordinary users root is based off their username
         Query query = new Query();
-        Criteria criteria = Criteria.where(//
-                SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(node.getPath()))//
+        Criteria criteria = util.directChildrenCriteria(node.getPath())//
                 .and(SubNode.FIELD_TYPE).is(type).and(SubNode.FIELD_PROPERTIES + "." + NodeProp.USER + ".value").is(userName);
 
         query.addCriteria(criteria);
@@ -852,8 +966,7 @@ public class MongoRead {
 
         // Other wise for ordinary users root is based off their username
         Query query = new Query();
-        Criteria criteria = Criteria.where(//
-                SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(path))//
+        Criteria criteria = util.directChildrenCriteria(path)//
                 .and(SubNode.FIELD_TYPE).is(type);
 
         query.addCriteria(criteria);
@@ -885,7 +998,7 @@ public class MongoRead {
 
     public Query typedNodesUnderPath_query(MongoSession session, String path, String type) {
         Query query = new Query();
-        Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(path))//
+        Criteria criteria = util.subGraphCriteria(path)//
                 .and(SubNode.FIELD_TYPE).is(type);
 
         query.addCriteria(criteria);
@@ -902,8 +1015,7 @@ public class MongoRead {
 
         // Other wise for ordinary users root is based off their username
         Query query = new Query();
-        Criteria criteria = Criteria.where(//
-                SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(path))//
+        Criteria criteria = util.directChildrenCriteria(path)//
                 .and(SubNode.FIELD_PROPERTIES + "." + propName + ".value").is(propVal);
 
         query.addCriteria(criteria);
@@ -920,14 +1032,39 @@ public class MongoRead {
 
         // Other wise for ordinary users root is based off their username
         Query query = new Query();
-        Criteria criteria = Criteria.where(//
-                SubNode.FIELD_PATH).regex(util.regexDirectChildrenOfPath(path))//
+        Criteria criteria = util.directChildrenCriteria(path)//
                 .and(SubNode.FIELD_PROPERTIES + "." + propName + ".value").is(propVal);
 
         query.addCriteria(criteria);
         return util.find(query);
     }
 
+    /*
+     * Returns those of 'propVals' that some node directly under 'path' already has as its 'propName'
+     * property. Only that one property is read back, rather than the whole nodes, so this is a cheap
+     * way to check a batch of values for existence.
+     */
+    public HashSet<String> findExistingPropVals(MongoSession session, String path, String propName,
+            Collection<String> propVals) {
+        HashSet<String> ret = new HashSet<>();
+        if (propVals.isEmpty())
+            return ret;
+
+        String field = SubNode.FIELD_PROPERTIES + "." + propName + ".value";
+        Query query = new Query();
+        query.addCriteria(util.directChildrenCriteria(path).and(field).in(propVals));
+        query.fields().include(field);
+
+        for (Document doc : ops.find(query, Document.class, ops.getCollectionName(SubNode.class))) {
+            Document props = doc.get(SubNode.FIELD_PROPERTIES, Document.class);
+            Document prop = props != null ? props.get(propName, Document.class) : null;
+            if (prop != null) {
+                ret.add(prop.getString("value"));
+            }
+        }
+        return ret;
+    }
+
     /*
      * Returns one (or first) node that has a matching propName and propVal
      */
@@ -6,9 +6,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.subnode.AppServer;
+import org.subnode.actpub.ActPubCache;
+import org.subnode.actpub.ActPubDelivery;
+import org.subnode.actpub.ActPubInbox;
+import org.subnode.actpub.ActPubRefresher;
 import org.subnode.actpub.ActPubService;
 import org.subnode.config.AppProp;
 import org.subnode.model.client.PrincipalName;
+import org.subnode.service.TimelineService;
+import org.subnode.service.TrendingService;
 
 @Component
 public class MongoRepository {
@@ -38,9 +44,30 @@ public class MongoRepository {
 	@Autowired
 	private MongoDelete delete;
 
+	@Autowired
+	private MongoUpdate update;
+
 	@Autowired
 	private ActPubService actPub;
 
+	@Autowired
+	private TimelineService timelineService;
+
+	@Autowired
+	private TrendingService trendingService;
+
+	@Autowired
+	private ActPubCache apCache;
+
+	@Autowired
+	private ActPubDelivery apDelivery;
+
+	@Autowired
+	private ActPubRefresher apRefresher;
+
+	@Autowired
+	private ActPubInbox apInbox;
+
 	/*
 	 * Because of the criticality of this variable, I am not using the Spring getter to get it, but just
 	 * using a private static. It's slightly safer and better for the purpose of cleanup in the shutdown
@@ -114,6 +141,14 @@ public class MongoRepository {
 			}
 
 			util.createAllIndexes(adminSession);
+			update.resumePendingMoves();
+			util.initParentPathHashes();
+			timelineService.init();
+			trendingService.init();
+			apCache.loadSnapshot();
+			apDelivery.init();
+			apInbox.init();
+			apRefresher.init();
 			util.createAdminUser(adminSession);
 			repoUtil.createTestAccounts();
 
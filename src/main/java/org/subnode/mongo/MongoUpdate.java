@@ -5,16 +5,35 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Component;
+import org.subnode.config.AppProp;
+import org.subnode.exception.base.RuntimeEx;
 import org.subnode.model.UserStats;
 import org.subnode.model.client.NodeProp;
 import org.subnode.model.client.PrivilegeType;
+import org.subnode.mongo.model.PendingMove;
 import org.subnode.mongo.model.SubNode;
+import org.subnode.util.XString;
 import org.subnode.service.IPFSService;
 import org.subnode.util.Cast;
 import org.subnode.util.ThreadLocals;
@@ -39,6 +58,23 @@ public class MongoUpdate {
 	@Autowired
 	private MongoAuth auth;
 
+	@Autowired
+	private MongoEventListener listener;
+
+	@Autowired
+	private AppProp appProp;
+
+	@Autowired
+	private MongoUtil util;
+
+	@Autowired
+	private MongoNodeCache nodeCache;
+
+	@Autowired
+	private MongoAuthCache authCache;
+
+	private static final int MOVE_BATCH_SIZE = 1000;
+
 	public void saveObj(Object obj) {
 		ops.save(obj);
 	}
@@ -99,10 +135,33 @@ public class MongoUpdate {
 					nodes.add(node);
 				}
 
+				long startTime = System.currentTimeMillis();
+				int batchSize = appProp.getSaveSessionBatchSize();
+
+				/*
+				 * New nodes are always saved one at a time, since they may depend on (via the parent check) other
+				 * new nodes having been saved first.
+				 */
+				List<SubNode> bulkNodes = new LinkedList<>();
 				for (SubNode node : nodes) {
 					// log.debug("saveSession: Saving Dirty. nodeId=" + (node.getId()==null ? "null
 					// (new node?)" : node.getId().toHexString()));
-					save(session, node, false);
+					if (batchSize > 0 && node.getId() != null) {
+						bulkNodes.add(node);
+					} else {
+						save(session, node, false);
+					}
+				}
+
+				if (bulkNodes.size() == 1) {
+					save(session, bulkNodes.get(0), false);
+				} else if (bulkNodes.size() > 1) {
+					bulkSave(bulkNodes, batchSize);
+				}
+
+				if (nodes.size() > 1) {
+					log.debug("saveSession: saved " + nodes.size() + " nodes (" + bulkNodes.size() + " in bulk) in "
+							+ (System.currentTimeMillis() - startTime) + "ms");
 				}
 
 				/*
@@ -116,6 +175,174 @@ public class MongoUpdate {
 		}
 	}
 
+	/*
+	 * Saves all 'nodes' (which must all be existing nodes, with IDs) by sending them in unordered bulk
+	 * writes of up to 'batchSize' nodes each, rather than one write per node.
+	 * 
+	 * Since this bypasses MongoTemplate.save we have to do what it does: convert each node to a
+	 * Document and run it thru the MongoEventListener before and after writing, so that everything the
+	 * listener does on a normal save (path hashes, timestamps, auth, cache invalidation) still happens.
+	 */
+	private void bulkSave(List<SubNode> nodes, int batchSize) {
+		String collectionName = ops.getCollectionName(SubNode.class);
+
+		// we run as admin, the same as the non-bulk save(session, node, false) does.
+		arun.run(ms -> {
+			List<SubNode> batchNodes = new LinkedList<>();
+			List<Document> batchDocs = new LinkedList<>();
+
+			for (SubNode node : nodes) {
+				Document doc = new Document();
+				ops.getConverter().write(node, doc);
+				listener.onBeforeSave(new BeforeSaveEvent<>(node, doc, collectionName));
+
+				batchNodes.add(node);
+				batchDocs.add(doc);
+
+				if (batchNodes.size() >= batchSize) {
+					bulkWrite(collectionName, batchNodes, batchDocs);
+					batchNodes.clear();
+					batchDocs.clear();
+				}
+			}
+
+			if (batchNodes.size() > 0) {
+				bulkWrite(collectionName, batchNodes, batchDocs);
+			}
+			return null;
+		});
+	}
+
+	private void bulkWrite(String collectionName, List<SubNode> nodes, List<Document> docs) {
+		List<WriteModel<Document>> writes = new LinkedList<>();
+		ReplaceOptions options = new ReplaceOptions().upsert(true);
+		for (Document doc : docs) {
+			writes.add(new ReplaceOneModel<>(new Document(SubNode.FIELD_ID, doc.get(SubNode.FIELD_ID)), doc, options));
+		}
+
+		ops.getCollection(collectionName).bulkWrite(writes, new BulkWriteOptions().ordered(false));
+
+		int idx = 0;
+		for (SubNode node : nodes) {
+			listener.onAfterSave(new AfterSaveEvent<>(node, docs.get(idx++), collectionName));
+			MongoThreadLocal.clean(node);
+		}
+	}
+
+	/*
+	 * Moves 'graphRoot' and its entire subgraph to be under 'newParentPath', by rewriting the paths
+	 * directly in the DB rather than loading every node of the subgraph into memory.
+	 * 
+	 * The subgraph is streamed with only the path projected, and all new paths (and their hashes, which
+	 * MongoDB can't compute server side) are sent back as unordered bulk updates. A PendingMove marker
+	 * is saved before anything is written and removed at the end, so a move interrupted by a crash is
+	 * finished by resumePendingMoves at the next startup. Resuming is safe because every node already
+	 * moved no longer matches the old path.
+	 * 
+	 * The in-memory 'graphRoot' gets its new path also, and it's left dirty so the caller's
+	 * saveSession will write any other changes the caller makes to it.
+	 */
+	public void moveSubGraph(MongoSession session, SubNode graphRoot, String newParentPath) {
+		String oldPath = graphRoot.getPath();
+		String newPath = newParentPath + "/" + graphRoot.getLastPathPart();
+		if (newPath.equals(oldPath))
+			return;
+
+		if (newPath.startsWith(oldPath + "/")) {
+			throw new RuntimeEx("Can't move a node under itself: " + oldPath);
+		}
+
+		/*
+		 * Previously every moved node was saved thru saveSession which requires ownership of each node, so
+		 * we still require that, but using just one query.
+		 */
+		if (!session.isAdmin()) {
+			Query query = new Query();
+			query.addCriteria(util.subGraphCriteria(oldPath).and(SubNode.FIELD_OWNER).ne(session.getUserNodeId()));
+			if (ops.exists(query, SubNode.class)) {
+				throw new RuntimeEx("Unable to move nodes owned by other users.");
+			}
+		}
+
+		// anything dirty in memory still has its old path, so we get it written before we move anything
+		saveSession(session);
+
+		PendingMove pendingMove = new PendingMove(graphRoot.getId(), oldPath, newPath);
+		ops.save(pendingMove);
+
+		runMove(pendingMove);
+		graphRoot.setPath(newPath);
+	}
+
+	/* Finishes any subgraph moves that were interrupted (by a crash or shutdown) */
+	public void resumePendingMoves() {
+		for (PendingMove pendingMove : ops.findAll(PendingMove.class)) {
+			log.debug("Resuming move of " + pendingMove.getOldPath() + " to " + pendingMove.getNewPath());
+			runMove(pendingMove);
+		}
+	}
+
+	private void runMove(PendingMove pendingMove) {
+		long startTime = System.currentTimeMillis();
+		String oldPath = pendingMove.getOldPath();
+		String newPath = pendingMove.getNewPath();
+		String collectionName = ops.getCollectionName(SubNode.class);
+
+		Query query = new Query();
+		query.addCriteria(util.subGraphCriteria(oldPath));
+		query.fields().include(SubNode.FIELD_PATH);
+
+		long count = 0;
+		BulkOperations bops = null;
+		int batchCount = 0;
+
+		try (CloseableIterator<Document> iter = ops.stream(query, Document.class, collectionName)) {
+			while (iter.hasNext()) {
+				Document doc = iter.next();
+				if (bops == null) {
+					bops = ops.bulkOps(BulkMode.UNORDERED, SubNode.class);
+				}
+
+				String nodeNewPath = newPath + doc.getString(SubNode.FIELD_PATH).substring(oldPath.length());
+				Query updateQuery = new Query(Criteria.where(SubNode.FIELD_ID).is(doc.get(SubNode.FIELD_ID)));
+				bops.updateOne(updateQuery, pathUpdate(nodeNewPath));
+				count++;
+
+				if (++batchCount >= MOVE_BATCH_SIZE) {
+					bops.execute();
+					bops = null;
+					batchCount = 0;
+				}
+			}
+		}
+
+		if (bops != null) {
+			bops.execute();
+		}
+
+		// and finally the root of the subgraph itself
+		Query rootQuery = new Query();
+		rootQuery.addCriteria(Criteria.where(SubNode.FIELD_ID).is(pendingMove.getNodeId()) //
+				.and(SubNode.FIELD_PATH).is(oldPath));
+		ops.updateFirst(rootQuery, pathUpdate(newPath), SubNode.class);
+
+		ops.remove(pendingMove);
+
+		// nothing cached can be trusted to have the right path now
+		nodeCache.invalidateSubGraph(oldPath);
+		authCache.invalidateSubGraph(oldPath);
+		MongoThreadLocal.clearCachedNodes();
+
+		log.debug("Moved " + count + " nodes from " + oldPath + " to " + newPath + " in "
+				+ (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	private Update pathUpdate(String path) {
+		return Update.update(SubNode.FIELD_PATH, path) //
+				.set(SubNode.FIELD_PATH_HASH, DigestUtils.sha256Hex(path)) //
+				.set(SubNode.FIELD_PARENT_PATH_HASH, DigestUtils.sha256Hex(XString.truncateAfterLast(path, "/")));
+	}
+
 	/*
 	 * Unpins any IPFS data that is not currently referenced by MongoDb. Cleans up orphans.
 	 */
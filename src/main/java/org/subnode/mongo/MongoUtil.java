@@ -4,6 +4,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
@@ -14,15 +15,22 @@ import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.index.IndexField;
 import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
 import org.springframework.data.mongodb.core.index.TextIndexDefinition;
 import org.springframework.data.mongodb.core.index.TextIndexDefinition.TextIndexDefinitionBuilder;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
+import org.subnode.AppServer;
 import org.subnode.config.AppProp;
 import org.subnode.config.NodeName;
 import org.subnode.model.client.NodeProp;
@@ -83,8 +91,24 @@ public class MongoUtil {
 	@Autowired
 	private MongoAuth auth;
 
+	@Autowired
+	private MongoNodeCache nodeCache;
+
+	@Autowired
+	@Qualifier("threadPoolTaskExecutor")
+	private Executor executor;
+
 	private static SubNode systemRootNode;
 
+	/*
+	 * Becomes true once every node in the DB has a SubNode.FIELD_PARENT_PATH_HASH value (see
+	 * backfillParentPathHashes). Until then directChildrenCriteria() has to fall back to the old regex
+	 * on the path, or else nodes saved before the field existed would be invisible to child lookups.
+	 */
+	private static volatile boolean parentPathHashReady = false;
+
+	private static final int BACKFILL_BATCH_SIZE = 1000;
+
 	// todo-2: need to look into bulk-ops for doing this saveSession updating
 	// tips:
 	// https://stackoverflow.com/questions/26657055/spring-data-mongodb-and-bulk-update
@@ -129,7 +153,12 @@ public class MongoUtil {
 	
 		SubNode node = MongoThreadLocal.getCachedNode(objId.toHexString());
 		if (node == null) {
+			node = nodeCache.getById(objId);
+		}
+		if (node == null) {
+			long gen = nodeCache.getGeneration();
 			node = ops.findById(objId, SubNode.class);
+			nodeCache.put(node, gen, null);
 		}
 		return nodeOrDirtyNode(node);
 	}
@@ -370,6 +399,36 @@ public class MongoUtil {
 		createIndex(session, SubNode.class, SubNode.FIELD_NAME);
 		createIndex(session, SubNode.class, SubNode.FIELD_TYPE);
 
+		/*
+		 * Direct-children lookups are an exact match on the parent path hash, and are almost always sorted
+		 * (or ranged) by ordinal, so we index those two together.
+		 */
+		createCompoundIndex(session, SubNode.class, SubNode.FIELD_PARENT_PATH_HASH, SubNode.FIELD_ORDINAL);
+
+		/*
+		 * Subgraph lookups are range scans on the path (see subGraphCriteria) and can only use an index on
+		 * the path itself. MongoDB versions prior to 4.2 reject writing any node whose path is longer than
+		 * the 1024 byte index key limit once this index exists, so this is only turned on by config.
+		 */
+		if (appProp.isMongoPathIndex()) {
+			createIndex(session, SubNode.class, SubNode.FIELD_PATH);
+		}
+
+		/*
+		 * Foreign posts are looked up by their ActivityPub ID to avoid saving them twice. Not unique,
+		 * because the same foreign post can be saved in more than one place (like in its author's posts
+		 * and also as a reply under a local node). Sparse, since most nodes don't have one.
+		 */
+		createSparseIndex(session, SubNode.class, SubNode.FIELD_PROPERTIES + "." + NodeProp.ACT_PUB_ID.s() + ".value");
+
+		/*
+		 * The outboxes we serve to foreign servers are each user's public nodes by modify time. Partial, so
+		 * only public nodes are in it.
+		 */
+		createPartialCompoundIndex(session, SubNode.class,
+				Criteria.where(SubNode.FIELD_AC + "." + PrincipalName.PUBLIC.s()).exists(true), SubNode.FIELD_OWNER,
+				SubNode.FIELD_MODIFY_TIME);
+
 		createIndex(session, SubNode.class, SubNode.FIELD_OWNER);
 		createIndex(session, SubNode.class, SubNode.FIELD_ORDINAL);
 		createIndex(session, SubNode.class, SubNode.FIELD_MODIFY_TIME, Direction.DESC);
@@ -418,12 +477,110 @@ public class MongoUtil {
 		ops.indexOps(clazz).ensureIndex(new Index().on(property, Direction.ASC));
 	}
 
+	/* Index that leaves out nodes not having 'property' at all */
+	public void createSparseIndex(MongoSession session, Class<?> clazz, String property) {
+		auth.requireAdmin(session);
+		update.saveSession(session);
+		ops.indexOps(clazz).ensureIndex(new Index().on(property, Direction.ASC).sparse());
+	}
+
 	public void createIndex(MongoSession session, Class<?> clazz, String property, Direction dir) {
 		auth.requireAdmin(session);
 		update.saveSession(session);
 		ops.indexOps(clazz).ensureIndex(new Index().on(property, dir));
 	}
 
+	/* Creates one index over all 'properties' (ascending), in the order given */
+	public void createCompoundIndex(MongoSession session, Class<?> clazz, String... properties) {
+		auth.requireAdmin(session);
+		update.saveSession(session);
+		Index index = new Index();
+		for (String property : properties) {
+			index.on(property, Direction.ASC);
+		}
+		ops.indexOps(clazz).ensureIndex(index);
+	}
+
+	/* Like createCompoundIndex but only indexing the documents matching 'filter' */
+	public void createPartialCompoundIndex(MongoSession session, Class<?> clazz, Criteria filter, String... properties) {
+		auth.requireAdmin(session);
+		update.saveSession(session);
+		Index index = new Index();
+		for (String property : properties) {
+			index.on(property, Direction.ASC);
+		}
+		index.partial(PartialIndexFilter.of(filter));
+		ops.indexOps(clazz).ensureIndex(index);
+	}
+
+	/*
+	 * Called once at startup. If any nodes were saved before SubNode.FIELD_PARENT_PATH_HASH existed we
+	 * fill in the missing hashes on a background thread, and the indexed child lookups are only turned
+	 * on after that completes.
+	 */
+	public void initParentPathHashes() {
+		if (!ops.exists(missingParentPathHashQuery(), SubNode.class)) {
+			parentPathHashReady = true;
+			log.debug("Parent path hashes ready.");
+			return;
+		}
+
+		executor.execute(() -> {
+			try {
+				backfillParentPathHashes();
+			} catch (Exception e) {
+				log.error("backfillParentPathHashes failed", e);
+			}
+		});
+	}
+
+	/*
+	 * Only the path of each node is read (projection) and the hashes are written back in unordered bulk
+	 * batches, so this never hydrates full SubNode objects nor runs the MongoEventListener. Nodes saved
+	 * while this is running get their hash from the listener like normal.
+	 */
+	public void backfillParentPathHashes() {
+		log.debug("Parent path hash backfill starting.");
+		String collection = ops.getCollectionName(SubNode.class);
+		long total = 0;
+
+		while (!AppServer.isShuttingDown()) {
+			Query query = missingParentPathHashQuery();
+			query.fields().include(SubNode.FIELD_PATH);
+			query.limit(BACKFILL_BATCH_SIZE);
+
+			List<Document> docs = ops.find(query, Document.class, collection);
+			if (docs.size() == 0) {
+				parentPathHashReady = true;
+				break;
+			}
+
+			BulkOperations bops = ops.bulkOps(BulkMode.UNORDERED, SubNode.class);
+			for (Document doc : docs) {
+				String path = doc.getString(SubNode.FIELD_PATH);
+				String parentPath = path == null ? "" : XString.truncateAfterLast(path, "/");
+
+				Query updateQuery = new Query(Criteria.where(SubNode.FIELD_ID).is(doc.get(SubNode.FIELD_ID)));
+				bops.updateOne(updateQuery, Update.update(SubNode.FIELD_PARENT_PATH_HASH, DigestUtils.sha256Hex(parentPath)));
+			}
+			bops.execute();
+
+			total += docs.size();
+			log.debug("Parent path hash backfill count: " + total);
+		}
+		log.debug("Parent path hash backfill done. ready=" + parentPathHashReady + " nodes updated: " + total);
+	}
+
+	private Query missingParentPathHashQuery() {
+		Query query = new Query();
+		query.addCriteria(Criteria.where(SubNode.FIELD_PARENT_PATH_HASH).exists(false));
+		return query;
+	}
+
+	public static boolean isParentPathHashReady() {
+		return parentPathHashReady;
+	}
+
 	/*
 	 * DO NOT DELETE.
 	 * 
@@ -493,6 +650,32 @@ public class MongoUtil {
 		return "^" + Pattern.quote(path) + "\\/(.+)$";
 	}
 
+	/*
+	 * Criteria matching the direct children of 'path' (same nodes as regexDirectChildrenOfPath). Once the
+	 * parent path hashes are all populated this is an exact match on an indexed field.
+	 */
+	public Criteria directChildrenCriteria(String path) {
+		path = XString.stripIfEndsWith(path, "/");
+		if (parentPathHashReady) {
+			return Criteria.where(SubNode.FIELD_PARENT_PATH_HASH).is(DigestUtils.sha256Hex(path));
+		}
+		return Criteria.where(SubNode.FIELD_PATH).regex(regexDirectChildrenOfPath(path));
+	}
+
+	/*
+	 * Criteria matching the entire subgraph under 'path' (same nodes as regexRecursiveChildrenOfPath),
+	 * but expressed as an anchored range on the path rather than a regex, so it can be satisfied by an
+	 * index range scan.
+	 * 
+	 * Every descendant path starts with "path/" and has at least one more character, so it sorts
+	 * strictly after "path/". The character '0' is the one immediately after '/', so every path with the
+	 * "path/" prefix also sorts before "path0".
+	 */
+	public Criteria subGraphCriteria(String path) {
+		path = XString.stripIfEndsWith(path, "/");
+		return Criteria.where(SubNode.FIELD_PATH).gt(path + "/").lt(path + "0");
+	}
+
 	public SubNode createUser(MongoSession session, String user, String email, String password, boolean automated) {
 		SubNode userNode = read.getUserNodeByUserName(session, user);
 		if (userNode != null) {
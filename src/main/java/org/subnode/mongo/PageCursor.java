@@ -0,0 +1,211 @@
+package org.subnode.mongo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.subnode.exception.base.RuntimeEx;
+import org.subnode.mongo.model.SubNode;
+import org.subnode.mongo.model.SubNodePropVal;
+
+/**
+ * Keyset pagination cursor. Holds the sort value of the last node on a page, so that the next page
+ * can be queried as "everything from this value on" (an index seek) rather than by skipping over all
+ * the rows of the earlier pages, which makes Mongo walk and discard every one of them.
+ *
+ * Since more than one node can have the same sort value, the cursor also holds the IDs of the nodes
+ * already returned that have exactly the cursor value, and those are excluded from the next page.
+ * Doing it this way (rather than also sorting by _id) means the query sort is still on the one field,
+ * so the existing single field indexes can still provide it.
+ *
+ * The seen IDs carry over from page to page for as long as whole pages share the one value, so the
+ * list is capped at MAX_SEEN_IDS. Past that no cursor is made, and callers go back to paging by offset
+ * (the list would otherwise grow the token and the $nin without limit over a long run of ties).
+ *
+ * The client only ever sees the cursor as an opaque token, that it gets back with each page and
+ * sends with the request for the next page.
+ */
+public class PageCursor {
+	private static final String DELIM = "|";
+	public static final int MAX_SEEN_IDS = 200;
+
+	private final String field;
+	private final boolean asc;
+	private final Object value;
+	private final List<ObjectId> seenIds;
+
+	public PageCursor(String field, boolean asc, Object value, List<ObjectId> seenIds) {
+		this.field = field;
+		this.asc = asc;
+		this.value = value;
+		this.seenIds = seenIds;
+	}
+
+	/*
+	 * Returns the token for the cursor to the page after 'pageNodes' (the nodes of the current page, in
+	 * order) or null if the last node has no value for 'field', or more than MAX_SEEN_IDS nodes have the
+	 * last node's value (in either case it can't be paged past by cursor). 'prevCursor' is the cursor the
+	 * current page was queried with, if any.
+	 */
+	public static String create(PageCursor prevCursor, List<SubNode> pageNodes, String field, boolean asc) {
+		if (pageNodes == null || pageNodes.size() == 0)
+			return null;
+
+		Object value = getSortValue(pageNodes.get(pageNodes.size() - 1), field);
+		if (value == null)
+			return null;
+
+		List<ObjectId> seenIds = new LinkedList<>();
+
+		// if this entire page had the same value, the nodes before it with that value are still 'seen'
+		if (prevCursor != null && prevCursor.matches(field, asc) && value.equals(prevCursor.value)) {
+			seenIds.addAll(prevCursor.seenIds);
+		}
+
+		for (SubNode node : pageNodes) {
+			if (value.equals(getSortValue(node, field))) {
+				seenIds.add(node.getId());
+			}
+		}
+
+		if (seenIds.size() > MAX_SEEN_IDS)
+			return null;
+		return new PageCursor(field, asc, value, seenIds).toToken();
+	}
+
+	private String toToken() {
+		String type = null;
+		String val = null;
+		if (value instanceof Date) {
+			type = "d";
+			val = String.valueOf(((Date) value).getTime());
+		} else if (value instanceof Long || value instanceof Integer) {
+			type = "l";
+			val = String.valueOf(((Number) value).longValue());
+		} else if (value instanceof Double) {
+			type = "f";
+			val = String.valueOf(value);
+		} else if (value instanceof String) {
+			type = "s";
+			val = (String) value;
+		} else {
+			return null;
+		}
+
+		StringBuilder ids = new StringBuilder();
+		for (ObjectId id : seenIds) {
+			if (ids.length() > 0) {
+				ids.append(",");
+			}
+			ids.append(id.toHexString());
+		}
+
+		String token = field + DELIM + (asc ? "a" : "d") + DELIM + ids.toString() + DELIM + type + DELIM + val;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/* Returns the cursor in 'token', or null if 'token' is empty */
+	public static PageCursor parse(String token) {
+		if (StringUtils.isEmpty(token))
+			return null;
+
+		try {
+			String str = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			String[] parts = str.split("\\" + DELIM, 5);
+			if (parts.length != 5) {
+				throw new RuntimeEx("Bad cursor.");
+			}
+
+			Object value = null;
+			switch (parts[3]) {
+				case "d":
+					value = new Date(Long.parseLong(parts[4]));
+					break;
+				case "l":
+					value = Long.parseLong(parts[4]);
+					break;
+				case "f":
+					value = Double.parseDouble(parts[4]);
+					break;
+				case "s":
+					value = parts[4];
+					break;
+				default:
+					throw new RuntimeEx("Bad cursor.");
+			}
+
+			List<ObjectId> seenIds = new LinkedList<>();
+			for (String id : StringUtils.split(parts[2], ",")) {
+				seenIds.add(new ObjectId(id));
+			}
+			if (seenIds.size() > MAX_SEEN_IDS) {
+				throw new RuntimeEx("Bad cursor.");
+			}
+			return new PageCursor(parts[0], "a".equals(parts[1]), value, seenIds);
+		} catch (RuntimeEx e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeEx("Bad cursor.", e);
+		}
+	}
+
+	/* Returns the value of 'field' (a SubNode field name, or "prp.[name].value") on 'node' */
+	public static Object getSortValue(SubNode node, String field) {
+		if (node == null)
+			return null;
+
+		switch (field) {
+			case SubNode.FIELD_MODIFY_TIME:
+				return node.getModifyTime();
+			case SubNode.FIELD_CREATE_TIME:
+				return node.getCreateTime();
+			case SubNode.FIELD_ORDINAL:
+				return node.getOrdinal();
+			default:
+				break;
+		}
+
+		String propPrefix = SubNode.FIELD_PROPERTIES + ".";
+		String propSuffix = ".value";
+		if (field.startsWith(propPrefix) && field.endsWith(propSuffix) && node.getProperties() != null) {
+			SubNodePropVal val =
+					node.getProperties().get(field.substring(propPrefix.length(), field.length() - propSuffix.length()));
+			return val != null ? val.getValue() : null;
+		}
+		return null;
+	}
+
+	/* True if this cursor was created for paging over 'field' in the direction 'asc' */
+	public boolean matches(String field, boolean asc) {
+		return this.field.equals(field) && this.asc == asc;
+	}
+
+	/*
+	 * Returns the criteria selecting everything after the cursor, where 'idField' is the field holding
+	 * the node ID. 'fieldCriteria' is any criteria the caller already has on the cursor field (or null),
+	 * since a query can only have one per field.
+	 */
+	public Criteria criteria(Criteria fieldCriteria, String idField) {
+		if (fieldCriteria == null) {
+			fieldCriteria = Criteria.where(field);
+		}
+		if (asc) {
+			fieldCriteria.gte(value);
+		} else {
+			fieldCriteria.lte(value);
+		}
+
+		if (seenIds.size() > 0) {
+			fieldCriteria.and(idField).nin(seenIds);
+		}
+		return fieldCriteria;
+	}
+
+	public Criteria criteria(Criteria fieldCriteria) {
+		return criteria(fieldCriteria, SubNode.FIELD_ID);
+	}
+}
@@ -0,0 +1,132 @@
+package org.subnode.mongo.model;
+
+import java.util.Date;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/*
+ * One entry of the snapshot of ActPubCache that is saved periodically and loaded at startup, so that
+ * the cache doesn't start out empty after a restart.
+ */
+@Document(collection = "actPubCache")
+@TypeAlias("apc")
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({ActPubCacheEntry.FIELD_ID, ActPubCacheEntry.FIELD_CACHE, ActPubCacheEntry.FIELD_KEY,
+		ActPubCacheEntry.FIELD_JSON, ActPubCacheEntry.FIELD_EXPIRE_TIME, ActPubCacheEntry.FIELD_GENERATION})
+public class ActPubCacheEntry {
+	/* ID is the cache name and the key, so each key can only be in the snapshot once */
+	public static final String FIELD_ID = "_id";
+
+	@Id
+	@Field(FIELD_ID)
+	private String id;
+
+	/* name of the cache in ActPubCache this entry is from */
+	public static final String FIELD_CACHE = "c";
+	@Field(FIELD_CACHE)
+	private String cache;
+
+	public static final String FIELD_KEY = "k";
+	@Field(FIELD_KEY)
+	private String key;
+
+	/*
+	 * The cached object as JSON, because foreign objects can have property names that Mongo won't allow
+	 * in a document
+	 */
+	public static final String FIELD_JSON = "v";
+	@Field(FIELD_JSON)
+	private String json;
+
+	public static final String FIELD_EXPIRE_TIME = "exp";
+	@Field(FIELD_EXPIRE_TIME)
+	private Date expireTime;
+
+	/*
+	 * Which save of the snapshot wrote this entry. Each save writes its entries over the old ones and
+	 * then removes any that are left from an earlier save.
+	 */
+	public static final String FIELD_GENERATION = "gen";
+	@Field(FIELD_GENERATION)
+	private long generation;
+
+	@PersistenceConstructor
+	public ActPubCacheEntry() {
+	}
+
+	public ActPubCacheEntry(String cache, String key, String json, Date expireTime, long generation) {
+		this.id = cache + ":" + key;
+		this.cache = cache;
+		this.key = key;
+		this.json = json;
+		this.expireTime = expireTime;
+		this.generation = generation;
+	}
+
+	@JsonProperty(FIELD_ID)
+	public String getId() {
+		return id;
+	}
+
+	@JsonProperty(FIELD_ID)
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	@JsonProperty(FIELD_CACHE)
+	public String getCache() {
+		return cache;
+	}
+
+	@JsonProperty(FIELD_CACHE)
+	public void setCache(String cache) {
+		this.cache = cache;
+	}
+
+	@JsonProperty(FIELD_KEY)
+	public String getKey() {
+		return key;
+	}
+
+	@JsonProperty(FIELD_KEY)
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	@JsonProperty(FIELD_JSON)
+	public String getJson() {
+		return json;
+	}
+
+	@JsonProperty(FIELD_JSON)
+	public void setJson(String json) {
+		this.json = json;
+	}
+
+	@JsonProperty(FIELD_EXPIRE_TIME)
+	public Date getExpireTime() {
+		return expireTime;
+	}
+
+	@JsonProperty(FIELD_EXPIRE_TIME)
+	public void setExpireTime(Date expireTime) {
+		this.expireTime = expireTime;
+	}
+
+	@JsonProperty(FIELD_GENERATION)
+	public long getGeneration() {
+		return generation;
+	}
+
+	@JsonProperty(FIELD_GENERATION)
+	public void setGeneration(long generation) {
+		this.generation = generation;
+	}
+}
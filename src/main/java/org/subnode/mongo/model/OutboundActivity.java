@@ -0,0 +1,238 @@
+package org.subnode.mongo.model;
+
+import java.util.Date;
+import java.util.List;
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/*
+ * One ActivityPub activity waiting to be delivered to one foreign inbox, or to a set of users on one
+ * foreign host whose inbox is yet to be looked up (see ActPubDelivery). It's removed once delivered,
+ * and left in the DEAD state once we give up on it.
+ */
+@Document(collection = "outboundActivities")
+@TypeAlias("oa")
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({OutboundActivity.FIELD_ID, OutboundActivity.FIELD_HOST, OutboundActivity.FIELD_INBOX,
+		OutboundActivity.FIELD_TO_USERS, OutboundActivity.FIELD_FROM_USER, OutboundActivity.FIELD_ACTOR,
+		OutboundActivity.FIELD_BODY, OutboundActivity.FIELD_STATE, OutboundActivity.FIELD_TRIES, OutboundActivity.FIELD_DUE,
+		OutboundActivity.FIELD_ERROR, OutboundActivity.FIELD_CREATE_TIME})
+public class OutboundActivity {
+	public static final String STATE_QUEUED = "q";
+	public static final String STATE_IN_FLIGHT = "f";
+	public static final String STATE_DEAD = "x";
+
+	public static final String FIELD_ID = "_id";
+
+	@Id
+	@Field(FIELD_ID)
+	private ObjectId id;
+
+	/* host the inbox is on, which delivery concurrency is limited by */
+	public static final String FIELD_HOST = "hst";
+	@Field(FIELD_HOST)
+	private String host;
+
+	/* inbox url, or null if it's yet to be looked up from 'toUsers' at delivery time */
+	public static final String FIELD_INBOX = "inb";
+	@Field(FIELD_INBOX)
+	private String inbox;
+
+	/*
+	 * foreign user names (like someuser@server.org), all on 'host', the activity is for, when 'inbox' is
+	 * not known
+	 */
+	public static final String FIELD_TO_USERS = "to";
+	@Field(FIELD_TO_USERS)
+	private List<String> toUsers;
+
+	/* local user whose key the activity is signed with */
+	public static final String FIELD_FROM_USER = "frm";
+	@Field(FIELD_FROM_USER)
+	private String fromUser;
+
+	/* actor url of 'fromUser' */
+	public static final String FIELD_ACTOR = "act";
+	@Field(FIELD_ACTOR)
+	private String actor;
+
+	/* activity JSON */
+	public static final String FIELD_BODY = "body";
+	@Field(FIELD_BODY)
+	private String body;
+
+	public static final String FIELD_STATE = "st";
+	@Field(FIELD_STATE)
+	private String state;
+
+	/* number of failed delivery attempts */
+	public static final String FIELD_TRIES = "try";
+	@Field(FIELD_TRIES)
+	private int tries;
+
+	/* time of the next delivery attempt */
+	public static final String FIELD_DUE = "due";
+	@Field(FIELD_DUE)
+	private Date due;
+
+	/* error of the last failed attempt */
+	public static final String FIELD_ERROR = "err";
+	@Field(FIELD_ERROR)
+	private String error;
+
+	public static final String FIELD_CREATE_TIME = "ctm";
+	@Field(FIELD_CREATE_TIME)
+	private Date createTime;
+
+	@PersistenceConstructor
+	public OutboundActivity() {
+	}
+
+	public OutboundActivity(String host, String inbox, List<String> toUsers, String fromUser, String actor, String body,
+			Date due) {
+		this.host = host;
+		this.inbox = inbox;
+		this.toUsers = toUsers;
+		this.fromUser = fromUser;
+		this.actor = actor;
+		this.body = body;
+		this.state = STATE_QUEUED;
+		this.due = due;
+		this.createTime = new Date();
+	}
+
+	// we don't annotate this because we have a custom getter.
+	// @JsonProperty(FIELD_ID)
+	public ObjectId getId() {
+		return id;
+	}
+
+	@JsonProperty(FIELD_ID)
+	public void setId(ObjectId id) {
+		this.id = id;
+	}
+
+	@JsonGetter(FIELD_ID)
+	public String jsonId() {
+		return id != null ? id.toHexString() : null;
+	}
+
+	@JsonProperty(FIELD_HOST)
+	public String getHost() {
+		return host;
+	}
+
+	@JsonProperty(FIELD_HOST)
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	@JsonProperty(FIELD_INBOX)
+	public String getInbox() {
+		return inbox;
+	}
+
+	@JsonProperty(FIELD_INBOX)
+	public void setInbox(String inbox) {
+		this.inbox = inbox;
+	}
+
+	@JsonProperty(FIELD_TO_USERS)
+	public List<String> getToUsers() {
+		return toUsers;
+	}
+
+	@JsonProperty(FIELD_TO_USERS)
+	public void setToUsers(List<String> toUsers) {
+		this.toUsers = toUsers;
+	}
+
+	@JsonProperty(FIELD_FROM_USER)
+	public String getFromUser() {
+		return fromUser;
+	}
+
+	@JsonProperty(FIELD_FROM_USER)
+	public void setFromUser(String fromUser) {
+		this.fromUser = fromUser;
+	}
+
+	@JsonProperty(FIELD_ACTOR)
+	public String getActor() {
+		return actor;
+	}
+
+	@JsonProperty(FIELD_ACTOR)
+	public void setActor(String actor) {
+		this.actor = actor;
+	}
+
+	@JsonProperty(FIELD_BODY)
+	public String getBody() {
+		return body;
+	}
+
+	@JsonProperty(FIELD_BODY)
+	public void setBody(String body) {
+		this.body = body;
+	}
+
+	@JsonProperty(FIELD_STATE)
+	public String getState() {
+		return state;
+	}
+
+	@JsonProperty(FIELD_STATE)
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	@JsonProperty(FIELD_TRIES)
+	public int getTries() {
+		return tries;
+	}
+
+	@JsonProperty(FIELD_TRIES)
+	public void setTries(int tries) {
+		this.tries = tries;
+	}
+
+	@JsonProperty(FIELD_DUE)
+	public Date getDue() {
+		return due;
+	}
+
+	@JsonProperty(FIELD_DUE)
+	public void setDue(Date due) {
+		this.due = due;
+	}
+
+	@JsonProperty(FIELD_ERROR)
+	public String getError() {
+		return error;
+	}
+
+	@JsonProperty(FIELD_ERROR)
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	@JsonProperty(FIELD_CREATE_TIME)
+	public Date getCreateTime() {
+		return createTime;
+	}
+
+	@JsonProperty(FIELD_CREATE_TIME)
+	public void setCreateTime(Date createTime) {
+		this.createTime = createTime;
+	}
+}
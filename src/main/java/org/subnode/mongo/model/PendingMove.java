@@ -0,0 +1,116 @@
+package org.subnode.mongo.model;
+
+import java.util.Date;
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/*
+ * Marker saved before a subgraph move starts rewriting paths, and removed once the move is complete,
+ * so that a move interrupted by a crash can be finished at the next startup (see
+ * MongoUpdate.resumePendingMoves)
+ */
+@Document(collection = "pendingMoves")
+@TypeAlias("pm")
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({PendingMove.FIELD_ID, PendingMove.FIELD_NODE_ID, PendingMove.FIELD_OLD_PATH, PendingMove.FIELD_NEW_PATH,
+		PendingMove.FIELD_CREATE_TIME})
+public class PendingMove {
+	public static final String FIELD_ID = "_id";
+
+	@Id
+	@Field(FIELD_ID)
+	private ObjectId id;
+
+	/* ID of the node at the root of the subgraph being moved */
+	public static final String FIELD_NODE_ID = "nid";
+	@Field(FIELD_NODE_ID)
+	private ObjectId nodeId;
+
+	public static final String FIELD_OLD_PATH = "old";
+	@Field(FIELD_OLD_PATH)
+	private String oldPath;
+
+	public static final String FIELD_NEW_PATH = "new";
+	@Field(FIELD_NEW_PATH)
+	private String newPath;
+
+	public static final String FIELD_CREATE_TIME = "ctm";
+	@Field(FIELD_CREATE_TIME)
+	private Date createTime;
+
+	@PersistenceConstructor
+	public PendingMove() {
+	}
+
+	public PendingMove(ObjectId nodeId, String oldPath, String newPath) {
+		this.nodeId = nodeId;
+		this.oldPath = oldPath;
+		this.newPath = newPath;
+		this.createTime = new Date();
+	}
+
+	// we don't annotate this because we have a custom getter.
+	// @JsonProperty(FIELD_ID)
+	public ObjectId getId() {
+		return id;
+	}
+
+	@JsonProperty(FIELD_ID)
+	public void setId(ObjectId id) {
+		this.id = id;
+	}
+
+	@JsonGetter(FIELD_ID)
+	public String jsonId() {
+		return id != null ? id.toHexString() : null;
+	}
+
+	@JsonProperty(FIELD_NODE_ID)
+	public ObjectId getNodeId() {
+		return nodeId;
+	}
+
+	@JsonProperty(FIELD_NODE_ID)
+	public void setNodeId(ObjectId nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	@JsonProperty(FIELD_OLD_PATH)
+	public String getOldPath() {
+		return oldPath;
+	}
+
+	@JsonProperty(FIELD_OLD_PATH)
+	public void setOldPath(String oldPath) {
+		this.oldPath = oldPath;
+	}
+
+	@JsonProperty(FIELD_NEW_PATH)
+	public String getNewPath() {
+		return newPath;
+	}
+
+	@JsonProperty(FIELD_NEW_PATH)
+	public void setNewPath(String newPath) {
+		this.newPath = newPath;
+	}
+
+	@JsonProperty(FIELD_CREATE_TIME)
+	public Date getCreateTime() {
+		return createTime;
+	}
+
+	@JsonProperty(FIELD_CREATE_TIME)
+	public void setCreateTime(Date createTime) {
+		this.createTime = createTime;
+	}
+}
@@ -56,7 +56,7 @@ import org.subnode.util.XString;
 @Document(collection = "nodes")
 @TypeAlias("n1")
 @JsonInclude(Include.NON_NULL)
-@JsonPropertyOrder({SubNode.FIELD_PATH, SubNode.FIELD_PATH_HASH, SubNode.FIELD_CONTENT, SubNode.FIELD_NAME, SubNode.FIELD_ID,
+@JsonPropertyOrder({SubNode.FIELD_PATH, SubNode.FIELD_PATH_HASH, SubNode.FIELD_PARENT_PATH_HASH, SubNode.FIELD_CONTENT, SubNode.FIELD_NAME, SubNode.FIELD_ID,
 		SubNode.FIELD_MAX_CHILD_ORDINAL, SubNode.FIELD_ORDINAL, SubNode.FIELD_OWNER, SubNode.FIELD_CREATE_TIME,
 		SubNode.FIELD_MODIFY_TIME, SubNode.FIELD_AC, SubNode.FIELD_PROPERTIES})
 public class SubNode {
@@ -89,6 +89,15 @@ public class SubNode {
 	@Field(FIELD_PATH_HASH)
 	private String pathHash;
 
+	/*
+	 * Hash of the path of our parent node (i.e. the hash of getParentPath()), also maintained during
+	 * save event processing. This lets direct-children lookups be an exact match on an indexed field
+	 * (indexed together with ordinal) instead of a regex scan of the path of every node.
+	 */
+	public static final String FIELD_PARENT_PATH_HASH = "pphash";
+	@Field(FIELD_PARENT_PATH_HASH)
+	private String parentPathHash;
+
 	public static final String FIELD_TYPE = "typ";
 	@Field(FIELD_TYPE)
 	private String type;
@@ -130,6 +139,22 @@ public class SubNode {
 
 	private boolean disableParentCheck;
 
+	/*
+	 * The authHash() of this node as of when it was loaded from the DB, so that on save we can tell if
+	 * the owner or ACL has changed (which affects who can access this node's entire subgraph)
+	 */
+	@Transient
+	@JsonIgnore
+	private Integer loadedAuthHash;
+
+	/*
+	 * TimelineService.getTimelineState() of this node as of when it was loaded or last saved, so that on
+	 * save we can tell if anything on the timelines has to change
+	 */
+	@Transient
+	@JsonIgnore
+	private Integer loadedTimelineState;
+
 	@PersistenceConstructor
 	public SubNode() {
 		/*
@@ -183,6 +208,11 @@ public class SubNode {
 		return pathHash;
 	}
 
+	@JsonProperty(FIELD_PARENT_PATH_HASH)
+	public String getParentPathHash() {
+		return parentPathHash;
+	}
+
 	@Transient
 	@JsonIgnore
 	public String getParentPath() {
@@ -212,11 +242,12 @@ public class SubNode {
 		MongoThreadLocal.dirty(this);
 
 		/*
-		 * nullify path hash if the path is changing so that MongoEventListener will update the value when
+		 * nullify path hashes if the path is changing so that MongoEventListener will update the values when
 		 * saving
 		 */
 		if (!path.equals(this.path)) {
 			this.pathHash = null;
+			this.parentPathHash = null;
 		}
 
 		this.path = path;
@@ -233,6 +264,14 @@ public class SubNode {
 		this.pathHash = pathHash;
 	}
 
+	@JsonProperty(FIELD_PARENT_PATH_HASH)
+	public void setParentPathHash(String parentPathHash) {
+		if (Util.equalObjs(parentPathHash, this.parentPathHash))
+			return;
+		MongoThreadLocal.dirty(this);
+		this.parentPathHash = parentPathHash;
+	}
+
 	@JsonProperty(FIELD_ORDINAL)
 	public Long getOrdinal() {
 		return ordinal;
@@ -553,6 +592,40 @@ public class SubNode {
 		this.disableParentCheck = disableParentCheck;
 	}
 
+	@JsonIgnore
+	public Integer getLoadedAuthHash() {
+		return loadedAuthHash;
+	}
+
+	@JsonIgnore
+	public void setLoadedAuthHash(Integer loadedAuthHash) {
+		this.loadedAuthHash = loadedAuthHash;
+	}
+
+	@JsonIgnore
+	public Integer getLoadedTimelineState() {
+		return loadedTimelineState;
+	}
+
+	@JsonIgnore
+	public void setLoadedTimelineState(Integer loadedTimelineState) {
+		this.loadedTimelineState = loadedTimelineState;
+	}
+
+	/* Hash of the owner and ACL of this node. Note: ACL entries are hashed by content not identity. */
+	public int authHash() {
+		int hash = owner != null ? owner.hashCode() : 0;
+		if (ac != null) {
+			for (String key : ac.keySet()) {
+				AccessControl acEntry = ac.get(key);
+				String prvs = acEntry != null ? acEntry.getPrvs() : null;
+				// summed, so that the result doesn't depend on map iteration order
+				hash += 31 * key.hashCode() + (prvs != null ? prvs.hashCode() : 0);
+			}
+		}
+		return hash;
+	}
+
 	public void addProperties(SubNodePropertyMap properties) {
 		MongoThreadLocal.dirty(this);
 		properties().putAll(properties);
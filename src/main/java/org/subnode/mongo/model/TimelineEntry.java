@@ -0,0 +1,140 @@
+package org.subnode.mongo.model;
+
+import java.util.Date;
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/*
+ * One node appearing on one timeline. Timelines are keyed (see TimelineService for the key formats)
+ * by the recipient and the reason the node is on their feed, and hold a copy of the few node fields
+ * the feed filters on so the feed never has to query the nodes themselves to find what to show.
+ */
+@Document(collection = "timeline")
+@TypeAlias("tl")
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({TimelineEntry.FIELD_ID, TimelineEntry.FIELD_KEY, TimelineEntry.FIELD_NODE_ID, TimelineEntry.FIELD_MODIFY_TIME,
+		TimelineEntry.FIELD_OWNER, TimelineEntry.FIELD_SENSITIVE, TimelineEntry.FIELD_FOREIGN})
+public class TimelineEntry {
+	public static final String FIELD_ID = "_id";
+
+	@Id
+	@Field(FIELD_ID)
+	private ObjectId id;
+
+	public static final String FIELD_KEY = "key";
+	@Field(FIELD_KEY)
+	private String key;
+
+	public static final String FIELD_NODE_ID = "nid";
+	@Field(FIELD_NODE_ID)
+	private ObjectId nodeId;
+
+	/* modify time of the node */
+	public static final String FIELD_MODIFY_TIME = "mtm";
+	@Field(FIELD_MODIFY_TIME)
+	private Date modifyTime;
+
+	/* owner of the node */
+	public static final String FIELD_OWNER = "own";
+	@Field(FIELD_OWNER)
+	private ObjectId owner;
+
+	/* true if node is marked sensitive (NSFW), otherwise null */
+	public static final String FIELD_SENSITIVE = "sens";
+	@Field(FIELD_SENSITIVE)
+	private Boolean sensitive;
+
+	/* true if node came from a foreign (ActivityPub) server, otherwise null */
+	public static final String FIELD_FOREIGN = "frn";
+	@Field(FIELD_FOREIGN)
+	private Boolean foreign;
+
+	@PersistenceConstructor
+	public TimelineEntry() {
+	}
+
+	// we don't annotate this because we have a custom getter.
+	// @JsonProperty(FIELD_ID)
+	public ObjectId getId() {
+		return id;
+	}
+
+	@JsonProperty(FIELD_ID)
+	public void setId(ObjectId id) {
+		this.id = id;
+	}
+
+	@JsonGetter(FIELD_ID)
+	public String jsonId() {
+		return id != null ? id.toHexString() : null;
+	}
+
+	@JsonProperty(FIELD_KEY)
+	public String getKey() {
+		return key;
+	}
+
+	@JsonProperty(FIELD_KEY)
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	@JsonProperty(FIELD_NODE_ID)
+	public ObjectId getNodeId() {
+		return nodeId;
+	}
+
+	@JsonProperty(FIELD_NODE_ID)
+	public void setNodeId(ObjectId nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	@JsonProperty(FIELD_MODIFY_TIME)
+	public Date getModifyTime() {
+		return modifyTime;
+	}
+
+	@JsonProperty(FIELD_MODIFY_TIME)
+	public void setModifyTime(Date modifyTime) {
+		this.modifyTime = modifyTime;
+	}
+
+	@JsonProperty(FIELD_OWNER)
+	public ObjectId getOwner() {
+		return owner;
+	}
+
+	@JsonProperty(FIELD_OWNER)
+	public void setOwner(ObjectId owner) {
+		this.owner = owner;
+	}
+
+	@JsonProperty(FIELD_SENSITIVE)
+	public Boolean getSensitive() {
+		return sensitive;
+	}
+
+	@JsonProperty(FIELD_SENSITIVE)
+	public void setSensitive(Boolean sensitive) {
+		this.sensitive = sensitive;
+	}
+
+	@JsonProperty(FIELD_FOREIGN)
+	public Boolean getForeign() {
+		return foreign;
+	}
+
+	@JsonProperty(FIELD_FOREIGN)
+	public void setForeign(Boolean foreign) {
+		this.foreign = foreign;
+	}
+}
@@ -7,6 +7,9 @@ public class NodeFeedRequest extends RequestBase {
 	//zero offset page of results (page=0 is first page)
 	private Integer page;
 
+	/* cursor from the previous page's response (NodeFeedResponse.nextCursor) when getting any page after the first */
+	private String cursor;
+
 	/* Note one of the other of these should be non-null, but not both */
 	private String nodeId;
 	private String feedUserName;
@@ -99,4 +102,12 @@ public class NodeFeedRequest extends RequestBase {
 	public void setLocalOnly(Boolean localOnly) {
 		this.localOnly = localOnly;
 	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
 }
@@ -7,6 +7,12 @@ public class NodeSearchRequest extends RequestBase {
 	/* Zero offset page number. First page is zero */
 	private int page;
 
+	/*
+	 * cursor from the response for the page before 'page' (NodeSearchResponse.nextCursor), which when
+	 * present is used to find the page instead of 'page'
+	 */
+	private String cursor;
+
 	/* ascending=asc, descending=desc */
 	private String sortDir;
 
@@ -120,4 +126,12 @@ public class NodeSearchRequest extends RequestBase {
 	public void setPage(int page) {
 		this.page = page;
 	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
 }
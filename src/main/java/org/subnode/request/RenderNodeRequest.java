@@ -16,6 +16,13 @@ public class RenderNodeRequest extends RequestBase {
 	 */
 	private int offset;
 
+	/*
+	 * cursor from the response for the previous page (RenderNodeResponse.nextCursor), which when present
+	 * is used to find the first child to render instead of skipping 'offset' children. 'offset' is still
+	 * required, because it's the logical ordinal of the first child.
+	 */
+	private String cursor;
+
 	/**
 	 * If this is 0, it has no effect. If it's 1 that means try to jump to the next
 	 * sibling of the current page root node, and if -1 then it tries to go to
@@ -100,4 +107,12 @@ public class RenderNodeRequest extends RequestBase {
 	public void setUpLevel(boolean upLevel) {
 		this.upLevel = upLevel;
 	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
 }
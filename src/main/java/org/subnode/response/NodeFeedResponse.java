@@ -9,6 +9,9 @@ public class NodeFeedResponse extends ResponseBase {
 
 	private Boolean endReached;
 
+	/* pass in NodeFeedRequest.cursor to get the next page */
+	private String nextCursor;
+
 	/* orderablility of children not set in these objects, all will be false */
 	private List<NodeInfo> searchResults;
 
@@ -27,4 +30,12 @@ public class NodeFeedResponse extends ResponseBase {
 	public void setEndReached(Boolean endReached) {
 		this.endReached = endReached;
 	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
 }
@@ -10,6 +10,9 @@ public class NodeSearchResponse extends ResponseBase {
 	/* orderablility of children not set in these objects, all will be false */
 	private List<NodeInfo> searchResults;
 
+	/* pass in NodeSearchRequest.cursor to get the next page. Null if results can't be paged by cursor */
+	private String nextCursor;
+
 	public List<NodeInfo> getSearchResults() {
 		return searchResults;
 	}
@@ -17,4 +20,12 @@ public class NodeSearchResponse extends ResponseBase {
 	public void setSearchResults(List<NodeInfo> searchResults) {
 		this.searchResults = searchResults;
 	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
 }
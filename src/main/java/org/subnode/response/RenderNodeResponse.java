@@ -16,6 +16,9 @@ public class RenderNodeResponse extends ResponseBase {
 	 * object.
 	 */
 	private boolean endReached;
+
+	/* pass in RenderNodeRequest.cursor to get the next page. Null if children can't be paged by cursor */
+	private String nextCursor;
 	
 	private String noDataResponse;
 
@@ -52,4 +55,12 @@ public class RenderNodeResponse extends ResponseBase {
     public void setBreadcrumbs(LinkedList<BreadcrumbInfo> breadcrumbs) {
         this.breadcrumbs = breadcrumbs;
     }
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
 }
@@ -16,6 +16,7 @@ import org.subnode.mail.OutboxMgr;
 import org.subnode.model.client.NodeProp;
 import org.subnode.model.client.PrincipalName;
 import org.subnode.mongo.MongoAuth;
+import org.subnode.mongo.MongoAuthCache;
 import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.MongoThreadLocal;
@@ -51,6 +52,9 @@ public class AclService {
 	@Autowired
 	private MongoAuth auth;
 
+	@Autowired
+	private MongoAuthCache authCache;
+
 	@Autowired
 	private UserManagerService userManagerService;
 
@@ -250,6 +254,7 @@ public class AclService {
 			acl.put(mapKey, ac);
 			node.setAc(acl);
 			update.save(session, node);
+			authCache.invalidateSubGraph(node.getPath());
 
 			// if (!principal.equalsIgnoreCase(PrincipalName.PUBLIC.s())) {
 			// SubNode fromUserNode = read.getNode(session, node.getOwner());
@@ -329,6 +334,7 @@ public class AclService {
 			}
 
 			update.save(session, node);
+			authCache.invalidateSubGraph(node.getPath());
 		}
 	}
 
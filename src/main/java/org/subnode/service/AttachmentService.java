@@ -14,13 +14,16 @@ import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
 import com.mongodb.client.gridfs.GridFSFindIterable;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import org.apache.commons.io.FilenameUtils;
@@ -478,8 +481,8 @@ public class AttachmentService {
 	 * node can be passed in -or- nodeId. If node is passed nodeId can be null.
 	 */
 	public void getBinary(MongoSession session, String binSuffix, SubNode node, String nodeId, final boolean download,
-			final HttpServletResponse response) {
-		BufferedInputStream inStream = null;
+			final HttpServletRequest request, final HttpServletResponse response) {
+		InputStream inStream = null;
 		BufferedOutputStream outStream = null;
 
 		try {
@@ -495,7 +498,8 @@ public class AttachmentService {
 				throw ExUtil.wrapEx("node not found.");
 			}
 
-			final boolean ipfs = StringUtils.isNotEmpty(node.getStrProp(NodeProp.IPFS_LINK.s() + binSuffix));
+			final String ipfsHash = node.getStrProp(NodeProp.IPFS_LINK.s() + binSuffix);
+			final boolean ipfs = StringUtils.isNotEmpty(ipfsHash);
 
 			// Everyone's account node can publish it's attachment and is assumed to be an
 			// avatar.
@@ -518,50 +522,95 @@ public class AttachmentService {
 				fileName = "filename";
 			}
 
-			final InputStream is = getStream(session, binSuffix, node, allowAuth);
-			final long size = node.getIntProp(NodeProp.BIN_SIZE.s() + binSuffix);
-			// log.debug("Getting Binary for nodeId=" + nodeId + " size=" + size);
+			// This is max allowed caching time, and is 1 year in seconds
+			response.setHeader("Cache-Control", "public, max-age=31536000");
 
-			response.setContentType(mimeTypeProp);
+			/*
+			 * The data of an attachment never changes in place. An IPFS CID is the hash of the content itself,
+			 * and a new upload is always stored under a new GridFS ID, so either one is a strong ETag, and a
+			 * browser that has it already gets a 304 without us even opening the stream.
+			 */
+			final String binId = node.getStrProp(NodeProp.BIN.s() + binSuffix);
+			final String eTag = ipfs ? "\"" + ipfsHash + "\"" : (binId != null ? "\"" + binId + "\"" : null);
+			if (eTag != null) {
+				response.setHeader(HttpHeaders.ETAG, eTag);
+				if (request != null && eTagMatches(request.getHeader(HttpHeaders.IF_NONE_MATCH), eTag)) {
+					response.setStatus(HttpStatus.NOT_MODIFIED.value());
+					return;
+				}
+			}
 
 			/*
-			 * we gracefully tolerate the case where no size is available but normally it will be there.
-			 * 
-			 * todo-2: when we detect this and then stream back some data should be just go ahead and SET the
-			 * correct 'size' on the node at that point?
+			 * The size comes from the stored data rather than the BIN_SIZE property, which can be missing, and
+			 * used to be wrong often enough for IPFS attachments that browsers failed them with
+			 * ERR_CONTENT_LENGTH_MISMATCH. Negative if we can't tell, in which case we just stream it all.
 			 */
-			if (size > 0) {
-				/*
-				 * todo-2: I'm getting the "disappearing image" (from the browser) network problem related to size
-				 * (content length), but not calling 'contentLength()' below is a workaround.
-				 * 
-				 * You get this error if you just wait about 30s to 1 minute, and maybe scroll out of view and back
-				 * into view the images. What happens is the image loads just fine but then some background thread
-				 * in Chrome looks at content lengths and finds some thing off somehoe and decides to make the image
-				 * just disappear and show a broken link icon instead.
-				 * 
-				 * SO... I keep having to come back and remove the setContentLength every time I think this problem
-				 * is resolved and then later find out it isn't. Somehow this is *currently* only happening for
-				 * images that are served up from IPFS storage.
-				 * 
-				 * Chrome shows this: Failed to load resource: net::ERR_CONTENT_LENGTH_MISMATCH
-				 */
-				if (!ipfs) {
-					response.setContentLength((int) size);
+			GridFSFile gridFile = null;
+			long size = -1;
+			if (ipfs) {
+				size = ipfsService.getFileSize(ipfsHash);
+			} else {
+				if (binId != null) {
+					gridFile = grid.findOne(new Query(Criteria.where("_id").is(binId)));
+				}
+				if (gridFile == null) {
+					throw ExUtil.wrapEx("gridfs ID not found");
 				}
+				size = gridFile.getLength();
 			}
+			// log.debug("Getting Binary for nodeId=" + nodeId + " size=" + size);
 
+			response.setContentType(mimeTypeProp);
 			if (download) {
 				response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
 			}
 
-			// This is max allowed caching time, and is 1 year in seconds
-			response.setHeader("Cache-Control", "public, max-age=31536000");
+			long start = 0;
+			long length = size;
+			if (size >= 0) {
+				response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
 
-			inStream = new BufferedInputStream(is);
-			outStream = new BufferedOutputStream(response.getOutputStream());
+				HttpRange range = getRange(request, eTag);
+				if (range != null) {
+					try {
+						start = range.getRangeStart(size);
+						length = range.getRangeEnd(size) - start + 1;
+					} catch (IllegalArgumentException e) {
+						response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+						response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+						return;
+					}
+					response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+					response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (start + length - 1) + "/" + size);
+				}
+				response.setContentLengthLong(length);
+			}
 
-			IOUtils.copy(inStream, outStream);
+			if (ipfs) {
+				inStream = ipfsService.getStream(session, ipfsHash, start);
+			} else {
+				/*
+				 * Skipping on a GridFS stream moves it straight to the chunk holding 'start', so seeking in media
+				 * never reads any of the chunks before it from Mongo.
+				 */
+				GridFSDownloadStream gridStream = gridFsBucket.openDownloadStream(gridFile.getObjectId());
+				inStream = gridStream;
+				long skipped = 0;
+				while (skipped < start) {
+					long count = gridStream.skip(start - skipped);
+					if (count <= 0) {
+						throw new IOException("Unable to skip to " + start);
+					}
+					skipped += count;
+				}
+			}
+
+			outStream = new BufferedOutputStream(response.getOutputStream());
+			if (length >= 0) {
+				IOUtils.copyLarge(inStream, outStream, 0, length);
+			} else {
+				IOUtils.copy(inStream, outStream);
+			}
 			outStream.flush();
 		} catch (final Exception e) {
 			log.error(e.getMessage());
@@ -570,6 +619,49 @@ public class AttachmentService {
 		}
 	}
 
+	/* True if the If-None-Match header 'ifNoneMatch' (which can be null) matches 'eTag' */
+	private boolean eTagMatches(String ifNoneMatch, String eTag) {
+		if (ifNoneMatch == null)
+			return false;
+
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// weak comparison is what If-None-Match calls for
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(eTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the byte range asked for in 'request', or null to send the whole thing. We only serve single
+	 * ranges (which is all media players ask for), and ignore any range that isn't for our current
+	 * 'eTag' (If-Range) or that we can't parse.
+	 */
+	private HttpRange getRange(HttpServletRequest request, String eTag) {
+		if (request == null)
+			return null;
+
+		String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+		if (rangeHeader == null)
+			return null;
+
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange != null && !ifRange.trim().equals(eTag))
+			return null;
+
+		try {
+			List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+			return ranges.size() == 1 ? ranges.get(0) : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Downloads a file by name that is expected to be in the Admin Data Folder
 	 */
@@ -686,25 +778,40 @@ public class AttachmentService {
 				fileName = "filename";
 			}
 
-			// long startTime = System.currentTimeMillis();
-			final InputStream is = getStream(session, "", node, false);
+			Resource resource = null;
+			String binId = node.getStrProp(NodeProp.BIN.s());
+			if (node.getStrProp(NodeProp.IPFS_LINK.s()) == null && binId != null) {
+				/*
+				 * The region is written by skipping the GridFS stream to its start, which goes straight to the
+				 * chunk holding it, so only the chunks in the region are read from Mongo.
+				 */
+				GridFSFile gridFile = grid.findOne(new Query(Criteria.where("_id").is(binId)));
+				if (gridFile == null) {
+					throw new RuntimeEx("gridfs ID not found");
+				}
+				resource = new GridFsResource(gridFile, gridFsBucket.openDownloadStream(gridFile.getObjectId()));
+			} else {
+				// long startTime = System.currentTimeMillis();
+				final InputStream is = getStream(session, "", node, false);
 
-			// if (session.isAdmin() && Const.adminDebugStreaming) {
-			// long duration = System.currentTimeMillis() - startTime;
-			// log.debug("getStream took " + String.valueOf(duration) + "ms");
-			// }
-			// startTime = System.currentTimeMillis();
+				// if (session.isAdmin() && Const.adminDebugStreaming) {
+				// long duration = System.currentTimeMillis() - startTime;
+				// log.debug("getStream took " + String.valueOf(duration) + "ms");
+				// }
+				// startTime = System.currentTimeMillis();
 
-			long size = node.getIntProp(NodeProp.BIN_SIZE.s());
+				long size = node.getIntProp(NodeProp.BIN_SIZE.s());
 
-			if (size == 0) {
-				throw new RuntimeEx("Can't stream video without the file size. BIN_SIZE property missing");
-			}
+				if (size == 0) {
+					throw new RuntimeEx("Can't stream video without the file size. BIN_SIZE property missing");
+				}
 
-			inStream = new BufferedInputStream(is);
-			byte[] bytes = IOUtils.toByteArray(inStream);
+				inStream = new BufferedInputStream(is);
+				byte[] bytes = IOUtils.toByteArray(inStream);
+				resource = new ByteArrayResource(bytes);
+			}
 
-			ResourceRegion region = resourceRegion(new ByteArrayResource(bytes), headers);
+			ResourceRegion region = resourceRegion(resource, headers);
 			ret = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).contentType(MediaType.valueOf(mimeTypeProp)).body(region);
 
 		} catch (final Exception e) {
@@ -721,7 +828,7 @@ public class AttachmentService {
 		final long chunkSize = 500000L;
 		long contentLength = resource.contentLength();
 
-		HttpRange httpRange = headers.getRange().stream().findFirst().get();
+		HttpRange httpRange = headers.getRange().stream().findFirst().orElse(null);
 		if (httpRange != null) {
 			long start = httpRange.getRangeStart(contentLength);
 			long end = httpRange.getRangeEnd(contentLength);
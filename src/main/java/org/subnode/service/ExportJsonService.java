@@ -88,7 +88,7 @@ public class ExportJsonService {
 			byte[] newLine = "\n,\n".getBytes(StandardCharsets.UTF_8);
 
 			Query query = new Query();
-			Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(pathPrefix));
+			Criteria criteria = util.subGraphCriteria(pathPrefix);
 			query.addCriteria(criteria);
 
 			Iterable<SubNode> iter = util.find(query);
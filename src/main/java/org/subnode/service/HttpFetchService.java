@@ -0,0 +1,155 @@
+package org.subnode.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.subnode.util.BoundedCache;
+import org.subnode.util.DateUtil;
+import reactor.core.publisher.Mono;
+
+/**
+ * Conditional HTTP GETs for things we poll from foreign servers over and over (ActivityPub actors
+ * and outboxes, RSS feeds). The ETag and Last-Modified of each response are remembered along with
+ * the object parsed from it, and sent back as If-None-Match and If-Modified-Since on the next GET of
+ * the same url, so when the server says nothing changed (304) we reuse the parsed object rather than
+ * downloading and parsing the body again.
+ */
+@Component
+public class HttpFetchService {
+	private static final int MAX_CACHE_SIZE = 5000;
+	private static final long CACHE_TTL = 24 * DateUtil.HOUR_MILLIS;
+
+	@Autowired
+	@Qualifier("fedWebClient")
+	private WebClient fedWebClient;
+
+	/* Parses the body of a (200) response */
+	public interface BodyParser<T> {
+		T parse(InputStream is) throws IOException;
+	}
+
+	private static class Validated {
+		final String eTag;
+		final String lastModified;
+		final Object parsed;
+
+		Validated(String eTag, String lastModified, Object parsed) {
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.parsed = parsed;
+		}
+	}
+
+	/* Keyed by Accept header and url, since different media types of the same url are different responses */
+	private final BoundedCache<String, Validated> validatedByUrl =
+			new BoundedCache<>("HTTP Validators by URL", MAX_CACHE_SIZE, CACHE_TTL);
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong conditionalCount = new AtomicLong();
+	private final AtomicLong notModifiedCount = new AtomicLong();
+	private final AtomicLong fullCount = new AtomicLong();
+
+	/* What came back from a GET, before the body is parsed */
+	private static class Fetched {
+		final boolean notModified;
+		final byte[] body;
+		final String eTag;
+		final String lastModified;
+
+		Fetched(boolean notModified, byte[] body, String eTag, String lastModified) {
+			this.notModified = notModified;
+			this.body = body;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/*
+	 * GETs 'url' with 'headers' (which can be null), returning the object 'parser' makes from the body,
+	 * or the object it made last time if the server says the content hasn't changed. Error responses are
+	 * thrown as WebClientResponseException.
+	 *
+	 * The body is parsed on the calling thread, after the response is in, so parsing never ties up the
+	 * HTTP client's threads.
+	 *
+	 * This blocks the calling thread until the response is in, on purpose: every caller (the
+	 * ActPubRefresher and ActPubInbox workers, the RSS refresh pool) uses what it gets back for the next
+	 * GET and for Mongo writes, which are blocking anyway, and runs on a fixed size pool of its own, so
+	 * the number of threads waiting here is bounded by those pools rather than by how many requests are
+	 * outstanding. Posts to foreign inboxes are the calls that don't have that bound, which is why
+	 * ActPubUtil.securePost returns a Mono instead.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(String url, HttpHeaders headers, BodyParser<T> parser) throws IOException {
+		String key = (headers != null ? headers.getFirst(HttpHeaders.ACCEPT) : null) + " " + url;
+		Validated cached = validatedByUrl.get(key);
+		requestCount.incrementAndGet();
+
+		Fetched fetched = fedWebClient.get().uri(URI.create(url)).headers(h -> {
+			if (headers != null) {
+				h.putAll(headers);
+			}
+			if (cached != null) {
+				conditionalCount.incrementAndGet();
+				if (cached.eTag != null) {
+					h.set(HttpHeaders.IF_NONE_MATCH, cached.eTag);
+				}
+				if (cached.lastModified != null) {
+					h.set(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+				}
+			}
+		}).exchangeToMono(response -> {
+			if (cached != null && response.statusCode() == HttpStatus.NOT_MODIFIED) {
+				return response.releaseBody().thenReturn(new Fetched(true, null, null, null));
+			}
+			if (response.statusCode().isError()) {
+				return response.createException().flatMap(Mono::error);
+			}
+
+			String eTag = response.headers().asHttpHeaders().getFirst(HttpHeaders.ETAG);
+			String lastModified = response.headers().asHttpHeaders().getFirst(HttpHeaders.LAST_MODIFIED);
+			return response.bodyToMono(byte[].class).defaultIfEmpty(new byte[0])
+					.map(body -> new Fetched(false, body, eTag, lastModified));
+		}).block();
+
+		if (fetched.notModified) {
+			notModifiedCount.incrementAndGet();
+			// put it back in so it gets a new expire time
+			validatedByUrl.put(key, cached);
+			return (T) cached.parsed;
+		}
+
+		fullCount.incrementAndGet();
+		T parsed = parser.parse(new ByteArrayInputStream(fetched.body));
+
+		if (parsed != null && (fetched.eTag != null || fetched.lastModified != null)) {
+			validatedByUrl.put(key, new Validated(fetched.eTag, fetched.lastModified, parsed));
+		} else {
+			validatedByUrl.remove(key);
+		}
+		return parsed;
+	}
+
+	public String getStatsReport() {
+		long conditional = conditionalCount.get();
+		long notModified = notModifiedCount.get();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nHTTP Fetch Stats:\n");
+		sb.append("Requests: " + requestCount.get() + "\n");
+		sb.append("Conditional Requests: " + conditional + "\n");
+		sb.append("Not Modified (304): " + notModified + "\n");
+		sb.append("Full Responses: " + fullCount.get() + "\n");
+		sb.append("304 Rate of Conditional Requests: " + (conditional > 0 ? (100 * notModified / conditional) : 0) + "%\n");
+		sb.append(validatedByUrl.getStatsReport());
+		return sb.toString();
+	}
+}
@@ -28,17 +28,20 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
 import org.subnode.config.AppProp;
 import org.subnode.config.SpringContextUtil;
 import org.subnode.exception.base.RuntimeEx;
@@ -61,8 +64,10 @@ import org.subnode.request.LoadNodeFromIpfsRequest;
 import org.subnode.request.PublishNodeToIpfsRequest;
 import org.subnode.response.LoadNodeFromIpfsResponse;
 import org.subnode.response.PublishNodeToIpfsResponse;
+import org.subnode.util.BoundedCache;
 import org.subnode.util.Cast;
 import org.subnode.util.Const;
+import org.subnode.util.DateUtil;
 import org.subnode.util.ExUtil;
 import org.subnode.util.LimitedInputStreamEx;
 import org.subnode.util.StreamUtil;
@@ -97,12 +102,23 @@ public class IPFSService {
     public static String ENCODING_PARAM_NAME = "encoding";
 
     /*
+     * The API calls go thru the shared non-blocking client, except for uploads of files, which are
+     * streamed from an InputStream as multipart form data, and so stay on this.
+     *
      * RestTempalte is thread-safe and reusable, and has no state, so we need only
      * one final static instance ever
      */
     private static final RestTemplate restTemplate = new RestTemplate(Util.getClientHttpRequestFactory());
     private static final ObjectMapper mapper = new ObjectMapper();
 
+    /* File sizes by CID, for serving IPFS attachments with a Content-Length (see getFileSize) */
+    private final BoundedCache<String, Long> fileSizeByCid =
+            new BoundedCache<>("IPFS File Sizes by CID", 10000, 24 * DateUtil.HOUR_MILLIS);
+
+    @Autowired
+    @Qualifier("ipfsWebClient")
+    private WebClient ipfsWebClient;
+
     @Autowired
     private AdminRun arun;
 
@@ -208,10 +224,10 @@ public class IPFSService {
         String ret = null;
         try {
             String url = API_CAT + "?arg=" + hash;
-            ResponseEntity<byte[]> result = restTemplate.getForEntity(new URI(url), byte[].class);
-            ret = new String(result.getBody(), "UTF-8");
+            byte[] result = ipfsWebClient.get().uri(new URI(url)).retrieve().bodyToMono(byte[].class).block();
+            ret = new String(result, "UTF-8");
         } catch (Exception e) {
-            // log.error("Failed in restTemplate.getForEntity", e);
+            // log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -284,7 +300,7 @@ public class IPFSService {
             String url = API_OBJECT + "/get?arg=" + hash + "&" + ENCODING_PARAM_NAME + "=" + encoding;
             log.debug("REQ: " + url);
 
-            ResponseEntity<String> result = restTemplate.getForEntity(new URI(url), String.class);
+            ResponseEntity<String> result = callApi(HttpMethod.GET, new URI(url));
             MediaType contentType = result.getHeaders().getContentType();
 
             // log.debug("RAW RESULT: " + result.getBody());
@@ -298,7 +314,7 @@ public class IPFSService {
             }
 
         } catch (Exception e) {
-            log.error("Failed in restTemplate.getForEntity", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -312,7 +328,7 @@ public class IPFSService {
         try {
             String url = API_OBJECT + "/get?arg=" + hash + "&" + ENCODING_PARAM_NAME + "=" + encoding;
 
-            ResponseEntity<String> result = restTemplate.getForEntity(new URI(url), String.class);
+            ResponseEntity<String> result = callApi(HttpMethod.GET, new URI(url));
             MediaType contentType = result.getHeaders().getContentType();
 
             if (MediaType.APPLICATION_JSON.equals(contentType)) {
@@ -321,7 +337,7 @@ public class IPFSService {
                 log.debug("RAW BODY: " + result.getBody());
             }
         } catch (Exception e) {
-            log.error("Failed in restTemplate.getForEntity", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -333,11 +349,11 @@ public class IPFSService {
         String ret = null;
         try {
             String url = API_DAG + "/get?arg=" + hash;
-            ResponseEntity<String> result = restTemplate.getForEntity(new URI(url), String.class);
+            ResponseEntity<String> result = callApi(HttpMethod.GET, new URI(url));
             ret = result.getBody();
             log.debug("RET: " + ret);
         } catch (Exception e) {
-            log.error("Failed in restTemplate.getForEntity", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -468,11 +484,7 @@ public class IPFSService {
         try {
             String url = API_NAME + "/publish?arg=" + cid + "&=" + key;
 
-            HttpHeaders headers = new HttpHeaders();
-            MultiValueMap<String, Object> bodyMap = new LinkedMultiValueMap<>();
-            HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(bodyMap, headers);
-
-            ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.POST, requestEntity, String.class);
+            ResponseEntity<String> response = callApi(HttpMethod.POST, url);
             ret = mapper.readValue(response.getBody(), new TypeReference<Map<String, Object>>() {
             });
 
@@ -482,7 +494,7 @@ public class IPFSService {
             // "Value" : "/ipfs/bafyreibr77jhjmkltu7zcnyqwtx46fgacbjc7ayejcfp7yazxc6xt476xe"
             // }
         } catch (Exception e) {
-            log.error("Failed in restTemplate.exchange", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -493,16 +505,12 @@ public class IPFSService {
         try {
             String url = API_NAME + "/resolve?arg=" + name;
 
-            HttpHeaders headers = new HttpHeaders();
-            MultiValueMap<String, Object> bodyMap = new LinkedMultiValueMap<>();
-            HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(bodyMap, headers);
-
-            ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.POST, requestEntity, String.class);
+            ResponseEntity<String> response = callApi(HttpMethod.POST, url);
             ret = mapper.readValue(response.getBody(), new TypeReference<Map<String, Object>>() {
             });
 
         } catch (Exception e) {
-            log.error("Failed in restTemplate.exchange", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -574,18 +582,13 @@ public class IPFSService {
     public MerkleNode postToGetMerkleNode(String endpoint) {
         MerkleNode ret = null;
         try {
-            HttpHeaders headers = new HttpHeaders();
-            MultiValueMap<String, Object> bodyMap = new LinkedMultiValueMap<>();
-            HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(bodyMap, headers);
-
-            ResponseEntity<String> response = restTemplate.exchange(endpoint, HttpMethod.POST, requestEntity,
-                    String.class);
+            ResponseEntity<String> response = callApi(HttpMethod.POST, endpoint);
             ret = mapper.readValue(response.getBody(), new TypeReference<MerkleNode>() {
             });
             // log.debug("new Object: " + XString.prettyPrint(ret));
 
         } catch (Exception e) {
-            log.error("Failed in restTemplate.exchange", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -595,6 +598,27 @@ public class IPFSService {
         return (IPFSDirStat) postForJsonReply(url, IPFSDirStat.class);
     }
 
+    /*
+     * Returns the size of the file 'cid' points to, or -1 if IPFS can't tell us. A CID is the hash of the
+     * content so the size of one never changes, and we cache it.
+     */
+    public long getFileSize(String cid) {
+        Long size = fileSizeByCid.get(cid);
+        if (size == null) {
+            try {
+                IPFSDirStat stat = pathStat("/ipfs/" + cid);
+                if (stat == null || stat.getSize() == null)
+                    return -1;
+                size = stat.getSize().longValue();
+                fileSizeByCid.put(cid, size);
+            } catch (Exception e) {
+                log.debug("Unable to get size of " + cid + ": " + e.getMessage());
+                return -1;
+            }
+        }
+        return size;
+    }
+
     public IPFSObjectStat objectStat(String cid, boolean humanReadable) {
         String url = API_OBJECT + "/stat?arg=" + cid;
         if (humanReadable) {
@@ -637,6 +661,14 @@ public class IPFSService {
     }
 
     public InputStream getStream(MongoSession session, String hash) {
+        return getStream(session, hash, 0);
+    }
+
+    /*
+     * Gets the stream of 'hash' starting 'start' bytes in. The gateway is asked for just the bytes from
+     * 'start' on, and if it sends the whole thing anyway we skip up to 'start' here.
+     */
+    public InputStream getStream(MongoSession session, String hash, long start) {
         String sourceUrl = appProp.getIPFSGatewayHostAndPort() + "/ipfs/" + hash;
 
         try {
@@ -650,8 +682,15 @@ public class IPFSService {
             HttpGet request = new HttpGet(sourceUrl);
 
             request.addHeader("User-Agent", Const.FAKE_USER_AGENT);
+            if (start > 0) {
+                request.addHeader(HttpHeaders.RANGE, "bytes=" + start + "-");
+            }
             HttpResponse response = client.execute(request);
             InputStream is = response.getEntity().getContent();
+
+            if (start > 0 && response.getStatusLine().getStatusCode() != HttpStatus.PARTIAL_CONTENT.value()) {
+                IOUtils.skipFully(is, start);
+            }
             return is;
         } catch (Exception e) {
             log.error("getStream failed: sourceUrl", e);
@@ -708,12 +747,24 @@ public class IPFSService {
         }
     }
 
+    /*
+     * Calls the IPFS API with no request body, returning the response with its body as a String. This
+     * blocks, because the callers are request handlers and import/export runs that need the answer
+     * before they can go on, and the daemon is our own local one rather than a foreign server.
+     */
+    private ResponseEntity<String> callApi(HttpMethod method, URI uri) {
+        return ipfsWebClient.method(method).uri(uri).retrieve().toEntity(String.class).block();
+    }
+
+    private ResponseEntity<String> callApi(HttpMethod method, String url) {
+        return ipfsWebClient.method(method).uri(url).retrieve().toEntity(String.class).block();
+    }
+
     public final Object postForJsonReply(String url, Class<?> clazz) {
         Object ret = null;
         try {
             // log.debug("post: " + url);
-            HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(null, null);
-            ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.POST, requestEntity, String.class);
+            ResponseEntity<String> response = callApi(HttpMethod.POST, url);
 
             // MediaType contentType = response.getHeaders().getContentType();
             // Warning: IPFS is inconsistent. Sometimes they return plain/text and sometimes
@@ -732,7 +783,7 @@ public class IPFSService {
             }
 
         } catch (Exception e) {
-            log.error("Failed in restTemplate.exchange", e);
+            log.error("Failed in IPFS API call", e);
         }
         return ret;
     }
@@ -303,8 +303,7 @@ public class NodeMoveService {
 			 * ordinal will change.
 			 */
 			if (nodeParent.getId().compareTo(parentToPasteInto.getId()) != 0) {
-				changePathOfSubGraph(session, node, parentPath);
-				node.setPath(parentPath + "/" + node.getLastPathPart());
+				update.moveSubGraph(session, node, parentPath);
 			}
 
 			node.setOrdinal(curTargetOrdinal);
@@ -315,24 +314,6 @@ public class NodeMoveService {
 		update.saveSession(session);
 	}
 
-	private void changePathOfSubGraph(MongoSession session, SubNode graphRoot, String newPathPrefix) {
-		String originalPath = graphRoot.getPath();
-		log.debug("originalPath (graphRoot.path): " + originalPath);
-		int originalParentPathLen = graphRoot.getParentPath().length();
-
-		for (SubNode node : read.getSubGraph(session, graphRoot, null, 0)) {
-			if (!node.getPath().startsWith(originalPath)) {
-				throw new RuntimeEx("Algorighm failure: path " + node.getPath() + " should have started with " + originalPath);
-			}
-			log.debug("PROCESSING MOVE: oldPath: " + node.getPath());
-
-			String newPath = newPathPrefix + "/" + node.getPath().substring(originalParentPathLen + 1);
-			log.debug("    newPath: " + newPath);
-			node.setPath(newPath);
-			node.setDisableParentCheck(true);
-		}
-	}
-
 	public SelectAllNodesResponse selectAllNodes(MongoSession session, SelectAllNodesRequest req) {
 		SelectAllNodesResponse res = new SelectAllNodesResponse();
 		session = MongoThreadLocal.ensure(session);
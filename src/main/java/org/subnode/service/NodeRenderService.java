@@ -22,10 +22,12 @@ import org.subnode.model.client.ConstantInt;
 import org.subnode.model.client.ErrorType;
 import org.subnode.model.client.NodeMetaIntf;
 import org.subnode.model.client.NodeProp;
+import org.subnode.model.client.PrivilegeType;
 import org.subnode.mongo.MongoAuth;
 import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.MongoThreadLocal;
+import org.subnode.mongo.PageCursor;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.request.GetNodeMetaInfoRequest;
 import org.subnode.request.InitNodeEditRequest;
@@ -276,15 +278,32 @@ public class NodeRenderService {
 
 		String orderBy = node.getStrProp(NodeProp.ORDER_BY.s());
 		Sort sort = null;
+		PageCursor cursor = null;
 
 		if (!StringUtils.isEmpty(orderBy)) {
 			sort = parseOrderByToSort(orderBy);
 		} else {
 			// log.debug("processRenderNode querying by ordinal.");
 			sort = Sort.by(Sort.Direction.ASC, SubNode.FIELD_ORDINAL);
+
+			/*
+			 * When paging forward we're given the cursor of the last child on the previous page, so we can
+			 * query from that child on rather than skipping over 'offset' children
+			 */
+			if (scanToNode == null && offset > 0) {
+				cursor = PageCursor.parse(req.getCursor());
+				if (cursor != null && !cursor.matches(SubNode.FIELD_ORDINAL, true)) {
+					cursor = null;
+				}
+			}
 		}
 
-		Iterable<SubNode> nodeIter = read.getChildren(session, node, sort, queryLimit, offset);
+		Iterable<SubNode> nodeIter = null;
+		if (cursor != null) {
+			nodeIter = read.getChildren(session, node, sort, limit + 2, 0, cursor.criteria(null));
+		} else {
+			nodeIter = read.getChildren(session, node, sort, queryLimit, offset);
+		}
 		Iterator<SubNode> iterator = nodeIter.iterator();
 		int idx = offset;
 
@@ -308,6 +327,7 @@ public class NodeRenderService {
 
 		List<SubNode> slidingWindow = null;
 		NodeInfo ninfo = null;
+		List<SubNode> pageNodes = new LinkedList<>();
 
 		/*
 		 * Main loop to keep reading nodes from the database until we have enough to render the page
@@ -384,6 +404,7 @@ public class NodeRenderService {
 			/* if we get here we're accumulating rows */
 			ninfo = processRenderNode(session, req, res, n, null, idx - 1L, level + 1, limit);
 			nodeInfo.getChildren().add(ninfo);
+			pageNodes.add(n);
 
 			if (nodeInfo.getChildren().size() >= limit) {
 				if (!iterator.hasNext()) {
@@ -428,6 +449,11 @@ public class NodeRenderService {
 
 		// log.debug("Setting endReached="+endReached);
 		res.setEndReached(endReached);
+
+		// children can only be paged by cursor when they're in ordinal order
+		if (!endReached && StringUtils.isEmpty(orderBy)) {
+			res.setNextCursor(PageCursor.create(cursor, pageNodes, SubNode.FIELD_ORDINAL, true));
+		}
 		return nodeInfo;
 	}
 
@@ -581,11 +607,15 @@ public class NodeRenderService {
 		session = MongoThreadLocal.ensure(session);
 
 		try {
-			if (node != null) {
-				node = read.getParent(session, node);
+			if (node == null) {
+				return;
 			}
 
-			while (node != null) {
+			// all ancestors are loaded in one query, and the loop below stops at the first one we can't read
+			for (SubNode ancestor : read.getAncestors(session, node)) {
+				node = ancestor;
+				auth.auth(session, node, PrivilegeType.READ);
+
 				BreadcrumbInfo bci = new BreadcrumbInfo();
 				if (list.size() >= 5) {
 					// This toplevel one is shows up on the client as "..." indicating more parents
@@ -613,8 +643,6 @@ public class NodeRenderService {
 				bci.setId(node.getId().toHexString());
 				bci.setType(node.getType());
 				list.add(0, bci);
-
-				node = read.getParent(session, node);
 			}
 		} catch (Exception e) {
 			/*
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.StringTokenizer;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,7 +21,6 @@ import org.subnode.model.client.Bookmark;
 import org.subnode.model.client.ConstantInt;
 import org.subnode.model.client.NodeProp;
 import org.subnode.model.client.NodeType;
-import org.subnode.model.client.PrincipalName;
 import org.subnode.model.client.PrivilegeType;
 import org.subnode.mongo.AdminRun;
 import org.subnode.mongo.MongoAuth;
@@ -30,6 +28,7 @@ import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.MongoThreadLocal;
 import org.subnode.mongo.MongoUtil;
+import org.subnode.mongo.PageCursor;
 import org.subnode.mongo.model.AccessControl;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.request.GetBookmarksRequest;
@@ -41,7 +40,6 @@ import org.subnode.response.GetNodeStatsResponse;
 import org.subnode.response.GetSharedNodesResponse;
 import org.subnode.response.NodeSearchResponse;
 import org.subnode.util.Convert;
-import org.subnode.util.EnglishDictionary;
 import org.subnode.util.ExUtil;
 import org.subnode.util.ThreadLocals;
 import org.subnode.util.XString;
@@ -68,9 +66,6 @@ public class NodeSearchService {
 	@Autowired
 	private Convert convert;
 
-	@Autowired
-	private EnglishDictionary englishDictionary;
-
 	@Autowired
 	private MongoTemplate ops;
 
@@ -89,12 +84,8 @@ public class NodeSearchService {
 	@Autowired
 	private AdminRun arun;
 
-	public static Object trendingFeedInfoLock = new Object();
-	public static GetNodeStatsResponse trendingFeedInfo;
-
-	static final String SENTENCE_DELIMS = ".!?";
-	// Warning: Do not add '#' or '@', those are special (see below)
-	static final String WORD_DELIMS = " \n\r\t,-;:\"'`()*{}[]<>=\\/.!?&“";
+	@Autowired
+	private TrendingService trendingService;
 
 	static final int TRENDING_LIMIT = 10000;
 
@@ -223,9 +214,13 @@ public class NodeSearchService {
 					ThreadLocals.getSessionContext().setTimelinePath(searchRoot.getPath());
 				}
 
+				PageCursor cursor = req.getPage() > 0 ? PageCursor.parse(req.getCursor()) : null;
+				List<SubNode> pageNodes = new LinkedList<>();
+
 				for (SubNode node : read.searchSubGraph(session, searchRoot, req.getSearchProp(), searchText, req.getSortField(),
-						ConstantInt.ROWS_PER_PAGE.val(), ConstantInt.ROWS_PER_PAGE.val() * req.getPage(), req.getFuzzy(),
+						ConstantInt.ROWS_PER_PAGE.val(), ConstantInt.ROWS_PER_PAGE.val() * req.getPage(), cursor, req.getFuzzy(),
 						req.getCaseSensitive(), req.getTimeRangeType())) {
+					pageNodes.add(node);
 					try {
 						auth.auth(session, node, PrivilegeType.READ);
 						NodeInfo info = convert.convertToNodeInfo(ThreadLocals.getSessionContext(), session, node, true, false,
@@ -234,6 +229,12 @@ public class NodeSearchService {
 					} catch (Exception e) {
 					}
 				}
+
+				// results are only pageable by cursor when they're sorted
+				if (!StringUtils.isEmpty(req.getSortField())) {
+					res.setNextCursor(PageCursor.create(cursor, pageNodes, req.getSortField(),
+							read.isSearchSortAsc(req.getSortField(), req.getTimeRangeType())));
+				}
 			}
 		}
 
@@ -308,18 +309,6 @@ public class NodeSearchService {
 		return res;
 	}
 
-	// replace #<span> with " #". This is a quick and dirty way to fix the way
-	// Mastodon mangles hashes in the text.
-	public String fixMastodonMangles(String content) {
-		if (content == null)
-			return null;
-		content = content.replace("#\\u003cspan\\u003e", " #");
-		content = content.replace("#<span>", " #");
-		content = content.replace("\\u003c", " ");
-		content = content.replace("\\u003e", " ");
-		return content;
-	}
-
 	public void getBookmarks(MongoSession session, GetBookmarksRequest req, GetBookmarksResponse res) {
 		List<Bookmark> bookmarks = new LinkedList<Bookmark>();
 
@@ -343,18 +332,16 @@ public class NodeSearchService {
 	public void getNodeStats(MongoSession session, GetNodeStatsRequest req, GetNodeStatsResponse res) {
 
 		/*
-		 * If this is the 'feed' being queried, then get the data from trendingFeedInfo (the cache), or else
-		 * cache it
+		 * The Feed tab's trending data is maintained as nodes are saved (see TrendingService), so for the
+		 * feed we just read the current top lists
 		 */
-		synchronized (NodeSearchService.trendingFeedInfoLock) {
-			if (req.isFeed() && NodeSearchService.trendingFeedInfo != null) {
-				res.setStats(NodeSearchService.trendingFeedInfo.getStats());
-				res.setTopMentions(NodeSearchService.trendingFeedInfo.getTopMentions());
-				res.setTopTags(NodeSearchService.trendingFeedInfo.getTopTags());
-				res.setTopWords(NodeSearchService.trendingFeedInfo.getTopWords());
-				res.setSuccess(true);
-				return;
-			}
+		if (req.isFeed()) {
+			res.setStats(trendingService.getStats());
+			res.setTopWords(trendingService.getTopWords());
+			res.setTopTags(trendingService.getTopTags());
+			res.setTopMentions(trendingService.getTopMentions());
+			res.setSuccess(true);
+			return;
 		}
 
 		HashMap<String, WordStats> wordMap = new HashMap<>();
@@ -363,119 +350,49 @@ public class NodeSearchService {
 
 		long nodeCount = 0;
 		long totalWords = 0;
-		Iterable<SubNode> iter = null;
 
-		/*
-		 * NOTE: This query is similar to the one in UserFeedService.java, but simpler since we don't handle
-		 * a bunch of options but just the public feed query
-		 */
-		if (req.isFeed()) {
-			/* Finds nodes that have shares to any of the people listed in sharedToAny */
-			List<String> sharedToAny = new LinkedList<>();
-			sharedToAny.add(PrincipalName.PUBLIC.s());
-
-			Query query = new Query();
-			Criteria criteria =
-					Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(NodeName.ROOT_OF_ALL_USERS)) //
-
-							// This pattern is what is required when you have multiple conditions added to a
-							// single field.
-							.andOperator(Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.FRIEND.s()), //
-									Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.POSTS.s()), //
-									Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.ACT_PUB_POSTS.s()));
-
-			List<Criteria> orCriteria = new LinkedList<Criteria>();
-
-			// or a node that is shared to any of the sharedToAny users
-			for (String share : sharedToAny) {
-				orCriteria.add(Criteria.where(SubNode.FIELD_AC + "." + share).ne(null));
-			}
-
-			criteria.orOperator((Criteria[]) orCriteria.toArray(new Criteria[orCriteria.size()]));
-
-			query.addCriteria(criteria);
-			query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME));
-			query.limit(TRENDING_LIMIT);
-
-			iter = util.find(query);
-		}
 		/*
 		 * Otherwise this is not a Feed Tab query but just an arbitrary node stats request, like a user
 		 * running a stats request under the 'Node Info' main menu
 		 */
-		else {
-			session = MongoThreadLocal.ensure(session);
-			SubNode searchRoot = read.getNode(session, req.getNodeId());
-
-			Sort sort = null;
-			int limit = 0;
-			if (req.isTrending()) {
-				sort = Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME);
-				limit = TRENDING_LIMIT;
-			}
+		session = MongoThreadLocal.ensure(session);
+		SubNode searchRoot = read.getNode(session, req.getNodeId());
 
-			iter = read.getSubGraph(session, searchRoot, sort, limit);
+		Sort sort = null;
+		int limit = 0;
+		if (req.isTrending()) {
+			sort = Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME);
+			limit = TRENDING_LIMIT;
 		}
 
+		Iterable<SubNode> iter = read.getSubGraph(session, searchRoot, sort, limit);
+
 		for (SubNode node : iter) {
 			if (node.getContent() == null)
 				continue;
 
-			String content = node.getContent();
-			content = fixMastodonMangles(content);
-
-			StringTokenizer tokens = new StringTokenizer(content, WORD_DELIMS, false);
-			while (tokens.hasMoreTokens()) {
-				String token = tokens.nextToken().trim();
-
-				if (!englishDictionary.isStopWord(token)) {
-					String lcToken = token.toLowerCase();
-
-					// if word is a mention.
-					if (token.startsWith("@")) {
-						if (token.length() == 1)
-							continue;
-
-						WordStats ws = mentionMap.get(lcToken);
-						if (ws == null) {
-							ws = new WordStats(token);
-							mentionMap.put(lcToken, ws);
-						}
-						ws.count++;
-					}
-					// if word is a hashtag.
-					else if (token.startsWith("#")) {
-						if (token.endsWith("#") || token.length() == 1)
-							continue;
-
-						// ignore stuff like #1 #23
-						String numCheck = token.substring(1);
-						if (StringUtils.isNumeric(numCheck))
-							continue;
-
-						WordStats ws = tagMap.get(lcToken);
-						if (ws == null) {
-							ws = new WordStats(token);
-							tagMap.put(lcToken, ws);
-						}
-						ws.count++;
-					}
-					// ordinary word
-					else {
-						if (!StringUtils.isAlpha(token)) {
-							continue;
-						}
+			totalWords += trendingService.tokenize(node.getContent(), (kind, token) -> {
+				HashMap<String, WordStats> map = null;
+				switch (kind) {
+					case MENTION:
+						map = mentionMap;
+						break;
+					case TAG:
+						map = tagMap;
+						break;
+					default:
+						map = wordMap;
+						break;
+				}
 
-						WordStats ws = wordMap.get(lcToken);
-						if (ws == null) {
-							ws = new WordStats(token);
-							wordMap.put(lcToken, ws);
-						}
-						ws.count++;
-					}
+				String lcToken = token.toLowerCase();
+				WordStats ws = map.get(lcToken);
+				if (ws == null) {
+					ws = new WordStats(token);
+					map.put(lcToken, ws);
 				}
-				totalWords++;
-			}
+				ws.count++;
+			});
 			nodeCount++;
 		}
 		List<WordStats> wordList = new ArrayList<>(wordMap.values());
@@ -517,14 +434,5 @@ public class NodeSearchService {
 		}
 
 		res.setSuccess(true);
-
-		/*
-		 * If this is a feed query cache it. Only will refresh every 30mins based on a @Schedule event
-		 */
-		if (req.isFeed()) {
-			synchronized (NodeSearchService.trendingFeedInfoLock) {
-				NodeSearchService.trendingFeedInfo = res;
-			}
-		}
 	}
 }
@@ -0,0 +1,441 @@
+package org.subnode.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import org.subnode.config.AppProp;
+import org.subnode.util.Const;
+import org.subnode.util.DateUtil;
+import org.subnode.util.Util;
+
+/**
+ * Cache of the responses we proxy for the browser (see AppController.proxyGet), which is mostly RSS
+ * feeds that the browser can't get itself because of CORS.
+ *
+ * The cache is bounded by the total size of the bodies it holds rather than by the number of them,
+ * and entries expire after 'proxyCacheTtlMinutes'. It's split into segments by url, each with its own
+ * lock, its own least recently used order, and its own share of the byte limit, so requests for
+ * different urls rarely wait on each other. If 'proxyCacheSpillDir' is set, bodies of at least
+ * 'proxyCacheSpillKB' are kept in files there instead of in memory, under a separate limit.
+ *
+ * Concurrent misses for the same url share a single fetch from the upstream server. That fetch reads
+ * the body no further than we could cache it (see fetch), so an upstream response too large to cache
+ * is an error rather than something held in memory.
+ */
+@Component
+public class ProxyCacheService {
+	private static final Logger log = LoggerFactory.getLogger(ProxyCacheService.class);
+
+	private static final int SEGMENTS = 16;
+
+	/* Names of our files in the spill dir are these plus a unique part in between */
+	private static final String SPILL_PREFIX = "proxy";
+	private static final String SPILL_SUFFIX = ".bin";
+
+	/*
+	 * RestTemplate is thread-safe and reusable, and has no state, so we need only one final static
+	 * instance ever
+	 */
+	private static final RestTemplate restTemplate = new RestTemplate(Util.getClientHttpRequestFactory());
+
+	@Autowired
+	private AppProp appProp;
+
+	private static class Entry {
+		/* Null if the body is in 'file' */
+		final byte[] body;
+		final File file;
+		final long size;
+		final long expireTime;
+
+		Entry(byte[] body, File file, long size, long expireTime) {
+			this.body = body;
+			this.file = file;
+			this.size = size;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private class Segment {
+		final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, .75F, true);
+		long memBytes;
+		long diskBytes;
+
+		/* Returns the unexpired entry for 'url' or null. Caller must hold the lock */
+		Entry get(String url) {
+			Entry entry = map.get(url);
+			if (entry != null && entry.expireTime <= System.currentTimeMillis()) {
+				remove(url);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+			return entry;
+		}
+
+		/* Caller must hold the lock */
+		void put(String url, Entry entry) {
+			remove(url);
+			map.put(url, entry);
+			if (entry.file != null) {
+				diskBytes += entry.size;
+			} else {
+				memBytes += entry.size;
+			}
+
+			// evict least recently used first, until we're back under both limits
+			Iterator<Map.Entry<String, Entry>> iter = map.entrySet().iterator();
+			while ((memBytes > maxSegmentMemBytes || diskBytes > maxSegmentDiskBytes) && iter.hasNext()) {
+				Entry eldest = iter.next().getValue();
+				iter.remove();
+				dropped(eldest);
+				evictions.incrementAndGet();
+			}
+		}
+
+		/* Caller must hold the lock */
+		void remove(String url) {
+			Entry entry = map.remove(url);
+			if (entry != null) {
+				dropped(entry);
+			}
+		}
+
+		/* Caller must hold the lock */
+		void removeExpired(long now) {
+			Iterator<Map.Entry<String, Entry>> iter = map.entrySet().iterator();
+			while (iter.hasNext()) {
+				Entry entry = iter.next().getValue();
+				if (entry.expireTime <= now) {
+					iter.remove();
+					dropped(entry);
+					expirations.incrementAndGet();
+				}
+			}
+		}
+
+		private void dropped(Entry entry) {
+			if (entry.file != null) {
+				diskBytes -= entry.size;
+				// anyone reading the file right now keeps reading it, deleting only removes the name
+				if (!entry.file.delete()) {
+					log.debug("Unable to delete proxy cache file: " + entry.file.getAbsolutePath());
+				}
+			} else {
+				memBytes -= entry.size;
+			}
+		}
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/* Fetches from the upstream server that are in progress, by url */
+	private final ConcurrentHashMap<String, CompletableFuture<Entry>> fetching = new ConcurrentHashMap<>();
+
+	private long maxSegmentMemBytes;
+	private long maxSegmentDiskBytes;
+	private long spillBytes;
+	private File spillDir;
+	private long ttl;
+
+	private final AtomicLong memHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong fetches = new AtomicLong();
+	private final AtomicLong fetchedBytes = new AtomicLong();
+	private final AtomicLong servedBytes = new AtomicLong();
+	private final AtomicLong tooLarge = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	@PostConstruct
+	public void postConstruct() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+
+		maxSegmentMemBytes = (long) appProp.getProxyCacheMaxMB() * Const.ONE_MB / SEGMENTS;
+		ttl = (long) appProp.getProxyCacheTtlMinutes() * DateUtil.MINUTE_MILLIS;
+
+		String dir = appProp.getProxyCacheSpillDir();
+		if (!StringUtils.isEmpty(dir)) {
+			spillDir = new File(dir);
+			spillDir.mkdirs();
+
+			/*
+			 * our files left from before a restart aren't in the cache anymore. The dir may be shared, so we
+			 * leave anything else alone.
+			 */
+			File[] oldFiles = spillDir
+					.listFiles((d, name) -> name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX));
+			if (oldFiles != null) {
+				for (File file : oldFiles) {
+					file.delete();
+				}
+			}
+
+			maxSegmentDiskBytes = (long) appProp.getProxyCacheMaxDiskMB() * Const.ONE_MB / SEGMENTS;
+			spillBytes = (long) appProp.getProxyCacheSpillKB() * 1024;
+		}
+	}
+
+	private Segment getSegment(String url) {
+		return segments[(url.hashCode() & 0x7fffffff) % SEGMENTS];
+	}
+
+	/*
+	 * Returns the body of 'url', from the cache if it's there, otherwise fetched from the upstream
+	 * server (and cached). If other requests are already fetching 'url' this waits for their fetch
+	 * rather than starting another.
+	 */
+	public InputStream get(String url) throws Exception {
+		Segment segment = getSegment(url);
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.get(url);
+		}
+
+		if (entry != null) {
+			try {
+				InputStream is = open(entry);
+				if (entry.file == null) {
+					memHits.incrementAndGet();
+				} else {
+					diskHits.incrementAndGet();
+				}
+				return is;
+			} catch (FileNotFoundException e) {
+				// evicted between the lookup and the open, so it's a miss after all
+			}
+		}
+		misses.incrementAndGet();
+
+		CompletableFuture<Entry> fetch = new CompletableFuture<>();
+		CompletableFuture<Entry> existing = fetching.putIfAbsent(url, fetch);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			try {
+				return open(existing.join());
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			} catch (FileNotFoundException e) {
+				// evicted already, so we have to get it ourselves
+				return get(url);
+			}
+		}
+
+		try {
+			entry = fetch(url);
+			fetches.incrementAndGet();
+			fetchedBytes.addAndGet(entry.size);
+
+			// opened before it's in the cache, so it can't be evicted out from under us
+			InputStream is = open(entry);
+			cache(url, entry);
+			fetch.complete(entry);
+			return is;
+		} catch (Exception e) {
+			fetch.completeExceptionally(e);
+			throw e;
+		} finally {
+			fetching.remove(url, fetch);
+		}
+	}
+
+	private InputStream open(Entry entry) throws FileNotFoundException {
+		InputStream is = entry.file != null ? new FileInputStream(entry.file) : new ByteArrayInputStream(entry.body);
+		servedBytes.addAndGet(entry.size);
+		return is;
+	}
+
+	/*
+	 * Gets the body of 'url' from the upstream server, reading no more of it than we're able to cache:
+	 * into memory up to the spill size, and past that straight into a spill file. A body bigger than we
+	 * can cache is an error, so no response (however large, or endless) can use up the heap or disk.
+	 */
+	private Entry fetch(String url) throws Exception {
+		long memMax = spillDir != null ? Math.min(maxSegmentMemBytes, spillBytes - 1) : maxSegmentMemBytes;
+		long max = spillDir != null ? Math.max(memMax, maxSegmentDiskBytes) : memMax;
+
+		return restTemplate.execute(new URI(url), HttpMethod.GET, null, response -> {
+			if (response.getHeaders().getContentLength() > max) {
+				throw tooLarge(url);
+			}
+
+			long expireTime = System.currentTimeMillis() + ttl;
+			ByteArrayOutputStream mem = new ByteArrayOutputStream();
+			File file = null;
+			OutputStream out = mem;
+			long size = 0;
+			byte[] buf = new byte[8192];
+
+			try (InputStream is = response.getBody()) {
+				int count;
+				while ((count = is.read(buf)) != -1) {
+					size += count;
+					if (size > max) {
+						throw tooLarge(url);
+					}
+
+					if (file == null && size > memMax) {
+						file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, spillDir);
+						out = new FileOutputStream(file);
+						mem.writeTo(out);
+						mem = null;
+					}
+					out.write(buf, 0, count);
+				}
+				out.close();
+			} catch (IOException e) {
+				out.close();
+				if (file != null) {
+					file.delete();
+				}
+				throw e;
+			}
+
+			return file != null ? new Entry(null, file, size, expireTime) : new Entry(mem.toByteArray(), null, size, expireTime);
+		});
+	}
+
+	private IOException tooLarge(String url) {
+		tooLarge.incrementAndGet();
+		return new IOException("Proxied response too large: " + url);
+	}
+
+	/* Caches 'body' as the response for 'url', unless it's too large to cache */
+	public void put(String url, byte[] body) {
+		Entry entry = null;
+		long expireTime = System.currentTimeMillis() + ttl;
+
+		if (spillDir != null && body.length >= spillBytes && body.length <= maxSegmentDiskBytes) {
+			try {
+				File file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, spillDir);
+				Files.write(file.toPath(), body);
+				entry = new Entry(null, file, body.length, expireTime);
+			} catch (IOException e) {
+				log.debug("Unable to write proxy cache file: " + e.getMessage());
+			}
+		}
+
+		if (entry == null) {
+			if (body.length > maxSegmentMemBytes) {
+				tooLarge.incrementAndGet();
+				return;
+			}
+			entry = new Entry(body, null, body.length, expireTime);
+		}
+
+		cache(url, entry);
+	}
+
+	private void cache(String url, Entry entry) {
+		Segment segment = getSegment(url);
+		synchronized (segment) {
+			segment.put(url, entry);
+		}
+	}
+
+	/* True if there's an unexpired entry for 'url'. Like a hit, this makes it the most recently used */
+	public boolean contains(String url) {
+		Segment segment = getSegment(url);
+		synchronized (segment) {
+			return segment.get(url) != null;
+		}
+	}
+
+	/* Total size of the bodies held in memory */
+	public long getMemBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				bytes += segment.memBytes;
+			}
+		}
+		return bytes;
+	}
+
+	/* Total size of the bodies held in spill files */
+	public long getDiskBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				bytes += segment.diskBytes;
+			}
+		}
+		return bytes;
+	}
+
+	/* Drops 'url' from the cache, when we know it changed */
+	public void remove(String url) {
+		Segment segment = getSegment(url);
+		synchronized (segment) {
+			segment.remove(url);
+		}
+	}
+
+	/* Expired entries are dropped when they're looked up, and here, so their memory and files don't linger */
+	@Scheduled(fixedDelay = 10 * DateUtil.MINUTE_MILLIS)
+	public void removeExpired() {
+		long now = System.currentTimeMillis();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.removeExpired(now);
+			}
+		}
+	}
+
+	public String getStatsReport() {
+		int count = 0;
+		long memBytes = 0, diskBytes = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.map.size();
+				memBytes += segment.memBytes;
+				diskBytes += segment.diskBytes;
+			}
+		}
+
+		long hits = memHits.get() + diskHits.get();
+		long total = hits + misses.get();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nProxy Cache Stats:\n");
+		sb.append("Entries: " + count + "\n");
+		sb.append("Memory (KB): " + (memBytes / 1024) + " max=" + (maxSegmentMemBytes * SEGMENTS / 1024) + "\n");
+		if (spillDir != null) {
+			sb.append("Disk (KB): " + (diskBytes / 1024) + " max=" + (maxSegmentDiskBytes * SEGMENTS / 1024) + "\n");
+		}
+		sb.append("Hits: " + hits + " (Disk: " + diskHits.get() + ") Misses: " + misses.get() + " Hit Rate: "
+				+ (total > 0 ? (100 * hits / total) : 0) + "%\n");
+		sb.append("Coalesced Misses: " + coalesced.get() + "\n");
+		sb.append("Fetches: " + fetches.get() + " (KB: " + (fetchedBytes.get() / 1024) + ")\n");
+		sb.append("Served (KB): " + (servedBytes.get() / 1024) + "\n");
+		sb.append("Too Large: " + tooLarge.get() + " Evictions: " + evictions.get() + " Expired: " + expirations.get() + "\n");
+		return sb.toString();
+	}
+}
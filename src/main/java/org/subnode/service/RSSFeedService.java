@@ -6,12 +6,23 @@ import java.io.Reader;
 import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
 import com.rometools.modules.content.ContentItem;
 import com.rometools.modules.content.ContentModuleImpl;
 import com.rometools.modules.itunes.EntryInformationImpl;
@@ -47,10 +58,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
-import org.springframework.http.HttpMethod;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
 import org.subnode.AppServer;
 import org.subnode.config.AppProp;
 import org.subnode.config.SessionContext;
@@ -73,7 +82,6 @@ import org.subnode.util.ExUtil;
 import org.subnode.util.LimitedInputStreamEx;
 import org.subnode.util.StreamUtil;
 import org.subnode.util.SubNodeUtil;
-import org.subnode.util.Util;
 import org.subnode.util.XString;
 
 /* Proof of Concept RSS Publishing */
@@ -93,6 +101,12 @@ public class RSSFeedService {
 	@Autowired
 	private AdminRun arun;
 
+	@Autowired
+	private HttpFetchService httpFetch;
+
+	@Autowired
+	private ProxyCacheService proxyCache;
+
 	private static boolean refreshingCache = false;
 
 	private static final Object policyLock = new Object();
@@ -102,8 +116,6 @@ public class RSSFeedService {
 	private boolean USE_URL_READER = false;
 	private boolean USE_SPRING_READER = true;
 
-	private static final RestTemplate restTemplate = new RestTemplate(Util.getClientHttpRequestFactory());
-
 	/*
 	 * Cache of all feeds.
 	 */
@@ -112,23 +124,60 @@ public class RSSFeedService {
 	private static final ConcurrentHashMap<Integer, String> feedNameOfItem = new ConcurrentHashMap<>();
 
 	/*
-	 * keep track of which feeds failed so we don't try them again until another 30-min cycle
+	 * keep track of which feeds failed so we don't try them again until their next refresh
 	 */
-	private static final HashSet<String> failedFeeds = new HashSet<>();
+	private static final Set<String> failedFeeds = ConcurrentHashMap.newKeySet();
 
 	/*
 	 * Cache of all aggregates
 	 */
 	private static final ConcurrentHashMap<String, SyndFeed> aggregateCache = new ConcurrentHashMap<>();
 
-	private static int MAX_CACHE_SIZE = 500;
-	public static final LinkedHashMap<String, byte[]> proxyCache =
-			new LinkedHashMap<String, byte[]>(MAX_CACHE_SIZE + 1, .75F, false) {
-				protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
-					return size() > MAX_CACHE_SIZE;
-				}
-			};
+	/*
+	 * nodeIds of the aggregates (in aggregateCache) each feed url is part of, so when a feed changes only
+	 * the aggregates it's in are rebuilt
+	 */
+	private static final ConcurrentHashMap<String, Set<String>> aggregatesByFeed = new ConcurrentHashMap<>();
+
+	/* Refresh intervals of feeds. Each feed starts at the default, and moves within the min and max */
+	private static final long MIN_REFRESH_INTERVAL = 10 * DateUtil.MINUTE_MILLIS;
+	private static final long DEFAULT_REFRESH_INTERVAL = 30 * DateUtil.MINUTE_MILLIS;
+	private static final long MAX_REFRESH_INTERVAL = 12 * DateUtil.HOUR_MILLIS;
+
+	/* Number of the newest entries of a feed we look at to see how often it gets new ones */
+	private static final int POSTING_INTERVAL_ENTRIES = 10;
+
+	/* Refresh state of each feed we've tried to fetch, by url */
+	private static class FeedState {
+		/* Entries of the feed newest first, which is the order aggregates are merged in */
+		volatile List<SyndEntry> sortedEntries = Collections.emptyList();
+
+		/* Hash of the entries, to tell whether a fetch got anything new */
+		int signature;
+
+		/* Incremented every time a refresh finds the feed changed */
+		volatile long version;
+
+		long lastFetchTime;
+		volatile long nextRefreshTime;
+		long interval = DEFAULT_REFRESH_INTERVAL;
+		boolean refreshing;
+	}
+
+	private static final ConcurrentHashMap<String, FeedState> feedStates = new ConcurrentHashMap<>();
+
+	/* Newest first, with any entries we have no date for last */
+	private static final Comparator<SyndEntry> ENTRY_ORDER =
+			Comparator.comparing(SyndEntry::getPublishedDate, Comparator.nullsLast(Comparator.<Date>reverseOrder()));
 
+	/* Threads the feeds are refreshed on */
+	private ExecutorService refreshPool;
+	private boolean shutDown = false;
+
+	private final AtomicLong changedCount = new AtomicLong();
+	private final AtomicLong unchangedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong aggregatesInvalidated = new AtomicLong();
 
 	private static int runCount = 0;
 
@@ -139,9 +188,11 @@ public class RSSFeedService {
 	static boolean run = false;
 
 	/*
-	 * Runs immediately at startup, and then every 30 minutes, to refresh the feedCache.
+	 * Runs immediately at startup, and then every minute, to start refreshes of the feeds that are due.
+	 * Each feed has its own refresh interval, based on how often it's been changing, and the refreshes
+	 * run in parallel on the refreshPool.
 	 */
-	@Scheduled(fixedDelay = 30 * 60 * 1000)
+	@Scheduled(fixedDelay = DateUtil.MINUTE_MILLIS)
 	public void run() {
 		if (run)
 			return;
@@ -157,15 +208,69 @@ public class RSSFeedService {
 				return;
 			}
 
-			log.debug("RSSFeedService.refreshFeedCache");
-			refreshFeedCache();
-			aggregateCache.clear();
-			proxyCache.clear();
+			long now = System.currentTimeMillis();
+			feedStates.forEach((url, state) -> {
+				if (state.nextRefreshTime <= now) {
+					refreshAsync(url, state);
+				}
+			});
 		} finally {
 			run = false;
 		}
 	}
 
+	/* Returns the refreshPool, or null once we're shut down */
+	private ExecutorService getRefreshPool() {
+		synchronized (feedStates) {
+			if (refreshPool == null && !shutDown) {
+				refreshPool = Executors.newFixedThreadPool(appProp.getRssRefreshThreads());
+			}
+			return refreshPool;
+		}
+	}
+
+	/* Stops the refreshPool, interrupting any refreshes in progress */
+	@PreDestroy
+	public void preDestroy() {
+		synchronized (feedStates) {
+			shutDown = true;
+			if (refreshPool != null) {
+				refreshPool.shutdownNow();
+				refreshPool = null;
+			}
+		}
+	}
+
+	/* Refreshes the feed at 'url' on the refreshPool, unless it's already being refreshed */
+	private void refreshAsync(String url, FeedState state) {
+		synchronized (state) {
+			if (state.refreshing)
+				return;
+			state.refreshing = true;
+		}
+
+		try {
+			ExecutorService pool = getRefreshPool();
+			if (pool == null) {
+				throw new RejectedExecutionException("RSS refresh pool is shut down");
+			}
+
+			pool.execute(() -> {
+				try {
+					getFeed(url, false);
+				} finally {
+					synchronized (state) {
+						state.refreshing = false;
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (state) {
+				state.refreshing = false;
+			}
+		}
+	}
+
 	public void startupPreCache() {
 		String rssNodeId = appProp.getRssAggregatePreCacheNodeId();
 		if (StringUtils.isEmpty(rssNodeId))
@@ -185,33 +290,24 @@ public class RSSFeedService {
 
 		try {
 			refreshingCache = true;
-			int count = 0, fails = 0;
+			AtomicInteger count = new AtomicInteger();
+			AtomicInteger fails = new AtomicInteger();
 
-			if (failedFeeds.size() > 0) {
-				List<String> failedFeedsList = new LinkedList<>(failedFeeds);
-				failedFeeds.clear();
-
-				for (String url : failedFeedsList) {
-					log.debug("Retrying previously failed feed: " + url);
+			// every feed we know of, including the failed ones, all at once on the refreshPool
+			List<CompletableFuture<Void>> refreshes = new LinkedList<>();
+			for (String url : feedStates.keySet()) {
+				refreshes.add(CompletableFuture.runAsync(() -> {
 					SyndFeed feed = getFeed(url, false);
 					if (feed != null) {
-						count++;
+						count.incrementAndGet();
 					} else {
-						fails++;
+						fails.incrementAndGet();
 					}
-				}
+				}, getRefreshPool()));
 			}
+			CompletableFuture.allOf(refreshes.toArray(new CompletableFuture[0])).join();
 
-			for (String url : feedCache.keySet()) {
-				// log.debug("Refreshing feed: " + url);
-				SyndFeed feed = getFeed(url, false);
-				if (feed != null) {
-					count++;
-				} else {
-					fails++;
-				}
-			}
-			return "Refreshed " + String.valueOf(count) + " feeds. (Fail Count: " + String.valueOf(fails) + ")";
+			return "Refreshed " + String.valueOf(count.get()) + " feeds. (Fail Count: " + String.valueOf(fails.get()) + ")";
 		} finally {
 			refreshingCache = false;
 		}
@@ -274,74 +370,241 @@ public class RSSFeedService {
 				}
 			}
 
+			long version = getFeedsVersion(urls);
 			aggregateFeeds(urls, entries, 1);
 			aggregateCache.put(nodeId, feed);
+
+			for (String url : urls) {
+				aggregatesByFeed.computeIfAbsent(url, k -> ConcurrentHashMap.newKeySet()).add(nodeId);
+			}
+
+			// if a member feed changed while we were building this, it's already out of date
+			if (getFeedsVersion(urls) != version) {
+				aggregateCache.remove(nodeId);
+			}
 		}
 
 		writeFeed(feed, writer);
 	}
 
+	/* Sum of the versions of the feeds at 'urls', which changes when any of them changes */
+	private long getFeedsVersion(List<String> urls) {
+		long version = 0;
+		for (String url : urls) {
+			FeedState state = feedStates.get(url);
+			if (state != null) {
+				version += state.version;
+			}
+		}
+		return version;
+	}
+
+	/* Position in the sorted entries of one feed, during the merge in aggregateFeeds */
+	private static class MergeCursor {
+		final List<SyndEntry> entries;
+		final int feedIdx;
+		int idx;
+
+		MergeCursor(List<SyndEntry> entries, int feedIdx) {
+			this.entries = entries;
+			this.feedIdx = feedIdx;
+		}
+
+		SyndEntry head() {
+			return entries.get(idx);
+		}
+	}
+
+	/*
+	 * Puts the given 'page' of the entries of all the feeds at 'urls' into 'entries', newest first.
+	 *
+	 * The entries of each feed are already sorted (when the feed is fetched), so rather than sorting
+	 * the entries of all the feeds together we merge them, always taking the newest of the entries at
+	 * the front of each feed, and stop as soon as we have the page.
+	 */
 	public void aggregateFeeds(List<String> urls, List<SyndEntry> entries, int page) {
 		try {
-			for (String url : urls) {
-				// reset this to zero for each feed.
-				int badDateCount = 0;
+			PriorityQueue<MergeCursor> cursors = new PriorityQueue<>((c1, c2) -> {
+				int ret = ENTRY_ORDER.compare(c1.head(), c2.head());
+				// same dates go in the order of the urls
+				return ret != 0 ? ret : Integer.compare(c1.feedIdx, c2.feedIdx);
+			});
 
-				SyndFeed inFeed = getFeed(url, true);
-				if (inFeed != null) {
-					for (SyndEntry entry : inFeed.getEntries()) {
-
-						/*
-						 * if no PublishedDate exists on the 'entry' itself try to get a reasonable data from some other
-						 * sane property on the feed.
-						 */
-						if (entry.getPublishedDate() == null) {
-							if (entry.getUpdatedDate() != null) {
-								entry.setPublishedDate(entry.getUpdatedDate());
-
-							} else if (inFeed.getPublishedDate() != null) {
-								/*
-								 * If we have to take the feed update time from the feed itself because of lack of dates in feed
-								 * entries the only allow a max of 3 of these to exist so that no malformed feeds can flood the
-								 * top of our GUI presentation with more than 3 items
-								 */
-								if (badDateCount < 3) {
-									entry.setPublishedDate(inFeed.getPublishedDate());
-									badDateCount++;
-								}
-							}
-						}
+			int feedIdx = 0;
+			for (String url : urls) {
+				if (getFeed(url, true) == null)
+					continue;
 
-						entries.add(entry);
-					}
+				FeedState state = feedStates.get(url);
+				List<SyndEntry> sortedEntries = state != null ? state.sortedEntries : null;
+				if (sortedEntries != null && sortedEntries.size() > 0) {
+					cursors.add(new MergeCursor(sortedEntries, feedIdx++));
 				}
 			}
-			entries.sort((s1, s2) -> s2.getPublishedDate().compareTo(s1.getPublishedDate()));
 
-			/*
-			 * Now from the complete 'entries' list we extract out just the page we need into 'pageEntires' and
-			 * then stuff pageEntries back into 'entries' to send out of this method
-			 */
-			List<SyndEntry> pageEntries = new LinkedList<>();
-			int pageNo = page - 1;
-			int startIdx = pageNo * MAX_FEED_ITEMS;
+			int startIdx = (Math.max(page, 1) - 1) * MAX_FEED_ITEMS;
+			int endIdx = startIdx + MAX_FEED_ITEMS;
 			int idx = 0;
-			for (SyndEntry entry : entries) {
+			while (idx < endIdx && !cursors.isEmpty()) {
+				MergeCursor cursor = cursors.poll();
 				if (idx >= startIdx) {
-					pageEntries.add(entry);
-					if (pageEntries.size() >= MAX_FEED_ITEMS) {
-						break;
-					}
+					entries.add(cursor.head());
 				}
 				idx++;
+
+				if (++cursor.idx < cursor.entries.size()) {
+					cursors.add(cursor);
+				}
 			}
-			entries.clear();
-			entries.addAll(pageEntries);
 		} catch (Exception e) {
 			ExUtil.error(log, "Error: ", e);
 		}
 	}
 
+	/*
+	 * Returns the entries of 'feed' newest first. Entries with no PublishedDate get one from some other
+	 * sane property if there is one.
+	 */
+	private List<SyndEntry> sortEntries(SyndFeed feed) {
+		List<SyndEntry> sorted = new ArrayList<>();
+		if (feed.getEntries() == null)
+			return sorted;
+
+		int badDateCount = 0;
+		for (SyndEntry entry : feed.getEntries()) {
+			if (entry.getPublishedDate() == null) {
+				if (entry.getUpdatedDate() != null) {
+					entry.setPublishedDate(entry.getUpdatedDate());
+
+				} else if (feed.getPublishedDate() != null) {
+					/*
+					 * If we have to take the feed update time from the feed itself because of lack of dates in feed
+					 * entries the only allow a max of 3 of these to exist so that no malformed feeds can flood the
+					 * top of our GUI presentation with more than 3 items
+					 */
+					if (badDateCount < 3) {
+						entry.setPublishedDate(feed.getPublishedDate());
+						badDateCount++;
+					}
+				}
+			}
+			sorted.add(entry);
+		}
+		sorted.sort(ENTRY_ORDER);
+		return sorted;
+	}
+
+	/* Hash of what identifies each entry of 'feed' and when it was published, which changes when the feed does */
+	private int getSignature(SyndFeed feed) {
+		int hash = 1;
+		if (feed.getEntries() != null) {
+			for (SyndEntry entry : feed.getEntries()) {
+				hash = 31 * hash + Objects.hashCode(entry.getUri() != null ? entry.getUri() : entry.getLink());
+				hash = 31 * hash + Objects.hashCode(entry.getTitle());
+				hash = 31 * hash + Objects.hashCode(entry.getPublishedDate());
+				hash = 31 * hash + Objects.hashCode(entry.getUpdatedDate());
+			}
+		}
+		return hash;
+	}
+
+	/* Average time between the newest entries in 'sortedEntries', which is about how often the feed changes */
+	private long getPostingInterval(List<SyndEntry> sortedEntries) {
+		int count = Math.min(sortedEntries.size(), POSTING_INTERVAL_ENTRIES);
+		// undated entries are at the end
+		while (count > 1 && sortedEntries.get(count - 1).getPublishedDate() == null) {
+			count--;
+		}
+		if (count < 2)
+			return DEFAULT_REFRESH_INTERVAL;
+
+		long newest = sortedEntries.get(0).getPublishedDate().getTime();
+		long oldest = sortedEntries.get(count - 1).getPublishedDate().getTime();
+		return Math.max(MIN_REFRESH_INTERVAL, Math.min(MAX_REFRESH_INTERVAL, (newest - oldest) / (count - 1)));
+	}
+
+	/*
+	 * Called after each successful fetch of the feed at 'url' to cache it, and to set when it's next
+	 * refreshed. A feed that changed gets an interval close to how often it's been posting, and one that
+	 * hasn't changed is refreshed less and less often. Returns the feed to use, which is the one we
+	 * already had if nothing changed.
+	 */
+	private SyndFeed feedFetched(String url, SyndFeed inFeed) {
+		FeedState state = feedStates.computeIfAbsent(url, k -> new FeedState());
+		failedFeeds.remove(url);
+
+		boolean changed = false;
+		synchronized (state) {
+			long now = System.currentTimeMillis();
+			SyndFeed cachedFeed = feedCache.get(url);
+
+			// a server saying nothing changed (304) gives us back the very object we already have
+			if (inFeed != cachedFeed) {
+				int signature = getSignature(inFeed);
+				if (cachedFeed == null || signature != state.signature) {
+					changed = true;
+					state.signature = signature;
+					state.sortedEntries = sortEntries(inFeed);
+					feedCache.put(url, inFeed);
+
+					// store knowledge of which feed Title goes with each entry instance.
+					for (SyndEntry se : state.sortedEntries) {
+						feedNameOfItem.put(se.hashCode(), inFeed.getTitle());
+					}
+				}
+			}
+
+			if (changed) {
+				changedCount.incrementAndGet();
+				state.interval = getPostingInterval(state.sortedEntries);
+
+				// a feed's first fetch isn't a change anything could have been built from yet
+				if (state.lastFetchTime != 0) {
+					state.version++;
+				} else {
+					changed = false;
+				}
+			} else {
+				unchangedCount.incrementAndGet();
+				state.interval = Math.min(MAX_REFRESH_INTERVAL, state.interval + state.interval / 2);
+			}
+			state.lastFetchTime = now;
+			state.nextRefreshTime = now + state.interval;
+		}
+
+		if (changed) {
+			invalidateAggregates(url);
+		}
+		return feedCache.get(url);
+	}
+
+	/* Called when the feed at 'url' fails to be fetched, to try it again in a while */
+	private void feedFailed(String url) {
+		failedFeeds.add(url);
+		failedCount.incrementAndGet();
+
+		FeedState state = feedStates.computeIfAbsent(url, k -> new FeedState());
+		synchronized (state) {
+			long now = System.currentTimeMillis();
+			state.lastFetchTime = now;
+			state.nextRefreshTime = now + DEFAULT_REFRESH_INTERVAL;
+		}
+	}
+
+	/* Drops the aggregates 'url' is part of, and any proxied copy of it, because the feed changed */
+	private void invalidateAggregates(String url) {
+		Set<String> nodeIds = aggregatesByFeed.remove(url);
+		if (nodeIds != null) {
+			for (String nodeId : nodeIds) {
+				if (aggregateCache.remove(nodeId) != null) {
+					aggregatesInvalidated.incrementAndGet();
+				}
+			}
+		}
+
+		proxyCache.remove(url);
+	}
+
 	public SyndFeed getFeed(String url, boolean fromCache) {
 		// log.debug("getFeed: " + url);
 
@@ -416,10 +679,11 @@ public class RSSFeedService {
 			}
 
 			if (USE_SPRING_READER) {
-				inFeed = restTemplate.execute(url, HttpMethod.GET, null, response -> {
+				// conditional GET, so a feed that hasn't changed isn't downloaded and parsed again
+				inFeed = httpFetch.get(url, null, is -> {
 					SyndFeedInput input = new SyndFeedInput();
 					try {
-						return input.build(new XmlReader(new LimitedInputStreamEx(response.getBody(), 100 * Const.ONE_MB)));
+						return input.build(new XmlReader(new LimitedInputStreamEx(is, 100 * Const.ONE_MB)));
 					} catch (FeedException e) {
 						throw new IOException("Could not parse response", e);
 					}
@@ -439,16 +703,7 @@ public class RSSFeedService {
 
 			// log.debug("Feed " + url + " has " + inFeed.getEntries().size() + " entries.");
 			// we update the cache regardless of 'fromCache' val. this is correct.
-			feedCache.put(url, inFeed);
-
-			// store knowledge of which feed Title goes with each entry instance.
-			if (inFeed.getEntries() != null) {
-				for (SyndEntry se : inFeed.getEntries()) {
-					feedNameOfItem.put(se.hashCode(), inFeed.getTitle());
-				}
-			}
-
-			return inFeed;
+			return feedFetched(url, inFeed);
 		} catch (Exception e) {
 			/*
 			 * Leave feedCache with any existing mapping it has when it fails. Worst case here is a stale cache
@@ -462,7 +717,7 @@ public class RSSFeedService {
 			 * under the admin menu for checking server status info.
 			 */
 			log.debug("Error reading feed: " + url + " -> " + e.getMessage());
-			failedFeeds.add(url);
+			feedFailed(url);
 			return null;
 		} finally {
 			if (reader != null) {
@@ -948,6 +1203,29 @@ public class RSSFeedService {
 			feed.setLink("");
 	}
 
+	public String getStatsReport() {
+		long now = System.currentTimeMillis();
+		int dueSoon = 0;
+		long totalInterval = 0;
+		for (FeedState state : feedStates.values()) {
+			if (state.nextRefreshTime <= now + 10 * DateUtil.MINUTE_MILLIS) {
+				dueSoon++;
+			}
+			totalInterval += state.interval;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nRSS Feed Stats:\n");
+		sb.append("Feeds: " + feedStates.size() + " (Failing: " + failedFeeds.size() + ")\n");
+		sb.append("Due in 10 mins: " + dueSoon + "\n");
+		sb.append("Avg Refresh Interval (mins): "
+				+ (feedStates.size() > 0 ? totalInterval / feedStates.size() / DateUtil.MINUTE_MILLIS : 0) + "\n");
+		sb.append("Fetches Changed: " + changedCount.get() + " Unchanged: " + unchangedCount.get() + " Failed: "
+				+ failedCount.get() + "\n");
+		sb.append("Aggregates: " + aggregateCache.size() + " (Invalidated: " + aggregatesInvalidated.get() + ")\n");
+		return sb.toString();
+	}
+
 	private void writeFeed(SyndFeed feed, Writer writer) {
 		if (writer != null) {
 			try {
@@ -15,6 +15,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.subnode.actpub.ActPubCache;
+import org.subnode.actpub.ActPubCollectionCache;
+import org.subnode.actpub.ActPubDelivery;
+import org.subnode.actpub.ActPubInbox;
+import org.subnode.actpub.ActPubRefresher;
 import org.subnode.actpub.ActPubService;
 import org.subnode.config.AppFilter;
 import org.subnode.config.AppProp;
@@ -25,13 +30,16 @@ import org.subnode.model.UserStats;
 import org.subnode.model.client.NodeProp;
 import org.subnode.mongo.AdminRun;
 import org.subnode.mongo.MongoAppConfig;
+import org.subnode.mongo.MongoAuthCache;
 import org.subnode.mongo.MongoDelete;
+import org.subnode.mongo.MongoNodeCache;
 import org.subnode.mongo.MongoRead;
 import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.MongoUpdate;
 import org.subnode.mongo.MongoUtil;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.util.Const;
+import org.subnode.util.PushQueue;
 import org.subnode.util.ExUtil;
 import org.subnode.util.StopwatchEntry;
 import org.subnode.util.ThreadLocals;
@@ -53,6 +61,12 @@ public class SystemService {
 	@Autowired
 	private MongoDelete delete;
 
+	@Autowired
+	private MongoNodeCache nodeCache;
+
+	@Autowired
+	private MongoAuthCache authCache;
+
 	@Autowired
 	private MongoUpdate update;
 
@@ -77,6 +91,33 @@ public class SystemService {
 	@Autowired
 	private ActPubService apService;
 
+	@Autowired
+	private ActPubCache apCache;
+
+	@Autowired
+	private ActPubDelivery apDelivery;
+
+	@Autowired
+	private ActPubRefresher apRefresher;
+
+	@Autowired
+	private ActPubInbox apInbox;
+
+	@Autowired
+	private ActPubCollectionCache apCollections;
+
+	@Autowired
+	private HttpFetchService httpFetch;
+
+	@Autowired
+	private TrendingService trendingService;
+
+	@Autowired
+	private RSSFeedService rssFeedService;
+
+	@Autowired
+	private ProxyCacheService proxyCache;
+
 	@Autowired
 	private SessionContext sc;
 
@@ -200,7 +241,19 @@ public class SystemService {
 		sb.append("Attachment Count: " + attachmentService.getGridItemCount() + "\n");
 		sb.append(userManagerService.getUserAccountsReport(null));
 
+		sb.append(nodeCache.getStatsReport());
+		sb.append(authCache.getStatsReport());
 		sb.append(apService.getStatsReport());
+		sb.append(apCache.getStatsReport());
+		sb.append(apDelivery.getStatsReport());
+		sb.append(apInbox.getStatsReport());
+		sb.append(apRefresher.getStatsReport());
+		sb.append(apCollections.getStatsReport());
+		sb.append(trendingService.getStatsReport());
+		sb.append(httpFetch.getStatsReport());
+		sb.append(rssFeedService.getStatsReport());
+		sb.append(proxyCache.getStatsReport());
+		sb.append(PushQueue.getStatsReport());
 
 		if (!StringUtils.isEmpty(appProp.getIPFSApiHostAndPort())) {
 			sb.append(ipfsService.getRepoStat());
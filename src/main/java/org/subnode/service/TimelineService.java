@@ -0,0 +1,642 @@
+package org.subnode.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.subnode.AppServer;
+import org.subnode.config.AppProp;
+import org.subnode.config.NodeName;
+import org.subnode.model.client.NodeProp;
+import org.subnode.model.client.NodeType;
+import org.subnode.model.client.PrincipalName;
+import org.subnode.mongo.MongoRepository;
+import org.subnode.mongo.MongoUtil;
+import org.subnode.mongo.PageCursor;
+import org.subnode.mongo.model.SubNode;
+import org.subnode.mongo.model.TimelineEntry;
+import org.subnode.util.DateUtil;
+
+/**
+ * Materialized timelines for the Feed (fan-out on write).
+ *
+ * Whenever a node that belongs in feeds is saved we write (upsert) a TimelineEntry for it into the
+ * timeline of every recipient, so that generating a feed is a single indexed range query on
+ * (key, mtm) rather than the big query over the whole tree of all users. Timeline keys are:
+ *
+ * <pre>
+ * "public"          nodes shared to public
+ * [accountId]:to    nodes shared to the user
+ * [accountId]:me    nodes owned by the user and shared to anyone
+ * [accountId]:fr    nodes owned by any user the user follows (has in their friends list)
+ * </pre>
+ */
+@Component
+public class TimelineService {
+	private static final Logger log = LoggerFactory.getLogger(TimelineService.class);
+
+	public static final String KEY_PUBLIC = PrincipalName.PUBLIC.s();
+	public static final String SUFFIX_TO_USER = ":to";
+	public static final String SUFFIX_FROM_USER = ":me";
+	public static final String SUFFIX_FROM_FRIEND = ":fr";
+
+	/*
+	 * Key of the entry written when a rebuild finishes. Until it exists the timelines are incomplete
+	 * (never built, or a rebuild was cut short) and are built again at startup.
+	 */
+	private static final String KEY_REBUILT = "rebuilt";
+
+	private static final int BATCH_SIZE = 1000;
+
+	/* Max fan outs waiting to be written, beyond which the saving thread does its own */
+	private static final int MAX_PENDING_FAN_OUTS = 10000;
+
+	@Autowired
+	private MongoTemplate ops;
+
+	@Autowired
+	private MongoUtil util;
+
+	@Autowired
+	private AppProp appProp;
+
+	@Autowired
+	@Qualifier("threadPoolTaskExecutor")
+	private Executor executor;
+
+	/*
+	 * False until we know every existing node has been put on timelines (i.e. rebuild has run), and
+	 * until then the feed has to keep using the query on the nodes themselves
+	 */
+	private static volatile boolean ready = false;
+
+	private static final AtomicBoolean rebuilding = new AtomicBoolean();
+	private static final AtomicBoolean trimming = new AtomicBoolean();
+
+	/* What a fan out of one node writes, taken from the node when it was saved */
+	private static class FanOut {
+		final TimelineEntry entry;
+		final HashSet<String> shareKeys;
+
+		/* True if the node belongs on timelines now */
+		final boolean belongs;
+
+		/* True if the node was on timelines before, so it may have entries to remove */
+		boolean wasOn;
+
+		FanOut(TimelineEntry entry, HashSet<String> shareKeys, boolean belongs, boolean wasOn) {
+			this.entry = entry;
+			this.shareKeys = shareKeys;
+			this.belongs = belongs;
+			this.wasOn = wasOn;
+		}
+	}
+
+	/*
+	 * Fan outs waiting to be written, by node ID, oldest first. A node saved again before its fan out is
+	 * written just replaces it, so this never holds more than one per node.
+	 */
+	private final LinkedHashMap<ObjectId, FanOut> pendingFanOuts = new LinkedHashMap<>();
+	private boolean draining = false;
+
+	public static boolean isReady() {
+		return ready;
+	}
+
+	/*
+	 * Called once at startup. Creates the indexes and if no timelines exist yet (first startup since
+	 * timelines were added) builds them in the background
+	 */
+	public void init() {
+		ops.indexOps(TimelineEntry.class).ensureIndex(new Index() //
+				.on(TimelineEntry.FIELD_KEY, Direction.ASC) //
+				.on(TimelineEntry.FIELD_NODE_ID, Direction.ASC).unique());
+		ops.indexOps(TimelineEntry.class).ensureIndex(new Index() //
+				.on(TimelineEntry.FIELD_KEY, Direction.ASC) //
+				.on(TimelineEntry.FIELD_MODIFY_TIME, Direction.DESC));
+		ops.indexOps(TimelineEntry.class).ensureIndex(new Index().on(TimelineEntry.FIELD_NODE_ID, Direction.ASC));
+
+		// for looking up the followers of a user
+		ops.indexOps(SubNode.class)
+				.ensureIndex(new Index().on(SubNode.FIELD_PROPERTIES + "." + NodeProp.USER_NODE_ID.s() + ".value", Direction.ASC));
+
+		if (ops.exists(new Query(Criteria.where(TimelineEntry.FIELD_KEY).is(KEY_REBUILT)), TimelineEntry.class)) {
+			ready = true;
+			log.debug("Timelines ready.");
+		} else {
+			rebuild();
+		}
+	}
+
+	/* Rebuilds all timelines from scratch in the background, and returns immediately */
+	public String rebuild() {
+		if (!rebuilding.compareAndSet(false, true)) {
+			return "Timeline rebuild is already running.";
+		}
+
+		executor.execute(() -> {
+			try {
+				rebuildInternal();
+			} catch (Exception e) {
+				log.error("Timeline rebuild failed", e);
+			} finally {
+				rebuilding.set(false);
+			}
+		});
+		return "Timeline rebuild started.";
+	}
+
+	private void rebuildInternal() {
+		long startTime = System.currentTimeMillis();
+		log.debug("Timeline rebuild starting.");
+		ready = false;
+		// this removes the KEY_REBUILT entry too, so if we don't finish the next startup rebuilds again
+		ops.remove(new Query(), TimelineEntry.class);
+
+		HashMap<String, List<String>> followersByUserId = getAllFollowers();
+
+		Query query = new Query();
+		query.addCriteria(feedNodesCriteria());
+
+		long count = 0;
+		BulkOperations bops = null;
+		int batchCount = 0;
+
+		try (CloseableIterator<SubNode> iter = ops.stream(query, SubNode.class)) {
+			while (iter.hasNext()) {
+				if (AppServer.isShuttingDown()) {
+					return;
+				}
+				SubNode node = iter.next();
+				if (node.getModifyTime() == null)
+					continue;
+
+				if (bops == null) {
+					bops = ops.bulkOps(BulkMode.UNORDERED, TimelineEntry.class);
+				}
+
+				TimelineEntry entry = toEntry(node);
+				HashSet<String> keys = getShareKeys(node);
+				addFollowerKeys(keys, followersByUserId.get(node.getOwner().toHexString()));
+				for (String key : keys) {
+					addUpsert(bops, key, entry);
+					batchCount++;
+				}
+				count++;
+
+				if (batchCount >= BATCH_SIZE) {
+					bops.execute();
+					bops = null;
+					batchCount = 0;
+				}
+			}
+		}
+
+		if (bops != null) {
+			bops.execute();
+		}
+
+		TimelineEntry rebuilt = new TimelineEntry();
+		rebuilt.setKey(KEY_REBUILT);
+		rebuilt.setModifyTime(new Date());
+		ops.insert(rebuilt);
+
+		ready = true;
+		log.debug("Timeline rebuild of " + count + " nodes complete in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/*
+	 * Returns a hash of everything about 'node' that its timeline entries depend on, or null if it
+	 * doesn't belong on any timeline. This is kept on each node as it's loaded, so that on save we can
+	 * tell whether the save changed any timeline.
+	 */
+	public Integer getTimelineState(SubNode node) {
+		if (node.getId() == null || node.getOwner() == null || node.getModifyTime() == null || !belongsOnTimelines(node))
+			return null;
+
+		return Objects.hash(node.authHash(), node.getModifyTime(), node.getStrProp(NodeProp.ACT_PUB_SENSITIVE.s()),
+				node.getStrProp(NodeProp.ACT_PUB_OBJ_ATTRIBUTED_TO.s()));
+	}
+
+	/*
+	 * Puts 'node' on every timeline it belongs on, and removes it from any it no longer belongs on. This
+	 * is called after every save of a node (see MongoEventListener), but only does anything when the
+	 * save changed what's on the timelines (see getTimelineState). We take what we need from the node
+	 * right away, because the caller is free to keep modifying it, and then do the writes in the
+	 * background.
+	 */
+	public void fanOut(SubNode node) {
+		if (node == null || node.getId() == null || node.getOwner() == null)
+			return;
+
+		// nodes not loaded from the DB are new ones
+		boolean isNew = node.getLoadedAuthHash() == null;
+		Integer loadedState = node.getLoadedTimelineState();
+		Integer state = getTimelineState(node);
+		node.setLoadedTimelineState(state);
+
+		// a friend node saved into a friend list means the owner may have just started following someone
+		if (isNew && NodeType.FRIEND.s().equals(node.getType())) {
+			String userNodeId = node.getStrProp(NodeProp.USER_NODE_ID.s());
+			String parentPath = node.getParentPath();
+			if (userNodeId != null && parentPath != null) {
+				ObjectId followerId = node.getOwner();
+				executor.execute(() -> {
+					if (getFriendListPaths(Collections.singleton(parentPath)).size() > 0) {
+						addFollow(followerId, new ObjectId(userNodeId));
+					}
+				});
+			}
+		}
+
+		boolean wasOn = !isNew && loadedState != null;
+		if (state == null ? !wasOn : (wasOn && state.equals(loadedState)))
+			return;
+
+		boolean belongs = state != null;
+		queueFanOut(node.getId(), new FanOut(toEntry(node), belongs ? getShareKeys(node) : new HashSet<>(), belongs, wasOn));
+	}
+
+	private void queueFanOut(ObjectId nodeId, FanOut fanOut) {
+		synchronized (pendingFanOuts) {
+			FanOut replaced = pendingFanOuts.remove(nodeId);
+			if (replaced != null && replaced.wasOn) {
+				fanOut.wasOn = true;
+			}
+
+			if (pendingFanOuts.size() < MAX_PENDING_FAN_OUTS) {
+				pendingFanOuts.put(nodeId, fanOut);
+				if (!draining) {
+					draining = true;
+					executor.execute(() -> drainFanOuts());
+				}
+				return;
+			}
+		}
+		writeFanOut(fanOut);
+	}
+
+	private void drainFanOuts() {
+		while (true) {
+			FanOut fanOut;
+			synchronized (pendingFanOuts) {
+				Iterator<FanOut> iter = pendingFanOuts.values().iterator();
+				if (!iter.hasNext()) {
+					draining = false;
+					return;
+				}
+				fanOut = iter.next();
+				iter.remove();
+			}
+			writeFanOut(fanOut);
+		}
+	}
+
+	private void writeFanOut(FanOut fanOut) {
+		try {
+			TimelineEntry entry = fanOut.entry;
+			HashSet<String> keys = fanOut.shareKeys;
+			if (fanOut.belongs) {
+				addFollowerKeys(keys, getFollowerIds(entry.getOwner()));
+			}
+
+			// a node that was never on a timeline has nothing to remove
+			if (fanOut.wasOn) {
+				Query removeQuery = new Query();
+				removeQuery.addCriteria(Criteria.where(TimelineEntry.FIELD_NODE_ID).is(entry.getNodeId()) //
+						.and(TimelineEntry.FIELD_KEY).nin(keys));
+				ops.remove(removeQuery, TimelineEntry.class);
+			}
+
+			if (keys.size() == 0)
+				return;
+
+			BulkOperations bops = ops.bulkOps(BulkMode.UNORDERED, TimelineEntry.class);
+			for (String key : keys) {
+				addUpsert(bops, key, entry);
+			}
+			bops.execute();
+		} catch (Exception e) {
+			log.error("Timeline fan out failed", e);
+		}
+	}
+
+	/*
+	 * Called when 'followerId' starts following 'userId' to put the most recent nodes of 'userId' onto
+	 * the friends timeline of 'followerId', since fanOut only puts nodes on it as they're saved.
+	 */
+	public void addFollow(ObjectId followerId, ObjectId userId) {
+		if (!ready || followerId == null || userId == null)
+			return;
+
+		Query query = new Query();
+		query.addCriteria(feedNodesCriteria().and(SubNode.FIELD_OWNER).is(userId));
+		query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME));
+		query.limit(appProp.getTimelineMaxEntries());
+
+		String key = followerId.toHexString() + SUFFIX_FROM_FRIEND;
+		BulkOperations bops = null;
+		for (SubNode node : ops.find(query, SubNode.class)) {
+			if (node.getModifyTime() == null)
+				continue;
+			if (bops == null) {
+				bops = ops.bulkOps(BulkMode.UNORDERED, TimelineEntry.class);
+			}
+			addUpsert(bops, key, toEntry(node));
+		}
+
+		if (bops != null) {
+			bops.execute();
+		}
+	}
+
+	/* Removes the node from all timelines */
+	public void removeNode(ObjectId nodeId) {
+		Query query = new Query();
+		query.addCriteria(Criteria.where(TimelineEntry.FIELD_NODE_ID).is(nodeId));
+		ops.remove(query, TimelineEntry.class);
+	}
+
+	/* Holds the node fields the timelines need, with the key left unset */
+	private TimelineEntry toEntry(SubNode node) {
+		TimelineEntry entry = new TimelineEntry();
+		entry.setNodeId(node.getId());
+		entry.setModifyTime(node.getModifyTime());
+		entry.setOwner(node.getOwner());
+		entry.setSensitive(node.getStrProp(NodeProp.ACT_PUB_SENSITIVE.s()) != null ? true : null);
+		entry.setForeign(node.getStrProp(NodeProp.ACT_PUB_OBJ_ATTRIBUTED_TO.s()) != null ? true : null);
+		return entry;
+	}
+
+	private void addUpsert(BulkOperations bops, String key, TimelineEntry entry) {
+		Query query = new Query();
+		query.addCriteria(Criteria.where(TimelineEntry.FIELD_KEY).is(key).and(TimelineEntry.FIELD_NODE_ID).is(entry.getNodeId()));
+
+		// $max because fan outs of two quick saves of the same node can run in either order
+		Update update = new Update().max(TimelineEntry.FIELD_MODIFY_TIME, entry.getModifyTime()) //
+				.set(TimelineEntry.FIELD_OWNER, entry.getOwner()) //
+				.set(TimelineEntry.FIELD_SENSITIVE, entry.getSensitive()) //
+				.set(TimelineEntry.FIELD_FOREIGN, entry.getForeign());
+		bops.upsert(query, update);
+	}
+
+	/* Same rules generateFeed has always had for which nodes can be on a feed */
+	public boolean belongsOnTimelines(SubNode node) {
+		String type = node.getType();
+		return node.getPath() != null && node.getPath().startsWith(NodeName.ROOT_OF_ALL_USERS + "/") //
+				&& !NodeType.FRIEND.s().equals(type) //
+				&& !NodeType.POSTS.s().equals(type) //
+				&& !NodeType.ACT_PUB_POSTS.s().equals(type);
+	}
+
+	private Criteria feedNodesCriteria() {
+		return util.subGraphCriteria(NodeName.ROOT_OF_ALL_USERS) //
+				.andOperator(Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.FRIEND.s()), //
+						Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.POSTS.s()), //
+						Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.ACT_PUB_POSTS.s()));
+	}
+
+	/* Keys of the timelines 'node' belongs on because of who it's shared to */
+	private HashSet<String> getShareKeys(SubNode node) {
+		HashSet<String> keys = new HashSet<>();
+
+		if (node.getAc() != null && node.getAc().size() > 0) {
+			for (String principal : node.getAc().keySet()) {
+				if (KEY_PUBLIC.equals(principal)) {
+					keys.add(KEY_PUBLIC);
+				} else {
+					keys.add(principal + SUFFIX_TO_USER);
+				}
+			}
+			keys.add(node.getOwner().toHexString() + SUFFIX_FROM_USER);
+		}
+		return keys;
+	}
+
+	private void addFollowerKeys(HashSet<String> keys, List<String> followerIds) {
+		if (followerIds != null) {
+			for (String followerId : followerIds) {
+				keys.add(followerId + SUFFIX_FROM_FRIEND);
+			}
+		}
+	}
+
+	/*
+	 * Returns the account IDs of all users following 'userId', which are the owners of all the friend
+	 * nodes pointing to 'userId' that are in a friend list (as opposed to a blocked users list).
+	 */
+	private List<String> getFollowerIds(ObjectId userId) {
+		List<String> ret = new LinkedList<>();
+
+		Query query = new Query();
+		query.addCriteria(Criteria.where(SubNode.FIELD_PROPERTIES + "." + NodeProp.USER_NODE_ID.s() + ".value").is(userId.toHexString()) //
+				.and(SubNode.FIELD_TYPE).is(NodeType.FRIEND.s()));
+
+		List<SubNode> friendNodes = ops.find(query, SubNode.class);
+		if (friendNodes.size() == 0)
+			return ret;
+
+		HashSet<String> parentPaths = new HashSet<>();
+		for (SubNode friendNode : friendNodes) {
+			parentPaths.add(friendNode.getParentPath());
+		}
+		HashSet<String> friendListPaths = getFriendListPaths(parentPaths);
+
+		for (SubNode friendNode : friendNodes) {
+			if (friendListPaths.contains(friendNode.getParentPath())) {
+				ret.add(friendNode.getOwner().toHexString());
+			}
+		}
+		return ret;
+	}
+
+	/* Builds a map from every user ID to the IDs of all users following them */
+	private HashMap<String, List<String>> getAllFollowers() {
+		HashMap<String, List<String>> ret = new HashMap<>();
+		HashSet<String> friendListPaths = getFriendListPaths(null);
+
+		Query query = new Query();
+		query.addCriteria(Criteria.where(SubNode.FIELD_TYPE).is(NodeType.FRIEND.s()));
+
+		for (SubNode friendNode : ops.find(query, SubNode.class)) {
+			String userNodeId = friendNode.getStrProp(NodeProp.USER_NODE_ID.s());
+			if (userNodeId == null || !friendListPaths.contains(friendNode.getParentPath()))
+				continue;
+
+			List<String> followers = ret.get(userNodeId);
+			if (followers == null) {
+				followers = new LinkedList<>();
+				ret.put(userNodeId, followers);
+			}
+			followers.add(friendNode.getOwner().toHexString());
+		}
+		return ret;
+	}
+
+	/* Returns the paths of all the friend lists, or of only those at one of 'paths' when non-null */
+	private HashSet<String> getFriendListPaths(Collection<String> paths) {
+		HashSet<String> ret = new HashSet<>();
+		Criteria criteria = Criteria.where(SubNode.FIELD_TYPE).is(NodeType.FRIEND_LIST.s());
+		if (paths != null) {
+			List<String> pathHashes = new LinkedList<>();
+			for (String path : paths) {
+				pathHashes.add(DigestUtils.sha256Hex(path));
+			}
+			criteria = criteria.and(SubNode.FIELD_PATH_HASH).in(pathHashes);
+		}
+		Query query = new Query();
+		query.addCriteria(criteria);
+		query.fields().include(SubNode.FIELD_PATH);
+
+		for (Document doc : ops.find(query, Document.class, ops.getCollectionName(SubNode.class))) {
+			ret.add(doc.getString(SubNode.FIELD_PATH));
+		}
+		return ret;
+	}
+
+	/*
+	 * Returns up to 'max' nodes, newest first, from the timelines in 'keys' that come after 'cursor'
+	 * (if non-null) and that pass 'filter'. The filter is applied to the current state of
+	 * each node, so that a timeline entry left behind by some change we didn't see (like a user
+	 * unfollowing someone) never causes anything to be shown that shouldn't be.
+	 */
+	public List<SubNode> getFeedNodes(List<String> keys, List<ObjectId> blockedUserIds, boolean nsfw, boolean localOnly,
+			PageCursor cursor, int max, Predicate<SubNode> filter) {
+		List<SubNode> ret = new LinkedList<>();
+
+		Criteria criteria = Criteria.where(TimelineEntry.FIELD_KEY).in(keys);
+		if (blockedUserIds != null && blockedUserIds.size() > 0) {
+			criteria = criteria.and(TimelineEntry.FIELD_OWNER).nin(blockedUserIds);
+		}
+		if (!nsfw) {
+			criteria = criteria.and(TimelineEntry.FIELD_SENSITIVE).is(null);
+		}
+		if (localOnly) {
+			criteria = criteria.and(TimelineEntry.FIELD_FOREIGN).is(null);
+		}
+
+		Query query = new Query();
+		query.addCriteria(criteria);
+		query.with(Sort.by(Sort.Direction.DESC, TimelineEntry.FIELD_MODIFY_TIME));
+		if (cursor != null) {
+			query.addCriteria(cursor.criteria(null, TimelineEntry.FIELD_NODE_ID));
+		}
+
+		// the same node can be on more than one of the timelines
+		HashSet<ObjectId> nodeIdsSeen = new HashSet<>();
+		List<ObjectId> batch = new LinkedList<>();
+
+		try (CloseableIterator<TimelineEntry> iter = ops.stream(query, TimelineEntry.class)) {
+			while (ret.size() < max && iter.hasNext()) {
+				TimelineEntry entry = iter.next();
+				if (nodeIdsSeen.add(entry.getNodeId())) {
+					batch.add(entry.getNodeId());
+				}
+
+				if (batch.size() >= max || !iter.hasNext()) {
+					loadFeedNodes(batch, ret, max, filter);
+					batch.clear();
+				}
+			}
+		}
+		return ret;
+	}
+
+	/* Loads all the nodes in 'nodeIds' in one query, adding them to 'nodes' in order */
+	private void loadFeedNodes(List<ObjectId> nodeIds, List<SubNode> nodes, int max, Predicate<SubNode> filter) {
+		if (nodeIds.size() == 0)
+			return;
+
+		Query query = new Query();
+		query.addCriteria(Criteria.where(SubNode.FIELD_ID).in(nodeIds));
+
+		HashMap<ObjectId, SubNode> nodesById = new HashMap<>();
+		for (SubNode node : util.find(query)) {
+			nodesById.put(node.getId(), node);
+		}
+
+		for (ObjectId nodeId : nodeIds) {
+			SubNode node = nodesById.get(nodeId);
+			if (node != null && filter.test(node)) {
+				nodes.add(node);
+				if (nodes.size() >= max)
+					break;
+			}
+		}
+	}
+
+	/*
+	 * Keeps each timeline to the configured max number of entries, deleting the oldest ones.
+	 */
+	@Scheduled(fixedDelay = 60 * DateUtil.MINUTE_MILLIS)
+	public void trim() {
+		if (!ready || !MongoRepository.fullInit || AppServer.isShuttingDown() || !trimming.compareAndSet(false, true))
+			return;
+
+		try {
+			int maxEntries = appProp.getTimelineMaxEntries();
+
+			Aggregation agg = Aggregation.newAggregation( //
+					Aggregation.group(TimelineEntry.FIELD_KEY).count().as("count"), //
+					Aggregation.match(Criteria.where("count").gt(maxEntries))) //
+					.withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+
+			long totalDeleted = 0;
+			for (Document doc : ops.aggregate(agg, TimelineEntry.class, Document.class).getMappedResults()) {
+				String key = doc.getString("_id");
+
+				// find the newest entry that's too old to keep
+				Query query = new Query();
+				query.addCriteria(Criteria.where(TimelineEntry.FIELD_KEY).is(key));
+				query.with(Sort.by(Sort.Direction.DESC, TimelineEntry.FIELD_MODIFY_TIME));
+				query.skip(maxEntries);
+				TimelineEntry cutoff = ops.findOne(query, TimelineEntry.class);
+				if (cutoff == null)
+					continue;
+
+				Query delQuery = new Query();
+				delQuery.addCriteria(Criteria.where(TimelineEntry.FIELD_KEY).is(key) //
+						.and(TimelineEntry.FIELD_MODIFY_TIME).lte(cutoff.getModifyTime()));
+				totalDeleted += ops.remove(delQuery, TimelineEntry.class).getDeletedCount();
+			}
+
+			if (totalDeleted > 0) {
+				log.debug("Timeline entries trimmed: " + totalDeleted);
+			}
+		} catch (Exception e) {
+			log.error("Timeline trim failed", e);
+		} finally {
+			trimming.set(false);
+		}
+	}
+}
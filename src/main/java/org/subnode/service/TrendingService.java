@@ -0,0 +1,399 @@
+package org.subnode.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.StringTokenizer;
+import java.util.concurrent.Executor;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.subnode.config.NodeName;
+import org.subnode.model.client.PrincipalName;
+import org.subnode.mongo.MongoUtil;
+import org.subnode.mongo.model.SubNode;
+import org.subnode.util.BoundedCache;
+import org.subnode.util.DateUtil;
+import org.subnode.util.EnglishDictionary;
+
+/**
+ * Trending words, hashtags and mentions of the public feed, kept up to date as nodes are saved so
+ * that the Trending tab never has to query and tokenize thousands of nodes.
+ *
+ * Each public node is tokenized once, the first time it's saved with content, and its tokens are
+ * counted into the bucket for the hour of its modify time. We keep the last WINDOW_HOURS hourly
+ * buckets along with a running total over all of them, and when an hour falls out of the window its
+ * counts are subtracted back out of the totals. Once a minute (if anything changed) the top words,
+ * tags and mentions are picked out of the totals with a bounded heap, so a request for them is just
+ * a copy of the current top lists.
+ */
+@Component
+public class TrendingService {
+	private static final Logger log = LoggerFactory.getLogger(TrendingService.class);
+
+	// Warning: Do not add '#' or '@', those are special (see tokenize)
+	static final String WORD_DELIMS = " \n\r\t,-;:\"'`()*{}[]<>=\\/.!?&“";
+
+	private static final int WINDOW_HOURS = 24;
+	private static final long WINDOW_MILLIS = WINDOW_HOURS * (long) DateUtil.HOUR_MILLIS;
+
+	/* Number of top words (and tags, and mentions) we keep */
+	private static final int TOP_K = 100;
+
+	/* Max distinct tokens of each kind in the totals, so a flood of junk can't use up the memory */
+	private static final int MAX_TOKENS = 100000;
+
+	/* Max nodes loaded from the DB at startup, to fill the window */
+	private static final int SEED_LIMIT = 10000;
+
+	@Autowired
+	private MongoUtil util;
+
+	@Autowired
+	private EnglishDictionary englishDictionary;
+
+	@Autowired
+	private TimelineService timelineService;
+
+	@Autowired
+	@Qualifier("threadPoolTaskExecutor")
+	private Executor executor;
+
+	public enum Kind {
+		WORD, TAG, MENTION
+	}
+
+	public interface TokenVisitor {
+		void visit(Kind kind, String token);
+	}
+
+	private static class Bucket {
+		final long startTime;
+		final EnumMap<Kind, HashMap<String, Long>> counts = new EnumMap<>(Kind.class);
+		long nodeCount;
+		long wordCount;
+
+		Bucket(long startTime) {
+			this.startTime = startTime;
+			for (Kind kind : Kind.values()) {
+				counts.put(kind, new HashMap<>());
+			}
+		}
+	}
+
+	/* Oldest first */
+	private final LinkedList<Bucket> buckets = new LinkedList<>();
+
+	/* Totals over all the buckets, keyed by lower case token */
+	private final EnumMap<Kind, HashMap<String, WordStats>> totals = new EnumMap<>(Kind.class);
+	private long totalNodes;
+	private long totalWords;
+	private boolean dirty;
+
+	/* Nodes already counted, so saving a node again doesn't count it twice */
+	private final BoundedCache<ObjectId, Boolean> countedNodes =
+			new BoundedCache<>("Trending Counted Nodes", SEED_LIMIT * 10, WINDOW_MILLIS);
+
+	/* The current top lists, which are replaced (never modified) by refreshTop */
+	private volatile EnumMap<Kind, List<String>> top = new EnumMap<>(Kind.class);
+	private volatile String stats = "";
+
+	public TrendingService() {
+		for (Kind kind : Kind.values()) {
+			totals.put(kind, new HashMap<>());
+			top.put(kind, Collections.emptyList());
+		}
+	}
+
+	/* Called once at startup. Fills the window from the DB in the background */
+	public void init() {
+		executor.execute(() -> {
+			try {
+				seed();
+			} catch (Exception e) {
+				log.error("Failed loading trending data", e);
+			}
+		});
+	}
+
+	private void seed() {
+		Query query = new Query();
+		Criteria criteria = util.subGraphCriteria(NodeName.ROOT_OF_ALL_USERS) //
+				.and(SubNode.FIELD_AC + "." + PrincipalName.PUBLIC.s()).ne(null) //
+				.and(SubNode.FIELD_MODIFY_TIME).gte(new Date(System.currentTimeMillis() - WINDOW_MILLIS));
+
+		query.addCriteria(criteria);
+		query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME));
+		query.limit(SEED_LIMIT);
+
+		int count = 0;
+		for (SubNode node : util.find(query)) {
+			if (isTrendable(node) && countNode(node)) {
+				count++;
+			}
+		}
+		refreshTop();
+		log.debug("Trending data loaded from " + count + " nodes.");
+	}
+
+	/* Called after every save of a node */
+	public void nodeSaved(SubNode node) {
+		if (!isTrendable(node) || countedNodes.get(node.getId()) != null)
+			return;
+
+		// the node can be changed after this returns, so we count a copy of what was saved
+		SubNode copy = new SubNode();
+		copy.setId(node.getId());
+		copy.setContent(node.getContent());
+		copy.setModifyTime(node.getModifyTime());
+		executor.execute(() -> countNode(copy));
+	}
+
+	private boolean isTrendable(SubNode node) {
+		return node.getId() != null && node.getModifyTime() != null && !StringUtils.isEmpty(node.getContent()) //
+				&& node.getAc() != null && node.getAc().containsKey(PrincipalName.PUBLIC.s()) //
+				&& timelineService.belongsOnTimelines(node);
+	}
+
+	/* Counts the tokens of 'node' into the bucket for its modify time. Returns false if it wasn't counted */
+	private boolean countNode(SubNode node) {
+		long time = node.getModifyTime().getTime();
+		if (time < System.currentTimeMillis() - WINDOW_MILLIS || StringUtils.isEmpty(node.getContent()))
+			return false;
+
+		// tokenize before taking the lock
+		EnumMap<Kind, HashMap<String, String>> tokens = new EnumMap<>(Kind.class);
+		EnumMap<Kind, HashMap<String, Long>> counts = new EnumMap<>(Kind.class);
+		for (Kind kind : Kind.values()) {
+			tokens.put(kind, new HashMap<>());
+			counts.put(kind, new HashMap<>());
+		}
+		long wordCount = tokenize(node.getContent(), (kind, token) -> {
+			String lcToken = token.toLowerCase();
+			tokens.get(kind).putIfAbsent(lcToken, token);
+			counts.get(kind).merge(lcToken, 1L, Long::sum);
+		});
+
+		synchronized (buckets) {
+			if (countedNodes.get(node.getId()) != null)
+				return false;
+			countedNodes.put(node.getId(), true);
+
+			Bucket bucket = getBucket(time);
+			if (bucket == null)
+				return false;
+
+			for (Kind kind : Kind.values()) {
+				HashMap<String, WordStats> kindTotals = totals.get(kind);
+				HashMap<String, Long> bucketCounts = bucket.counts.get(kind);
+
+				for (Map.Entry<String, Long> entry : counts.get(kind).entrySet()) {
+					WordStats ws = kindTotals.get(entry.getKey());
+					if (ws == null) {
+						if (kindTotals.size() >= MAX_TOKENS)
+							continue;
+						ws = new WordStats(tokens.get(kind).get(entry.getKey()));
+						kindTotals.put(entry.getKey(), ws);
+					}
+					ws.count += entry.getValue();
+					bucketCounts.merge(entry.getKey(), entry.getValue(), Long::sum);
+				}
+			}
+
+			bucket.nodeCount++;
+			bucket.wordCount += wordCount;
+			totalNodes++;
+			totalWords += wordCount;
+			dirty = true;
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the bucket for 'time', first adding any buckets needed up to now and dropping those that
+	 * fell out of the window. Returns null if 'time' is before the window. Caller must hold the lock.
+	 */
+	private Bucket getBucket(long time) {
+		long now = System.currentTimeMillis();
+		long currentStart = now - now % DateUtil.HOUR_MILLIS;
+		long windowStart = currentStart - (WINDOW_HOURS - 1) * (long) DateUtil.HOUR_MILLIS;
+
+		while (buckets.size() > 0 && buckets.getFirst().startTime < windowStart) {
+			expire(buckets.removeFirst());
+		}
+
+		long nextStart = buckets.size() > 0 ? buckets.getLast().startTime + DateUtil.HOUR_MILLIS : windowStart;
+		for (long start = Math.max(nextStart, windowStart); start <= currentStart; start += DateUtil.HOUR_MILLIS) {
+			buckets.addLast(new Bucket(start));
+		}
+
+		if (time < windowStart)
+			return null;
+
+		// posts dated in the future go in the current hour
+		long start = Math.min(time - time % DateUtil.HOUR_MILLIS, currentStart);
+		for (Bucket bucket : buckets) {
+			if (bucket.startTime == start)
+				return bucket;
+		}
+		return null;
+	}
+
+	/* Subtracts the counts of a bucket that fell out of the window from the totals */
+	private void expire(Bucket bucket) {
+		for (Kind kind : Kind.values()) {
+			HashMap<String, WordStats> kindTotals = totals.get(kind);
+			for (Map.Entry<String, Long> entry : bucket.counts.get(kind).entrySet()) {
+				WordStats ws = kindTotals.get(entry.getKey());
+				if (ws == null)
+					continue;
+				ws.count -= entry.getValue();
+				if (ws.count <= 0) {
+					kindTotals.remove(entry.getKey());
+				}
+			}
+		}
+		totalNodes -= bucket.nodeCount;
+		totalWords -= bucket.wordCount;
+		dirty = true;
+	}
+
+	/* Picks the new top lists out of the totals, if anything changed */
+	@Scheduled(fixedDelay = DateUtil.MINUTE_MILLIS)
+	public void refreshTop() {
+		synchronized (buckets) {
+			// moves the window along, even when nothing is being saved
+			getBucket(System.currentTimeMillis());
+			if (!dirty)
+				return;
+			dirty = false;
+
+			EnumMap<Kind, List<String>> newTop = new EnumMap<>(Kind.class);
+			for (Kind kind : Kind.values()) {
+				newTop.put(kind, getTop(totals.get(kind)));
+			}
+			top = newTop;
+			stats = "Node count: " + totalNodes + ", Total Words: " + totalWords + ", Unique Words: "
+					+ totals.get(Kind.WORD).size();
+		}
+	}
+
+	/* Returns the TOP_K most counted words in 'kindTotals', most counted first */
+	private List<String> getTop(HashMap<String, WordStats> kindTotals) {
+		PriorityQueue<WordStats> heap = new PriorityQueue<>(TOP_K + 1, (s1, s2) -> Long.compare(s1.count, s2.count));
+		for (WordStats ws : kindTotals.values()) {
+			if (heap.size() < TOP_K) {
+				heap.add(ws);
+			} else if (ws.count > heap.peek().count) {
+				heap.poll();
+				heap.add(ws);
+			}
+		}
+
+		ArrayList<String> ret = new ArrayList<>(heap.size());
+		while (heap.size() > 0) {
+			ret.add(heap.poll().word);
+		}
+		Collections.reverse(ret);
+		return Collections.unmodifiableList(ret);
+	}
+
+	public List<String> getTopWords() {
+		return new ArrayList<>(top.get(Kind.WORD));
+	}
+
+	public List<String> getTopTags() {
+		return new ArrayList<>(top.get(Kind.TAG));
+	}
+
+	public List<String> getTopMentions() {
+		return new ArrayList<>(top.get(Kind.MENTION));
+	}
+
+	public String getStats() {
+		return stats;
+	}
+
+	/*
+	 * Calls 'visitor' for each word, hashtag and mention in 'content' that isn't a stop word, and returns
+	 * the total number of words
+	 */
+	public long tokenize(String content, TokenVisitor visitor) {
+		long totalWords = 0;
+		content = fixMastodonMangles(content);
+
+		StringTokenizer tokens = new StringTokenizer(content, WORD_DELIMS, false);
+		while (tokens.hasMoreTokens()) {
+			String token = tokens.nextToken().trim();
+
+			if (!englishDictionary.isStopWord(token)) {
+				// if word is a mention.
+				if (token.startsWith("@")) {
+					if (token.length() == 1)
+						continue;
+					visitor.visit(Kind.MENTION, token);
+				}
+				// if word is a hashtag.
+				else if (token.startsWith("#")) {
+					if (token.endsWith("#") || token.length() == 1)
+						continue;
+
+					// ignore stuff like #1 #23
+					String numCheck = token.substring(1);
+					if (StringUtils.isNumeric(numCheck))
+						continue;
+					visitor.visit(Kind.TAG, token);
+				}
+				// ordinary word
+				else {
+					if (!StringUtils.isAlpha(token)) {
+						continue;
+					}
+					visitor.visit(Kind.WORD, token);
+				}
+			}
+			totalWords++;
+		}
+		return totalWords;
+	}
+
+	// replace #<span> with " #". This is a quick and dirty way to fix the way
+	// Mastodon mangles hashes in the text.
+	public String fixMastodonMangles(String content) {
+		if (content == null)
+			return null;
+		content = content.replace("#\\u003cspan\\u003e", " #");
+		content = content.replace("#<span>", " #");
+		content = content.replace("\\u003c", " ");
+		content = content.replace("\\u003e", " ");
+		return content;
+	}
+
+	public String getStatsReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nTrending Stats:\n");
+		synchronized (buckets) {
+			sb.append("Hourly Buckets: " + buckets.size() + "\n");
+			sb.append("Nodes: " + totalNodes + " Words: " + totalWords + "\n");
+			for (Kind kind : Kind.values()) {
+				sb.append("Distinct " + kind.name().toLowerCase() + "s: " + totals.get(kind).size() + "\n");
+			}
+		}
+		sb.append(countedNodes.getStatsReport());
+		return sb.toString();
+	}
+}
@@ -1,6 +1,7 @@
 package org.subnode.service;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,8 +20,10 @@ import org.springframework.data.mongodb.core.query.TextCriteria;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+import org.subnode.config.AppProp;
 import org.subnode.config.NodeName;
 import org.subnode.config.SessionContext;
+import org.subnode.config.SessionRegistry;
 import org.subnode.model.NodeInfo;
 import org.subnode.model.client.NodeProp;
 import org.subnode.model.client.NodeType;
@@ -31,6 +34,7 @@ import org.subnode.mongo.MongoSession;
 import org.subnode.mongo.MongoThreadLocal;
 import org.subnode.mongo.MongoUpdate;
 import org.subnode.mongo.MongoUtil;
+import org.subnode.mongo.PageCursor;
 import org.subnode.mongo.model.SubNode;
 import org.subnode.request.CheckMessagesRequest;
 import org.subnode.request.NodeFeedRequest;
@@ -67,6 +71,12 @@ public class UserFeedService {
 	@Autowired
 	private UserManagerService userManagerService;
 
+	@Autowired
+	private TimelineService timelineService;
+
+	@Autowired
+	private AppProp appProp;
+
 	@Autowired
 	private MongoTemplate ops;
 
@@ -86,33 +96,26 @@ public class UserFeedService {
 			return;
 		}
 
-		// put user names in a hash set for faster performance
+		// put user names in a hash set, so each user gets only one push per session
 		HashSet<String> usersSharedToSet = new HashSet<>();
 		usersSharedToSet.addAll(usersSharedTo);
 
 		/*
-		 * Get a local list of 'allSessions' so we can release the lock on the SessionContent varible
-		 * immediately
+		 * The converted node only varies by a few things about the session it's for (see
+		 * Convert.getRenderContextKey), so we convert it once for each distinct set of those and share the
+		 * result among all the sessions with the same ones.
 		 */
-		List<SessionContext> allSessions = new LinkedList<>();
-		synchronized (SessionContext.allSessions) {
-			allSessions.addAll(SessionContext.allSessions);
-		}
+		HashMap<String, FeedPushInfo> pushInfoByContext = new HashMap<>();
 
-		/* Scan all sessions and push message to the ones that need to see it */
-		for (SessionContext sc : allSessions) {
-			/* Anonymous sessions won't have userName and can be ignored */
-			if (sc.getUserName() == null)
-				continue;
-
-			/* build our push message payload */
-			NodeInfo nodeInfo = convert.convertToNodeInfo(sc, session, node, true, false, 1, false, false, true);
-			FeedPushInfo pushInfo = new FeedPushInfo(nodeInfo);
+		/* Look up the sessions of only the users being shared to, rather than scanning every session */
+		for (String userName : usersSharedToSet) {
+			for (SessionContext sc : SessionRegistry.getSessionsByUserName(userName)) {
+				/* build our push message payload */
+				FeedPushInfo pushInfo = pushInfoByContext.computeIfAbsent(convert.getRenderContextKey(sc, node), k -> {
+					NodeInfo nodeInfo = convert.convertToNodeInfo(sc, session, node, true, false, 1, false, false, true);
+					return new FeedPushInfo(nodeInfo);
+				});
 
-			/*
-			 * push if the sc user is in the shared set or this session is OURs,
-			 */
-			if (usersSharedToSet.contains(sc.getUserName())) {
 				// push notification message to browser
 				sendServerPushInfo(sc, pushInfo);
 			}
@@ -122,71 +125,96 @@ public class UserFeedService {
 	/* Notify all browser timelines if they have new info */
 	public void pushTimelineUpdateToBrowsers(MongoSession session, NodeInfo nodeInfo) {
 		/*
-		 * Get a local list of 'allSessions' so we can release the lock on the SessionContent varible
-		 * immediately
+		 * Nodes whose path is at or under the "timeline path" of a session are subnodes of (or descendants
+		 * of) the timeline node and therefore will be sent to their respecitve browsers, so we only need to
+		 * look up the sessions on each ancestor path of the node.
 		 */
-		List<SessionContext> allSessions = new LinkedList<>();
-		synchronized (SessionContext.allSessions) {
-			allSessions.addAll(SessionContext.allSessions);
-		}
-
-		/* Scan all sessions and push message to the ones that need to see it */
-		for (SessionContext sc : allSessions) {
+		for (SessionContext sc : SessionRegistry.getSessionsByTimelineOf(nodeInfo.getPath())) {
 			/* Anonymous sessions can be ignored */
 			if (sc.getUserName() == null)
 				continue;
 
-			/*
-			 * Nodes whose path starts with "timeline path", are subnodes of (or descendants of) the timeline
-			 * node and therefore will be sent to their respecitve browsers
-			 */
-			if (sc.getTimelinePath() == null || !nodeInfo.getPath().startsWith(sc.getTimelinePath())) {
-				continue;
-			}
-
 			NodeEditedPushInfo pushInfo = new NodeEditedPushInfo(nodeInfo);
 			sendServerPushInfo(sc, pushInfo);
 		}
 	}
 
+	/*
+	 * Queues 'info' to be sent to the browser of 'sc'. Messages to each browser go out in order, on at
+	 * most one thread at a time, and the queue is bounded (see PushQueue) so a browser that's slow to
+	 * accept them can't tie up the executor or build up a backlog without limit.
+	 */
 	public void sendServerPushInfo(SessionContext sc, ServerPushInfo info) {
 		// If user is currently logged in we have a session here.
 		if (sc == null)
 			return;
 
-		executor.execute(() -> {
-			SseEmitter pushEmitter = sc.getPushEmitter();
-			if (pushEmitter == null)
-				return;
+		if (sc.getPushQueue().offer(info, getCoalesceKey(info), appProp.getPushQueueSize())) {
+			executor.execute(() -> drainPushQueue(sc));
+		}
+	}
+
+	/*
+	 * Pushes about the same node replace each other while waiting in the queue, since the browser only
+	 * needs the latest. Anything else is never coalesced.
+	 */
+	private String getCoalesceKey(ServerPushInfo info) {
+		NodeInfo nodeInfo = null;
+		if (info instanceof FeedPushInfo) {
+			nodeInfo = ((FeedPushInfo) info).getNodeInfo();
+		} else if (info instanceof NodeEditedPushInfo) {
+			nodeInfo = ((NodeEditedPushInfo) info).getNodeInfo();
+		}
+		return nodeInfo != null ? info.getType() + ":" + nodeInfo.getId() : null;
+	}
 
+	private void drainPushQueue(SessionContext sc) {
+		ServerPushInfo info;
+		while ((info = sc.getPushQueue().poll()) != null) {
 			try {
-				SseEventBuilder event = SseEmitter.event() //
-						.data(info) //
-						.id(String.valueOf(info.hashCode()))//
-						.name(info.getType());
+				sendToEmitter(sc, info);
+			} catch (Exception e) {
+				// we must keep draining, or this queue would never get drained again
+				log.error("Failed sending server push", e);
+			}
+		}
+	}
 
-				pushEmitter.send(event);
+	private void sendToEmitter(SessionContext sc, ServerPushInfo info) {
+		SseEmitter pushEmitter = sc.getPushEmitter();
+		if (pushEmitter == null)
+			return;
 
-				/*
-				 * DO NOT DELETE. This way of sending also works, and I was originally doing it this way and picking
-				 * up in eventSource.onmessage = e => {} on the browser, but I decided to use the builder instead
-				 * and let the 'name' in the builder route different objects to different event listeners on the
-				 * client. Not really sure if either approach has major advantages over the other.
-				 * 
-				 * pushEmitter.send(info, MediaType.APPLICATION_JSON);
-				 */
-			} catch (Exception ex) {
-				pushEmitter.completeWithError(ex);
-			} finally {
-				// todo-1: this can be done in a slightly cleaner way (more decoiupled)
-				if (info instanceof SessionTimeoutPushInfo) {
-					sc.setMongoSession(null);
-					sc.setRootId(null);
-					sc.setUserName(null);
-					sc.setPushEmitter(null);
-				}
+		try {
+			SseEventBuilder event = SseEmitter.event() //
+					.data(info) //
+					.id(String.valueOf(info.hashCode()))//
+					.name(info.getType());
+
+			pushEmitter.send(event);
+
+			/*
+			 * DO NOT DELETE. This way of sending also works, and I was originally doing it this way and picking
+			 * up in eventSource.onmessage = e => {} on the browser, but I decided to use the builder instead
+			 * and let the 'name' in the builder route different objects to different event listeners on the
+			 * client. Not really sure if either approach has major advantages over the other.
+			 * 
+			 * pushEmitter.send(info, MediaType.APPLICATION_JSON);
+			 */
+		} catch (Exception ex) {
+			pushEmitter.completeWithError(ex);
+
+			// the emitter is dead so there's no point in trying to send the rest
+			sc.getPushQueue().clear();
+		} finally {
+			// todo-1: this can be done in a slightly cleaner way (more decoiupled)
+			if (info instanceof SessionTimeoutPushInfo) {
+				sc.setMongoSession(null);
+				sc.setRootId(null);
+				sc.setUserName(null);
+				sc.setPushEmitter(null);
 			}
-		});
+		}
 	}
 
 	public CheckMessagesResponse checkMessages(MongoSession session, CheckMessagesRequest req) {
@@ -201,7 +229,7 @@ public class UserFeedService {
 		String pathToSearch = NodeName.ROOT_OF_ALL_USERS;
 
 		Query query = new Query();
-		Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(pathToSearch)) //
+		Criteria criteria = util.subGraphCriteria(pathToSearch) //
 
 				// This pattern is what is required when you have multiple conditions added to a single field.
 				.andOperator(Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.FRIEND.s()), //
@@ -264,12 +292,147 @@ public class UserFeedService {
 				update.save(session, userAccountNode);
 			}
 		}
+
+		if (req.getFromMe() || req.getFromFriends()) {
+			if (userAccountNode == null) {
+				userAccountNode = read.getNode(session, sc.getRootId());
+			}
+		}
+
+		ObjectId fromMeId = req.getFromMe() && userAccountNode != null ? userAccountNode.getOwner() : null;
+
+		// the USER_NODE_ID property on friends nodes contains the actual account ID of this friend.
+		HashSet<ObjectId> friendIds = new HashSet<>();
+		if (req.getFromFriends()) {
+			List<SubNode> friendNodes = userManagerService.getSpecialNodesList(session, NodeType.FRIEND_LIST.s());
+			if (friendNodes != null) {
+				for (SubNode friendNode : friendNodes) {
+					String userNodeId = friendNode.getStrProp(NodeProp.USER_NODE_ID);
+					if (userNodeId != null) {
+						friendIds.add(new ObjectId(userNodeId));
+					}
+				}
+			}
+		}
+
 		List<NodeInfo> searchResults = new LinkedList<>();
 		res.setSearchResults(searchResults);
+
+		if (sharedToAny.size() == 0 && fromMeId == null && friendIds.size() == 0) {
+			res.setSuccess(true);
+			return res;
+		}
+
+		/*
+		 * Pages after the first are found by their cursor (the modify time and ID of the last node on the
+		 * previous page) rather than by skipping over the earlier pages
+		 */
+		PageCursor cursor = null;
+		if (req.getPage() > 0) {
+			cursor = PageCursor.parse(req.getCursor());
+			if (cursor != null && !cursor.matches(SubNode.FIELD_MODIFY_TIME, false)) {
+				cursor = null;
+			}
+		}
+
+		List<ObjectId> blockedUserIds = getBlockedUserIds();
+
+		sc.stopwatch("NodeFeedQuery--Start");
+		Iterable<SubNode> iter = null;
+
+		/*
+		 * Text searches aren't something the timelines can answer, so those still have to query the nodes
+		 * themselves, as does everything until the timelines have been built, and a page requested without
+		 * a cursor.
+		 */
+		if (TimelineService.isReady() && StringUtils.isEmpty(req.getSearchText()) && (req.getPage() == 0 || cursor != null)) {
+			iter = queryTimelines(req, userAccountNode, sharedToAny, fromMeId, friendIds, blockedUserIds, cursor);
+		} else {
+			iter = queryNodes(req, sharedToAny, fromMeId, friendIds, blockedUserIds, cursor);
+		}
+		sc.stopwatch("NodeFeedQuery--Complete");
+		List<SubNode> pageNodes = new LinkedList<>();
+
+		for (SubNode node : iter) {
+			pageNodes.add(node);
+			try {
+				NodeInfo info = convert.convertToNodeInfo(sc, session, node, true, false, counter + 1, false, false, false);
+				searchResults.add(info);
+			} catch (Exception e) {
+			}
+		}
+
+		sc.stopwatch("NodeFeedQuery--Iterated");
+
+		res.setNextCursor(PageCursor.create(cursor, pageNodes, SubNode.FIELD_MODIFY_TIME, false));
+
+		if (searchResults.size() < MAX_FEED_ITEMS) {
+			res.setEndReached(true);
+		}
+
+		res.setSuccess(true);
+		// log.debug("search results count: " + counter);
+		return res;
+	}
+
+	/*
+	 * Gets the feed from the timelines (see TimelineService). Each node is checked against the same
+	 * conditions queryNodes uses, so the timelines only ever decide which nodes to look at, and never
+	 * make anything visible that the query on the nodes wouldn't have.
+	 */
+	private Iterable<SubNode> queryTimelines(NodeFeedRequest req, SubNode userAccountNode, List<String> sharedToAny,
+			ObjectId fromMeId, HashSet<ObjectId> friendIds, List<ObjectId> blockedUserIds, PageCursor cursor) {
+		List<String> keys = new LinkedList<>();
+		String myId = userAccountNode != null ? userAccountNode.getOwner().toHexString() : null;
+
+		if (req.getToPublic()) {
+			keys.add(TimelineService.KEY_PUBLIC);
+		}
+		if (myId != null) {
+			if (req.getToMe()) {
+				keys.add(myId + TimelineService.SUFFIX_TO_USER);
+			}
+			if (fromMeId != null) {
+				keys.add(myId + TimelineService.SUFFIX_FROM_USER);
+			}
+			if (friendIds.size() > 0) {
+				keys.add(myId + TimelineService.SUFFIX_FROM_FRIEND);
+			}
+		}
+
+		return timelineService.getFeedNodes(keys, blockedUserIds, req.getNsfw(), req.getLocalOnly(), cursor, MAX_FEED_ITEMS,
+				node -> {
+					if (node.getType() != null && (node.getType().equals(NodeType.FRIEND.s())
+							|| node.getType().equals(NodeType.POSTS.s()) || node.getType().equals(NodeType.ACT_PUB_POSTS.s())))
+						return false;
+					if (blockedUserIds != null && blockedUserIds.contains(node.getOwner()))
+						return false;
+					if (!req.getNsfw() && node.getStrProp(NodeProp.ACT_PUB_SENSITIVE.s()) != null)
+						return false;
+					if (req.getLocalOnly() && node.getStrProp(NodeProp.ACT_PUB_OBJ_ATTRIBUTED_TO.s()) != null)
+						return false;
+
+					if (fromMeId != null && fromMeId.equals(node.getOwner()) && node.getAc() != null)
+						return true;
+					if (friendIds.contains(node.getOwner()))
+						return true;
+					if (node.getAc() != null) {
+						for (String share : sharedToAny) {
+							if (node.getAc().containsKey(share))
+								return true;
+						}
+					}
+					return false;
+				});
+	}
+
+	/* Gets the feed by querying the nodes directly */
+	private Iterable<SubNode> queryNodes(NodeFeedRequest req, List<String> sharedToAny, ObjectId fromMeId,
+			HashSet<ObjectId> friendIds, List<ObjectId> blockedUserIds, PageCursor cursor) {
 		String pathToSearch = NodeName.ROOT_OF_ALL_USERS;
 
 		Query query = new Query();
-		Criteria criteria = Criteria.where(SubNode.FIELD_PATH).regex(util.regexRecursiveChildrenOfPath(pathToSearch)) //
+		Criteria criteria = util.subGraphCriteria(pathToSearch) //
 
 				// This pattern is what is required when you have multiple conditions added to a single field.
 				.andOperator(Criteria.where(SubNode.FIELD_TYPE).ne(NodeType.FRIEND.s()), //
@@ -287,48 +450,22 @@ public class UserFeedService {
 		// disabling. I don't want to sacrifice any performance for this (yet)
 		// criteria = criteria.and(SubNode.FIELD_PROPERTIES + "." + NodeProp.UNPUBLISHED + ".value").is(null);
 
-		List<ObjectId> blockedUserIds = getBlockedUserIds();
 		if (blockedUserIds != null && blockedUserIds.size() > 0) {
 			criteria = criteria.and(SubNode.FIELD_OWNER).nin(blockedUserIds);
 		}
 
-		// reset feedMaxTime if we're getting first page of results
-		if (req.getPage() == 0) {
-			sc.setFeedMaxTime(null);
-		}
-		// if not getting first page of results use the modifyTime < feedMaxTime to ensure good paging.
-		else if (sc.getFeedMaxTime() != null) {
-			criteria = criteria.and(SubNode.FIELD_MODIFY_TIME).lt(sc.getFeedMaxTime());
-		}
-
 		List<Criteria> orCriteria = new LinkedList<>();
 
-		if (req.getFromMe()) {
-			if (userAccountNode == null) {
-				userAccountNode = read.getNode(session, sc.getRootId());
-			}
-
-			if (userAccountNode != null) {
-				orCriteria.add(
-						// where node is owned by us.
-						Criteria.where(SubNode.FIELD_OWNER).is(userAccountNode.getOwner()) //
-								// and the node has any sharing on it.
-								.and(SubNode.FIELD_AC).ne(null));
-			}
+		if (fromMeId != null) {
+			orCriteria.add(
+					// where node is owned by us.
+					Criteria.where(SubNode.FIELD_OWNER).is(fromMeId) //
+							// and the node has any sharing on it.
+							.and(SubNode.FIELD_AC).ne(null));
 		}
 
-		if (req.getFromFriends()) {
-			List<SubNode> friendNodes = userManagerService.getSpecialNodesList(session, NodeType.FRIEND_LIST.s());
-			if (friendNodes != null) {
-				for (SubNode friendNode : friendNodes) {
-
-					// the USER_NODE_ID property on friends nodes contains the actual account ID of this friend.
-					String userNodeId = friendNode.getStrProp(NodeProp.USER_NODE_ID);
-					if (userNodeId != null) {
-						orCriteria.add(Criteria.where(SubNode.FIELD_OWNER).is(new ObjectId(userNodeId)));
-					}
-				}
-			}
+		for (ObjectId friendId : friendIds) {
+			orCriteria.add(Criteria.where(SubNode.FIELD_OWNER).is(friendId));
 		}
 
 		// or a node that is shared to any of the sharedToAny users
@@ -336,11 +473,6 @@ public class UserFeedService {
 			orCriteria.add(Criteria.where(SubNode.FIELD_AC + "." + share).ne(null));
 		}
 
-		if (orCriteria.size() == 0) {
-			res.setSuccess(true);
-			return res;
-		}
-
 		criteria.orOperator((Criteria[]) orCriteria.toArray(new Criteria[orCriteria.size()]));
 
 		// use attributedTo proptery to determine whether a node is 'local' (posted by this server) or not.
@@ -361,42 +493,13 @@ public class UserFeedService {
 		query.with(Sort.by(Sort.Direction.DESC, SubNode.FIELD_MODIFY_TIME));
 		query.limit(MAX_FEED_ITEMS);
 
-		if (req.getPage() > 0) {
+		if (cursor != null) {
+			query.addCriteria(cursor.criteria(null));
+		} else if (req.getPage() > 0) {
 			query.skip(MAX_FEED_ITEMS * req.getPage());
 		}
 
-		sc.stopwatch("NodeFeedQuery--Start");
-		Iterable<SubNode> iter = util.find(query);
-		sc.stopwatch("NodeFeedQuery--Complete");
-		SubNode lastNode = null;
-
-		for (SubNode node : iter) {
-			try {
-				NodeInfo info = convert.convertToNodeInfo(sc, session, node, true, false, counter + 1, false, false, false);
-				searchResults.add(info);
-				lastNode = node;
-			} catch (Exception e) {
-			}
-		}
-
-		sc.stopwatch("NodeFeedQuery--Iterated");
-
-		/*
-		 * This is the correct logic since we only have a 'more' button and no 'back' button so that as the
-		 * user clicks more button we go further back in time and always update feedMaxTime here to ensure
-		 * we don't encounter records we've already seen
-		 */
-		if (lastNode != null) {
-			sc.setFeedMaxTime(lastNode.getModifyTime());
-		}
-
-		if (searchResults.size() < MAX_FEED_ITEMS) {
-			res.setEndReached(true);
-		}
-
-		res.setSuccess(true);
-		// log.debug("search results count: " + counter);
-		return res;
+		return util.find(query);
 	}
 
 	/* todo-1: need to cache this in the session */
@@ -0,0 +1,92 @@
+package org.subnode.test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.subnode.actpub.ActPubCrypto;
+import org.subnode.actpub.model.APObj;
+import org.subnode.actpub.model.APProp;
+
+/**
+ * Checks the throughput of HTTP Signature verifies, both the way ActPubCrypto does them (public key
+ * parsed once and Signature objects reused per thread) and the way we did before it cached either
+ * (key parsed from the actor and a new Signature for every verify).
+ */
+@Component("ActPubCryptoTest")
+public class ActPubCryptoTest implements TestIntf {
+    private static final Logger log = LoggerFactory.getLogger(ActPubCryptoTest.class);
+
+    private static final int VERIFY_COUNT = 2000;
+
+    @Autowired
+    private ActPubCrypto apCrypto;
+
+    @Override
+    public void test() throws Exception {
+        log.debug("*****************************************************************************************");
+        log.debug("ActPubCryptoTest Running!");
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair pair = kpg.generateKeyPair();
+
+        // an actor the way foreign servers send them to us
+        APObj actor = new APObj() //
+                .put(APProp.publicKey, new APObj() //
+                        .put(APProp.id, "https://example.com/users/test#main-key") //
+                        .put(APProp.publicKeyPem, "-----BEGIN PUBLIC KEY-----\n"
+                                + Base64.getEncoder().encodeToString(pair.getPublic().getEncoded())
+                                + "\n-----END PUBLIC KEY-----\n"));
+
+        byte[] signableBytes = ("(request-target): post /ap/inbox\nhost: example.com\ndate: Mon, 18 Oct 2021 10:00:00 GMT")
+                .getBytes(StandardCharsets.UTF_8);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(pair.getPrivate());
+        signer.update(signableBytes);
+        byte[] sigBytes = signer.sign();
+
+        byte[] badSigBytes = sigBytes.clone();
+        badSigBytes[0] ^= 1;
+
+        // uncached: what each verify cost before
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < VERIFY_COUNT; i++) {
+            PublicKey pubKey = apCrypto.getPublicKeyFromActor(actor);
+            Signature verifier = Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(pubKey);
+            verifier.update(signableBytes);
+            if (!verifier.verify(sigBytes)) {
+                throw new RuntimeException("Uncached verify failed.");
+            }
+        }
+        long uncachedTime = System.currentTimeMillis() - startTime;
+
+        // cached: key parsed once, Signature reused
+        PublicKey pubKey = apCrypto.getPublicKeyFromActor(actor);
+        if (pubKey == null) {
+            throw new RuntimeException("Unable to parse public key from actor.");
+        }
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < VERIFY_COUNT; i++) {
+            if (!apCrypto.verify(pubKey, signableBytes, sigBytes)) {
+                throw new RuntimeException("Cached verify failed.");
+            }
+        }
+        long cachedTime = System.currentTimeMillis() - startTime;
+
+        if (apCrypto.verify(pubKey, signableBytes, badSigBytes)) {
+            throw new RuntimeException("Bad signature verified.");
+        }
+
+        log.debug("Verified " + VERIFY_COUNT + " signatures. Uncached: " + uncachedTime + "ms ("
+                + (VERIFY_COUNT * 1000L / Math.max(uncachedTime, 1)) + "/s) Cached: " + cachedTime + "ms ("
+                + (VERIFY_COUNT * 1000L / Math.max(cachedTime, 1)) + "/s)");
+    }
+}
@@ -0,0 +1,88 @@
+package org.subnode.test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.subnode.util.BoundedCache;
+import org.subnode.util.DateUtil;
+
+/**
+ * Checks that BoundedCache evicts the least recently used entry when full, and drops entries once
+ * they expire.
+ */
+@Component("BoundedCacheTest")
+public class BoundedCacheTest implements TestIntf {
+	private static final Logger log = LoggerFactory.getLogger(BoundedCacheTest.class);
+
+	@Override
+	public void test() throws Exception {
+		log.debug("*****************************************************************************************");
+		log.debug("BoundedCacheTest Running!");
+
+		lruTest();
+		ttlTest();
+
+		log.debug("BoundedCacheTest Ok.");
+		log.debug("*****************************************************************************************");
+	}
+
+	private void lruTest() {
+		BoundedCache<String, Integer> cache = new BoundedCache<>("LRU Test", 3, DateUtil.HOUR_MILLIS);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+
+		// using 'a' makes 'b' the least recently used, so it's the one that goes
+		check(cache.get("a"), 1, "a");
+		cache.put("d", 4);
+		check(cache.get("b"), null, "b");
+		check(cache.get("a"), 1, "a");
+		check(cache.get("c"), 3, "c");
+		check(cache.get("d"), 4, "d");
+
+		// putting over an existing key doesn't evict anything
+		cache.put("c", 30);
+		if (cache.size() != 3) {
+			throw new RuntimeException("Expected size 3 but was " + cache.size());
+		}
+		check(cache.get("c"), 30, "c");
+
+		// null keys and values are ignored
+		cache.put(null, 5);
+		cache.put("e", null);
+		if (cache.size() != 3 || cache.get("a") == null) {
+			throw new RuntimeException("Null key or value changed the cache.");
+		}
+	}
+
+	private void ttlTest() throws Exception {
+		BoundedCache<String, Integer> cache = new BoundedCache<>("TTL Test", 10, 100);
+		cache.put("a", 1);
+		cache.put("b", 2, System.currentTimeMillis() + DateUtil.HOUR_MILLIS);
+		cache.put("c", 3, System.currentTimeMillis() - 1);
+
+		check(cache.get("c"), null, "c");
+		check(cache.get("a"), 1, "a");
+
+		Thread.sleep(200);
+		check(cache.get("a"), null, "a");
+		check(cache.get("b"), 2, "b");
+
+		int[] count = new int[1];
+		cache.forEach((key, val, expireTime) -> {
+			if (!"b".equals(key)) {
+				throw new RuntimeException("forEach visited expired entry: " + key);
+			}
+			count[0]++;
+		});
+		if (count[0] != 1) {
+			throw new RuntimeException("forEach visited " + count[0] + " entries, expected 1");
+		}
+	}
+
+	private void check(Integer val, Integer expected, String key) {
+		if (expected == null ? val != null : !expected.equals(val)) {
+			throw new RuntimeException("Key " + key + " was " + val + ", expected " + expected);
+		}
+	}
+}
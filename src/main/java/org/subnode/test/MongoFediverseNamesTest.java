@@ -1,6 +1,10 @@
 package org.subnode.test;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
 import com.mongodb.client.result.DeleteResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +15,8 @@ import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
+import org.subnode.actpub.ActPubCache;
+import org.subnode.actpub.ActPubService;
 import org.subnode.mongo.MongoUpdate;
 import org.subnode.mongo.model.FediverseName;
 
@@ -24,6 +30,12 @@ public class MongoFediverseNamesTest implements TestIntf {
 	@Autowired
 	private MongoTemplate ops;
 
+	@Autowired
+	private ActPubService apService;
+
+	@Autowired
+	private ActPubCache apCache;
+
 	@Override
 	public void test() throws Exception {
 		log.debug("*****************************************************************************************");
@@ -49,12 +61,98 @@ public class MongoFediverseNamesTest implements TestIntf {
 			log.debug("Successfully rejected duplicate with: " + e.getClass().getName());
 		}
 
+		bulkSaveTest(name);
+		knownLastTest();
 		dump();
 
 		log.debug("MongoFediverseNamesTest Ok.");
 		log.debug("*****************************************************************************************");
 	}
 
+	/*
+	 * Names queued with saveFediverseName are written by saveUserNames as upserts that only set fields
+	 * on insert, so a name that's already there (like 'existingName') is neither an error nor written
+	 * again.
+	 */
+	private void bulkSaveTest(String existingName) {
+		Date existingTime = ops.findOne(new Query(Criteria.where(FediverseName.FIELD_NAME).is(existingName)), FediverseName.class)
+				.getCreateTime();
+		List<String> names = Arrays.asList(existingName, "bulk1@server.com", "bulk2@server.com");
+		for (String name : names) {
+			apCache.knownUserNames.remove(name);
+			apService.saveFediverseName(name);
+		}
+
+		apService.saveUserNames();
+
+		for (String name : names) {
+			List<FediverseName> found = ops.find(new Query(Criteria.where(FediverseName.FIELD_NAME).is(name)), FediverseName.class);
+			if (found.size() != 1) {
+				throw new RuntimeException("Expected 1 of " + name + " but found " + found.size());
+			}
+			if (found.get(0).getCreateTime() == null) {
+				throw new RuntimeException("No create time set on insert of " + name);
+			}
+			if (name.equals(existingName) && !existingTime.equals(found.get(0).getCreateTime())) {
+				throw new RuntimeException("Upsert of existing name overwrote it: " + name);
+			}
+			if (!apCache.knownUserNames.contains(name) || apCache.pendingUserNames.contains(name)) {
+				throw new RuntimeException("Saved name not marked known: " + name);
+			}
+		}
+		log.debug("Bulk saved names: " + names);
+	}
+
+	/*
+	 * The last batch is written once all the pending names have been gone through, so it must still be
+	 * written when the last names gone through are ones that are already known and get skipped.
+	 */
+	private void knownLastTest() {
+		List<String> newNames = new LinkedList<>(Arrays.asList("last1@server.com", "last2@server.com", "last3@server.com"));
+		List<String> knownNames = new LinkedList<>();
+		for (int i = 0; i < 10; i++) {
+			knownNames.add("known" + i + "@server.com");
+		}
+		apCache.knownUserNames.addAll(knownNames);
+		apCache.pendingUserNames.addAll(knownNames);
+		apCache.pendingUserNames.addAll(newNames);
+
+		try {
+			// the pending set has no order of its own, so make sure whichever name comes last is a known one
+			while (true) {
+				String last = null;
+				for (String name : apCache.pendingUserNames) {
+					last = name;
+				}
+				if (!newNames.contains(last))
+					break;
+
+				newNames.remove(last);
+				knownNames.add(last);
+				apCache.knownUserNames.add(last);
+				if (newNames.isEmpty()) {
+					throw new RuntimeException("Unable to queue a known name after the new ones.");
+				}
+			}
+
+			apService.saveUserNames();
+
+			for (String name : newNames) {
+				if (ops.count(new Query(Criteria.where(FediverseName.FIELD_NAME).is(name)), FediverseName.class) != 1) {
+					throw new RuntimeException("New name followed by known names wasn't saved: " + name);
+				}
+			}
+			for (String name : knownNames) {
+				if (apCache.pendingUserNames.contains(name)) {
+					throw new RuntimeException("Known name left pending: " + name);
+				}
+			}
+			log.debug("Saved names followed by known names: " + newNames);
+		} finally {
+			apCache.knownUserNames.removeAll(knownNames);
+		}
+	}
+
 	private void dump() {
 		log.debug("Dumping all FediverseNames...");
 		Iterable<FediverseName> recs = ops.findAll(FediverseName.class);
@@ -0,0 +1,75 @@
+package org.subnode.test;
+
+import java.nio.charset.StandardCharsets;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.subnode.mongo.MongoUtil;
+import org.subnode.mongo.model.SubNode;
+
+/**
+ * Checks that the range subGraphCriteria() queries on is exactly the subgraph: every descendant of
+ * the path is inside it, and the node itself, its siblings, and nodes whose names merely start with
+ * the same characters are all outside it.
+ */
+@Component("MongoUtilTest")
+public class MongoUtilTest implements TestIntf {
+	private static final Logger log = LoggerFactory.getLogger(MongoUtilTest.class);
+
+	@Autowired
+	private MongoUtil util;
+
+	@Override
+	public void test() throws Exception {
+		log.debug("*****************************************************************************************");
+		log.debug("MongoUtilTest Running!");
+
+		String base = "/r/usr/bob";
+		String[] inside = {base + "/a", base + "/a/b/c", base + "/0", base + "/~", base + "/été", base + "//x"};
+		String[] outside = {base, base + "/", base + "0", base + "a", base + "-x/y", base + ".x", "/r/usr/bo", "/r/usr/bob2/a",
+				"/r/usr", "/r"};
+
+		// trailing slash on the path must make no difference
+		for (String path : new String[] {base, base + "/"}) {
+			Document pathCriteria =
+					(Document) util.subGraphCriteria(path).getCriteriaObject().get(SubNode.FIELD_PATH);
+			String lower = pathCriteria.getString("$gt");
+			String upper = pathCriteria.getString("$lt");
+			if (lower == null || upper == null) {
+				throw new RuntimeException("subGraphCriteria is not a range: " + pathCriteria.toJson());
+			}
+
+			for (String p : inside) {
+				if (!inRange(p, lower, upper)) {
+					throw new RuntimeException("Descendant " + p + " is outside subGraphCriteria(" + path + ")");
+				}
+			}
+			for (String p : outside) {
+				if (inRange(p, lower, upper)) {
+					throw new RuntimeException("Non descendant " + p + " is inside subGraphCriteria(" + path + ")");
+				}
+			}
+		}
+
+		log.debug("MongoUtilTest Ok.");
+		log.debug("*****************************************************************************************");
+	}
+
+	/* True if lower < val < upper, compared the way MongoDB compares strings (by their UTF-8 bytes) */
+	private boolean inRange(String val, String lower, String upper) {
+		return compare(val, lower) > 0 && compare(val, upper) < 0;
+	}
+
+	private int compare(String s1, String s2) {
+		byte[] b1 = s1.getBytes(StandardCharsets.UTF_8);
+		byte[] b2 = s2.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < b1.length && i < b2.length; i++) {
+			int diff = (b1[i] & 0xff) - (b2[i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return b1.length - b2.length;
+	}
+}
@@ -0,0 +1,215 @@
+package org.subnode.test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.subnode.exception.base.RuntimeEx;
+import org.subnode.mongo.PageCursor;
+import org.subnode.mongo.model.SubNode;
+import org.subnode.mongo.model.SubNodePropVal;
+import org.subnode.mongo.model.SubNodePropertyMap;
+
+/**
+ * Checks that PageCursor tokens round trip (create, parse, criteria) for each kind of sort value,
+ * including pages where many nodes share the cursor value, and that bad tokens are rejected.
+ */
+@Component("PageCursorTest")
+public class PageCursorTest implements TestIntf {
+	private static final Logger log = LoggerFactory.getLogger(PageCursorTest.class);
+
+	private static final String PROP_FIELD = SubNode.FIELD_PROPERTIES + ".sn:test.value";
+
+	@Override
+	public void test() throws Exception {
+		log.debug("*****************************************************************************************");
+		log.debug("PageCursorTest Running!");
+
+		dateTest();
+		sameValueTest();
+		seenIdsCapTest();
+		valueTypesTest();
+		badTokenTest();
+
+		log.debug("PageCursorTest Ok.");
+		log.debug("*****************************************************************************************");
+	}
+
+	/* Descending by modify time: the next page is everything at or before the last node's time */
+	private void dateTest() {
+		Date time = new Date();
+		SubNode n1 = node(new Date(time.getTime() + 2000));
+		SubNode n2 = node(new Date(time.getTime() + 1000));
+		SubNode n3 = node(time);
+
+		String token = PageCursor.create(null, Arrays.asList(n1, n2, n3), SubNode.FIELD_MODIFY_TIME, false);
+		PageCursor cursor = parse(token);
+		if (!cursor.matches(SubNode.FIELD_MODIFY_TIME, false) || cursor.matches(SubNode.FIELD_MODIFY_TIME, true)
+				|| cursor.matches(SubNode.FIELD_CREATE_TIME, false)) {
+			throw new RuntimeException("Cursor doesn't match only its own field and direction.");
+		}
+
+		Document crit = cursor.criteria(null).getCriteriaObject();
+		Document range = (Document) crit.get(SubNode.FIELD_MODIFY_TIME);
+		if (range == null || !time.equals(range.get("$lte")) || range.containsKey("$gte")) {
+			throw new RuntimeException("Bad date cursor criteria: " + crit.toJson());
+		}
+		checkSeenIds(crit, n3.getId());
+	}
+
+	/*
+	 * When a whole page has the same value as the page before it, the IDs seen on both pages have to be
+	 * excluded, or the next page would return the first page's nodes again.
+	 */
+	private void sameValueTest() {
+		Long ordinal = 5L;
+		List<SubNode> page1 = new LinkedList<>();
+		page1.add(node(4L));
+		page1.add(node(ordinal));
+		page1.add(node(ordinal));
+		List<SubNode> page2 = Arrays.asList(node(ordinal), node(ordinal));
+
+		PageCursor cursor1 = parse(PageCursor.create(null, page1, SubNode.FIELD_ORDINAL, true));
+		checkSeenIds(cursor1.criteria(null).getCriteriaObject(), page1.get(1).getId(), page1.get(2).getId());
+
+		PageCursor cursor2 = parse(PageCursor.create(cursor1, page2, SubNode.FIELD_ORDINAL, true));
+		Document crit = cursor2.criteria(null).getCriteriaObject();
+		Document range = (Document) crit.get(SubNode.FIELD_ORDINAL);
+		if (range == null || !ordinal.equals(range.get("$gte"))) {
+			throw new RuntimeException("Bad ordinal cursor criteria: " + crit.toJson());
+		}
+		checkSeenIds(crit, page1.get(1).getId(), page1.get(2).getId(), page2.get(0).getId(), page2.get(1).getId());
+
+		// a cursor for a different sort doesn't carry its seen IDs over
+		PageCursor cursor3 = parse(PageCursor.create(cursor1, page2, SubNode.FIELD_ORDINAL, false));
+		checkSeenIds(cursor3.criteria(null).getCriteriaObject(), page2.get(0).getId(), page2.get(1).getId());
+	}
+
+	/*
+	 * A long run of pages with the same value stops making cursors once the seen IDs would go over the
+	 * cap, rather than growing the token without limit
+	 */
+	private void seenIdsCapTest() {
+		Long ordinal = 5L;
+		PageCursor cursor = null;
+		int seenCount = 0;
+		while (true) {
+			List<SubNode> page = new LinkedList<>();
+			for (int i = 0; i < 25; i++) {
+				page.add(node(ordinal));
+			}
+			seenCount += page.size();
+
+			String token = PageCursor.create(cursor, page, SubNode.FIELD_ORDINAL, true);
+			if (token == null) {
+				if (seenCount <= PageCursor.MAX_SEEN_IDS) {
+					throw new RuntimeException("No cursor made at only " + seenCount + " seen IDs.");
+				}
+				break;
+			}
+			if (seenCount > PageCursor.MAX_SEEN_IDS) {
+				throw new RuntimeException("Cursor made with " + seenCount + " seen IDs.");
+			}
+			cursor = parse(token);
+		}
+
+		// nor are tokens carrying more than the cap accepted
+		StringBuilder ids = new StringBuilder();
+		for (int i = 0; i <= PageCursor.MAX_SEEN_IDS; i++) {
+			if (ids.length() > 0) {
+				ids.append(",");
+			}
+			ids.append(new ObjectId().toHexString());
+		}
+		String token = Base64.getUrlEncoder().withoutPadding()
+				.encodeToString((SubNode.FIELD_ORDINAL + "|a|" + ids + "|l|5").getBytes(StandardCharsets.UTF_8));
+		try {
+			PageCursor.parse(token);
+			throw new RuntimeException("Accepted token with too many seen IDs.");
+		} catch (RuntimeEx e) {
+			log.debug("Successfully rejected token with too many seen IDs.");
+		}
+	}
+
+	/* String (including the token delimiter) and floating point property values */
+	private void valueTypesTest() {
+		for (Object val : new Object[] {"a|b|c", 2.5d}) {
+			SubNodePropertyMap props = new SubNodePropertyMap();
+			props.put("sn:test", new SubNodePropVal(val));
+			SubNode n = new SubNode();
+			n.setProperties(props);
+			n.setId(new ObjectId());
+			PageCursor cursor = parse(PageCursor.create(null, Arrays.asList(n), PROP_FIELD, true));
+			Document crit = cursor.criteria(null, "nid").getCriteriaObject();
+			Document range = (Document) crit.get(PROP_FIELD);
+			if (range == null || !val.equals(range.get("$gte"))) {
+				throw new RuntimeException("Bad cursor criteria for value " + val + ": " + crit.toJson());
+			}
+			if (!(crit.get("nid") instanceof Document)) {
+				throw new RuntimeException("Cursor criteria didn't use the given ID field: " + crit.toJson());
+			}
+		}
+
+		// nodes without a value for the sort field can't be paged past
+		if (PageCursor.create(null, Arrays.asList(new SubNode()), SubNode.FIELD_MODIFY_TIME, false) != null) {
+			throw new RuntimeException("Created a cursor without a value.");
+		}
+	}
+
+	private void badTokenTest() {
+		if (PageCursor.parse(null) != null || PageCursor.parse("") != null) {
+			throw new RuntimeException("Empty token wasn't a null cursor.");
+		}
+
+		for (String token : new String[] {"not a token!", "bW9kfGR8fHh8MQ", "bW9kfGR8fGx8eA"}) {
+			try {
+				PageCursor.parse(token);
+				throw new RuntimeException("Accepted bad token: " + token);
+			} catch (RuntimeEx e) {
+				log.debug("Successfully rejected bad token: " + token);
+			}
+		}
+	}
+
+	private PageCursor parse(String token) {
+		if (token == null) {
+			throw new RuntimeException("No cursor created.");
+		}
+		PageCursor cursor = PageCursor.parse(token);
+		if (cursor == null) {
+			throw new RuntimeException("Unable to parse cursor: " + token);
+		}
+		return cursor;
+	}
+
+	private void checkSeenIds(Document crit, ObjectId... ids) {
+		Document idCrit = (Document) crit.get(SubNode.FIELD_ID);
+		Collection<?> seenIds = idCrit != null ? (Collection<?>) idCrit.get("$nin") : null;
+		if (seenIds == null || seenIds.size() != ids.length || !seenIds.containsAll(Arrays.asList(ids))) {
+			throw new RuntimeException("Bad seen IDs: " + crit.toJson() + " expected " + Arrays.asList(ids));
+		}
+	}
+
+	/* IDs are set last, because setters only mark nodes that have IDs as dirty (to be saved) */
+	private SubNode node(Date modifyTime) {
+		SubNode node = new SubNode();
+		node.setModifyTime(modifyTime);
+		node.setId(new ObjectId());
+		return node;
+	}
+
+	private SubNode node(Long ordinal) {
+		SubNode node = new SubNode();
+		node.setOrdinal(ordinal);
+		node.setId(new ObjectId());
+		return node;
+	}
+}
@@ -0,0 +1,96 @@
+package org.subnode.test;
+
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.subnode.config.AppProp;
+import org.subnode.service.ProxyCacheService;
+import org.subnode.util.Const;
+
+/**
+ * Checks that the proxy cache stays within its byte limits by evicting least recently used entries,
+ * and never caches a body too large for it. This fills the live cache with twice its limit of test
+ * entries (under a url scheme nothing real uses), so it's best run on an idle server.
+ */
+@Component("ProxyCacheServiceTest")
+public class ProxyCacheServiceTest implements TestIntf {
+	private static final Logger log = LoggerFactory.getLogger(ProxyCacheServiceTest.class);
+
+	private static final String URL_PREFIX = "test://proxy-cache-test/";
+
+	@Autowired
+	private ProxyCacheService proxyCache;
+
+	@Autowired
+	private AppProp appProp;
+
+	@Override
+	public void test() throws Exception {
+		log.debug("*****************************************************************************************");
+		log.debug("ProxyCacheServiceTest Running!");
+
+		long maxMemBytes = (long) appProp.getProxyCacheMaxMB() * Const.ONE_MB;
+		long maxDiskBytes = (long) appProp.getProxyCacheMaxDiskMB() * Const.ONE_MB;
+		List<String> urls = new LinkedList<>();
+
+		try {
+			/*
+			 * Small enough to fit many in each segment of the cache, and kept in memory (below the spill
+			 * size) so we fill the memory limit. We put twice what that limit holds.
+			 */
+			int bodySize = (int) (maxMemBytes / 256);
+			if (!StringUtils.isEmpty(appProp.getProxyCacheSpillDir())) {
+				bodySize = Math.min(bodySize, appProp.getProxyCacheSpillKB() * 1024 - 1);
+			}
+			long count = 2 * maxMemBytes / bodySize;
+
+			String recentUrl = URL_PREFIX + "recent";
+			urls.add(recentUrl);
+			proxyCache.put(recentUrl, new byte[bodySize]);
+
+			for (int i = 0; i < count; i++) {
+				String url = URL_PREFIX + i;
+				urls.add(url);
+				proxyCache.put(url, new byte[bodySize]);
+
+				// using this one each time keeps it most recently used, so it must never be evicted
+				if (!proxyCache.contains(recentUrl)) {
+					throw new RuntimeException("Recently used entry was evicted.");
+				}
+
+				if (proxyCache.getMemBytes() > maxMemBytes || proxyCache.getDiskBytes() > maxDiskBytes) {
+					throw new RuntimeException("Proxy cache over its limit: mem=" + proxyCache.getMemBytes() + " disk="
+							+ proxyCache.getDiskBytes());
+				}
+			}
+
+			if (!proxyCache.contains(urls.get(urls.size() - 1))) {
+				throw new RuntimeException("Newest entry was evicted.");
+			}
+			if (proxyCache.contains(urls.get(1))) {
+				throw new RuntimeException("Oldest entry wasn't evicted.");
+			}
+
+			// bigger than the whole memory limit can't be cached in memory at all
+			if (StringUtils.isEmpty(appProp.getProxyCacheSpillDir())) {
+				String largeUrl = URL_PREFIX + "large";
+				urls.add(largeUrl);
+				proxyCache.put(largeUrl, new byte[(int) maxMemBytes + 1]);
+				if (proxyCache.contains(largeUrl)) {
+					throw new RuntimeException("Cached a body larger than the cache.");
+				}
+			}
+		} finally {
+			for (String url : urls) {
+				proxyCache.remove(url);
+			}
+		}
+
+		log.debug("ProxyCacheServiceTest Ok.");
+		log.debug("*****************************************************************************************");
+	}
+}
@@ -0,0 +1,134 @@
+package org.subnode.util;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe in-memory cache holding at most 'maxSize' entries, where the least recently used entry
+ * is evicted to make room for a new one, and each entry expires 'ttl' milliseconds after it's put
+ * (unless put with its own expire time).
+ */
+public class BoundedCache<K, V> {
+	private static class Entry<V> {
+		final V val;
+		final long expireTime;
+
+		Entry(V val, long expireTime) {
+			this.val = val;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private final String name;
+	private final int maxSize;
+	private final long ttl;
+	private final LinkedHashMap<K, Entry<V>> map;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public BoundedCache(String name, int maxSize, long ttl) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+
+		map = new LinkedHashMap<K, Entry<V>>(16, .75F, true) {
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() > BoundedCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/* Returns the value for 'key' or null if it's not cached (or has expired) */
+	public V get(K key) {
+		if (key == null)
+			return null;
+
+		synchronized (map) {
+			Entry<V> entry = map.get(key);
+			if (entry != null && entry.expireTime <= System.currentTimeMillis()) {
+				map.remove(key);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.val;
+		}
+	}
+
+	/* Null keys and values are ignored, so callers can cache lookup results without checking them */
+	public void put(K key, V val) {
+		put(key, val, System.currentTimeMillis() + ttl);
+	}
+
+	public void put(K key, V val, long expireTime) {
+		if (key == null || val == null)
+			return;
+
+		synchronized (map) {
+			map.put(key, new Entry<V>(val, expireTime));
+		}
+	}
+
+	public void remove(K key) {
+		if (key == null)
+			return;
+
+		synchronized (map) {
+			map.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (map) {
+			map.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	public interface EntryVisitor<K, V> {
+		void visit(K key, V val, long expireTime);
+	}
+
+	/* Calls 'visitor' for each unexpired entry (of a copy of the cache, so without holding the lock) */
+	public void forEach(EntryVisitor<K, V> visitor) {
+		List<Map.Entry<K, Entry<V>>> entries = new LinkedList<>();
+		synchronized (map) {
+			for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		for (Map.Entry<K, Entry<V>> entry : entries) {
+			if (entry.getValue().expireTime > now) {
+				visitor.visit(entry.getKey(), entry.getValue().val, entry.getValue().expireTime);
+			}
+		}
+	}
+
+	public String getStatsReport() {
+		return name + ": size=" + size() + " max=" + maxSize + " hits=" + hits.get() + " misses=" + misses.get()
+				+ " evictions=" + evictions.get() + " expired=" + expirations.get() + "\n";
+	}
+}
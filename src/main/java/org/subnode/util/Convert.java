@@ -275,6 +275,22 @@ public class Convert {
 		return nodeInfo;
 	}
 
+	/*
+	 * Returns a key identifying everything about 'sc' that convertToNodeInfo output for 'node' depends
+	 * on (the cipherKey for the user, and the timezone dates are formatted in), so that sessions with
+	 * the same key can all be sent the same NodeInfo, converted once.
+	 */
+	public String getRenderContextKey(SessionContext sc, SubNode node) {
+		String cipherKey = null;
+		if (sc.getRootId() != null && node.getAc() != null && !node.getOwner().toHexString().equals(sc.getRootId())) {
+			AccessControl ac = node.getAc().get(sc.getRootId());
+			if (ac != null) {
+				cipherKey = ac.getKey();
+			}
+		}
+		return cipherKey + "|" + sc.getTimezone() + "|" + sc.getTimeZoneAbbrev();
+	}
+
 	public static ImageSize getImageSize(SubNode node) {
 		ImageSize imageSize = new ImageSize();
 
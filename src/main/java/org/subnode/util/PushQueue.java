@@ -0,0 +1,99 @@
+package org.subnode.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import org.subnode.response.ServerPushInfo;
+
+/**
+ * Bounded queue of server push messages waiting to be sent to one browser (SSE emitter). There's
+ * never more than one thread draining a given queue, so a slow browser only ever holds up one thread
+ * rather than one per message.
+ *
+ * A message with the same coalesce key as one still waiting replaces it (the browser only needs the
+ * latest state of a node), and if the queue is full the oldest message is dropped.
+ */
+public class PushQueue {
+	public static final AtomicLong totalQueued = new AtomicLong();
+	public static final AtomicLong totalCoalesced = new AtomicLong();
+	public static final AtomicLong totalDropped = new AtomicLong();
+
+	private static class Entry {
+		String key;
+		ServerPushInfo info;
+
+		Entry(String key, ServerPushInfo info) {
+			this.key = key;
+			this.info = info;
+		}
+	}
+
+	private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+	/* true while some thread owns the job of draining this queue */
+	private boolean draining = false;
+
+	/*
+	 * Queues 'info' and returns true if the caller needs to start a thread to drain the queue (i.e. one
+	 * isn't already running). 'key' can be null for messages that should never be coalesced.
+	 */
+	public synchronized boolean offer(ServerPushInfo info, String key, int maxSize) {
+		totalQueued.incrementAndGet();
+		boolean coalesced = false;
+
+		if (key != null) {
+			for (Entry entry : queue) {
+				if (key.equals(entry.key)) {
+					entry.info = info;
+					coalesced = true;
+					totalCoalesced.incrementAndGet();
+					break;
+				}
+			}
+		}
+
+		if (!coalesced) {
+			while (queue.size() >= maxSize && queue.size() > 0) {
+				queue.removeFirst();
+				totalDropped.incrementAndGet();
+			}
+			queue.addLast(new Entry(key, info));
+		}
+
+		if (draining)
+			return false;
+		draining = true;
+		return true;
+	}
+
+	/*
+	 * Returns the next message to send, or null when the queue is empty, at which point the calling
+	 * thread is no longer the one draining it.
+	 */
+	public synchronized ServerPushInfo poll() {
+		Entry entry = queue.pollFirst();
+		if (entry == null) {
+			draining = false;
+			return null;
+		}
+		return entry.info;
+	}
+
+	/* Drops everything waiting, as when the emitter has failed */
+	public synchronized void clear() {
+		totalDropped.addAndGet(queue.size());
+		queue.clear();
+	}
+
+	public synchronized int size() {
+		return queue.size();
+	}
+
+	public static String getStatsReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nServer Push Stats:\n");
+		sb.append("Queued: " + totalQueued.get() + "\n");
+		sb.append("Coalesced: " + totalCoalesced.get() + "\n");
+		sb.append("Dropped: " + totalDropped.get() + "\n");
+		return sb.toString();
+	}
+}
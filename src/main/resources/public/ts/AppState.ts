@@ -63,9 +63,15 @@ export class AppState {
     node: J.NodeInfo;
     endReached: boolean;
 
+    /* cursor for getting the next page of children of 'node' */
+    nextCursor: string;
+
     feedResults: NodeInfo[];
     feedEndReached: boolean = false;
 
+    /* cursor for getting the next page of the feed */
+    feedNextCursor: string;
+
     /* Node Ids to move */
     nodesToMove: string[];
 
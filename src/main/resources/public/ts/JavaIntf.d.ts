@@ -275,6 +275,7 @@ export interface MoveNodesRequest extends RequestBase {
 
 export interface NodeFeedRequest extends RequestBase {
     page: number;
+    cursor: string;
     nodeId: string;
     feedUserName: string;
     toMe: boolean;
@@ -288,6 +289,7 @@ export interface NodeFeedRequest extends RequestBase {
 
 export interface NodeSearchRequest extends RequestBase {
     page: number;
+    cursor: string;
     sortDir: string;
     sortField: string;
     nodeId: string;
@@ -324,6 +326,7 @@ export interface RenderCalendarRequest extends RequestBase {
 export interface RenderNodeRequest extends RequestBase {
     nodeId: string;
     offset: number;
+    cursor: string;
     siblingOffset: number;
     upLevel: boolean;
     renderParentIfLeaf: boolean;
@@ -613,11 +616,13 @@ export interface NodeEditedPushInfo extends ServerPushInfo {
 
 export interface NodeFeedResponse extends ResponseBase {
     endReached: boolean;
+    nextCursor: string;
     searchResults: NodeInfo[];
 }
 
 export interface NodeSearchResponse extends ResponseBase {
     searchResults: NodeInfo[];
+    nextCursor: string;
 }
 
 export interface NotificationMessage extends ServerPushInfo {
@@ -646,6 +651,7 @@ export interface RenderCalendarResponse extends ResponseBase {
 export interface RenderNodeResponse extends ResponseBase {
     node: NodeInfo;
     endReached: boolean;
+    nextCursor: string;
     noDataResponse: string;
     breadcrumbs: BreadcrumbInfo[];
 }
@@ -821,6 +827,8 @@ export const enum NodeProp {
     ACT_PUB_ACTOR_URL = "ap:actorUrl",
     ACT_PUB_ACTOR_INBOX = "ap:actorInbox",
     ACT_PUB_SENSITIVE = "ap:nsfw",
+    ACT_PUB_OUTBOX_LAST_ID = "ap:outboxLastId",
+    ACT_PUB_OUTBOX_LAST_TIME = "ap:outboxLastTime",
     UNPUBLISHED = "unpublished",
     ENC_KEY = "sn:encKey",
     TEMP = "tmp",
@@ -484,6 +484,7 @@ export class MenuPanel extends Div {
                 new MenuItem("Validate", () => S.view.runServerCommand("validateDb", "Validate DB Response", null, state)), //
                 new MenuItem("Compact", () => S.view.runServerCommand("compactDb", "Compact DB Response", null, state)), //
                 new MenuItem("Rebuild Indexes", () => S.view.runServerCommand("rebuildIndexes", "Rebuild Indexes Response", null, state)), //
+                new MenuItem("Rebuild Timelines", () => S.view.runServerCommand("rebuildTimelines", "Rebuild Timelines Response", null, state)), //
                 new MenuItem("Lucene: Refresh", () => S.view.runServerCommand("refreshLuceneIndex", null, null, state))
             ]));
 
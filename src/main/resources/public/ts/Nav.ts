@@ -98,6 +98,7 @@ export class Nav implements NavIntf {
             siblingOffset: siblingOffset,
             renderParentIfLeaf: true,
             offset: 0,
+            cursor: null,
             goToLastPage: false,
             forceIPFSRefresh: false,
             singleNode: false
@@ -136,6 +137,7 @@ export class Nav implements NavIntf {
             siblingOffset: 0,
             renderParentIfLeaf: false,
             offset: 0,
+            cursor: null,
             goToLastPage: false,
             forceIPFSRefresh: false,
             singleNode: false
@@ -228,6 +230,7 @@ export class Nav implements NavIntf {
             siblingOffset: 0,
             renderParentIfLeaf: null,
             offset: 0,
+            cursor: null,
             goToLastPage: false,
             forceIPFSRefresh: false,
             singleNode: false
@@ -317,6 +320,7 @@ export class Nav implements NavIntf {
                 siblingOffset: 0,
                 renderParentIfLeaf: null,
                 offset: 0,
+                cursor: null,
                 goToLastPage: false,
                 forceIPFSRefresh: false,
                 singleNode: false
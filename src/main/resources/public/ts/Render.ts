@@ -370,6 +370,7 @@ export class Render implements RenderIntf {
                     if (res) {
                         s.node = res.node;
                         s.endReached = res.endReached;
+                        s.nextCursor = res.nextCursor;
                         s.breadcrumbs = res.breadcrumbs;
 
                         /* Another slight hack to make viewing 'posts' node turn on metaData */
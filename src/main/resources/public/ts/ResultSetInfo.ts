@@ -7,6 +7,9 @@ export class ResultSetInfo {
     public timeRangeType: string;
     public node: J.NodeInfo;
     public page: number = 0;
+
+    /* cursors[n] is the cursor for getting page n, when known (from the response for page n-1) */
+    public cursors: string[] = [];
     public endReached: boolean = false;
     public fuzzy: boolean;
     public caseSensitive: boolean;
@@ -70,8 +70,10 @@ export class Search implements SearchIntf {
             node = S.meta64.getHighlightedNode(state);
         }
 
+        let searchData = state.tabData.find(d => d.id === C.TAB_SEARCH);
         S.util.ajax<J.NodeSearchRequest, J.NodeSearchResponse>("nodeSearch", {
             page,
+            cursor: page > 0 && searchData ? searchData.rsInfo.cursors[page] : null,
 
             // for userSearchTypes this node can be null
             nodeId: node ? node.id : null,
@@ -98,6 +100,10 @@ export class Search implements SearchIntf {
 
                     data.rsInfo.results = res.searchResults;
                     data.rsInfo.page = page;
+                    if (page === 0) {
+                        data.rsInfo.cursors = [];
+                    }
+                    data.rsInfo.cursors[page + 1] = res.nextCursor;
                     data.rsInfo.userSearchType = userSearchType;
                     data.rsInfo.description = description;
                     data.rsInfo.node = node;
@@ -124,6 +130,7 @@ export class Search implements SearchIntf {
             siblingOffset: 0,
             renderParentIfLeaf: null,
             offset: 0,
+            cursor: null,
             goToLastPage: false,
             forceIPFSRefresh: false,
             singleNode: false
@@ -149,8 +156,10 @@ export class Search implements SearchIntf {
             return;
         }
 
+        let timelineData = state.tabData.find(d => d.id === C.TAB_TIMELINE);
         S.util.ajax<J.NodeSearchRequest, J.NodeSearchResponse>("nodeSearch", {
             page,
+            cursor: page > 0 && timelineData ? timelineData.rsInfo.cursors[page] : null,
             nodeId: node.id,
             searchText: "",
             sortDir: "DESC",
@@ -176,6 +185,10 @@ export class Search implements SearchIntf {
                 info.node = node;
                 info.endReached = !res.searchResults || res.searchResults.length < J.ConstantInt.ROWS_PER_PAGE;
                 info.page = page;
+                if (page === 0) {
+                    info.cursors = [];
+                }
+                info.cursors[page + 1] = res.nextCursor;
 
                 S.meta64.selectTabStateOnly(data.id, s);
                 return s;
@@ -188,6 +201,7 @@ export class Search implements SearchIntf {
         let appState = store.getState();
         S.util.ajax<J.NodeFeedRequest, J.NodeFeedResponse>("nodeFeed", {
             page,
+            cursor: page > 0 ? appState.feedNextCursor : null,
             nodeId,
             feedUserName,
             toMe: appState.feedFilterToMe,
@@ -231,6 +245,7 @@ export class Search implements SearchIntf {
                 }
 
                 s.feedEndReached = res.endReached;
+                s.feedNextCursor = res.nextCursor;
                 s.feedDirty = false;
                 s.feedLoading = false;
                 s.feedWaitingForUserRefresh = false;
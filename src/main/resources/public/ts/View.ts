@@ -61,6 +61,7 @@ export class View implements ViewIntf {
             siblingOffset: 0,
             renderParentIfLeaf,
             offset,
+            cursor: null,
             goToLastPage: false,
             forceIPFSRefresh,
             singleNode: false
@@ -74,7 +75,7 @@ export class View implements ViewIntf {
     }
 
     firstPage = (state: AppState): void => {
-        this.loadPage(false, 0, false, state);
+        this.loadPage(false, 0, null, false, state);
     }
 
     prevPage = (state: AppState): void => {
@@ -85,7 +86,7 @@ export class View implements ViewIntf {
                 targetOffset = 0;
             }
 
-            this.loadPage(false, targetOffset, false, state);
+            this.loadPage(false, targetOffset, null, false, state);
         }
     }
 
@@ -93,7 +94,7 @@ export class View implements ViewIntf {
         let lastChildNode: J.NodeInfo = S.edit.getLastChildNode(state);
         if (lastChildNode) {
             let targetOffset = lastChildNode.logicalOrdinal + 1;
-            this.loadPage(false, targetOffset, false, state);
+            this.loadPage(false, targetOffset, state.nextCursor, false, state);
         }
     }
 
@@ -109,12 +110,13 @@ export class View implements ViewIntf {
         let lastChildNode: J.NodeInfo = S.edit.getLastChildNode(state);
         if (lastChildNode) {
             let targetOffset = lastChildNode.logicalOrdinal + 1;
-            this.loadPage(false, targetOffset, true, state);
+            this.loadPage(false, targetOffset, state.nextCursor, true, state);
         }
     }
 
-    /* Note: if growingPage==true we preserve the existing row data, and append more rows onto the current view */
-    private loadPage = (goToLastPage: boolean, offset: number, growingPage: boolean, state: AppState): void => {
+    /* Note: if growingPage==true we preserve the existing row data, and append more rows onto the current view.
+    'cursor' is the nextCursor from the page before 'offset' if we have it */
+    private loadPage = (goToLastPage: boolean, offset: number, cursor: string, growingPage: boolean, state: AppState): void => {
         // console.log("loadPage nodeId=" + state.node.id);
         S.util.ajax<J.RenderNodeRequest, J.RenderNodeResponse>("renderNode", {
             nodeId: state.node.id,
@@ -122,6 +124,7 @@ export class View implements ViewIntf {
             siblingOffset: 0,
             renderParentIfLeaf: true,
             offset,
+            cursor,
             goToLastPage,
             forceIPFSRefresh: false,
             singleNode: false
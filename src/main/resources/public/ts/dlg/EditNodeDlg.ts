@@ -814,6 +814,7 @@ export class EditNodeDlg extends DialogBase {
                 siblingOffset: 0,
                 renderParentIfLeaf: false,
                 offset: 0,
+                cursor: null,
                 goToLastPage: false,
                 forceIPFSRefresh: false,
                 singleNode: true
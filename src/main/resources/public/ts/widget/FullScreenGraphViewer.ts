@@ -266,6 +266,7 @@ export class FullScreenGraphViewer extends Main {
             siblingOffset: 0,
             renderParentIfLeaf: false,
             offset: 0,
+            cursor: null,
             goToLastPage: false,
             forceIPFSRefresh: false,
             singleNode: true
@@ -26,6 +26,7 @@ export class WelcomePanel extends Div {
                 siblingOffset: 0,
                 renderParentIfLeaf: null,
                 offset: 0,
+                cursor: null,
                 goToLastPage: false,
                 forceIPFSRefresh: false,
                 singleNode: false